@@ -0,0 +1,54 @@
+#!/bin/sh
+# 单机测试透明代理（TPROXY）。
+#
+# 建立网络命名空间 ss-lan，经 veth 连到本机；从 ss-lan 发出的 TCP 连接在 PREROUTING 被 TPROXY 到 redir_port。
+# 本机自己发出的连接（包括到 ss 服务器的）走 OUTPUT，不会被再次截获。
+#
+#   sudo sh etc/tproxy.sh up 12345       # 配置里 "redir_port":12345，客户端以 root 或 CAP_NET_ADMIN 运行
+#   sudo ip netns exec ss-lan curl -v http://example.com/
+#   sudo sh etc/tproxy.sh down
+#
+# 需要 iptables 的 TPROXY 模块（xt_TPROXY）。命名空间里的 DNS 请走代理之外的方式（或直接用 IP 测试）。
+
+set -e
+PORT=${2:-12345}
+MARK=1
+TABLE=100
+
+case "$1" in
+up)
+    ip netns add ss-lan
+    ip link add ss-veth0 type veth peer name ss-veth1
+    ip link set ss-veth1 netns ss-lan
+    ip addr add 10.200.0.1/24 dev ss-veth0
+    ip link set ss-veth0 up
+    ip netns exec ss-lan ip addr add 10.200.0.2/24 dev ss-veth1
+    ip netns exec ss-lan ip link set ss-veth1 up
+    ip netns exec ss-lan ip link set lo up
+    ip netns exec ss-lan ip route add default via 10.200.0.1
+
+    # 带标记的包按本机地址处理，交给监听 socket
+    ip rule add fwmark $MARK lookup $TABLE
+    ip route add local 0.0.0.0/0 dev lo table $TABLE
+
+    iptables -t mangle -N SS_TPROXY
+    # 已经有 socket 的连接（后续的包）直接打标记
+    iptables -t mangle -A SS_TPROXY -p tcp -m socket --transparent -j MARK --set-mark $MARK
+    iptables -t mangle -A SS_TPROXY -d 10.200.0.0/24 -j RETURN
+    iptables -t mangle -A SS_TPROXY -p tcp -j TPROXY --on-port $PORT --tproxy-mark $MARK
+    iptables -t mangle -A PREROUTING -i ss-veth0 -j SS_TPROXY
+    ;;
+down)
+    iptables -t mangle -D PREROUTING -i ss-veth0 -j SS_TPROXY || true
+    iptables -t mangle -F SS_TPROXY || true
+    iptables -t mangle -X SS_TPROXY || true
+    ip route del local 0.0.0.0/0 dev lo table $TABLE || true
+    ip rule del fwmark $MARK lookup $TABLE || true
+    ip link del ss-veth0 || true
+    ip netns del ss-lan || true
+    ;;
+*)
+    echo "usage: $0 up|down [redir_port]"
+    exit 1
+    ;;
+esac
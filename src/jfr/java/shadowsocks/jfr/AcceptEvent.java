@@ -0,0 +1,28 @@
+package shadowsocks.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("shadowsocks.Accept")
+@Label("Accept")
+@Description("接受一个应用程序或客户端的连接")
+@Category({"Shadowsocks", "Connection"})
+@StackTrace(false)
+class AcceptEvent extends jdk.jfr.Event {
+
+    @Label("Id")
+    long id;
+
+    @Label("Side")
+    @Description("client 或 server")
+    String side;
+
+    @Label("Transport")
+    String transport;
+
+    @Label("Peer")
+    String peer;
+}
@@ -0,0 +1,25 @@
+package shadowsocks.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("shadowsocks.Backpressure")
+@Label("Backpressure")
+@Description("写队列满后暂停读取另一端，持续时间为暂停到恢复（写队列 drain）")
+@Category({"Shadowsocks", "Connection"})
+@StackTrace(false)
+class BackpressureEvent extends jdk.jfr.Event {
+
+    @Label("Id")
+    long id;
+
+    @Label("Target")
+    String target;
+
+    @Label("Paused")
+    @Description("被暂停读取的一端：local、remote、client 或 target")
+    String paused;
+}
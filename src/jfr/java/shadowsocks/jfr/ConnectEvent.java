@@ -0,0 +1,31 @@
+package shadowsocks.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("shadowsocks.Connect")
+@Label("Connect")
+@Description("连接目标或上游服务器，持续时间为连接耗时（不含 DNS）")
+@Category({"Shadowsocks", "Connection"})
+@StackTrace(false)
+class ConnectEvent extends jdk.jfr.Event {
+
+    @Label("Id")
+    long id;
+
+    @Label("Target")
+    String target;
+
+    @Label("Address")
+    @Description("实际连接的地址，客户端为上游服务器")
+    String address;
+
+    @Label("Success")
+    boolean success;
+
+    @Label("Error")
+    String error;
+}
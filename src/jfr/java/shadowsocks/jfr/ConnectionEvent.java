@@ -0,0 +1,33 @@
+package shadowsocks.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("shadowsocks.Connection")
+@Label("Connection")
+@Description("一个连接（HTTP keep-alive 时为一个目标）结束，持续时间为接受到关闭，字段与访问日志一致")
+@Category({"Shadowsocks", "Connection"})
+@StackTrace(false)
+class ConnectionEvent extends jdk.jfr.Event {
+
+    @Label("Id")
+    long id;
+
+    @Label("Target")
+    String target;
+
+    @Label("Bytes Up")
+    @DataAmount
+    long bytesUp;
+
+    @Label("Bytes Down")
+    @DataAmount
+    long bytesDown;
+
+    @Label("Result")
+    String result;
+}
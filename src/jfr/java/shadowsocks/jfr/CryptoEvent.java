@@ -0,0 +1,26 @@
+package shadowsocks.jfr;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+@Name("shadowsocks.Crypto")
+@Label("Crypto")
+@Description("一次超过 jfr_crypto_threshold 字节的加/解密")
+@Category({"Shadowsocks", "Crypto"})
+@StackTrace(false)
+class CryptoEvent extends jdk.jfr.Event {
+
+    @Label("Method")
+    String method;
+
+    @Label("Encrypt")
+    boolean encrypt;
+
+    @Label("Bytes")
+    @DataAmount
+    int bytes;
+}
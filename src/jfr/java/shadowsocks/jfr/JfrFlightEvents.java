@@ -0,0 +1,143 @@
+package shadowsocks.jfr;
+
+import io.vertx.core.net.NetSocket;
+import shadowsocks.GlobalConfig;
+import shadowsocks.kcp.KcpSocket;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link FlightEvents} 的 jdk.jfr 实现，由 FlightEvents 按类名加载，事件类只在本类中引用。
+ */
+class JfrFlightEvents extends FlightEvents {
+
+    private final long mId;
+    private final long mPauseThreshold;
+    private ConnectionEvent mConnection;
+    private ConnectEvent mConnect;
+    // 按 flowControl 的暂停位：0 为 bit 1，1 为 bit 2
+    private final BackpressureEvent[] mPauses = new BackpressureEvent[2];
+    private final long[] mPauseStart = new long[2];
+
+    static class Factory extends FlightEvents.Factory {
+
+        @Override
+        FlightEvents start(GlobalConfig config, long id, String side, NetSocket socket) {
+            AcceptEvent accept = new AcceptEvent();
+            if (accept.shouldCommit()) {
+                accept.id = id;
+                accept.side = side;
+                accept.transport = socket instanceof KcpSocket ? GlobalConfig.TRANSPORT_KCP : GlobalConfig.TRANSPORT_TCP;
+                accept.peer = String.valueOf(socket.remoteAddress());
+                accept.commit();
+            }
+            return new JfrFlightEvents(id, config);
+        }
+
+        @Override
+        Object cryptoBegin(int bytes) {
+            CryptoEvent event = new CryptoEvent();
+            event.begin();
+            event.bytes = bytes;
+            return event;
+        }
+
+        @Override
+        void cryptoEnd(Object begin, String method, boolean encrypt) {
+            CryptoEvent event = (CryptoEvent) begin;
+            event.end();
+            if (event.shouldCommit()) {
+                event.method = method;
+                event.encrypt = encrypt;
+                event.commit();
+            }
+        }
+    }
+
+    private JfrFlightEvents(long id, GlobalConfig config) {
+        mId = id;
+        mPauseThreshold = TimeUnit.MILLISECONDS.toNanos(config.getJfrPauseThreshold());
+        restart();
+    }
+
+    @Override
+    public void restart() {
+        mConnection = new ConnectionEvent();
+        mConnection.begin();
+        mPauses[0] = null;
+        mPauses[1] = null;
+    }
+
+    @Override
+    public void connectStart() {
+        mConnect = new ConnectEvent();
+        mConnect.begin();
+    }
+
+    @Override
+    public void connected(Object target, String addr, int port) {
+        connectDone(target, addr, port, null);
+    }
+
+    @Override
+    public void connectFailed(Object target, String addr, int port, Throwable cause) {
+        connectDone(target, addr, port, String.valueOf(cause != null ? cause.getMessage() : null));
+    }
+
+    private void connectDone(Object target, String addr, int port, String error) {
+        ConnectEvent event = mConnect;
+        mConnect = null;
+        if (event == null)
+            return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.id = mId;
+            event.target = String.valueOf(target);
+            event.address = addr + ':' + port;
+            event.success = error == null;
+            event.error = error;
+            event.commit();
+        }
+    }
+
+    @Override
+    public void paused(int bit, String side, Object target) {
+        int i = bit - 1;
+        if (mPauses[i] != null)
+            return;
+        BackpressureEvent event = new BackpressureEvent();
+        event.begin();
+        event.id = mId;
+        event.paused = side;
+        event.target = String.valueOf(target);
+        mPauses[i] = event;
+        mPauseStart[i] = System.nanoTime();
+    }
+
+    @Override
+    public void resumed(int bit) {
+        int i = bit - 1;
+        BackpressureEvent event = mPauses[i];
+        if (event == null)
+            return;
+        mPauses[i] = null;
+        event.end();
+        if (System.nanoTime() - mPauseStart[i] >= mPauseThreshold && event.shouldCommit()) {
+            event.commit();
+        }
+    }
+
+    @Override
+    public void close(Object target, long bytesUp, long bytesDown, String result) {
+        ConnectionEvent event = mConnection;
+        event.end();
+        if (event.shouldCommit()) {
+            event.id = mId;
+            event.target = String.valueOf(target);
+            event.bytesUp = bytesUp;
+            event.bytesDown = bytesDown;
+            event.result = result;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package shadowsocks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接建立时读取配置的开销：旧的 synchronized static 访问器 vs volatile 快照。
+ *
+ * gradle jmh -PjmhArgs='ConfigAccess'
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@Threads(16)
+public class ConfigAccessBenchmark {
+
+    /**
+     * 与重构前 GlobalConfig.get() 相同的访问方式。
+     */
+    static class SynchronizedConfig {
+        private static SynchronizedConfig mConfig;
+        private final GlobalConfig mSnapshot = new GlobalConfig();
+
+        synchronized static SynchronizedConfig get() {
+            if (mConfig == null) {
+                mConfig = new SynchronizedConfig();
+            }
+            return mConfig;
+        }
+
+        GlobalConfig snapshot() {
+            return mSnapshot;
+        }
+    }
+
+    // 一次连接的读取次数与 handler 一致：method, password, iv_len, noise, timeout
+    @Benchmark
+    public void synchronizedGet(Blackhole bh) {
+        bh.consume(SynchronizedConfig.get().snapshot().getMethod());
+        bh.consume(SynchronizedConfig.get().snapshot().getPassword());
+        bh.consume(SynchronizedConfig.get().snapshot().getIvLen());
+        bh.consume(SynchronizedConfig.get().snapshot().isNoise());
+        bh.consume(SynchronizedConfig.get().snapshot().getTimeout());
+    }
+
+    @Benchmark
+    public void volatileSnapshot(Blackhole bh) {
+        GlobalConfig config = GlobalConfig.get();
+        bh.consume(config.getMethod());
+        bh.consume(config.getPassword());
+        bh.consume(config.getIvLen());
+        bh.consume(config.isNoise());
+        bh.consume(config.getTimeout());
+    }
+}
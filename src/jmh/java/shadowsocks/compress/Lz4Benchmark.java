@@ -0,0 +1,110 @@
+package shadowsocks.compress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 一个 16KB 块的压缩、解压与分帧耗时：json、log 为可压缩的文本，random 相当于 TLS 等已加密的数据。
+ * copy 为直接复制的基准；encode 为 {@link FrameEncoder} 连续分帧，random 时大部分块因退避不再尝试压缩。
+ *
+ * Setup 阶段输出压缩率。往返一致与损坏数据的边界检查见 Lz4Test、FrameTest。
+ *
+ * gradle jmh -PjmhArgs='Lz4Benchmark'
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class Lz4Benchmark {
+
+    @Param({"json", "log", "random"})
+    public String corpus;
+
+    private final byte[] mRaw = new byte[FrameEncoder.BLOCK_SIZE];
+    private final byte[] mCompressed = new byte[FrameEncoder.MAX_COMPRESSED];
+    private final byte[] mOut = new byte[FrameEncoder.MAX_COMPRESSED];
+    private final char[] mTable = new char[1 << Lz4.HASH_LOG];
+    private int mCompressedLength;
+
+    private final FrameEncoder mEncoder = Compression.encoder(true);
+    private ByteBuf mIn;
+    private ByteBuf mFramed;
+
+    @Setup
+    public void setup() {
+        fill(corpus, new Random(42), mRaw);
+        mCompressedLength = Lz4.compress(mRaw, 0, mRaw.length, mCompressed, 0, mTable);
+        System.out.println();
+        System.out.println(corpus + " " + mRaw.length + " -> " + mCompressedLength
+                + String.format(" (%.1f%%)", mCompressedLength * 100.0 / mRaw.length));
+        mIn = Unpooled.wrappedBuffer(mRaw);
+        mFramed = Unpooled.buffer(FrameEncoder.maxEncodedLength(mRaw.length));
+    }
+
+    private static void fill(String corpus, Random random, byte[] dst) {
+        if ("random".equals(corpus)) {
+            random.nextBytes(dst);
+            return;
+        }
+        StringBuilder sb = new StringBuilder(dst.length + 256);
+        for (int i = 0; sb.length() < dst.length; i++) {
+            if ("json".equals(corpus)) {
+                sb.append("{\"id\":").append(100000 + random.nextInt(900000))
+                        .append(",\"user\":\"user").append(random.nextInt(1000))
+                        .append("\",\"status\":\"").append(random.nextBoolean() ? "active" : "inactive")
+                        .append("\",\"score\":").append(random.nextInt(10000) / 100.0)
+                        .append(",\"tags\":[\"a").append(random.nextInt(20)).append("\",\"b").append(random.nextInt(20))
+                        .append("\"]},");
+            } else {
+                sb.append("2026-10-19 13:").append(10 + random.nextInt(50)).append(':').append(10 + random.nextInt(50))
+                        .append(" INFO  [vert.x-eventloop-thread-").append(random.nextInt(8))
+                        .append("] shadowsocks.metrics.AccessLog - 10.0.").append(random.nextInt(256)).append('.')
+                        .append(random.nextInt(256)).append(":443 up ").append(random.nextInt(100000))
+                        .append(" down ").append(random.nextInt(10000000)).append(" ok\n");
+            }
+        }
+        byte[] bytes = sb.toString().getBytes(StandardCharsets.ISO_8859_1);
+        System.arraycopy(bytes, 0, dst, 0, dst.length);
+    }
+
+    @Benchmark
+    public int copy() {
+        System.arraycopy(mRaw, 0, mOut, 0, mRaw.length);
+        return mOut[0];
+    }
+
+    @Benchmark
+    public int compress() {
+        return Lz4.compress(mRaw, 0, mRaw.length, mOut, 0, mTable);
+    }
+
+    @Benchmark
+    public int decompress() {
+        return Lz4.decompress(mCompressed, 0, mCompressedLength, mOut, 0, mRaw.length);
+    }
+
+    @Benchmark
+    public int encode() {
+        mIn.readerIndex(0);
+        mFramed.clear();
+        mEncoder.encode(mIn, mFramed);
+        return mFramed.readableBytes();
+    }
+}
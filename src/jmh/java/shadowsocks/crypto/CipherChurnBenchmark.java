@@ -0,0 +1,156 @@
+package shadowsocks.crypto;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import org.bouncycastle.crypto.StreamCipher;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.CFBBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接建立时的加解密开销：客户端与服务端各一个 SSCrypto，各自加密一个请求头/响应并由对方解密，
+ * 相当于一个连接两端的四次 cipher 初始化。每次调用在一个 event loop 上连续处理 BATCH 个连接。
+ *
+ * pooled：CryptoFactory.create，连接结束后 release，cipher 取自 {@link CipherPool}；
+ * legacy：之前的做法，每个连接重新计算 EVP_BytesToKey，每个方向新建引擎并用密钥完整初始化。
+ * pooled 还包含生成随机 IV 与写入 IV，legacy 只计入初始化与处理，两者的差距偏保守。
+ *
+ * 结果为每个连接的微秒数，10k 连接/秒时一个 event loop 上的 CPU 占用约为 结果 × 1%。加上 -prof gc 比较每个连接的分配。
+ * 复用的 cipher 与新建的 cipher 输出一致由 CipherPoolTest 检查。
+ *
+ * gradle jmh -PjmhArgs='CipherChurn -prof gc'
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class CipherChurnBenchmark {
+
+    private final static int BATCH = 1000;
+    private final static String PASSWORD = "churn-benchmark";
+
+    @Param({"aes-256-cfb", "chacha20", "rc4-md5"})
+    public String method;
+
+    @Param({"pooled", "legacy"})
+    public String mode;
+
+    @Param({"16"})
+    public int ivLen;
+
+    @Param({"64"})
+    public int size;
+
+    private EventLoop mLoop;
+    private byte[] mData;
+    private ByteBuf mPlain;
+    private ByteBuf mCipher;
+    private ByteBuf mOut;
+    private byte[] mIv;
+
+    @Setup
+    public void setup() {
+        mLoop = new DefaultEventLoop();
+        mData = new byte[size];
+        new Random(0).nextBytes(mData);
+        mPlain = Unpooled.wrappedBuffer(mData);
+        mCipher = Unpooled.buffer(size + ivLen);
+        mOut = Unpooled.buffer(size + ivLen);
+        mIv = new byte[ivLen];
+    }
+
+    @TearDown
+    public void tearDown() {
+        mLoop.shutdownGracefully(0, 0, TimeUnit.SECONDS);
+    }
+
+    /**
+     * 与改为池化之前 AESCrypto / Chacha20Crypto / RC4MD5Crypto 的 createCipher 相同。
+     */
+    private static StreamCipher legacy(String method, byte[] key, byte[] iv, boolean encrypt) {
+        if ("aes-256-cfb".equals(method)) {
+            StreamCipher c = new CFBBlockCipher(new AESEngine(), 128);
+            c.init(encrypt, new ParametersWithIV(new KeyParameter(key), iv.length == 16 ? iv : Utils.md5(iv)));
+            return c;
+        } else if ("chacha20".equals(method)) {
+            StreamCipher c = new FastChaChaEngine();
+            c.init(encrypt, new ParametersWithIV(new KeyParameter(key), iv.length == 8 ? iv : Arrays.copyOf(Utils.md5(iv), 8)));
+            return c;
+        }
+        StreamCipher c = new FastRC4Engine();
+        byte[] data = new byte[key.length + iv.length];
+        System.arraycopy(key, 0, data, 0, key.length);
+        System.arraycopy(iv, 0, data, key.length, iv.length);
+        c.init(encrypt, new KeyParameter(Utils.md5(data)));
+        return c;
+    }
+
+    private void pooledConnection() throws CryptoException {
+        SSCrypto client = CryptoFactory.create(method, PASSWORD, ivLen);
+        SSCrypto server = CryptoFactory.create(method, PASSWORD, ivLen);
+        exchange(client, server);
+        exchange(server, client);
+        client.release(true);
+        client.release(false);
+        server.release(true);
+        server.release(false);
+    }
+
+    private void exchange(SSCrypto from, SSCrypto to) throws CryptoException {
+        mPlain.readerIndex(0);
+        mCipher.clear();
+        mOut.clear();
+        from.encrypt(mPlain, mCipher);
+        to.decrypt(mCipher, mOut);
+    }
+
+    private void legacyConnection() throws CryptoException {
+        int keyLength = "rc4-md5".equals(method) ? 16 : 32;
+        for (int side = 0; side < 2; side++) {
+            byte[] key = Utils.getKey(PASSWORD, keyLength, ivLen);
+            for (int direction = 0; direction < 2; direction++) {
+                StreamCipher c = legacy(method, key, mIv, direction == 0);
+                c.processBytes(mData, 0, mData.length, mOut.array(), 0);
+            }
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public ByteBuf churn() throws Exception {
+        boolean pooled = "pooled".equals(mode);
+        mLoop.submit(() -> {
+            for (int i = 0; i < BATCH; i++) {
+                if (pooled) {
+                    pooledConnection();
+                } else {
+                    legacyConnection();
+                }
+            }
+            return null;
+        }).get();
+        return mOut;
+    }
+}
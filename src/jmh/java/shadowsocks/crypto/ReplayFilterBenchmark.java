@@ -0,0 +1,79 @@
+package shadowsocks.crypto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * ReplayFilter.checkAndAdd 的吞吐（每个新连接一次），包含写满后清空切换的开销。
+ *
+ * Setup 阶段先写入 2 * capacity - 1 个 IV，两个 filter 都接近写满（查询最慢的情况）。漏判与误判见 ReplayFilterTest。
+ *
+ * gradle jmh -PjmhArgs='ReplayFilter'
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReplayFilterBenchmark {
+
+    @Param({"1000000"})
+    public int capacity;
+
+    @Param({"16"})
+    public int ivLen;
+
+    private ReplayFilter mFilter;
+
+    @State(Scope.Thread)
+    public static class Iv {
+        byte[] mIv;
+
+        @Setup
+        public void setup(ReplayFilterBenchmark benchmark) {
+            mIv = new byte[benchmark.ivLen];
+        }
+    }
+
+    @Setup
+    public void setup() {
+        mFilter = new ReplayFilter(capacity);
+        Random random = new Random(0);
+        byte[] iv = new byte[ivLen];
+        int total = 2 * capacity - 1;
+        for (int i = 0; i < total; i++) {
+            random.nextBytes(iv);
+            mFilter.checkAndAdd(iv);
+        }
+        System.out.println(String.format("%nReplay filter: %d entries, %.1f MB",
+                mFilter.count(), mFilter.sizeInBytes() / 1024.0 / 1024));
+    }
+
+    @Benchmark
+    public boolean checkAndAdd(Iv iv) {
+        ThreadLocalRandom.current().nextBytes(iv.mIv);
+        return mFilter.checkAndAdd(iv.mIv);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean checkAndAddContended(Iv iv) {
+        ThreadLocalRandom.current().nextBytes(iv.mIv);
+        return mFilter.checkAndAdd(iv.mIv);
+    }
+}
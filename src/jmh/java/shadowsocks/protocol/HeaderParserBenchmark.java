@@ -0,0 +1,125 @@
+package shadowsocks.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.buffer.Buffer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 地址头解析：重构前 ServerHandler 的方式（累积到 Buffer，数据不全时从头重读，InetAddress 生成字符串）
+ * 与增量的 HeaderParser 对比。chunks 表示头部分几次到达。解析的正确性见 HeaderParserTest。
+ *
+ * gradle jmh -PjmhArgs='HeaderParser'
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HeaderParserBenchmark {
+
+    @Param({"ipv4", "host", "ipv6"})
+    public String type;
+
+    @Param({"1", "3"})
+    public int chunks;
+
+    private ByteBuf[] mChunks;
+    private final HeaderParser mParser = new HeaderParser(false);
+
+    @Setup
+    public void setup() throws Exception {
+        byte[] header;
+        if ("ipv4".equals(type)) {
+            header = encode(Address.TYPE_IPV4, new byte[]{(byte) 93, (byte) 184, (byte) 216, 34}, 443);
+        } else if ("ipv6".equals(type)) {
+            header = encode(Address.TYPE_IPV6, InetAddress.getByName("2606:2800:220:1:248:1893:25c8:1946").getAddress(), 443);
+        } else {
+            header = encode(Address.TYPE_HOST, "www.example.com".getBytes(StandardCharsets.UTF_8), 443);
+        }
+        mChunks = new ByteBuf[chunks];
+        int off = 0;
+        for (int i = 0; i < chunks; i++) {
+            int end = i == chunks - 1 ? header.length : off + header.length / chunks;
+            mChunks[i] = Unpooled.wrappedBuffer(header, off, end - off);
+            off = end;
+        }
+    }
+
+    private static byte[] encode(int type, byte[] addr, int port) {
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeByte(type);
+        if (type == Address.TYPE_HOST) {
+            buf.writeByte(addr.length);
+        }
+        buf.writeBytes(addr);
+        buf.writeShort(port);
+        byte[] out = new byte[buf.readableBytes()];
+        buf.readBytes(out);
+        return out;
+    }
+
+    /**
+     * 重构前 ServerHandler.handleStageAddress 的解析方式。
+     */
+    @Benchmark
+    public void legacy(Blackhole bh) throws Exception {
+        Buffer queue = Buffer.buffer();
+        for (ByteBuf chunk : mChunks) {
+            queue.appendBuffer(Buffer.buffer(chunk.duplicate()));
+            int bufferLength = queue.length();
+            String addr;
+            int current;
+            int addrType = queue.getByte(0);
+            if (addrType == Address.TYPE_IPV4) {
+                if (bufferLength < 7)
+                    continue;
+                addr = InetAddress.getByAddress(queue.getBytes(1, 5)).getHostAddress();
+                current = 5;
+            } else if (addrType == Address.TYPE_IPV6) {
+                if (bufferLength < 19)
+                    continue;
+                addr = InetAddress.getByAddress(queue.getBytes(1, 17)).getHostAddress();
+                current = 17;
+            } else {
+                short hostLength = queue.getUnsignedByte(1);
+                if (bufferLength < hostLength + 4)
+                    continue;
+                addr = queue.getString(2, hostLength + 2);
+                current = hostLength + 2;
+            }
+            int port = queue.getUnsignedShort(current);
+            queue = Buffer.buffer().appendBuffer(queue.slice(current + 2, queue.length()));
+            bh.consume(addr);
+            bh.consume(port);
+        }
+    }
+
+    @Benchmark
+    public void incremental(Blackhole bh) {
+        HeaderParser parser = mParser;
+        parser.reset();
+        for (ByteBuf chunk : mChunks) {
+            if (parser.parse(chunk.duplicate()) == HeaderParser.DONE) {
+                bh.consume(parser.getAddress().getHost());
+                bh.consume(parser.getAddress().getPort());
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package shadowsocks.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.json.JsonObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import shadowsocks.GlobalConfig;
+import shadowsocks.crypto.CryptoFactory;
+import shadowsocks.crypto.SSCrypto;
+import shadowsocks.crypto.Utils;
+
+import java.security.SecureRandom;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 客户端每个连接生成并加密远程头部（噪声 + 地址头）的耗时：
+ * off 不加噪声；securerandom 为之前的实现（每个连接新建 SecureRandom 取长度和内容）；uniform、exponential 为 {@link Noise}。
+ *
+ * Setup 阶段抽样输出平均每个连接多出的字节数（流量开销）。长度范围与服务端跳过噪声由 NoiseTest 检查。
+ *
+ * gradle jmh -PjmhArgs='NoiseBenchmark'
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class NoiseBenchmark {
+
+    @Param({"off", "securerandom", "uniform", "exponential"})
+    public String mode;
+
+    private GlobalConfig mConfig;
+    private SSCrypto mCrypto;
+    private final Address mAddress = Address.create("www.example.com", 443);
+    private final ByteBuf mHeader = Unpooled.buffer(512);
+    private final ByteBuf mOut = Unpooled.directBuffer(1024);
+
+    @Setup
+    public void setup() throws Exception {
+        mConfig = new GlobalConfig(null, new JsonObject()
+                .put("noise", !"off".equals(mode))
+                .put("noise_distribution", "exponential".equals(mode) ? Noise.EXPONENTIAL : Noise.UNIFORM));
+        overhead(mConfig);
+        newCrypto();
+    }
+
+    // 每个连接一个新的 cipher，只测头部，避免流越来越长
+    @Setup(Level.Iteration)
+    public void newCrypto() throws Exception {
+        mCrypto = CryptoFactory.create("rc4-md5", "noise-benchmark", 16);
+    }
+
+    private static void overhead(GlobalConfig config) {
+        if (!config.isNoise())
+            return;
+        int samples = 100000;
+        long total = 0;
+        for (int i = 0; i < samples; i++) {
+            total += 4 + Noise.length(ThreadLocalRandom.current(), config.getNoiseMin(), config.getNoiseMax(), config.getNoiseDistribution());
+        }
+        System.out.println(String.format("%n%s noise: %.1f bytes per connection", config.getNoiseDistribution(), (double) total / samples));
+    }
+
+    @Benchmark
+    public ByteBuf header() throws Exception {
+        mHeader.clear();
+        if ("securerandom".equals(mode)) {
+            int noiseLen = new SecureRandom().nextInt(Utils.NOISE_MAX) + 1;
+            mHeader.writeBytes(Utils.intToByteArray(noiseLen));
+            byte[] noise = new byte[noiseLen];
+            new SecureRandom().nextBytes(noise);
+            mHeader.writeBytes(noise);
+        } else {
+            Noise.write(mHeader, mConfig);
+        }
+        mAddress.writeTo(mHeader);
+        mOut.clear();
+        mCrypto.encrypt(mHeader, mOut);
+        return mOut;
+    }
+}
@@ -0,0 +1,155 @@
+package shadowsocks.route;
+
+import io.netty.buffer.Unpooled;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import shadowsocks.protocol.Address;
+import shadowsocks.protocol.AddressParser;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 分流查询耗时：rules 条域名规则 + rules 条 IPv4 规则 + rules / 10 条 IPv6 规则。
+ *
+ * 匹配结果与逐条扫描一致由 RouterTest 检查。
+ *
+ * gradle jmh -PjmhArgs='Router'
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RouterBenchmark {
+
+    @Param({"100000"})
+    public int rules;
+
+    private static final Route[] ROUTES = {Route.DIRECT, Route.PROXY, Route.REJECT};
+    private static final String[] TLDS = {"com", "net", "org", "cn", "io"};
+    private static final int QUERIES = 1024;
+
+    private Router mRouter;
+    private Address[] mHosts;
+    private Address[] mIpv4;
+    private Address[] mIpv6;
+    private int mIndex;
+
+    private final List<String> mDomainRules = new ArrayList<>();
+    private final List<byte[]> mCidrRules = new ArrayList<>();
+    private final List<Integer> mCidrBits = new ArrayList<>();
+
+    private static String label(Random random) {
+        char[] chars = new char[2 + random.nextInt(8)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(26));
+        }
+        return new String(chars);
+    }
+
+    private static Address address(int type, byte[] bytes, int port) {
+        AddressParser parser = new AddressParser();
+        io.netty.buffer.ByteBuf buf = Unpooled.buffer();
+        buf.writeByte(type);
+        if (type == Address.TYPE_HOST) {
+            buf.writeByte(bytes.length);
+        }
+        buf.writeBytes(bytes).writeShort(port);
+        parser.parse(buf);
+        return parser.getAddress();
+    }
+
+    @Setup
+    public void setup() {
+        Random random = new Random(0);
+        mRouter = new Router(Route.PROXY);
+        for (int i = 0; i < rules; i++) {
+            String domain = label(random) + "." + TLDS[random.nextInt(TLDS.length)];
+            if (random.nextInt(4) == 0) {
+                domain = label(random) + "." + domain;
+            }
+            Route route = ROUTES[random.nextInt(ROUTES.length)];
+            mRouter.addRule("DOMAIN-SUFFIX," + domain + "," + route);
+            mDomainRules.add(domain);
+
+            byte[] ip = new byte[4];
+            random.nextBytes(ip);
+            int bits = 8 + random.nextInt(25);
+            addCidr(ip, bits, random);
+            if (i % 10 == 0) {
+                ip = new byte[16];
+                random.nextBytes(ip);
+                addCidr(ip, 16 + random.nextInt(113), random);
+            }
+        }
+
+        mHosts = new Address[QUERIES];
+        mIpv4 = new Address[QUERIES];
+        mIpv6 = new Address[QUERIES];
+        for (int i = 0; i < QUERIES; i++) {
+            // 一半命中规则（加一级子域名），一半随机
+            String host = i % 2 == 0 ? "www." + mDomainRules.get(random.nextInt(mDomainRules.size()))
+                    : label(random) + "." + label(random) + ".com";
+            mHosts[i] = address(Address.TYPE_HOST, host.getBytes(StandardCharsets.UTF_8), 443);
+            byte[] ip = new byte[4];
+            random.nextBytes(ip);
+            mIpv4[i] = address(Address.TYPE_IPV4, ip, 443);
+            ip = new byte[16];
+            random.nextBytes(ip);
+            if (i % 2 == 0) {
+                // 落在某条规则内
+                int rule = random.nextInt(mCidrRules.size());
+                byte[] prefix = mCidrRules.get(rule);
+                if (prefix.length == 16) {
+                    System.arraycopy(prefix, 0, ip, 0, mCidrBits.get(rule) / 8);
+                }
+            }
+            mIpv6[i] = address(Address.TYPE_IPV6, ip, 443);
+        }
+    }
+
+    private void addCidr(byte[] ip, int bits, Random random) {
+        for (int b = bits; b < ip.length * 8; b++) {
+            ip[b >>> 3] &= ~(0x80 >>> (b & 7));
+        }
+        Route route = ROUTES[random.nextInt(ROUTES.length)];
+        try {
+            String text = java.net.InetAddress.getByAddress(ip).getHostAddress();
+            mRouter.addRule((ip.length == 4 ? "IP-CIDR," : "IP-CIDR6,") + text + "/" + bits + "," + route);
+        } catch (java.net.UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+        mCidrRules.add(ip);
+        mCidrBits.add(bits);
+    }
+
+    @Benchmark
+    public Route domain() {
+        return mRouter.route(mHosts[mIndex++ & (QUERIES - 1)]);
+    }
+
+    @Benchmark
+    public Route ipv4() {
+        return mRouter.route(mIpv4[mIndex++ & (QUERIES - 1)]);
+    }
+
+    @Benchmark
+    public Route ipv6() {
+        return mRouter.route(mIpv6[mIndex++ & (QUERIES - 1)]);
+    }
+}
@@ -0,0 +1,359 @@
+package shadowsocks;
+
+import io.netty.channel.ChannelOption;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.net.NetClient;
+import io.vertx.core.net.NetClientOptions;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetServerOptions;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.impl.ConnectionBase;
+
+import java.util.ArrayDeque;
+import java.util.SplittableRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 测试用的 TCP 中继，放在本机的客户端与服务端之间模拟不理想的链路，不依赖真实网络：
+ * 每个方向固定延迟加随机抖动、带宽上限（所有连接共享，模拟一条链路）、把数据切成很小的片段分别写出
+ * （接收方读到的是不完整的头部与数据块），以及按比例在随机位置用 RST 断开连接。
+ *
+ * TCP 是有序的字节流，抖动不会造成乱序，只会让后面的数据一起等待；乱序见 ImpairedUdpRelay。
+ * 随机数按连接的序号固定种子，同样的流量得到同样的分片与断开位置。
+ * 所有连接都在监听时的 event loop 上处理，写队列满时暂停读取另一端。
+ */
+public class ImpairedTcpRelay {
+
+    private final static int HIGH_WATER = 256 * 1024;// 一个方向攒下的数据超过时暂停读取
+    private final static int LOW_WATER = 64 * 1024;
+
+    /**
+     * 链路参数，默认不做任何模拟。
+     */
+    public static class Options {
+        private int mDelay;
+        private int mJitter;
+        private long mBandwidth;
+        private int mFragment;
+        private double mResetRate;
+        private int mResetAfter = 64 * 1024;
+        private long mSeed = 42;
+
+        /**
+         * @param delay 单向延迟，单位毫秒
+         */
+        public Options setDelay(int delay) {
+            mDelay = delay;
+            return this;
+        }
+
+        /**
+         * @param jitter 每个片段在延迟之上随机增加 0 - jitter 毫秒
+         */
+        public Options setJitter(int jitter) {
+            mJitter = jitter;
+            return this;
+        }
+
+        /**
+         * @param bandwidth 每个方向的带宽上限，字节/秒，0 表示不限
+         */
+        public Options setBandwidth(long bandwidth) {
+            mBandwidth = bandwidth;
+            return this;
+        }
+
+        /**
+         * @param fragment 片段的最大长度，每个片段 1 - fragment 字节，单独写出；0 表示不切分
+         */
+        public Options setFragment(int fragment) {
+            mFragment = fragment;
+            return this;
+        }
+
+        /**
+         * @param resetRate 被 RST 断开的连接比例，0 - 1
+         * @param resetAfter 断开位置在两个方向累计的前 1 - resetAfter 字节内随机选取
+         */
+        public Options setReset(double resetRate, int resetAfter) {
+            mResetRate = resetRate;
+            mResetAfter = resetAfter;
+            return this;
+        }
+
+        public Options setSeed(long seed) {
+            mSeed = seed;
+            return this;
+        }
+
+        public boolean isImpaired() {
+            return mDelay > 0 || mJitter > 0 || mBandwidth > 0 || mFragment > 0 || mResetRate > 0;
+        }
+
+        @Override
+        public String toString() {
+            return "delay " + mDelay + "ms, jitter " + mJitter + "ms, bandwidth " + mBandwidth + "B/s, fragment "
+                    + mFragment + ", reset " + mResetRate + " within " + mResetAfter + " bytes";
+        }
+    }
+
+    /**
+     * 一个方向共享的带宽。
+     */
+    private final static class Link {
+        double nextFree;// 链路空闲的时间，毫秒
+    }
+
+    private final static class Chunk {
+        final Buffer data;
+        final double due;// 写出的时间，毫秒
+
+        Chunk(Buffer data, double due) {
+            this.data = data;
+            this.due = due;
+        }
+    }
+
+    private final Vertx mVertx;
+    private final String mTargetHost;
+    private final int mTargetPort;
+    private final Options mOptions;
+    private final double mBytesPerMs;
+    private final Link mUpLink = new Link();
+    private final Link mDownLink = new Link();
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mFragments = new AtomicLong();
+    private final AtomicLong mResets = new AtomicLong();
+    private NetServer mFront;
+    private NetClient mClient;
+
+    public ImpairedTcpRelay(Vertx vertx, String targetHost, int targetPort, Options options) {
+        mVertx = vertx;
+        mTargetHost = targetHost;
+        mTargetPort = targetPort;
+        mOptions = options;
+        mBytesPerMs = options.mBandwidth / 1000.0;
+    }
+
+    public long connections() {
+        return mConnections.get();
+    }
+
+    public long fragments() {
+        return mFragments.get();
+    }
+
+    public long resets() {
+        return mResets.get();
+    }
+
+    public void listen(int port, String host, Handler<AsyncResult<Void>> listenHandler) {
+        // 片段要单独到达对方，不能被 Nagle 合并
+        mClient = mVertx.createNetClient(new NetClientOptions().setTcpNoDelay(true));
+        mFront = mVertx.createNetServer(new NetServerOptions().setTcpNoDelay(true)).connectHandler(this::accept);
+        mFront.listen(port, host, res -> listenHandler.handle(
+                res.succeeded() ? Future.succeededFuture() : Future.failedFuture(res.cause())));
+    }
+
+    private void accept(NetSocket front) {
+        long index = mConnections.getAndIncrement();
+        front.pause();
+        mClient.connect(mTargetPort, mTargetHost, res -> {
+            if (res.failed()) {
+                front.close();
+                return;
+            }
+            new Pair(index, front, res.result());
+            front.resume();
+        });
+    }
+
+    private static double now() {
+        return System.nanoTime() / 1e6;
+    }
+
+    /**
+     * 一对连接：客户端到中继、中继到目标。
+     */
+    private final class Pair {
+        private final SplittableRandom mRandom;// 相邻的种子也得到不相关的序列，Random 做不到
+        private final NetSocket mFront;
+        private final NetSocket mBack;
+        private final long mResetAt;// 两个方向累计到该字节数时断开，0 表示不断开
+        private long mBytes;
+        private boolean mReset;
+
+        Pair(long index, NetSocket front, NetSocket back) {
+            mRandom = new SplittableRandom(mOptions.mSeed + index);
+            mFront = front;
+            mBack = back;
+            mResetAt = mOptions.mResetRate > 0 && mRandom.nextDouble() < mOptions.mResetRate
+                    ? 1 + mRandom.nextInt(Math.max(1, mOptions.mResetAfter)) : 0;
+            Direction up = new Direction(front, back, mUpLink);
+            Direction down = new Direction(back, front, mDownLink);
+            front.exceptionHandler(e -> close());
+            back.exceptionHandler(e -> close());
+            front.handler(up::receive);
+            back.handler(down::receive);
+            front.endHandler(v -> up.end());
+            front.closeHandler(v -> up.end());
+            back.endHandler(v -> down.end());
+            back.closeHandler(v -> down.end());
+        }
+
+        /**
+         * @return 连接已经被 RST 断开
+         */
+        boolean count(int length) {
+            if (mReset)
+                return true;
+            mBytes += length;
+            if (mResetAt > 0 && mBytes >= mResetAt) {
+                reset();
+                return true;
+            }
+            return false;
+        }
+
+        /**
+         * SO_LINGER 为 0 时 close 发送 RST，并丢弃没发出去的数据。
+         */
+        private void reset() {
+            mReset = true;
+            mResets.incrementAndGet();
+            for (NetSocket socket : new NetSocket[]{mFront, mBack}) {
+                ((ConnectionBase) socket).channel().config().setOption(ChannelOption.SO_LINGER, 0);
+                socket.close();
+            }
+        }
+
+        private void close() {
+            mFront.close();
+            mBack.close();
+        }
+
+        /**
+         * 一个方向：按到达顺序排队，到时间后写出。
+         */
+        private final class Direction {
+            private final NetSocket mFrom;
+            private final NetSocket mTo;
+            private final Link mLink;
+            private final ArrayDeque<Chunk> mQueue = new ArrayDeque<>();
+            private long mQueued;
+            private double mLastDue;
+            private boolean mScheduled;// 已经有定时器或任务会调用 pump
+            private boolean mWaitingDrain;
+            private boolean mFromPaused;
+            private boolean mEnded;
+
+            Direction(NetSocket from, NetSocket to, Link link) {
+                mFrom = from;
+                mTo = to;
+                mLink = link;
+            }
+
+            void receive(Buffer data) {
+                int length = data.length();
+                if (count(length))
+                    return;
+                double now = now();
+                int fragment = mOptions.mFragment;
+                int pieces = 0;
+                for (int offset = 0; offset < length; pieces++) {
+                    int n = fragment > 0 ? Math.min(length - offset, 1 + mRandom.nextInt(fragment)) : length - offset;
+                    double sent = now;
+                    if (mBytesPerMs > 0) {
+                        sent = Math.max(now, mLink.nextFree) + n / mBytesPerMs;
+                        mLink.nextFree = sent;
+                    }
+                    double due = sent + mOptions.mDelay + (mOptions.mJitter > 0 ? mRandom.nextInt(mOptions.mJitter + 1) : 0);
+                    // 字节流不能乱序，晚到的数据挡住后面的
+                    due = Math.max(due, mLastDue);
+                    mLastDue = due;
+                    mQueue.add(new Chunk(n == length ? data : data.slice(offset, offset + n), due));
+                    offset += n;
+                }
+                if (fragment > 0) {
+                    mFragments.addAndGet(pieces);
+                }
+                mQueued += length;
+                if (mQueued > HIGH_WATER && !mFromPaused) {
+                    mFromPaused = true;
+                    mFrom.pause();
+                }
+                if (!mScheduled && !mWaitingDrain) {
+                    pump();
+                }
+            }
+
+            void end() {
+                if (mEnded)
+                    return;
+                mEnded = true;
+                if (!mScheduled && !mWaitingDrain) {
+                    pump();
+                }
+            }
+
+            private void pump() {
+                if (mReset)
+                    return;
+                double now = now();
+                while (!mQueue.isEmpty()) {
+                    if (mTo.writeQueueFull()) {
+                        mWaitingDrain = true;
+                        mTo.drainHandler(v -> {
+                            mWaitingDrain = false;
+                            pump();
+                        });
+                        return;
+                    }
+                    Chunk chunk = mQueue.peek();
+                    if (chunk.due > now) {
+                        mScheduled = true;
+                        mVertx.setTimer(Math.max(1, (long) Math.ceil(chunk.due - now)), id -> {
+                            mScheduled = false;
+                            pump();
+                        });
+                        return;
+                    }
+                    mQueue.poll();
+                    mQueued -= chunk.data.length();
+                    mTo.write(chunk.data);
+                    if (mFromPaused && mQueued <= LOW_WATER) {
+                        mFromPaused = false;
+                        mFrom.resume();
+                    }
+                    if (mOptions.mFragment > 0 && !mQueue.isEmpty()) {
+                        // 每个片段单独写出，让对方有机会只读到一部分
+                        mScheduled = true;
+                        mVertx.runOnContext(v -> {
+                            mScheduled = false;
+                            pump();
+                        });
+                        return;
+                    }
+                }
+                if (mEnded) {
+                    mTo.close();
+                }
+            }
+        }
+    }
+
+    public void close() {
+        if (mFront != null) {
+            mFront.close();
+            mFront = null;
+        }
+        if (mClient != null) {
+            mClient.close();
+            mClient = null;
+        }
+    }
+}
@@ -0,0 +1,556 @@
+package shadowsocks;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.util.ResourceLeakDetector;
+import io.netty.util.ResourceLeakDetectorFactory;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.NetClient;
+import io.vertx.core.net.NetClientOptions;
+import io.vertx.core.net.NetServer;
+import io.vertx.core.net.NetSocket;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+import shadowsocks.kcp.ImpairedUdpRelay;
+import shadowsocks.metrics.RelayMetrics;
+import shadowsocks.upstream.UpstreamPool;
+
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.net.ServerSocket;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 本地回环压测，不依赖外网。
+ *
+ * 进程内启动一个 echo/sink 目标、一个 server 模式和一个 client 模式的 ShadowsocksVertx，
+ * 由 N 个并发的 socks5 客户端经过完整的加密链路访问目标，输出吞吐、每秒连接数与延迟分位数。
+ *
+ * java -cp shadowsocks-fat-1.0.0.jar:shadowsocks-loadtest-1.0.0.jar shadowsocks.LoadTest --connections=64 --payload=16384 --requests=100
+ *
+ * 参数：
+ *   --methods      加密算法，逗号分隔，默认三种都测
+ *   --connections  并发 socks5 客户端数，默认 32
+ *   --payload      每次请求的字节数，默认 16384
+ *   --requests     每个连接的请求数，之后断开重连；0 表示不断开。默认 0
+ *   --target       echo：请求/响应，统计往返延迟；sink：只上传，统计单向吞吐。默认 echo
+ *   --duration     每种算法的测试时间，单位秒，默认 10
+ *   --warmup       预热时间，单位秒，不计入结果，默认 3
+ *   --iv_len       默认 16
+ *   --noise        默认 false
+ *   --noise_distribution  噪声长度分布：uniform 或 exponential，默认 uniform
+ *   --batch_limit  合并写出上限，0 表示不合并，默认 16384。小包场景：--payload=64 --target=sink
+ *   --engine       转发引擎：vertx 或 thread，默认 vertx
+ *   --crypto_offload_threshold  单个连接超过该吞吐量（字节/秒）后加解密交给线程池，默认 0 关闭
+ *   --compression  none 或 lz4，默认 none。payload 为随机数据，用于检查不可压缩数据的退避开销
+ *   --transport    tcp 或 kcp，默认 tcp
+ *   --kcp_nodelay  KCP 快速模式，默认 true
+ *   --loss         KCP 时客户端与服务端之间每个方向的丢包率，例如 0.03，默认 0
+ *   --delay        客户端与服务端之间的单向延迟，单位毫秒，默认 0
+ *   --jitter       在延迟上随机增加的毫秒数，默认 0。例如 --transport=kcp --loss=0.03 --delay=50 --jitter=10
+ *   --bandwidth    TCP 时客户端与服务端之间每个方向的带宽，单位 Mbit/s，默认 0 不限
+ *   --fragment     TCP 时把数据切成 1 - fragment 字节的片段分别写出，检查不完整读取的处理，默认 0 不切分
+ *   --reset_rate   TCP 时被 RST 断开的连接比例，默认 0。断开位置在前 --reset_after 字节内（默认 65536），计入 errors
+ *                  TCP 的这些模拟由 ImpairedTcpRelay 完成，例如 --delay=20 --bandwidth=100 --fragment=7
+ *   --leak_detection  Netty 内存泄漏检测级别：disabled, simple, advanced, paranoid。默认 simple
+ *   --fail_on_leak    为 true 时测试结束后 GC 并再分配一些缓冲区触发检测，报告过泄漏则以状态 1 退出。默认 false
+ *                     gradle leakTest 以 paranoid 级别使用
+ *
+ * 同时输出测试期间的内存分配速率与 GC 次数/耗时，用于比较缓冲区分配策略；
+ * 以及加密方向每秒实际写出（flush）的次数和平均每次写出合并的数据块数。
+ * 测试结束时（连接仍然保持）比较 GC 后的堆与进程 RSS，得到每个连接占用的内存；RSS 包括线程栈与 direct buffer，仅 Linux。
+ */
+public class LoadTest {
+
+    private static final byte[] SOCKS_HELLO = {0x05, 0x01, 0x00};
+
+    private static final AtomicLong mLeaks = new AtomicLong();// Netty 报告的泄漏次数
+
+    private final Map<String, String> mOptions;
+    private final int mConnections;
+    private final int mPayloadSize;
+    private final int mRequests;
+    private final boolean mSink;
+    private final int mDuration;
+    private final int mWarmup;
+
+    private Vertx mTargetVertx;
+    private int mTargetPort;
+    private final AtomicLong mSinkBytes = new AtomicLong();
+
+    // 以下统计只在 event loop 线程之间共享
+    private final Recorder mConnectLatency = new Recorder(2);
+    private final Recorder mRequestLatency = new Recorder(2);
+    private final AtomicLong mEchoBytes = new AtomicLong();
+    private final AtomicLong mConnected = new AtomicLong();
+    private final AtomicLong mErrors = new AtomicLong();
+    private volatile boolean mRecording;
+    private volatile boolean mRunning;
+
+    private Buffer mPayload;
+
+    public LoadTest(Map<String, String> options) {
+        mOptions = options;
+        mConnections = Integer.parseInt(options.getOrDefault("connections", "32"));
+        mPayloadSize = Integer.parseInt(options.getOrDefault("payload", "16384"));
+        mRequests = Integer.parseInt(options.getOrDefault("requests", "0"));
+        mSink = "sink".equals(options.getOrDefault("target", "echo"));
+        mDuration = Integer.parseInt(options.getOrDefault("duration", "10"));
+        mWarmup = Integer.parseInt(options.getOrDefault("warmup", "3"));
+
+        // 固定种子，保证每次运行的数据一致
+        byte[] data = new byte[mPayloadSize];
+        new Random(42).nextBytes(data);
+        mPayload = Buffer.buffer(data);
+    }
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("Unknown argument " + arg);
+                return;
+            }
+            int i = arg.indexOf('=');
+            options.put(arg.substring(2, i), arg.substring(i + 1));
+        }
+        // 只走 IPv4 回环，ShadowsocksVertx 据此监听 0.0.0.0
+        System.setProperty("java.net.preferIPv4Stack", "true");
+        ResourceLeakDetector.Level leakLevel = ResourceLeakDetector.Level.valueOf(
+                options.getOrDefault("leak_detection", "simple").toUpperCase());
+        boolean failOnLeak = Boolean.parseBoolean(options.getOrDefault("fail_on_leak", "false"));
+        if (failOnLeak) {
+            ResourceLeakDetectorFactory.setResourceLeakDetectorFactory(new CountingLeakDetectorFactory());
+        }
+        LoadTest test = new LoadTest(options);
+        test.startTarget();
+        // Vert.x 初始化时关闭了 Netty 的泄漏检测（忽略 io.netty.leakDetection.level），之后再设置
+        ResourceLeakDetector.setLevel(leakLevel);
+        System.out.println(String.format("%-12s %-7s %6s %8s %8s %9s %10s  %-24s %-24s %10s %6s %7s %10s %11s %12s %11s %7s %s",
+                "method", "engine", "conns", "payload", "requests", "Gbps", "conn/s",
+                "connect p50/p99/p999 ms", "rtt p50/p99/p999 ms", "alloc MB/s", "gc", "gc ms",
+                "writes/s", "reads/write", "heap KB/conn", "rss KB/conn", "threads", "errors"));
+        for (String method : options.getOrDefault("methods", "rc4-md5,aes-256-cfb,chacha20").split(",")) {
+            test.run(method.trim());
+        }
+        if (failOnLeak && checkLeaks() > 0) {
+            System.err.println("Netty reported " + mLeaks.get() + " buffer leaks, see the LEAK log above.");
+            System.exit(1);
+        }
+        System.exit(0);
+    }
+
+    /**
+     * 泄漏的缓冲区被 GC 回收后，下一次分配被追踪的缓冲区时才会报告，这里主动触发几轮。
+     *
+     * @return 报告过的泄漏次数
+     */
+    private static long checkLeaks() throws InterruptedException {
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            Thread.sleep(100);
+            for (int j = 0; j < 256; j++) {
+                ByteBuf buf = PooledByteBufAllocator.DEFAULT.directBuffer(64);
+                buf.release();
+            }
+        }
+        return mLeaks.get();
+    }
+
+    /**
+     * 报告泄漏时计数，日志照常输出。
+     */
+    private static class CountingLeakDetectorFactory extends ResourceLeakDetectorFactory {
+        @Override
+        @SuppressWarnings("deprecation")
+        public <T> ResourceLeakDetector<T> newResourceLeakDetector(Class<T> resource, int samplingInterval, long maxActive) {
+            return new ResourceLeakDetector<T>(resource, samplingInterval, maxActive) {
+                @Override
+                protected void reportTracedLeak(String resourceType, String records) {
+                    mLeaks.incrementAndGet();
+                    super.reportTracedLeak(resourceType, records);
+                }
+
+                @Override
+                protected void reportUntracedLeak(String resourceType) {
+                    mLeaks.incrementAndGet();
+                    super.reportUntracedLeak(resourceType);
+                }
+            };
+        }
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+
+    private void startTarget() throws Exception {
+        mTargetVertx = Vertx.vertx();
+        mTargetPort = freePort();
+        CountDownLatch latch = new CountDownLatch(1);
+        NetServer server = mTargetVertx.createNetServer().connectHandler(sock -> {
+            if (mSink) {
+                sock.handler(buffer -> mSinkBytes.addAndGet(buffer.length()));
+            } else {
+                sock.handler(buffer -> {
+                    sock.write(buffer);
+                    if (sock.writeQueueFull()) {
+                        sock.pause();
+                        sock.drainHandler(v -> sock.resume());
+                    }
+                });
+            }
+        });
+        server.listen(mTargetPort, "127.0.0.1", res -> latch.countDown());
+        latch.await();
+    }
+
+    private void run(String method) throws Exception {
+        int serverPort = freePort();
+        int localPort = freePort();
+        JsonObject json = new JsonObject()
+                .put("server", "127.0.0.1")
+                .put("server_port", serverPort)
+                .put("local_port", localPort)
+                .put("password", "load-test")
+                .put("method", method)
+                .put("iv_len", Integer.parseInt(mOptions.getOrDefault("iv_len", "16")))
+                .put("noise", Boolean.parseBoolean(mOptions.getOrDefault("noise", "false")))
+                .put("noise_distribution", mOptions.getOrDefault("noise_distribution", "uniform"))
+                .put("batch_limit", Integer.parseInt(mOptions.getOrDefault("batch_limit", "16384")))
+                .put("engine", mOptions.getOrDefault("engine", GlobalConfig.ENGINE_VERTX))
+                .put("crypto_offload_threshold", Integer.parseInt(mOptions.getOrDefault("crypto_offload_threshold", "0")))
+                .put("compression", mOptions.getOrDefault("compression", "none"))
+                .put("transport", mOptions.getOrDefault("transport", GlobalConfig.TRANSPORT_TCP))
+                .put("kcp_nodelay", Boolean.parseBoolean(mOptions.getOrDefault("kcp_nodelay", "true")))
+                .put("access_log_sample", 0);
+        GlobalConfig.set(new GlobalConfig(null, json));
+
+        ShadowsocksVertx server = new ShadowsocksVertx(true);
+        ShadowsocksVertx client = new ShadowsocksVertx(false);
+        CountDownLatch listening = new CountDownLatch(3);
+        AtomicLong failed = new AtomicLong();
+        Handler<AsyncResult<Void>> listenHandler = res -> {
+            if (res.failed()) {
+                failed.incrementAndGet();
+            }
+            listening.countDown();
+        };
+        server.start(listenHandler);
+        ImpairedUdpRelay relay = null;
+        ImpairedTcpRelay tcpRelay = null;
+        ImpairedTcpRelay.Options impair = new ImpairedTcpRelay.Options()
+                .setDelay(Integer.parseInt(mOptions.getOrDefault("delay", "0")))
+                .setJitter(Integer.parseInt(mOptions.getOrDefault("jitter", "0")))
+                .setBandwidth((long) (Double.parseDouble(mOptions.getOrDefault("bandwidth", "0")) * 1e6 / 8))
+                .setFragment(Integer.parseInt(mOptions.getOrDefault("fragment", "0")))
+                .setReset(Double.parseDouble(mOptions.getOrDefault("reset_rate", "0")),
+                        Integer.parseInt(mOptions.getOrDefault("reset_after", "65536")));
+        if (GlobalConfig.get().isKcp()) {
+            // 客户端经过有损中继连接服务端的 UDP 端口
+            int relayPort = freePort();
+            relay = new ImpairedUdpRelay(mTargetVertx, "127.0.0.1", serverPort,
+                    Double.parseDouble(mOptions.getOrDefault("loss", "0")),
+                    Integer.parseInt(mOptions.getOrDefault("delay", "0")),
+                    Integer.parseInt(mOptions.getOrDefault("jitter", "0")));
+            relay.listen(relayPort, "127.0.0.1", listenHandler);
+            GlobalConfig.set(new GlobalConfig(null, json.copy().put("server_port", relayPort)));
+        } else if (impair.isImpaired()) {
+            // 客户端经过模拟链路的中继连接服务端
+            int relayPort = freePort();
+            tcpRelay = new ImpairedTcpRelay(mTargetVertx, "127.0.0.1", serverPort, impair);
+            tcpRelay.listen(relayPort, "127.0.0.1", listenHandler);
+            GlobalConfig.set(new GlobalConfig(null, json.copy().put("server_port", relayPort)));
+        } else {
+            listening.countDown();
+        }
+        // 每种算法的服务端端口不同
+        UpstreamPool.init(GlobalConfig.get());
+        client.start(listenHandler);
+        listening.await();
+        if (failed.get() > 0) {
+            throw new IllegalStateException("Start " + method + " failed.");
+        }
+
+        long baseHeap = usedHeap();
+        long baseRss = rss();
+        int baseThreads = Thread.activeCount();
+
+        Vertx driver = Vertx.vertx();
+        NetClient netClient = driver.createNetClient(new NetClientOptions().setConnectTimeout(5000));
+        mRunning = true;
+        mRecording = false;
+        for (int i = 0; i < mConnections; i++) {
+            new LoadClient(netClient, localPort).connect();
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(mWarmup));
+        mConnectLatency.reset();
+        mRequestLatency.reset();
+        mEchoBytes.set(0);
+        mSinkBytes.set(0);
+        mConnected.set(0);
+        mErrors.set(0);
+        long allocated = allocatedBytes();
+        long gcCount = gcCount();
+        long gcTime = gcTime();
+        long reads = RelayMetrics.reads();
+        long writes = RelayMetrics.writes();
+        mRecording = true;
+        long start = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(mDuration));
+        mRecording = false;
+        double seconds = (System.nanoTime() - start) / 1e9;
+        allocated = allocatedBytes() - allocated;
+        gcCount = gcCount() - gcCount;
+        gcTime = gcTime() - gcTime;
+        reads = RelayMetrics.reads() - reads;
+        writes = RelayMetrics.writes() - writes;
+        // 连接仍然保持时测量
+        long heapPerConn = (usedHeap() - baseHeap) / mConnections;
+        long rssPerConn = (rss() - baseRss) / mConnections;
+        int threads = Thread.activeCount() - baseThreads;
+        mRunning = false;
+
+        boolean threadEngine = GlobalConfig.ENGINE_THREAD.equals(GlobalConfig.get().getEngine());
+        Histogram connect = mConnectLatency.getIntervalHistogram();
+        Histogram rtt = mRequestLatency.getIntervalHistogram();
+        long bytes = mSink ? mSinkBytes.get() : mEchoBytes.get();
+        System.out.println(String.format("%-12s %-7s %6d %8d %8d %9.3f %10.1f  %-24s %-24s %10s %6d %7d %10.1f %11.2f %12.1f %11.1f %7d %d",
+                method, GlobalConfig.get().getEngine(), mConnections, mPayloadSize, mRequests,
+                bytes * 8 / seconds / 1e9, mConnected.get() / seconds,
+                percentiles(connect), mSink ? "-" : percentiles(rtt),
+                // 线程分配统计只包括存活的线程，thread 引擎的线程随连接结束
+                threadEngine ? "-" : String.format("%.1f", allocated / seconds / 1024 / 1024), gcCount, gcTime,
+                writes / seconds, writes == 0 ? 0 : (double) reads / writes,
+                heapPerConn / 1024.0, rssPerConn / 1024.0, threads, mErrors.get()));
+        if (relay != null) {
+            System.out.println(String.format("  kcp nodelay %s, relay forwarded %d packets, dropped %d",
+                    GlobalConfig.get().isKcpNodelay(), relay.forwarded(), relay.dropped()));
+        }
+        if (tcpRelay != null) {
+            System.out.println(String.format("  tcp relay %s: connections %d, fragments %d, resets %d",
+                    impair, tcpRelay.connections(), tcpRelay.fragments(), tcpRelay.resets()));
+        }
+
+        CountDownLatch closed = new CountDownLatch(1);
+        driver.close(res -> closed.countDown());
+        closed.await();
+        server.stop();
+        client.stop();
+        if (relay != null) {
+            relay.close();
+        }
+        if (tcpRelay != null) {
+            tcpRelay.close();
+        }
+    }
+
+    /**
+     * 所有存活线程的累计分配字节数（HotSpot 扩展）。
+     */
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return 0;
+        long total = 0;
+        for (long n : ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(bean.getAllThreadIds())) {
+            if (n > 0) {
+                total += n;
+            }
+        }
+        return total;
+    }
+
+    private static long gcCount() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, bean.getCollectionCount());
+        }
+        return total;
+    }
+
+    private static long gcTime() {
+        long total = 0;
+        for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+            total += Math.max(0, bean.getCollectionTime());
+        }
+        return total;
+    }
+
+    /**
+     * GC 后已使用的堆。
+     */
+    private static long usedHeap() {
+        System.gc();
+        System.gc();
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    /**
+     * 进程的常驻内存，不是 Linux 时返回 0。
+     */
+    private static long rss() {
+        try {
+            for (String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.US_ASCII)) {
+                if (line.startsWith("VmRSS:")) {
+                    return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            // not available
+        }
+        return 0;
+    }
+
+    private static String percentiles(Histogram h) {
+        return String.format("%.2f/%.2f/%.2f", h.getValueAtPercentile(50) / 1000.0,
+                h.getValueAtPercentile(99) / 1000.0, h.getValueAtPercentile(99.9) / 1000.0);
+    }
+
+    /**
+     * 一个 socks5 客户端，结束后自动重连，直到测试结束。
+     */
+    private class LoadClient {
+
+        private final static int HELLO = 0;
+        private final static int REPLY = 1;
+        private final static int DATA = 2;
+
+        private final NetClient mNetClient;
+        private final int mPort;
+        private NetSocket mSocket;
+        private int mStage;
+        private int mExpect;
+        private int mDone;
+        private long mStart;
+
+        LoadClient(NetClient netClient, int port) {
+            mNetClient = netClient;
+            mPort = port;
+        }
+
+        void connect() {
+            if (!mRunning)
+                return;
+            mStart = System.nanoTime();
+            mNetClient.connect(mPort, "127.0.0.1", res -> {
+                if (res.failed()) {
+                    error();
+                    return;
+                }
+                NetSocket socket = res.result();
+                mSocket = socket;
+                mStage = HELLO;
+                mExpect = 2;
+                mDone = 0;
+                mSocket.handler(this::handle);
+                mSocket.closeHandler(v -> {
+                    // 被动断开才算错误
+                    if (mSocket == socket) {
+                        error();
+                    }
+                });
+                mSocket.write(Buffer.buffer(SOCKS_HELLO));
+            });
+        }
+
+        private void error() {
+            if (mRecording) {
+                mErrors.incrementAndGet();
+            }
+            mSocket = null;
+            connect();
+        }
+
+        private void reconnect() {
+            NetSocket socket = mSocket;
+            mSocket = null;
+            socket.close();
+            connect();
+        }
+
+        private void handle(Buffer buffer) {
+            int length = buffer.length();
+            if (!mRunning) {
+                reconnect();
+                return;
+            }
+            if (mStage == HELLO) {
+                // 请求 127.0.0.1:target
+                mStage = REPLY;
+                mExpect = 10;
+                mSocket.write(Buffer.buffer(new byte[]{0x05, 0x01, 0x00, 0x01, 127, 0, 0, 1})
+                        .appendShort((short) mTargetPort));
+                return;
+            }
+            if (mStage == REPLY) {
+                mExpect -= length;
+                if (mExpect > 0)
+                    return;
+                mStage = DATA;
+                if (mRecording) {
+                    mConnected.incrementAndGet();
+                    mConnectLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - mStart));
+                }
+                if (mSink) {
+                    sink();
+                } else {
+                    request();
+                }
+                return;
+            }
+            // echo 数据
+            mExpect -= length;
+            if (mRecording) {
+                mEchoBytes.addAndGet(length);
+            }
+            if (mExpect > 0)
+                return;
+            if (mRecording) {
+                mRequestLatency.recordValue(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - mStart));
+            }
+            mDone++;
+            if (mRequests > 0 && mDone >= mRequests) {
+                reconnect();
+            } else {
+                request();
+            }
+        }
+
+        private void request() {
+            mStart = System.nanoTime();
+            mExpect = mPayloadSize;
+            mSocket.write(mPayload);
+        }
+
+        private void sink() {
+            while (mRunning && mSocket != null && !mSocket.writeQueueFull()) {
+                mSocket.write(mPayload);
+                mDone++;
+                if (mRequests > 0 && mDone >= mRequests) {
+                    reconnect();
+                    return;
+                }
+            }
+            if (mSocket != null) {
+                mSocket.drainHandler(v -> sink());
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package shadowsocks;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 启动耗时测试：启动一个新的 JVM 运行 Main，从创建进程到监听端口可以连接的时间。
+ *
+ * java -cp shadowsocks-fat-1.0.0.jar:shadowsocks-loadtest-1.0.0.jar shadowsocks.StartupBenchmark --runs=10
+ * java -cp shadowsocks-fat-1.0.0.jar:shadowsocks-loadtest-1.0.0.jar shadowsocks.StartupBenchmark --java=build/image/bin/java \
+ *      --classpath=build/image/shadowsocks.jar --jvm_args=-XX:SharedArchiveFile=build/image/shadowsocks.jsa
+ *
+ * 参数：
+ *   --java       java 命令，默认当前 JVM
+ *   --classpath  默认当前 classpath
+ *   --jvm_args   额外的 JVM 参数，空格分隔
+ *   --runs       次数，默认 5
+ *   --method     默认 aes-256-cfb
+ *   --server_mode  默认 true
+ */
+public class StartupBenchmark {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            if (!arg.startsWith("--") || !arg.contains("=")) {
+                System.err.println("Unknown argument " + arg);
+                return;
+            }
+            int i = arg.indexOf('=');
+            options.put(arg.substring(2, i), arg.substring(i + 1));
+        }
+        String java = options.getOrDefault("java",
+                System.getProperty("java.home") + File.separator + "bin" + File.separator + "java");
+        String classpath = options.getOrDefault("classpath", System.getProperty("java.class.path"));
+        int runs = Integer.parseInt(options.getOrDefault("runs", "5"));
+        boolean serverMode = Boolean.parseBoolean(options.getOrDefault("server_mode", "true"));
+
+        List<Long> times = new ArrayList<>();
+        for (int i = 0; i < runs; i++) {
+            int port = freePort();
+            File config = File.createTempFile("shadowsocks", ".json");
+            config.deleteOnExit();
+            String json = "{\"server\":\"127.0.0.1\",\"server_port\":" + (serverMode ? port : freePort())
+                    + ",\"local_port\":" + port + ",\"password\":\"startup\",\"method\":\""
+                    + options.getOrDefault("method", "aes-256-cfb") + "\",\"iv_len\":16,\"server_mode\":" + serverMode + "}";
+            Files.write(config.toPath(), json.getBytes(StandardCharsets.UTF_8));
+
+            List<String> command = new ArrayList<>();
+            command.add(java);
+            if (options.containsKey("jvm_args")) {
+                command.addAll(Arrays.asList(options.get("jvm_args").trim().split("\\s+")));
+            }
+            command.addAll(Arrays.asList("-Djava.net.preferIPv4Stack=true", "-cp", classpath,
+                    "shadowsocks.Main", config.getAbsolutePath()));
+
+            long start = System.nanoTime();
+            Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.to(new File(config.getAbsolutePath() + ".log"))).start();
+            try {
+                long elapsed = waitListening(port, process, start);
+                if (elapsed < 0) {
+                    System.err.println("Run " + i + " failed, see " + config.getAbsolutePath() + ".log");
+                    return;
+                }
+                times.add(elapsed);
+                System.out.println(String.format("run %d: %.1f ms", i, elapsed / 1e6));
+            } finally {
+                process.destroy();
+                process.waitFor(5, TimeUnit.SECONDS);
+                new File(config.getAbsolutePath() + ".log").delete();
+            }
+        }
+        Collections.sort(times);
+        System.out.println(String.format("time to listening min/median/max: %.1f/%.1f/%.1f ms",
+                times.get(0) / 1e6, times.get(times.size() / 2) / 1e6, times.get(times.size() - 1) / 1e6));
+    }
+
+    /**
+     * @return 从 start 到可以连接的纳秒数，进程退出或超时返回 -1
+     */
+    private static long waitListening(int port, Process process, long start) throws InterruptedException {
+        long deadline = start + TimeUnit.SECONDS.toNanos(30);
+        while (System.nanoTime() < deadline) {
+            try (Socket socket = new Socket()) {
+                socket.connect(new InetSocketAddress("127.0.0.1", port), 100);
+                return System.nanoTime() - start;
+            } catch (IOException e) {
+                if (!process.isAlive())
+                    return -1;
+                Thread.sleep(1);
+            }
+        }
+        return -1;
+    }
+
+    private static int freePort() throws IOException {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return socket.getLocalPort();
+        }
+    }
+}
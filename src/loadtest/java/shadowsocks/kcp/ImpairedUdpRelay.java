@@ -0,0 +1,161 @@
+package shadowsocks.kcp;
+
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.net.SocketAddress;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 测试用的 UDP 中继，模拟有损链路：两个方向各自按比例丢包，每个报文加上固定延迟与随机抖动（抖动会造成乱序）。
+ *
+ * 每个客户端地址对应一个连接目标的 UDP socket，目标看到的是中继的地址。LoadTest 用它比较不同 KCP 参数在丢包、
+ * 高延迟时的表现；TCP 的丢包在进程内无法模拟。
+ *
+ * 所有 socket 与定时器都在构造时取得的 context 上，close 也在这个 context 上执行。
+ */
+public class ImpairedUdpRelay {
+
+    private final static class Peer {
+        DatagramSocket socket;
+        boolean ready;
+        List<Buffer> pending = new ArrayList<>();
+    }
+
+    private final Vertx mVertx;
+    private final Context mContext;
+    private final String mTargetHost;
+    private final int mTargetPort;
+    private final double mLoss;
+    private final int mDelay;
+    private final int mJitter;
+    // 以下只在 mContext 上使用
+    private final Random mRandom = new Random(42);
+    private final Map<String, Peer> mPeers = new HashMap<>();
+    private final Set<Long> mTimers = new HashSet<>();// 还没发出的延迟报文
+    private boolean mClosed;
+    private final AtomicLong mForwarded = new AtomicLong();
+    private final AtomicLong mDropped = new AtomicLong();
+    private DatagramSocket mFront;
+
+    /**
+     * @param loss 每个方向的丢包率，0 - 1
+     * @param delay 单向延迟，单位毫秒
+     * @param jitter 在延迟之上随机增加 0 - jitter 毫秒
+     */
+    public ImpairedUdpRelay(Vertx vertx, String targetHost, int targetPort, double loss, int delay, int jitter) {
+        mVertx = vertx;
+        mContext = vertx.getOrCreateContext();
+        mTargetHost = targetHost;
+        mTargetPort = targetPort;
+        mLoss = loss;
+        mDelay = delay;
+        mJitter = jitter;
+    }
+
+    public long forwarded() {
+        return mForwarded.get();
+    }
+
+    public long dropped() {
+        return mDropped.get();
+    }
+
+    public void listen(int port, String host, Handler<AsyncResult<Void>> listenHandler) {
+        mContext.runOnContext(v -> {
+            DatagramSocket front = mVertx.createDatagramSocket();
+            mFront = front;
+            front.listen(port, host, res -> {
+                if (res.failed()) {
+                    listenHandler.handle(Future.failedFuture(res.cause()));
+                    return;
+                }
+                front.handler(packet -> upstream(packet.sender(), packet.data()));
+                listenHandler.handle(Future.succeededFuture());
+            });
+        });
+    }
+
+    private void upstream(SocketAddress sender, Buffer data) {
+        if (mClosed)
+            return;
+        String key = sender.host() + ':' + sender.port();
+        Peer peer = mPeers.get(key);
+        if (peer == null) {
+            Peer created = new Peer();
+            peer = created;
+            mPeers.put(key, peer);
+            created.socket = mVertx.createDatagramSocket();
+            DatagramSocket front = mFront;
+            created.socket.listen(0, "127.0.0.1", res -> {
+                if (res.failed() || mClosed)
+                    return;
+                created.socket.handler(reply -> forward(front, reply.data(), sender.port(), sender.host()));
+                created.ready = true;
+                for (Buffer buffer : created.pending) {
+                    created.socket.send(buffer, mTargetPort, mTargetHost, null);
+                }
+                created.pending = null;
+            });
+        }
+        if (!peer.ready) {
+            peer.pending.add(data);
+            return;
+        }
+        forward(peer.socket, data, mTargetPort, mTargetHost);
+    }
+
+    private void forward(DatagramSocket socket, Buffer data, int port, String host) {
+        if (mClosed)
+            return;
+        if (mLoss > 0 && mRandom.nextDouble() < mLoss) {
+            mDropped.incrementAndGet();
+            return;
+        }
+        mForwarded.incrementAndGet();
+        int delay = mDelay + (mJitter > 0 ? mRandom.nextInt(mJitter + 1) : 0);
+        if (delay <= 0) {
+            socket.send(data, port, host, null);
+        } else {
+            mTimers.add(mVertx.setTimer(delay, id -> {
+                mTimers.remove(id);
+                socket.send(data, port, host, null);
+            }));
+        }
+    }
+
+    /**
+     * 可以在任意线程调用：取消还没发出的报文并关闭所有 socket，之后收到的报文直接丢弃。
+     */
+    public void close() {
+        mContext.runOnContext(v -> {
+            if (mClosed)
+                return;
+            mClosed = true;
+            for (long id : mTimers) {
+                mVertx.cancelTimer(id);
+            }
+            mTimers.clear();
+            for (Peer peer : mPeers.values()) {
+                peer.socket.close();
+            }
+            mPeers.clear();
+            if (mFront != null) {
+                mFront.close();
+                mFront = null;
+            }
+        });
+    }
+}
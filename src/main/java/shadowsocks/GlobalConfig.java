@@ -1,35 +1,84 @@
 package shadowsocks;
 
+import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import shadowsocks.compress.Compression;
+import shadowsocks.crypto.CryptoFactory;
+import shadowsocks.crypto.ReplayFilter;
+import shadowsocks.crypto.Utils;
+import shadowsocks.protocol.Noise;
+import shadowsocks.route.Route;
+import shadowsocks.route.Router;
+import shadowsocks.upstream.Balancer;
+import shadowsocks.upstream.UpstreamPool;
 
-import java.io.BufferedReader;
-import java.io.FileReader;
 import java.io.IOException;
-import java.util.concurrent.atomic.AtomicBoolean;
-import java.util.concurrent.atomic.AtomicInteger;
-import java.util.concurrent.atomic.AtomicReference;
-import java.util.concurrent.locks.ReentrantLock;
-
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 不可变的配置快照。
+ *
+ * 每次加载/重载配置文件都会构造一个新的 GlobalConfig，并通过 volatile 引用整体发布。
+ * 新连接在建立时读取一次 {@link #get()} 并一直持有该快照，已有连接不受重载影响。
+ */
 public class GlobalConfig{
 
     private static Logger log = LogManager.getLogger(GlobalConfig.class.getName());
 
-    private static GlobalConfig mConfig;
-
-    private ReentrantLock mLock = new ReentrantLock();
-
-    private AtomicReference<String> mPassword;
-    private AtomicReference<String> mMethod;
-    private AtomicReference<String> mServer;
-    private AtomicReference<String> mConfigFile;
-    private AtomicInteger mPort;
-    private AtomicInteger mLocalPort;
-    private AtomicInteger mTimeout; /* 单位毫秒 */
-    private AtomicBoolean mIsServerMode;
-    private AtomicInteger mIvLen;// IV 长度
-    private AtomicBoolean mNoise;// 是否启用噪声
+    private static volatile GlobalConfig mConfig = new GlobalConfig();
+
+    private final String mPassword;
+    private final String mMethod;
+    private final String mServer;
+    private final String mConfigFile;
+    private final int mPort;
+    private final int mLocalPort;
+    private final int mTimeout; /* 单位毫秒 */
+    private final boolean mIsServerMode;
+    private final int mIvLen;// IV 长度
+    private final boolean mNoise;// 是否启用噪声
+    private final int mNoiseMin;// 噪声长度下限
+    private final int mNoiseMax;// 噪声长度上限，不超过 Utils.NOISE_MAX
+    private final String mNoiseDistribution;// 噪声长度分布：uniform 或 exponential
+    private final int mAdminPort;// 本地管理端口，0 表示关闭
+    private final int mReloadInterval;// 配置文件检查间隔，单位毫秒，0 表示不检查
+    private final double mAccessLogSample;// 访问日志采样率，0 - 1
+    private final boolean mTrace;// 是否记录连接建立各阶段耗时
+    private final int mTraceSlowThreshold;// 慢连接阈值，单位毫秒
+    private final int mBatchLimit;// 合并写出的上限，单位字节，0 表示不合并
+    private final int mReplayFilterCapacity;// IV 重放检测记住的 IV 个数，0 表示关闭
+    private final String mReplayAction;// 检测到重放后的处理：drain 或 close
+    private final List<String> mRouteRules;// 客户端分流规则文件
+    private final String mRouteDefault;// 未匹配规则时的处理
+    private final List<String> mServers;// 多个上游服务器，host:port
+    private final String mBalance;// 上游服务器选择策略
+    private final int mHealthCheckInterval;// 上游服务器探测间隔，单位毫秒，0 表示不探测
+    private final int mConnectRetries;// 连接上游失败后换服务器重试的次数
+    private final int mRedirPort;// 透明代理（TPROXY）监听端口，0 表示关闭
+    private final String mEngine;// 转发引擎：vertx 或 thread
+    private final int mCryptoOffloadThreshold;// 单个连接单个方向超过该吞吐量（字节/秒）后加解密交给线程池，0 表示关闭
+    private final int mCryptoOffloadThreads;// 加解密线程数，0 表示 CPU 核数
+    private final String mCompression;// 压缩：none 或 lz4
+    private final String mTransport;// 客户端到服务端的传输：tcp 或 kcp（UDP）
+    private final boolean mKcpNodelay;// KCP 快速模式：RTO 最小 30ms、快速重传、不做拥塞控制
+    private final int mKcpWindow;// KCP 收发窗口，单位为段
+    private final int mKcpInterval;// KCP 刷新间隔，单位毫秒
+    private final int mKcpResend;// 跳过多少个 ACK 后快速重传，0 表示关闭
+    private final int mKcpMtu;// KCP 报文的最大长度（UDP 负载）
+    private final int mKcpMaxSessions;// 服务端同时存在的 KCP 会话数上限
+    private final int mKcpMaxSessionsPerSource;// 同一来源 IP 的 KCP 会话数上限
+    private final int mConnectionBufferLimit;// 单个连接持有的缓冲区上限，超过后暂停读取，0 表示不限
+    private final long mMemoryBudget;// 所有连接持有的缓冲区预算，0 表示最大堆的四分之一
+    private final boolean mJfr;// 是否产生 JFR 事件
+    private final int mJfrCryptoThreshold;// 单次加解密超过该字节数才产生事件
+    private final int mJfrPauseThreshold;// 背压暂停超过该时间才产生事件，单位毫秒
 
     final private static String DEFAULT_METHOD = "rc4-md5";// 效率最高
     final private static String DEFAULT_PASSWORD = "zxcvbnm";
@@ -39,6 +88,39 @@ public class GlobalConfig{
     final private static int DEFAULT_TIMEOUT = 2000;
     final private static int DEFAULT_IV_LEN = 7;// 默认7，不兼容原生SS
     final private static boolean DEFAULT_NOISE = false;// 默认不启用噪声，省流量
+    final private static int DEFAULT_NOISE_MIN = 1;
+    final private static int DEFAULT_NOISE_MAX = Utils.NOISE_MAX;
+    final private static String DEFAULT_NOISE_DISTRIBUTION = Noise.UNIFORM;
+    final private static int DEFAULT_ADMIN_PORT = 0;
+    final private static int DEFAULT_RELOAD_INTERVAL = 0;
+    final private static double DEFAULT_ACCESS_LOG_SAMPLE = 1;// 默认每个连接都记录
+    final private static boolean DEFAULT_TRACE = false;
+    final private static int DEFAULT_TRACE_SLOW_THRESHOLD = 1000;
+    final private static int DEFAULT_BATCH_LIMIT = 16384;
+    final private static int DEFAULT_REPLAY_FILTER_CAPACITY = 1000000;// 两个 filter 共约 11MB
+    final private static String DEFAULT_REPLAY_ACTION = "drain";// 和正常的错误连接一样不做响应
+    final private static String DEFAULT_ROUTE_DEFAULT = "proxy";
+    final private static String DEFAULT_BALANCE = Balancer.EWMA;
+    final private static int DEFAULT_HEALTH_CHECK_INTERVAL = 0;
+    final private static int DEFAULT_CONNECT_RETRIES = 2;
+    final private static int DEFAULT_REDIR_PORT = 0;
+    final private static String DEFAULT_ENGINE = "vertx";
+    final private static int DEFAULT_CRYPTO_OFFLOAD_THRESHOLD = 0;
+    final private static int DEFAULT_CRYPTO_OFFLOAD_THREADS = 0;
+    final private static String DEFAULT_COMPRESSION = Compression.NONE;
+    final private static String DEFAULT_TRANSPORT = "tcp";
+    final private static boolean DEFAULT_KCP_NODELAY = true;
+    final private static int DEFAULT_KCP_WINDOW = 256;
+    final private static int DEFAULT_KCP_INTERVAL = 20;
+    final private static int DEFAULT_KCP_RESEND = 2;
+    final private static int DEFAULT_KCP_MTU = 1350;// 留出 PPPoE、隧道等的余量
+    final private static int DEFAULT_KCP_MAX_SESSIONS = 4096;
+    final private static int DEFAULT_KCP_MAX_SESSIONS_PER_SOURCE = 256;
+    final private static int DEFAULT_CONNECTION_BUFFER_LIMIT = 1024 * 1024;
+    final private static long DEFAULT_MEMORY_BUDGET = 0;
+    final private static boolean DEFAULT_JFR = false;
+    final private static int DEFAULT_JFR_CRYPTO_THRESHOLD = 64 * 1024;
+    final private static int DEFAULT_JFR_PAUSE_THRESHOLD = 10;
 
     final static String SERVER_MODE = "server_mode";
     final static String SERVER_ADDR = "server";
@@ -49,206 +131,542 @@ public class GlobalConfig{
     final static String TIMEOUT = "timeout";
     final static String IV_LEN = "iv_len";
     final static String NOISE = "noise";
-
-    //Lock
-    public void getLock() {
-        mLock.lock();
-    }
-    public void releaseLock() {
-        mLock.unlock();
-    }
+    final static String NOISE_MIN = "noise_min";
+    final static String NOISE_MAX = "noise_max";
+    final static String NOISE_DISTRIBUTION = "noise_distribution";
+    final static String ADMIN_PORT = "admin_port";
+    final static String RELOAD_INTERVAL = "reload_interval";
+    final static String ACCESS_LOG_SAMPLE = "access_log_sample";
+    final static String TRACE = "trace";
+    final static String TRACE_SLOW_THRESHOLD = "trace_slow_threshold";
+    final static String BATCH_LIMIT = "batch_limit";
+    final static String REPLAY_FILTER_CAPACITY = "replay_filter_capacity";
+    final static String REPLAY_ACTION = "replay_action";
+    final static String ROUTE_RULES = "route_rules";
+    final static String ROUTE_DEFAULT = "route_default";
+    final static String SERVERS = "servers";
+    final static String BALANCE = "balance";
+    final static String HEALTH_CHECK_INTERVAL = "health_check_interval";
+    final static String CONNECT_RETRIES = "connect_retries";
+    final static String REDIR_PORT = "redir_port";
+    final static String ENGINE = "engine";
+    final static String CRYPTO_OFFLOAD_THRESHOLD = "crypto_offload_threshold";
+    final static String CRYPTO_OFFLOAD_THREADS = "crypto_offload_threads";
+    final static String COMPRESSION = "compression";
+    final static String TRANSPORT = "transport";
+    final static String KCP_NODELAY = "kcp_nodelay";
+    final static String KCP_WINDOW = "kcp_window";
+    final static String KCP_INTERVAL = "kcp_interval";
+    final static String KCP_RESEND = "kcp_resend";
+    final static String KCP_MTU = "kcp_mtu";
+    final static String KCP_MAX_SESSIONS = "kcp_max_sessions";
+    final static String KCP_MAX_SESSIONS_PER_SOURCE = "kcp_max_sessions_per_source";
+    final static String CONNECTION_BUFFER_LIMIT = "connection_buffer_limit";
+    final static String MEMORY_BUDGET = "memory_budget";
+    final static String JFR = "jfr";
+    final static String JFR_CRYPTO_THRESHOLD = "jfr_crypto_threshold";
+    final static String JFR_PAUSE_THRESHOLD = "jfr_pause_threshold";
+
+    public final static String REPLAY_ACTION_DRAIN = "drain";
+    public final static String REPLAY_ACTION_CLOSE = "close";
+    public final static String ENGINE_VERTX = "vertx";
+    public final static String ENGINE_THREAD = "thread";// 阻塞 IO，每个方向一个线程
+    public final static String TRANSPORT_TCP = "tcp";
+    public final static String TRANSPORT_KCP = "kcp";
 
     //Timeout
-    public void setTimeout(int t) {
-        mTimeout.set(t);
-    }
     public int getTimeout() {
-        return mTimeout.get();
+        return mTimeout;
     }
 
     //Password(Key)
-    public void setPassowrd(String p) {
-        mPassword.set(p);
-    }
     public String getPassword() {
-        return mPassword.get();
+        return mPassword;
     }
 
     //Method
-    public void setMethod(String m) {
-        mMethod.set(m);
-    }
     public String getMethod() {
-        return mMethod.get();
+        return mMethod;
     }
 
     //Server
-    public void setServer(String s) {
-        mServer.set(s);
-    }
     public String getServer() {
-        return mServer.get();
+        return mServer;
     }
 
     //Server port
-    public void setPort(int p) {
-        mPort.set(p);
-    }
     public int getPort() {
-        return mPort.get();
+        return mPort;
     }
 
     //Local port
-    public void setLocalPort(int p) {
-        mLocalPort.set(p);
-    }
     public int getLocalPort() {
-        return mLocalPort.get();
+        return mLocalPort;
     }
 
     //Running in server/local mode
-    private void setServerMode(boolean isServer){
-        mIsServerMode.set(isServer);
-    }
     public boolean isServerMode(){
-        return mIsServerMode.get();
+        return mIsServerMode;
     }
 
     //Config
-    public void setConfigFile(String name){
-        mConfigFile.set(name);
-    }
     public String getConfigFile(){
-        return mConfigFile.get();
+        return mConfigFile;
     }
 
     // iv len
-    public void setIvLen (int i) {
-        mIvLen.set(i);
-    }
-
     public int getIvLen(){
-        return mIvLen.get();
+        return mIvLen;
     }
 
     // noise
-    public void setNoise(boolean noise) {
-        mNoise.set(noise);
+    public boolean isNoise(){
+        return mNoise;
     }
 
-    public boolean isNoise(){
-        return mNoise.get();
+    public int getNoiseMin(){
+        return mNoiseMin;
+    }
+
+    public int getNoiseMax(){
+        return mNoiseMax;
+    }
+
+    public String getNoiseDistribution(){
+        return mNoiseDistribution;
+    }
+
+    // admin
+    public int getAdminPort(){
+        return mAdminPort;
     }
 
-    public synchronized static GlobalConfig get()
+    // reload
+    public int getReloadInterval(){
+        return mReloadInterval;
+    }
+
+    // access log
+    public double getAccessLogSample(){
+        return mAccessLogSample;
+    }
+
+    // trace
+    public boolean isTrace(){
+        return mTrace;
+    }
+
+    public int getTraceSlowThreshold(){
+        return mTraceSlowThreshold;
+    }
+
+    // batch
+    public int getBatchLimit(){
+        return mBatchLimit;
+    }
+
+    // replay
+    public int getReplayFilterCapacity(){
+        return mReplayFilterCapacity;
+    }
+
+    public String getReplayAction(){
+        return mReplayAction;
+    }
+
+    // route
+    public List<String> getRouteRules(){
+        return mRouteRules;
+    }
+
+    public String getRouteDefault(){
+        return mRouteDefault;
+    }
+
+    // upstream
+    public List<String> getServers(){
+        return mServers;
+    }
+
+    public String getBalance(){
+        return mBalance;
+    }
+
+    public int getHealthCheckInterval(){
+        return mHealthCheckInterval;
+    }
+
+    public int getConnectRetries(){
+        return mConnectRetries;
+    }
+
+    // redir
+    public int getRedirPort(){
+        return mRedirPort;
+    }
+
+    // engine
+    public String getEngine(){
+        return mEngine;
+    }
+
+    // crypto offload
+    public int getCryptoOffloadThreshold(){
+        return mCryptoOffloadThreshold;
+    }
+
+    public int getCryptoOffloadThreads(){
+        return mCryptoOffloadThreads;
+    }
+
+    // compression
+    public String getCompression(){
+        return mCompression;
+    }
+
+    // transport
+    public String getTransport(){
+        return mTransport;
+    }
+
+    public boolean isKcp(){
+        return TRANSPORT_KCP.equals(mTransport);
+    }
+
+    public boolean isKcpNodelay(){
+        return mKcpNodelay;
+    }
+
+    public int getKcpWindow(){
+        return mKcpWindow;
+    }
+
+    public int getKcpInterval(){
+        return mKcpInterval;
+    }
+
+    public int getKcpResend(){
+        return mKcpResend;
+    }
+
+    public int getKcpMtu(){
+        return mKcpMtu;
+    }
+
+    public int getKcpMaxSessions(){
+        return mKcpMaxSessions;
+    }
+
+    public int getKcpMaxSessionsPerSource(){
+        return mKcpMaxSessionsPerSource;
+    }
+
+    // memory budget
+    public int getConnectionBufferLimit(){
+        return mConnectionBufferLimit;
+    }
+
+    public long getMemoryBudget(){
+        return mMemoryBudget;
+    }
+
+    // jfr
+    public boolean isJfr(){
+        return mJfr;
+    }
+
+    public int getJfrCryptoThreshold(){
+        return mJfrCryptoThreshold;
+    }
+
+    public int getJfrPauseThreshold(){
+        return mJfrPauseThreshold;
+    }
+
+    /**
+     * 当前生效的配置快照，仅一次 volatile 读。
+     */
+    public static GlobalConfig get()
     {
-        if (mConfig == null)
-        {
-            mConfig = new GlobalConfig();
-        }
         return mConfig;
     }
 
+    /**
+     * 发布新的配置快照。
+     */
+    public static void set(GlobalConfig config)
+    {
+        mConfig = config;
+        // 旧配置的 cipher 池不再缓存
+        CryptoFactory.retain(config.getMethod(), config.getPassword(), config.getIvLen());
+    }
+
     public GlobalConfig()
     {
-        mMethod = new AtomicReference<>(DEFAULT_METHOD);
-        mPassword = new AtomicReference<>(DEFAULT_PASSWORD);
-        mServer = new AtomicReference<>(DEFAULT_SERVER);
-        mPort = new AtomicInteger(DEFAULT_PORT);
-        mLocalPort = new AtomicInteger(DEFAULT_LOCAL_PORT);
-        mIsServerMode = new AtomicBoolean(false);
-        mConfigFile = new AtomicReference<>();
-        mTimeout = new AtomicInteger(DEFAULT_TIMEOUT);
-        mIvLen = new AtomicInteger(DEFAULT_IV_LEN);
-        mNoise = new AtomicBoolean(DEFAULT_NOISE);
+        this(null, new JsonObject());
+    }
+
+    public GlobalConfig(String configFile, JsonObject jsonobj)
+    {
+        mConfigFile = configFile;
+        mServer = jsonobj.getString(SERVER_ADDR, DEFAULT_SERVER);
+        mPort = jsonobj.getInteger(SERVER_PORT, DEFAULT_PORT);
+        mLocalPort = jsonobj.getInteger(LOCAL_PORT, DEFAULT_LOCAL_PORT);
+        mPassword = jsonobj.getString(PASSWORD, DEFAULT_PASSWORD);
+        mMethod = jsonobj.getString(METHOD, DEFAULT_METHOD);
+        mTimeout = jsonobj.getInteger(TIMEOUT, DEFAULT_TIMEOUT);
+        mIsServerMode = jsonobj.getBoolean(SERVER_MODE, false);
+        mIvLen = jsonobj.getInteger(IV_LEN, DEFAULT_IV_LEN);
+        mNoise = jsonobj.getBoolean(NOISE, DEFAULT_NOISE);
+        mNoiseMin = jsonobj.getInteger(NOISE_MIN, DEFAULT_NOISE_MIN);
+        mNoiseMax = jsonobj.getInteger(NOISE_MAX, DEFAULT_NOISE_MAX);
+        mNoiseDistribution = jsonobj.getString(NOISE_DISTRIBUTION, DEFAULT_NOISE_DISTRIBUTION);
+        mAdminPort = jsonobj.getInteger(ADMIN_PORT, DEFAULT_ADMIN_PORT);
+        mReloadInterval = jsonobj.getInteger(RELOAD_INTERVAL, DEFAULT_RELOAD_INTERVAL);
+        mAccessLogSample = jsonobj.getDouble(ACCESS_LOG_SAMPLE, DEFAULT_ACCESS_LOG_SAMPLE);
+        mTrace = jsonobj.getBoolean(TRACE, DEFAULT_TRACE);
+        mTraceSlowThreshold = jsonobj.getInteger(TRACE_SLOW_THRESHOLD, DEFAULT_TRACE_SLOW_THRESHOLD);
+        mBatchLimit = jsonobj.getInteger(BATCH_LIMIT, DEFAULT_BATCH_LIMIT);
+        mReplayFilterCapacity = jsonobj.getInteger(REPLAY_FILTER_CAPACITY, DEFAULT_REPLAY_FILTER_CAPACITY);
+        mReplayAction = jsonobj.getString(REPLAY_ACTION, DEFAULT_REPLAY_ACTION);
+        mRouteRules = readList(jsonobj.getValue(ROUTE_RULES));
+        mRouteDefault = jsonobj.getString(ROUTE_DEFAULT, DEFAULT_ROUTE_DEFAULT);
+        mServers = readList(jsonobj.getValue(SERVERS));
+        mBalance = jsonobj.getString(BALANCE, DEFAULT_BALANCE);
+        mHealthCheckInterval = jsonobj.getInteger(HEALTH_CHECK_INTERVAL, DEFAULT_HEALTH_CHECK_INTERVAL);
+        mConnectRetries = jsonobj.getInteger(CONNECT_RETRIES, DEFAULT_CONNECT_RETRIES);
+        mRedirPort = jsonobj.getInteger(REDIR_PORT, DEFAULT_REDIR_PORT);
+        mEngine = jsonobj.getString(ENGINE, DEFAULT_ENGINE);
+        mCryptoOffloadThreshold = jsonobj.getInteger(CRYPTO_OFFLOAD_THRESHOLD, DEFAULT_CRYPTO_OFFLOAD_THRESHOLD);
+        mCryptoOffloadThreads = jsonobj.getInteger(CRYPTO_OFFLOAD_THREADS, DEFAULT_CRYPTO_OFFLOAD_THREADS);
+        mCompression = jsonobj.getString(COMPRESSION, DEFAULT_COMPRESSION);
+        mTransport = jsonobj.getString(TRANSPORT, DEFAULT_TRANSPORT);
+        mKcpNodelay = jsonobj.getBoolean(KCP_NODELAY, DEFAULT_KCP_NODELAY);
+        mKcpWindow = jsonobj.getInteger(KCP_WINDOW, DEFAULT_KCP_WINDOW);
+        mKcpInterval = jsonobj.getInteger(KCP_INTERVAL, DEFAULT_KCP_INTERVAL);
+        mKcpResend = jsonobj.getInteger(KCP_RESEND, DEFAULT_KCP_RESEND);
+        mKcpMtu = jsonobj.getInteger(KCP_MTU, DEFAULT_KCP_MTU);
+        mKcpMaxSessions = jsonobj.getInteger(KCP_MAX_SESSIONS, DEFAULT_KCP_MAX_SESSIONS);
+        mKcpMaxSessionsPerSource = jsonobj.getInteger(KCP_MAX_SESSIONS_PER_SOURCE, DEFAULT_KCP_MAX_SESSIONS_PER_SOURCE);
+        mConnectionBufferLimit = jsonobj.getInteger(CONNECTION_BUFFER_LIMIT, DEFAULT_CONNECTION_BUFFER_LIMIT);
+        mMemoryBudget = jsonobj.getLong(MEMORY_BUDGET, DEFAULT_MEMORY_BUDGET);
+        mJfr = jsonobj.getBoolean(JFR, DEFAULT_JFR);
+        mJfrCryptoThreshold = jsonobj.getInteger(JFR_CRYPTO_THRESHOLD, DEFAULT_JFR_CRYPTO_THRESHOLD);
+        mJfrPauseThreshold = jsonobj.getInteger(JFR_PAUSE_THRESHOLD, DEFAULT_JFR_PAUSE_THRESHOLD);
+    }
+
+    /**
+     * 单个字符串或字符串数组。
+     */
+    private static List<String> readList(Object value)
+    {
+        if (value == null)
+            return Collections.emptyList();
+        if (value instanceof JsonArray) {
+            List<String> list = new ArrayList<>();
+            for (Object item : (JsonArray) value) {
+                list.add(String.valueOf(item));
+            }
+            return Collections.unmodifiableList(list);
+        }
+        return Collections.singletonList(String.valueOf(value));
     }
 
     public void printConfig(){
         log.info("Current config is:");
         log.info("Mode [" + (isServerMode()?"Server":"Local") + "]");
         log.info("Crypto method [" + getMethod() + "]");
-        log.info("Password [" + getPassword() + "]");
+        // 日志会滚动保存，重载时也会打印，不写出密码
+        log.info("Password [" + (getPassword().isEmpty() ? "" : "******") + "]");
         log.info("Iv len [" + getIvLen() + "]");
         log.info("Noise [" + isNoise() + "]");
+        if (isNoise() && !isServerMode()) {
+            log.info("Noise length [" + getNoiseMin() + ", " + getNoiseMax() + "] " + getNoiseDistribution());
+        }
+        log.info("Engine [" + getEngine() + "]");
+        log.info("Compression [" + getCompression() + "]");
+        log.info("Transport [" + getTransport() + "]");
+        if (isKcp()) {
+            log.info("KCP nodelay [" + isKcpNodelay() + "] window [" + getKcpWindow() + "] interval [" + getKcpInterval()
+                    + "] resend [" + getKcpResend() + "] mtu [" + getKcpMtu() + "]");
+            if (isServerMode()) {
+                log.info("KCP max sessions [" + getKcpMaxSessions() + "] per source [" + getKcpMaxSessionsPerSource() + "]");
+            }
+        }
         if (isServerMode()) {
             log.info("Bind port [" + getPort() + "]");
+            log.info("Replay filter capacity [" + getReplayFilterCapacity() + "]");
+            if (getReplayFilterCapacity() > 0) {
+                log.info("Replay action [" + getReplayAction() + "]");
+            }
         }else{
-            log.info("Server [" + getServer() + "]");
-            log.info("Server port [" + getPort() + "]");
+            if (getServers().isEmpty()) {
+                log.info("Server [" + getServer() + "]");
+                log.info("Server port [" + getPort() + "]");
+            } else {
+                log.info("Servers " + getServers() + " balance [" + getBalance() + "]");
+            }
+            log.info("Connect retries [" + getConnectRetries() + "]");
+            if (getHealthCheckInterval() > 0) {
+                log.info("Health check interval [" + getHealthCheckInterval() + "]");
+            }
             log.info("Local port [" + getLocalPort() + "]");
+            if (getRedirPort() > 0) {
+                log.info("Redir port [" + getRedirPort() + "]");
+            }
+            if (!getRouteRules().isEmpty()) {
+                log.info("Route rules " + getRouteRules() + " default [" + getRouteDefault() + "]");
+            }
         }
         log.info("Timeout [" + getTimeout() + "]");
+        log.info("Access log sample [" + getAccessLogSample() + "]");
+        log.info("Batch limit [" + getBatchLimit() + "]");
+        log.info("Connection buffer limit [" + getConnectionBufferLimit() + "] memory budget [" + getMemoryBudget() + "]");
+        if (getCryptoOffloadThreshold() > 0) {
+            log.info("Crypto offload threshold [" + getCryptoOffloadThreshold() + "] threads [" + getCryptoOffloadThreads() + "]");
+        }
+        if (isJfr()) {
+            log.info("JFR crypto threshold [" + getJfrCryptoThreshold() + "] pause threshold [" + getJfrPauseThreshold() + "]");
+        }
+        if (isTrace()) {
+            log.info("Trace slow threshold [" + getTraceSlowThreshold() + "]");
+        }
+        if (getAdminPort() > 0) {
+            log.info("Admin port [" + getAdminPort() + "]");
+        }
+        if (getReloadInterval() > 0) {
+            log.info("Reload interval [" + getReloadInterval() + "]");
+        }
     }
 
     public static String readConfigFile(String name){
         try{
-            BufferedReader reader = new BufferedReader(new FileReader(name));
-            char [] data = new char[4096]; /*4096*/
-            int size = reader.read(data, 0, data.length);
-            if (size < 0)
-                return null;
-            return new String(data);
+            return new String(Files.readAllBytes(Paths.get(name)), StandardCharsets.UTF_8);
         }catch(IOException e){
             log.error("Read config file " + name + " error.", e);
             return null;
         }
     }
 
-    public static void getConfigFromFile() {
-        String name = GlobalConfig.get().getConfigFile();
-        if (name == null)
-            return;
+    /**
+     * 读取并校验配置文件，构造新的快照（不发布）。
+     * 分流规则与上游服务器列表由调用方用 Router.create / UpstreamPool.create 构造，构造时检查，这里不重复构造。
+     */
+    public static GlobalConfig parseConfigFile(String name) throws Exception {
         String data = GlobalConfig.readConfigFile(name);
-
-        JsonObject jsonobj = new JsonObject(data);
-
-        if (jsonobj.containsKey(SERVER_ADDR)) {
-            String server = jsonobj.getString(SERVER_ADDR);
-            log.debug("CFG:Server address: " + server);
-            GlobalConfig.get().setServer(server);
-        }
-        if (jsonobj.containsKey(SERVER_PORT)) {
-            int port = jsonobj.getInteger(SERVER_PORT);
-            log.debug("CFG:Server port: " + port);
-            GlobalConfig.get().setPort(port);
+        if (data == null)
+            throw new IOException("Can not read config file " + name);
+
+        GlobalConfig config = new GlobalConfig(name, new JsonObject(data));
+        //make sure this method could work.
+        if (!CryptoFactory.isSupported(config.getMethod()))
+            throw new IllegalArgumentException("Unsupport method: " + config.getMethod());
+        if (config.getReplayFilterCapacity() < 0 || config.getReplayFilterCapacity() > ReplayFilter.MAX_CAPACITY)
+            throw new IllegalArgumentException("Replay filter capacity must be in [0, " + ReplayFilter.MAX_CAPACITY + "]: " + config.getReplayFilterCapacity());
+        if (!REPLAY_ACTION_DRAIN.equals(config.getReplayAction()) && !REPLAY_ACTION_CLOSE.equals(config.getReplayAction()))
+            throw new IllegalArgumentException("Unsupport replay action: " + config.getReplayAction());
+        if (!ENGINE_VERTX.equals(config.getEngine()) && !ENGINE_THREAD.equals(config.getEngine()))
+            throw new IllegalArgumentException("Unsupport engine: " + config.getEngine());
+        // 服务端只接受 1 - Utils.NOISE_MAX 的噪声长度
+        if (config.getNoiseMin() < 1 || config.getNoiseMin() > config.getNoiseMax() || config.getNoiseMax() > Utils.NOISE_MAX)
+            throw new IllegalArgumentException("Noise length must be in [1, " + Utils.NOISE_MAX + "]: " + config.getNoiseMin() + ", " + config.getNoiseMax());
+        if (!Noise.isSupported(config.getNoiseDistribution()))
+            throw new IllegalArgumentException("Unsupport noise distribution: " + config.getNoiseDistribution());
+        if (!Compression.isSupported(config.getCompression()))
+            throw new IllegalArgumentException("Unsupport compression: " + config.getCompression());
+        if (!TRANSPORT_TCP.equals(config.getTransport()) && !TRANSPORT_KCP.equals(config.getTransport()))
+            throw new IllegalArgumentException("Unsupport transport: " + config.getTransport());
+        if (config.getConnectionBufferLimit() < 0 || config.getMemoryBudget() < 0)
+            throw new IllegalArgumentException("Connection buffer limit and memory budget must not be negative");
+        if (config.getJfrCryptoThreshold() < 0 || config.getJfrPauseThreshold() < 0)
+            throw new IllegalArgumentException("JFR thresholds must not be negative");
+        if (config.isKcp()) {
+            if (ENGINE_THREAD.equals(config.getEngine()))
+                throw new IllegalArgumentException("Unsupport transport kcp with engine thread");
+            // 窗口写在报文的 16 位字段里
+            if (config.getKcpWindow() < 16 || config.getKcpWindow() > 65535)
+                throw new IllegalArgumentException("KCP window must be in [16, 65535]: " + config.getKcpWindow());
+            if (config.getKcpInterval() < 10 || config.getKcpInterval() > 5000)
+                throw new IllegalArgumentException("KCP interval must be in [10, 5000]: " + config.getKcpInterval());
+            if (config.getKcpResend() < 0)
+                throw new IllegalArgumentException("KCP resend must not be negative: " + config.getKcpResend());
+            // 1472 为以太网上不分片的最大 UDP 负载
+            if (config.getKcpMtu() < 256 || config.getKcpMtu() > 1472)
+                throw new IllegalArgumentException("KCP mtu must be in [256, 1472]: " + config.getKcpMtu());
+            if (config.getKcpMaxSessions() <= 0 || config.getKcpMaxSessionsPerSource() <= 0)
+                throw new IllegalArgumentException("KCP max sessions must be positive");
         }
-        if (jsonobj.containsKey(LOCAL_PORT)) {
-            int lport = jsonobj.getInteger(LOCAL_PORT);
-            log.debug("CFG:Local port: " + lport);
-            GlobalConfig.get().setLocalPort(lport);
-        }
-        if (jsonobj.containsKey(PASSWORD)) {
-            String password = jsonobj.getString(PASSWORD);
-            log.debug("CFG:Password: " + password);
-            GlobalConfig.get().setPassowrd(password);
-        }
-        if (jsonobj.containsKey(METHOD)) {
-            String method = jsonobj.getString(METHOD);
-            log.debug("CFG:Crypto method: " + method);
-            GlobalConfig.get().setMethod(method);
+        Route.parse(config.getRouteDefault());
+        return config;
+    }
+
+    /**
+     * 启动时加载配置文件并发布。
+     */
+    public static void getConfigFromFile(String name) throws Exception {
+        GlobalConfig config = parseConfigFile(name);
+        if (config.isServerMode()) {
+            set(config);
+        } else {
+            publish(config, Router.create(config), UpstreamPool.create(config));
         }
-        if (jsonobj.containsKey(TIMEOUT)) {
-            int timeout = jsonobj.getInteger(TIMEOUT);
-            log.debug("CFG:Timeout: " + timeout);
-            GlobalConfig.get().setTimeout(timeout);
+    }
+
+    /**
+     * 分流规则、上游服务器列表与配置都构造并检查完后一起发布，任何一步出错都不会只替换其中一部分。
+     */
+    private static void publish(GlobalConfig config, Router router, UpstreamPool pool) {
+        Router.set(router);
+        UpstreamPool.set(pool);
+        set(config);
+    }
+
+    /**
+     * 运行时重新加载配置文件。新连接使用新的 method/password/timeout/noise 等配置，
+     * 已建立的连接继续使用旧快照。监听端口与运行模式需要重启才能生效。
+     *
+     * @return 重载成功返回 true，失败时保留旧配置并返回 false
+     */
+    public static boolean reload() {
+        GlobalConfig old = get();
+        String name = old.getConfigFile();
+        if (name == null)
+            return false;
+        GlobalConfig config;
+        Router router = null;
+        UpstreamPool pool = null;
+        try {
+            config = parseConfigFile(name);
+            // 分流规则与上游服务器列表随配置一起重新加载，先构造，不发布
+            if (!config.isServerMode()) {
+                router = Router.create(config);
+                pool = UpstreamPool.create(config);
+            }
+        } catch (Exception e) {
+            log.error("Reload config file " + name + " error, keep the current config.", e);
+            return false;
         }
-        if (jsonobj.containsKey(SERVER_MODE)) {
-            boolean isServer = jsonobj.getBoolean(SERVER_MODE);
-            log.debug("CFG:Running on server mode: " + isServer);
-            GlobalConfig.get().setServerMode(isServer);
+        if (config.isServerMode() != old.isServerMode()
+                || (config.isServerMode() ? config.getPort() != old.getPort() : config.getLocalPort() != old.getLocalPort())
+                || config.getAdminPort() != old.getAdminPort()
+                || config.getRedirPort() != old.getRedirPort()
+                || !config.getEngine().equals(old.getEngine())
+                || config.getReplayFilterCapacity() != old.getReplayFilterCapacity()
+                || config.getHealthCheckInterval() != old.getHealthCheckInterval()
+                || (config.isServerMode() && !config.getTransport().equals(old.getTransport()))) {
+            log.warn("Mode, listen port, admin port, engine, replay filter capacity, health check interval and server transport changes need a restart.");
         }
-
-        if (jsonobj.containsKey(IV_LEN)) {
-            Integer ivLen = jsonobj.getInteger(IV_LEN);
-            log.debug("CFG:IV len : " + ivLen);
-            GlobalConfig.get().setIvLen(ivLen);
+        if (config.isServerMode()) {
+            set(config);
+        } else {
+            publish(config, router, pool);
         }
-
-        if (jsonobj.containsKey(NOISE)) {
-            Boolean isNoise = jsonobj.getBoolean(NOISE);
-            log.debug("CFG:Noise : " + isNoise);
-            GlobalConfig.get().setNoise(isNoise);
+        log.info("Config reloaded.");
+        if (!config.getPassword().equals(old.getPassword())) {
+            log.info("Password changed.");
         }
+        config.printConfig();
+        return true;
     }
 
 }
@@ -1,5 +1,7 @@
 package shadowsocks;
 
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.VertxOptions;
@@ -9,8 +11,21 @@ import io.vertx.core.net.NetServer;
 import io.vertx.core.net.NetServerOptions;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
+import shadowsocks.admin.AdminServer;
+import shadowsocks.crypto.ReplayFilter;
+import shadowsocks.kcp.KcpServer;
+import shadowsocks.metrics.MemoryBudget;
+import shadowsocks.protocol.Address;
+import shadowsocks.threadio.ThreadServer;
+import shadowsocks.upstream.UpstreamPool;
 import shadowsocks.vertxio.ClientHandler;
 import shadowsocks.vertxio.ServerHandler;
+import shadowsocks.vertxio.TransparentNetServer;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+import java.util.Arrays;
 
 public class ShadowsocksVertx {
 
@@ -19,6 +34,13 @@ public class ShadowsocksVertx {
     private Vertx mVertx;
     private boolean mIsServer;
     private NetServer mNetServer;
+    private NetServer mRedirServer;
+    private KcpServer mKcpServer;
+    private ThreadServer mThreadServer;
+    private AdminServer mAdminServer;
+    private long mReloadTimer = -1;
+    private long mHealthCheckTimer = -1;
+    private long mConfigModifiedTime;
 
     private String localhost;
 
@@ -40,6 +62,8 @@ public class ShadowsocksVertx {
             }
 
             mVertx = Vertx.vertx(vertxOptions);
+        } else if (GlobalConfig.get().getRedirPort() > 0) {// 透明代理需要 epoll native transport
+            mVertx = Vertx.vertx(new VertxOptions().setPreferNativeTransport(true));
         } else {// client 使用默认 DNS
             mVertx = Vertx.vertx();
         }
@@ -48,7 +72,48 @@ public class ShadowsocksVertx {
     }
 
     public void start() {
-        int port = mIsServer ? GlobalConfig.get().getPort() : GlobalConfig.get().getLocalPort();
+        start(null);
+    }
+
+    /**
+     * @param listenHandler 监听成功或失败后回调，可以为 null
+     */
+    public void start(Handler<AsyncResult<Void>> listenHandler) {
+        GlobalConfig config = GlobalConfig.get();
+        int port = mIsServer ? config.getPort() : config.getLocalPort();
+        if (mIsServer) {
+            ReplayFilter.init(config.getReplayFilterCapacity());
+        } else {
+            if (UpstreamPool.get() == null) {
+                UpstreamPool.init(config);
+            }
+            if (config.getHealthCheckInterval() > 0) {
+                mHealthCheckTimer = UpstreamPool.startHealthCheck(mVertx, config.getHealthCheckInterval(), config.getTimeout());
+            }
+        }
+        if (GlobalConfig.ENGINE_THREAD.equals(config.getEngine())) {
+            // 转发不经过 event loop，Vert.x 只用于管理接口、配置检查、服务器探测与透明代理
+            startThreadServer(port, listenHandler);
+        } else {
+            startNetServer(port, listenHandler);
+            MemoryBudget.start(mVertx);
+            if (mIsServer && config.isKcp()) {
+                startKcpServer(port);
+            }
+        }
+        if (!mIsServer && config.getRedirPort() > 0) {
+            startRedir(config.getRedirPort());
+        }
+        if (config.getAdminPort() > 0) {
+            mAdminServer = new AdminServer(mVertx);
+            mAdminServer.start(config.getAdminPort());
+        }
+        if (config.getReloadInterval() > 0 && config.getConfigFile() != null) {
+            watchConfigFile(config.getConfigFile(), config.getReloadInterval());
+        }
+    }
+
+    private void startNetServer(int port, Handler<AsyncResult<Void>> listenHandler) {
         mNetServer = mVertx.createNetServer(new NetServerOptions().setTcpKeepAlive(true)).connectHandler(sock -> {
             Handler<Buffer> dataHandler = mIsServer ? new ServerHandler(mVertx, sock) : new ClientHandler(mVertx, sock);
             sock.handler(dataHandler);
@@ -58,10 +123,132 @@ public class ShadowsocksVertx {
             }else{
                 log.error("Start failed! " + res.cause().getMessage());
             }
+            if (listenHandler != null) {
+                listenHandler.handle(res.succeeded() ? Future.succeededFuture() : Future.failedFuture(res.cause()));
+            }
+        });
+    }
+
+    private void startThreadServer(int port, Handler<AsyncResult<Void>> listenHandler) {
+        mThreadServer = new ThreadServer(mIsServer);
+        try {
+            mThreadServer.listen(port, localhost);
+        } catch (Exception e) {
+            log.error("Start failed! " + e.getMessage());
+            mThreadServer = null;
+            if (listenHandler != null) {
+                listenHandler.handle(Future.failedFuture(e));
+            }
+            return;
+        }
+        if (listenHandler != null) {
+            listenHandler.handle(Future.succeededFuture());
+        }
+    }
+
+    /**
+     * 服务端在同一个端口上接受 KCP（UDP）连接，TCP 照常监听。
+     */
+    private void startKcpServer(int port) {
+        mKcpServer = new KcpServer(mVertx, sock -> sock.handler(new ServerHandler(mVertx, sock)));
+        mKcpServer.listen(port, localhost, res -> {
+            if (res.succeeded()) {
+                log.info("KCP listening at " + port);
+            }else{
+                log.error("KCP start failed! " + res.cause().getMessage());
+            }
+        });
+    }
+
+    /**
+     * 透明代理监听，连接的本地地址就是 TPROXY 之前的目的地址。
+     */
+    private void startRedir(int port) {
+        mRedirServer = new TransparentNetServer(mVertx, new NetServerOptions().setTcpKeepAlive(true)).connectHandler(sock -> {
+            Address target = Address.create(sock.localAddress().host(), sock.localAddress().port());
+            if (target != null && target.getPort() == port && isLocalAddress(target)) {
+                // 直接连到了本机的透明代理端口，转发出去会连回自己
+                log.warn("Connection to redir port from " + sock.remoteAddress() + " is not redirected, close it.");
+                target = null;
+            }
+            sock.handler(new ClientHandler(mVertx, sock, target));
+        }).listen(port, localhost, res -> {
+            if (res.succeeded()) {
+                log.info("Redir listening at " + port + (mVertx.isNativeTransportEnabled() ? "" : " (no native transport)"));
+            }else{
+                log.error("Redir start failed! " + res.cause().getMessage());
+            }
+        });
+    }
+
+    /**
+     * 目的地址是否是本机的地址（回环、通配或某个网卡上的地址）。只在端口与透明代理端口相同时调用。
+     */
+    private static boolean isLocalAddress(Address target) {
+        if (target.isHost())
+            return false;
+        try {
+            InetAddress address = InetAddress.getByAddress(Arrays.copyOf(target.getRawBytes(), target.getLength()));
+            return address.isLoopbackAddress() || address.isAnyLocalAddress()
+                    || NetworkInterface.getByInetAddress(address) != null;
+        } catch (IOException e) {
+            // 无法判断时按连回自己处理
+            return true;
+        }
+    }
+
+    /**
+     * 定期检查配置文件的修改时间，发生变化时重新加载。
+     */
+    private void watchConfigFile(String name, int interval) {
+        mVertx.fileSystem().props(name, ar -> {
+            if (ar.succeeded()) {
+                mConfigModifiedTime = ar.result().lastModifiedTime();
+            }
+        });
+        mReloadTimer = mVertx.setPeriodic(interval, id -> {
+            mVertx.fileSystem().props(name, ar -> {
+                if (ar.failed()) {
+                    log.warn("Check config file " + name + " failed. " + ar.cause().getMessage());
+                    return;
+                }
+                long modified = ar.result().lastModifiedTime();
+                if (modified == mConfigModifiedTime)
+                    return;
+                mConfigModifiedTime = modified;
+                log.info("Config file " + name + " changed, reloading.");
+                mVertx.executeBlocking(f -> f.complete(GlobalConfig.reload()), false, null);
+            });
         });
     }
 
     public void stop() {
+        if (mReloadTimer != -1) {
+            mVertx.cancelTimer(mReloadTimer);
+            mReloadTimer = -1;
+        }
+        if (mHealthCheckTimer != -1) {
+            mVertx.cancelTimer(mHealthCheckTimer);
+            mHealthCheckTimer = -1;
+        }
+        MemoryBudget.stop(mVertx);
+        if (mRedirServer != null) {
+            mRedirServer.close();
+            mRedirServer = null;
+        }
+        if (mKcpServer != null) {
+            mKcpServer.close();
+            mKcpServer = null;
+        }
+        if (mAdminServer != null) {
+            mAdminServer.stop();
+            mAdminServer = null;
+        }
+        if (mThreadServer != null) {
+            mThreadServer.close();
+            mThreadServer = null;
+            mVertx.close();
+        }
         if (mNetServer != null) {
             mNetServer.close(ar -> {
                 if (ar.succeeded()) {
@@ -69,6 +256,7 @@ public class ShadowsocksVertx {
                 }else{
                     log.error("Stop failed.");
                 }
+                mVertx.close();
             });
             mNetServer = null;
         }
@@ -0,0 +1,172 @@
+package shadowsocks.admin;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.HttpServerRequest;
+import io.vertx.core.json.JsonArray;
+import io.vertx.core.json.JsonObject;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.GlobalConfig;
+import shadowsocks.compress.Compression;
+import shadowsocks.crypto.CryptoOffload;
+import shadowsocks.crypto.ReplayFilter;
+import shadowsocks.kcp.KcpSocket;
+import shadowsocks.metrics.Connection;
+import shadowsocks.metrics.ConnectionRegistry;
+import shadowsocks.metrics.LatencyMetrics;
+import shadowsocks.metrics.MemoryBudget;
+import shadowsocks.metrics.RelayMetrics;
+import shadowsocks.protocol.Noise;
+import shadowsocks.upstream.UpstreamPool;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * 本地管理接口，只监听 127.0.0.1。
+ *
+ * POST /reload 重新加载配置文件
+ * GET /metrics 监控数据，Prometheus 文本格式
+ * GET /connections 当前连接，JSON。参数：
+ *     peer、target  包含该字符串
+ *     stage         handshake、connecting、data 或 drain
+ *     min_bytes     两个方向的字节数之和不小于该值
+ *     sort          bytes 按字节数从大到小（默认），age 按存在时间从长到短
+ *     limit         最多返回的个数，默认 100
+ *   如 curl '127.0.0.1:9000/connections?stage=data&limit=10'
+ * POST /connections/kill?id=1,2 断开指定的连接
+ */
+public class AdminServer {
+
+    public static Logger log = LogManager.getLogger(AdminServer.class.getName());
+
+    private Vertx mVertx;
+    private HttpServer mHttpServer;
+
+    public AdminServer(Vertx vertx) {
+        mVertx = vertx;
+    }
+
+    public void start(int port) {
+        mHttpServer = mVertx.createHttpServer().requestHandler(this::handle).listen(port, "127.0.0.1", res -> {
+            if (res.succeeded()) {
+                log.info("Admin listening at " + port);
+            }else{
+                log.error("Admin start failed! " + res.cause().getMessage());
+            }
+        });
+    }
+
+    public void stop() {
+        if (mHttpServer != null) {
+            mHttpServer.close();
+            mHttpServer = null;
+        }
+    }
+
+    private static final int DEFAULT_LIMIT = 100;
+
+    private void handle(HttpServerRequest request) {
+        String path = request.path();
+        if (path.equals("/reload")) {
+            if (request.method() != HttpMethod.POST) {
+                request.response().setStatusCode(405).end();
+                return;
+            }
+            // 读文件是阻塞操作，不放在 event loop 上
+            mVertx.<Boolean>executeBlocking(f -> f.complete(GlobalConfig.reload()), res -> {
+                boolean ok = res.succeeded() && res.result();
+                request.response().setStatusCode(ok ? 200 : 500).end(ok ? "reloaded\n" : "reload failed\n");
+            });
+        } else if (path.equals("/metrics")) {
+            StringBuilder sb = new StringBuilder();
+            LatencyMetrics.export(sb);
+            RelayMetrics.export(sb);
+            ReplayFilter.export(sb);
+            UpstreamPool.export(sb);
+            CryptoOffload.export(sb);
+            Noise.export(sb);
+            Compression.export(sb);
+            KcpSocket.export(sb);
+            MemoryBudget.export(sb);
+            ConnectionRegistry.export(sb);
+            request.response().putHeader("Content-Type", "text/plain; version=0.0.4").end(sb.toString());
+        } else if (path.equals("/connections")) {
+            Predicate<Connection> filter;
+            int limit;
+            try {
+                filter = filter(request);
+                limit = request.getParam("limit") == null ? DEFAULT_LIMIT : Integer.parseInt(request.getParam("limit"));
+            } catch (NumberFormatException e) {
+                request.response().setStatusCode(400).end("bad number " + e.getMessage() + "\n");
+                return;
+            }
+            boolean byBytes = !"age".equals(request.getParam("sort"));
+            // 连接很多时遍历与序列化不放在 event loop 上
+            mVertx.<String>executeBlocking(f -> f.complete(connections(filter, byBytes, limit)), false, res -> {
+                request.response().putHeader("Content-Type", "application/json").end(res.result());
+            });
+        } else if (path.equals("/connections/kill")) {
+            if (request.method() != HttpMethod.POST) {
+                request.response().setStatusCode(405).end();
+                return;
+            }
+            String ids = request.getParam("id");
+            if (ids == null) {
+                request.response().setStatusCode(400).end("id is required\n");
+                return;
+            }
+            int killed = 0;
+            try {
+                for (String id : ids.split(",")) {
+                    if (ConnectionRegistry.kill(Long.parseLong(id.trim()))) {
+                        killed++;
+                    }
+                }
+            } catch (NumberFormatException e) {
+                request.response().setStatusCode(400).end("bad id " + e.getMessage() + "\n");
+                return;
+            }
+            log.info("Killed " + killed + " connection(s) " + ids);
+            request.response().setStatusCode(killed > 0 ? 200 : 404).end("killed " + killed + "\n");
+        } else {
+            request.response().setStatusCode(404).end();
+        }
+    }
+
+    private static Predicate<Connection> filter(HttpServerRequest request) {
+        String peer = request.getParam("peer");
+        String target = request.getParam("target");
+        String stage = request.getParam("stage");
+        long minBytes = request.getParam("min_bytes") == null ? 0 : Long.parseLong(request.getParam("min_bytes"));
+        if (peer == null && target == null && stage == null && minBytes <= 0)
+            return null;
+        return c -> (peer == null || c.peer().contains(peer))
+                && (target == null || String.valueOf(c.target()).contains(target))
+                && (stage == null || stage.equals(c.stage()))
+                && (minBytes <= 0 || c.bytesUp() + c.bytesDown() >= minBytes);
+    }
+
+    private static String connections(Predicate<Connection> filter, boolean byBytes, int limit) {
+        long now = System.currentTimeMillis();
+        List<ConnectionRegistry.Entry> entries = ConnectionRegistry.query(filter, byBytes, limit);
+        JsonArray array = new JsonArray();
+        for (ConnectionRegistry.Entry entry : entries) {
+            Connection c = entry.connection;
+            Object target = c.target();
+            array.add(new JsonObject()
+                    .put("id", entry.id)
+                    .put("peer", c.peer())
+                    .put("target", target == null ? null : target.toString())
+                    .put("stage", c.stage())
+                    .put("up", c.bytesUp())
+                    .put("down", c.bytesDown())
+                    .put("age_ms", now - c.startTime())
+                    .put("paused", c.paused())
+                    .put("buffered", c.bufferedBytes()));
+        }
+        return new JsonObject().put("total", ConnectionRegistry.size()).put("connections", array).encodePrettily() + "\n";
+    }
+}
@@ -0,0 +1,76 @@
+package shadowsocks.compress;
+
+import shadowsocks.GlobalConfig;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 客户端与服务端之间的压缩（加密之前）。
+ *
+ * 客户端 compression 为 lz4 时在地址头的类型字节上加 {@link shadowsocks.protocol.Address#FLAG_COMPRESS}，
+ * 之后两个方向的数据都由 {@link FrameEncoder} 分帧。服务端总是接受：自己的 compression 为 lz4 时压缩发往客户端的数据，
+ * 否则只发不压缩的帧。不支持该标志的旧服务端会当作未知的地址类型断开，所以只在两端都升级后开启客户端。
+ */
+public class Compression {
+
+    public final static String NONE = "none";
+    public final static String LZ4 = "lz4";
+
+    private static final LongAdder mInBytes = new LongAdder();
+    private static final LongAdder mOutBytes = new LongAdder();
+    private static final LongAdder mSkippedBytes = new LongAdder();
+    private static final LongAdder mDecodedBytes = new LongAdder();
+
+    public static boolean isSupported(String name) {
+        return NONE.equals(name) || LZ4.equals(name);
+    }
+
+    /**
+     * 客户端：是否请求压缩。
+     */
+    public static boolean isRequested(GlobalConfig config) {
+        return LZ4.equals(config.getCompression());
+    }
+
+    /**
+     * @param compress 是否尝试压缩，false 时只分帧
+     */
+    public static FrameEncoder encoder(boolean compress) {
+        return new FrameEncoder(compress, false);
+    }
+
+    /**
+     * thread 引擎每个连接的每个方向一个线程（可能是虚拟线程），压缩的临时空间由 encoder 自己持有，
+     * 而不是每个线程一份线程本地的。
+     */
+    public static FrameEncoder ownedEncoder(boolean compress) {
+        return new FrameEncoder(compress, true);
+    }
+
+    static void encoded(int in, int out) {
+        mInBytes.add(in);
+        mOutBytes.add(out);
+    }
+
+    /**
+     * 因为压缩效果不好而没有压缩的字节数，包括退避期间的。
+     */
+    static void skipped(int bytes) {
+        mSkippedBytes.add(bytes);
+    }
+
+    static void decoded(int bytes) {
+        mDecodedBytes.add(bytes);
+    }
+
+    public static void export(StringBuilder sb) {
+        sb.append("# TYPE ss_compression_in_bytes_total counter\n");
+        sb.append("ss_compression_in_bytes_total ").append(mInBytes.sum()).append('\n');
+        sb.append("# TYPE ss_compression_out_bytes_total counter\n");
+        sb.append("ss_compression_out_bytes_total ").append(mOutBytes.sum()).append('\n');
+        sb.append("# TYPE ss_compression_skipped_bytes_total counter\n");
+        sb.append("ss_compression_skipped_bytes_total ").append(mSkippedBytes.sum()).append('\n');
+        sb.append("# TYPE ss_compression_decoded_bytes_total counter\n");
+        sb.append("ss_compression_decoded_bytes_total ").append(mDecodedBytes.sum()).append('\n');
+    }
+}
@@ -0,0 +1,162 @@
+package shadowsocks.compress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+
+/**
+ * {@link FrameEncoder} 的增量解码，帧可以任意切分送入。
+ *
+ * RAW 帧到达多少复制多少；LZ4 帧整块都在本次数据中时直接解压，否则先收进一块池化 buffer，收齐后解压。
+ * 只在一个线程上使用，连接结束时调用 close 释放没收齐的块。
+ */
+public class FrameDecoder {
+
+    private final static int STAGE_TYPE = 0;
+    private final static int STAGE_HEADER = 1;
+    private final static int STAGE_RAW = 2;
+    private final static int STAGE_LZ4 = 3;
+
+    private int mStage = STAGE_TYPE;
+    private int mType;
+    private int mHeader;
+    private int mHeaderPos;
+    private int mLength;// RAW 帧剩余的字节数，或 LZ4 块的长度
+    private int mRawLength;
+    private ByteBuf mBlock;
+    private String mError;
+
+    /**
+     * 出错原因，只在 decode 返回 false 之后有效。
+     */
+    public String getError() {
+        return mError;
+    }
+
+    /**
+     * 解码 in 的全部可读数据，明文写入 out（按需扩容）。
+     *
+     * @return 数据不合法时返回 false，之后不能再使用
+     */
+    public boolean decode(ByteBuf in, ByteBuf out) {
+        int start = out.writerIndex();
+        try {
+            while (in.isReadable()) {
+                switch (mStage) {
+                    case STAGE_TYPE:
+                        mType = in.readUnsignedByte();
+                        if (mType != FrameEncoder.TYPE_RAW && mType != FrameEncoder.TYPE_LZ4)
+                            return error("Unknown frame type " + mType);
+                        mHeader = 0;
+                        mHeaderPos = 0;
+                        mStage = STAGE_HEADER;
+                        break;
+                    case STAGE_HEADER:
+                        mHeader = mHeader << 8 | in.readUnsignedByte();
+                        mHeaderPos++;
+                        if (mType == FrameEncoder.TYPE_RAW) {
+                            if (mHeaderPos < 2)
+                                break;
+                            mLength = mHeader;
+                            if (mLength == 0 || mLength > FrameEncoder.BLOCK_SIZE)
+                                return error("Bad raw frame length " + mLength);
+                            mStage = STAGE_RAW;
+                        } else {
+                            if (mHeaderPos < 4)
+                                break;
+                            mLength = mHeader >>> 16;
+                            mRawLength = mHeader & 0xffff;
+                            if (mLength == 0 || mLength > FrameEncoder.MAX_COMPRESSED
+                                    || mRawLength == 0 || mRawLength > FrameEncoder.BLOCK_SIZE)
+                                return error("Bad lz4 frame length " + mLength + "/" + mRawLength);
+                            mStage = STAGE_LZ4;
+                        }
+                        break;
+                    case STAGE_RAW: {
+                        int n = Math.min(in.readableBytes(), mLength);
+                        out.writeBytes(in, n);
+                        mLength -= n;
+                        if (mLength == 0) {
+                            mStage = STAGE_TYPE;
+                        }
+                        break;
+                    }
+                    case STAGE_LZ4:
+                        if (mBlock == null && in.readableBytes() >= mLength) {
+                            // 整块都在 in 中，不复制
+                            if (!decompress(in, out))
+                                return error("Bad lz4 block");
+                            in.skipBytes(mLength);
+                            mStage = STAGE_TYPE;
+                            break;
+                        }
+                        if (mBlock == null) {
+                            mBlock = PooledByteBufAllocator.DEFAULT.heapBuffer(mLength, mLength);
+                        }
+                        mBlock.writeBytes(in, Math.min(in.readableBytes(), mLength - mBlock.readableBytes()));
+                        if (mBlock.readableBytes() < mLength)
+                            return true;
+                        boolean ok = decompress(mBlock, out);
+                        mBlock.release();
+                        mBlock = null;
+                        if (!ok)
+                            return error("Bad lz4 block");
+                        mStage = STAGE_TYPE;
+                        break;
+                    default:
+                        return false;
+                }
+            }
+            return true;
+        } finally {
+            Compression.decoded(out.writerIndex() - start);
+        }
+    }
+
+    /**
+     * 解压 src 从 readerIndex 开始的 mLength 字节，不移动 readerIndex。
+     * 两边都是 heap buffer 时不用线程的临时空间（thread 引擎每个方向一个线程）。
+     */
+    private boolean decompress(ByteBuf src, ByteBuf out) {
+        byte[] array;
+        int offset;
+        if (src.hasArray()) {
+            array = src.array();
+            offset = src.arrayOffset() + src.readerIndex();
+        } else {
+            array = FrameEncoder.mScratch.get().src();
+            src.getBytes(src.readerIndex(), array, 0, mLength);
+            offset = 0;
+        }
+        out.ensureWritable(mRawLength);
+        if (out.hasArray()) {
+            int n = Lz4.decompress(array, offset, mLength, out.array(), out.arrayOffset() + out.writerIndex(), mRawLength);
+            if (n != mRawLength)
+                return false;
+            out.writerIndex(out.writerIndex() + n);
+            return true;
+        }
+        byte[] dst = FrameEncoder.mScratch.get().dst;
+        int n = Lz4.decompress(array, offset, mLength, dst, 0, mRawLength);
+        if (n != mRawLength)
+            return false;
+        out.writeBytes(dst, 0, n);
+        return true;
+    }
+
+    private boolean error(String message) {
+        mError = message;
+        mStage = -1;
+        return false;
+    }
+
+    /**
+     * 释放没收齐的块，之后的 decode 都返回 false。
+     */
+    public void close() {
+        if (mBlock != null) {
+            mBlock.release();
+            mBlock = null;
+        }
+        error("Closed");
+    }
+}
@@ -0,0 +1,116 @@
+package shadowsocks.compress;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 一个连接一个方向的分帧与压缩，每帧不超过 {@link #BLOCK_SIZE} 字节明文：
+ *
+ *   RAW  0x00 + len(2) + data
+ *   LZ4  0x01 + compressedLen(2) + rawLen(2) + LZ4 块
+ *
+ * 压缩后节省不到 1/8 的块按 RAW 发送，之后的 backoff 字节不再尝试；连续失败时 backoff 加倍，最长 MAX_BACKOFF，
+ * 压缩成功后恢复。TLS、视频等不可压缩的数据每几 MB 才试一个块，开销接近直接复制。
+ *
+ * 只在一个线程上使用。
+ */
+public class FrameEncoder {
+
+    public final static int BLOCK_SIZE = 16 * 1024;
+
+    final static int TYPE_RAW = 0;
+    final static int TYPE_LZ4 = 1;
+    final static int MAX_COMPRESSED = Lz4.maxCompressedLength(BLOCK_SIZE);
+
+    private final static int LZ4_HEADER = 5;
+    private final static int MIN_COMPRESS = 64;// 更小的块（交互式的小包）直接 RAW
+    private final static int MIN_BACKOFF = 64 * 1024;
+    private final static int MAX_BACKOFF = 4 * 1024 * 1024;
+
+    // 每个线程一份，direct buffer 拿不到数组时中转，以及压缩输出
+    static final class Scratch {
+        private byte[] mSrc;
+        final byte[] dst = new byte[MAX_COMPRESSED];
+        final char[] table = new char[1 << Lz4.HASH_LOG];
+
+        // 只有 direct buffer 用到
+        byte[] src() {
+            if (mSrc == null) {
+                mSrc = new byte[MAX_COMPRESSED];
+            }
+            return mSrc;
+        }
+    }
+
+    static final ThreadLocal<Scratch> mScratch = ThreadLocal.withInitial(Scratch::new);
+
+    private final boolean mCompress;
+    private final Scratch mOwnScratch;// 不为 null 时不用线程的
+    private int mSkip;// 还有多少字节不尝试压缩
+    private int mBackoff = MIN_BACKOFF;
+
+    FrameEncoder(boolean compress, boolean ownScratch) {
+        mCompress = compress;
+        mOwnScratch = compress && ownScratch ? new Scratch() : null;
+    }
+
+    /**
+     * @return length 字节明文分帧后的最大长度
+     */
+    public static int maxEncodedLength(int length) {
+        return length + (length / BLOCK_SIZE + 1) * LZ4_HEADER;
+    }
+
+    /**
+     * in 的可读数据全部分帧写入 out。
+     */
+    public void encode(ByteBuf in, ByteBuf out) {
+        int start = out.writerIndex();
+        int length = in.readableBytes();
+        while (in.isReadable()) {
+            int n = Math.min(in.readableBytes(), BLOCK_SIZE);
+            if (mCompress && n >= MIN_COMPRESS) {
+                if (mSkip > 0) {
+                    mSkip -= n;
+                    Compression.skipped(n);
+                } else if (compress(in, n, out)) {
+                    mBackoff = MIN_BACKOFF;
+                    continue;
+                } else {
+                    mSkip = mBackoff;
+                    mBackoff = Math.min(mBackoff * 2, MAX_BACKOFF);
+                    Compression.skipped(n);
+                }
+            }
+            out.writeByte(TYPE_RAW);
+            out.writeShort(n);
+            out.writeBytes(in, n);
+        }
+        Compression.encoded(length, out.writerIndex() - start);
+    }
+
+    /**
+     * @return 压缩效果不好时返回 false，in 不变
+     */
+    private boolean compress(ByteBuf in, int n, ByteBuf out) {
+        Scratch scratch = mOwnScratch != null ? mOwnScratch : mScratch.get();
+        byte[] src;
+        int srcOff;
+        if (in.hasArray()) {
+            src = in.array();
+            srcOff = in.arrayOffset() + in.readerIndex();
+        } else {
+            src = scratch.src();
+            in.getBytes(in.readerIndex(), src, 0, n);
+            srcOff = 0;
+        }
+        int compressed = Lz4.compress(src, srcOff, n, scratch.dst, 0, scratch.table);
+        if (compressed > n - (n >>> 3))
+            return false;
+        out.writeByte(TYPE_LZ4);
+        out.writeShort(compressed);
+        out.writeShort(n);
+        out.writeBytes(scratch.dst, 0, compressed);
+        in.skipBytes(n);
+        return true;
+    }
+}
@@ -0,0 +1,189 @@
+package shadowsocks.compress;
+
+/**
+ * LZ4 块格式（lz4_Block_format.md）的纯 Java 实现，只用于 {@link FrameEncoder} 的单个块，没有帧格式与字典。
+ *
+ * 压缩与 LZ4 默认的快速模式相同：4 字节 hash 找匹配，贪心扩展，连续找不到时跳跃前进，不可压缩的数据很快扫过。
+ * 解压检查所有边界，解密后的数据可能是伪造或错误密码产生的垃圾，任何输入都只会返回 -1 而不会越界。
+ */
+final class Lz4 {
+
+    private final static int MIN_MATCH = 4;
+    private final static int LAST_LITERALS = 5;// 最后 5 字节必须是字面量
+    private final static int MF_LIMIT = 12;// 最后一个匹配的开始位置距结尾至少 12 字节
+    private final static int MIN_LENGTH = MF_LIMIT + 1;
+    private final static int MAX_DISTANCE = 65535;
+    private final static int SKIP_TRIGGER = 6;// 连续 64 次没有匹配后步长加 1
+
+    private final static int ML_BITS = 4;
+    private final static int ML_MASK = (1 << ML_BITS) - 1;
+    private final static int RUN_MASK = ML_MASK;
+
+    final static int HASH_LOG = 12;
+
+    private Lz4() {
+    }
+
+    static int maxCompressedLength(int length) {
+        return length + length / 255 + 16;
+    }
+
+    private static int readInt(byte[] b, int i) {
+        return (b[i] & 0xff) | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff) << 16 | b[i + 3] << 24;
+    }
+
+    private static int hash(int sequence) {
+        return (sequence * -1640531535) >>> (32 - HASH_LOG);
+    }
+
+    /**
+     * @param srcLen 不超过 65536，位置存为 char
+     * @param dst 至少 {@link #maxCompressedLength(int)} 字节
+     * @param table 长度为 1 << HASH_LOG，可以是上一次留下的内容，用到时会校验
+     * @return 压缩后的长度
+     */
+    static int compress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, char[] table) {
+        int end = srcOff + srcLen;
+        int anchor = srcOff;
+        int op = dstOff;
+        if (srcLen >= MIN_LENGTH) {
+            int mfLimit = end - MF_LIMIT;
+            int matchLimit = end - LAST_LITERALS;
+            table[hash(readInt(src, srcOff))] = 0;
+            int ip = srcOff + 1;
+            int searchCount = 1 << SKIP_TRIGGER;
+            while (ip < mfLimit) {
+                int sequence = readInt(src, ip);
+                int h = hash(sequence);
+                int ref = srcOff + table[h];
+                table[h] = (char) (ip - srcOff);
+                if (ref >= ip || ip - ref > MAX_DISTANCE || readInt(src, ref) != sequence) {
+                    ip += searchCount++ >>> SKIP_TRIGGER;
+                    continue;
+                }
+                searchCount = 1 << SKIP_TRIGGER;
+                while (ip > anchor && ref > srcOff && src[ip - 1] == src[ref - 1]) {
+                    ip--;
+                    ref--;
+                }
+                int matchLength = MIN_MATCH;
+                while (ip + matchLength < matchLimit && src[ip + matchLength] == src[ref + matchLength]) {
+                    matchLength++;
+                }
+                op = writeSequence(src, anchor, ip - anchor, dst, op, ip - ref, matchLength);
+                ip += matchLength;
+                anchor = ip;
+                if (ip < mfLimit) {
+                    // 匹配结尾附近的位置也记下，提高下一次命中的概率
+                    table[hash(readInt(src, ip - 2))] = (char) (ip - 2 - srcOff);
+                }
+            }
+        }
+        // 最后一个序列只有字面量
+        int literals = end - anchor;
+        int token = op++;
+        if (literals >= RUN_MASK) {
+            dst[token] = (byte) (RUN_MASK << ML_BITS);
+            op = writeLength(dst, op, literals - RUN_MASK);
+        } else {
+            dst[token] = (byte) (literals << ML_BITS);
+        }
+        System.arraycopy(src, anchor, dst, op, literals);
+        return op + literals - dstOff;
+    }
+
+    private static int writeSequence(byte[] src, int literalStart, int literals, byte[] dst, int op, int offset, int matchLength) {
+        int tokenPos = op++;
+        int token;
+        if (literals >= RUN_MASK) {
+            token = RUN_MASK << ML_BITS;
+            op = writeLength(dst, op, literals - RUN_MASK);
+        } else {
+            token = literals << ML_BITS;
+        }
+        System.arraycopy(src, literalStart, dst, op, literals);
+        op += literals;
+        dst[op++] = (byte) offset;
+        dst[op++] = (byte) (offset >>> 8);
+        int length = matchLength - MIN_MATCH;
+        if (length >= ML_MASK) {
+            token |= ML_MASK;
+            op = writeLength(dst, op, length - ML_MASK);
+        } else {
+            token |= length;
+        }
+        dst[tokenPos] = (byte) token;
+        return op;
+    }
+
+    private static int writeLength(byte[] dst, int op, int length) {
+        while (length >= 255) {
+            dst[op++] = (byte) 255;
+            length -= 255;
+        }
+        dst[op++] = (byte) length;
+        return op;
+    }
+
+    /**
+     * @param dstLen dst 中可用的空间
+     * @return 解压后的长度，数据不合法或超出 dstLen 时返回 -1
+     */
+    static int decompress(byte[] src, int srcOff, int srcLen, byte[] dst, int dstOff, int dstLen) {
+        int ip = srcOff;
+        int end = srcOff + srcLen;
+        int op = dstOff;
+        int dstEnd = dstOff + dstLen;
+        while (ip < end) {
+            int token = src[ip++] & 0xff;
+            int literals = token >>> ML_BITS;
+            if (literals == RUN_MASK) {
+                int b;
+                do {
+                    if (ip >= end)
+                        return -1;
+                    b = src[ip++] & 0xff;
+                    literals += b;
+                } while (b == 255 && literals <= dstLen);
+            }
+            if (literals > end - ip || literals > dstEnd - op)
+                return -1;
+            System.arraycopy(src, ip, dst, op, literals);
+            ip += literals;
+            op += literals;
+            if (ip == end)
+                break;
+
+            if (end - ip < 2)
+                return -1;
+            int offset = (src[ip] & 0xff) | (src[ip + 1] & 0xff) << 8;
+            ip += 2;
+            if (offset == 0 || offset > op - dstOff)
+                return -1;
+            int matchLength = token & ML_MASK;
+            if (matchLength == ML_MASK) {
+                int b;
+                do {
+                    if (ip >= end)
+                        return -1;
+                    b = src[ip++] & 0xff;
+                    matchLength += b;
+                } while (b == 255 && matchLength <= dstLen);
+            }
+            matchLength += MIN_MATCH;
+            if (matchLength > dstEnd - op)
+                return -1;
+            int ref = op - offset;
+            if (offset >= matchLength) {
+                System.arraycopy(dst, ref, dst, op, matchLength);
+                op += matchLength;
+            } else {
+                // 重叠的匹配（如连续重复的字节）只能逐字节复制
+                for (int i = 0; i < matchLength; i++) {
+                    dst[op++] = dst[ref++];
+                }
+            }
+        }
+        return op - dstOff;
+    }
+}
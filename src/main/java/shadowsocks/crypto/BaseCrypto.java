@@ -1,9 +1,8 @@
 package shadowsocks.crypto;
 
+import io.netty.buffer.ByteBuf;
 import org.bouncycastle.crypto.StreamCipher;
-
-import java.io.ByteArrayOutputStream;
-import java.io.IOException;
+import shadowsocks.jfr.FlightEvents;
 
 /**
  * Crypt base class implementation
@@ -11,41 +10,102 @@ import java.io.IOException;
 public abstract class BaseCrypto implements SSCrypto
 {
 
-    protected abstract StreamCipher createCipher(byte[] iv, boolean encrypt) throws CryptoException;
-    protected abstract void process(byte[] in, ByteArrayOutputStream out, boolean encrypt);
+    /**
+     * 创建一个还没有初始化的 cipher。
+     */
+    protected abstract StreamCipher newCipher();
+
+    /**
+     * 为一个连接的一个方向初始化 cipher。
+     *
+     * @param keyed cipher 来自 {@link CipherPool}，已经用同样的密钥初始化过，只需要换 IV
+     */
+    protected abstract void initCipher(StreamCipher cipher, byte[] iv, boolean encrypt, boolean keyed) throws CryptoException;
+
+    // 每个线程（event loop）一块临时空间，用于 direct buffer 无法直接拿到数组时的中转
+    private final static int SCRATCH_SIZE = 16 * 1024;
+    private final static ThreadLocal<byte[]> mScratch = ThreadLocal.withInitial(() -> new byte[SCRATCH_SIZE]);
 
     protected final String mName;
     protected final byte[] mKey;
     protected final int mIVLength;
     protected final int mKeyLength;
+    private final CipherPool mPool;
 
     protected StreamCipher mEncryptCipher = null;
     protected StreamCipher mDecryptCipher = null;
 
     protected byte[] mEncryptIV;
     protected byte[] mDecryptIV;
-
-    // One SSCrypto could only do one decrypt/encrypt at the same time.
-    protected ByteArrayOutputStream mData;
+    // 已收到的 IV 长度，IV 可能分多个包到达
+    private int mDecryptIVPos;
+    // 已经归还 cipher 的方向，之后的数据直接丢弃
+    private boolean mEncryptReleased;
+    private boolean mDecryptReleased;
 
     private byte [] mLock = new byte[0];
 
-    public BaseCrypto(String name, String password) throws CryptoException
+    public BaseCrypto(String name, String password, int ivLen) throws CryptoException
     {
         mName = name.toLowerCase();
-        mIVLength = getIVLength();
+        mIVLength = ivLen;
         mKeyLength = getKeyLength();
         if (mKeyLength == 0) {
             throw new CryptoException("Unsupport method: " + mName);
         }
-        mKey = Utils.getKey(password, mKeyLength, mIVLength);
-        mData = new ByteArrayOutputStream();
+        mPool = CipherPool.get(mName, password, mKeyLength, mIVLength);
+        mKey = mPool.key;
+    }
+
+    private StreamCipher createCipher(byte[] iv, boolean encrypt) throws CryptoException
+    {
+        StreamCipher cipher = mPool.poll();
+        boolean keyed = cipher != null;
+        if (cipher == null) {
+            cipher = newCipher();
+        }
+        initCipher(cipher, iv, encrypt, keyed);
+        return cipher;
+    }
+
+    /**
+     * 一个方向不再加/解密后（包括 crypto offload 线程上排队的数据），把它的 cipher 还给当前线程的池。
+     * 之后这个方向的数据直接丢弃，重复调用没有影响。
+     */
+    @Override
+    public void release(boolean encrypt)
+    {
+        synchronized(mLock) {
+            if (encrypt) {
+                if (!mEncryptReleased) {
+                    mEncryptReleased = true;
+                    if (mEncryptCipher != null) {
+                        mPool.offer(mEncryptCipher);
+                        mEncryptCipher = null;
+                    }
+                }
+            } else if (!mDecryptReleased) {
+                mDecryptReleased = true;
+                if (mDecryptCipher != null) {
+                    mPool.offer(mDecryptCipher);
+                    mDecryptCipher = null;
+                }
+            }
+        }
+    }
+
+    @Override
+    public int getIVLength() {
+        return mIVLength;
     }
 
     public byte [] getKey(){
         return mKey;
     }
 
+    /**
+     * @return 解密方向在 IV 收完整之前返回 null
+     */
     public byte [] getIV(boolean encrypt){
         if (encrypt){
             if (mEncryptIV == null){
@@ -53,67 +113,159 @@ public abstract class BaseCrypto implements SSCrypto
             }
             return mEncryptIV;
         }else
-            return mDecryptIV;
+            return mDecryptCipher != null ? mDecryptIV : null;
     }
 
-    private byte [] encryptLocked(byte[] in) throws CryptoException
+    /**
+     * 第一次加密时创建 cipher。
+     *
+     * @return 需要写在密文前面的 IV，之后返回 null
+     */
+    private byte [] initEncrypt() throws CryptoException
     {
-        mData.reset();
-        if (mEncryptCipher == null) {
-            mEncryptIV = getIV(true);
-            mEncryptCipher = createCipher(mEncryptIV, true);
-            try {
-                mData.write(mEncryptIV);
-            } catch (IOException e) {
-                throw new CryptoException(e);
-            }
+        if (mEncryptCipher != null)
+            return null;
+        mEncryptIV = getIV(true);
+        mEncryptCipher = createCipher(mEncryptIV, true);
+        return mEncryptIV;
+    }
+
+    /**
+     * 从密文开头读取 IV，读满后创建 cipher。
+     *
+     * @return 消耗掉的字节数
+     */
+    private int readDecryptIV(byte[] in, int offset, int length) throws CryptoException
+    {
+        if (mDecryptIV == null) {
+            mDecryptIV = new byte[mIVLength];
         }
-        process(in, mData, true);
-        return mData.toByteArray();
+        int n = Math.min(length, mIVLength - mDecryptIVPos);
+        System.arraycopy(in, offset, mDecryptIV, mDecryptIVPos, n);
+        mDecryptIVPos += n;
+        if (mDecryptIVPos == mIVLength) {
+            mDecryptCipher = createCipher(mDecryptIV, false);
+        }
+        return n;
     }
 
     @Override
     public byte [] encrypt(byte[] in, int length) throws CryptoException
     {
         synchronized(mLock) {
-            if (length != in.length){
-                byte[] data = new byte[length];
-                System.arraycopy(in, 0, data, 0, length);
-                return encryptLocked(data);
-            }else{
-                return encryptLocked(in);
+            if (mEncryptReleased) {
+                return new byte[0];
+            }
+            byte[] iv = initEncrypt();
+            int ivLen = iv == null ? 0 : iv.length;
+            byte[] out = new byte[ivLen + length];
+            if (iv != null) {
+                System.arraycopy(iv, 0, out, 0, ivLen);
             }
+            mEncryptCipher.processBytes(in, 0, length, out, ivLen);
+            return out;
         }
     }
 
-    private byte[] decryptLocked(byte[] in) throws CryptoException
+    @Override
+    public byte [] decrypt(byte[] in, int length) throws CryptoException
     {
-        byte[] data;
-        mData.reset();
-        if (mDecryptCipher == null) {
-            mDecryptIV = new byte[mIVLength];
-            data = new byte[in.length - mIVLength];
-            System.arraycopy(in, 0, mDecryptIV, 0, mIVLength);
-            System.arraycopy(in, mIVLength, data, 0, in.length - mIVLength);
-            mDecryptCipher = createCipher(mDecryptIV, false);
-        } else {
-            data = in;
+        synchronized(mLock) {
+            if (mDecryptReleased) {
+                return new byte[0];
+            }
+            int offset = 0;
+            if (mDecryptCipher == null) {
+                offset = readDecryptIV(in, 0, length);
+                if (mDecryptCipher == null) {
+                    return new byte[0];
+                }
+            }
+            byte[] out = new byte[length - offset];
+            mDecryptCipher.processBytes(in, offset, length - offset, out, 0);
+            return out;
         }
-        process(data, mData, false);
-        return mData.toByteArray();
     }
 
     @Override
-    public byte [] decrypt(byte[] in, int length) throws CryptoException
+    public void encrypt(ByteBuf in, ByteBuf out) throws CryptoException
     {
+        Object event = FlightEvents.cryptoBegin(in.readableBytes());
         synchronized(mLock) {
-            if (length != in.length) {
-                byte[] data = new byte[length];
-                System.arraycopy(in, 0, data, 0, length);
-                return decryptLocked(data);
-            }else{
-                return decryptLocked(in);
+            if (mEncryptReleased) {
+                in.skipBytes(in.readableBytes());
+                return;
+            }
+            byte[] iv = initEncrypt();
+            if (iv != null) {
+                out.writeBytes(iv);
+            }
+            process(mEncryptCipher, in, out);
+        }
+        if (event != null) {
+            FlightEvents.cryptoEnd(event, mName, true);
+        }
+    }
+
+    @Override
+    public void decrypt(ByteBuf in, ByteBuf out) throws CryptoException
+    {
+        Object event = FlightEvents.cryptoBegin(in.readableBytes());
+        synchronized(mLock) {
+            if (mDecryptReleased) {
+                in.skipBytes(in.readableBytes());
+                return;
+            }
+            if (mDecryptCipher == null) {
+                while (in.isReadable() && mDecryptCipher == null) {
+                    int n = Math.min(in.readableBytes(), mIVLength - mDecryptIVPos);
+                    if (in.hasArray()) {
+                        readDecryptIV(in.array(), in.arrayOffset() + in.readerIndex(), n);
+                        in.skipBytes(n);
+                    } else {
+                        byte[] scratch = mScratch.get();
+                        in.readBytes(scratch, 0, n);
+                        readDecryptIV(scratch, 0, n);
+                    }
+                }
+                if (mDecryptCipher == null) {
+                    return;
+                }
+            }
+            process(mDecryptCipher, in, out);
+        }
+        if (event != null) {
+            FlightEvents.cryptoEnd(event, mName, false);
+        }
+    }
+
+    /**
+     * 处理 in 中全部可读数据并写入 out。两边都是 heap buffer 时直接在数组上处理，
+     * 否则经过本线程的临时空间中转，不产生新的对象。
+     */
+    private void process(StreamCipher cipher, ByteBuf in, ByteBuf out)
+    {
+        int length = in.readableBytes();
+        out.ensureWritable(length);
+        if (in.hasArray() && out.hasArray()) {
+            cipher.processBytes(in.array(), in.arrayOffset() + in.readerIndex(), length,
+                    out.array(), out.arrayOffset() + out.writerIndex());
+            in.skipBytes(length);
+            out.writerIndex(out.writerIndex() + length);
+            return;
+        }
+        byte[] scratch = mScratch.get();
+        while (length > 0) {
+            int n = Math.min(length, scratch.length);
+            if (in.hasArray()) {
+                cipher.processBytes(in.array(), in.arrayOffset() + in.readerIndex(), n, scratch, 0);
+                in.skipBytes(n);
+            } else {
+                in.readBytes(scratch, 0, n);
+                cipher.processBytes(scratch, 0, n, scratch, 0);
             }
+            out.writeBytes(scratch, 0, n);
+            length -= n;
         }
     }
 }
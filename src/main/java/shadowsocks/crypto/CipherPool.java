@@ -0,0 +1,125 @@
+package shadowsocks.crypto;
+
+import io.netty.util.concurrent.FastThreadLocal;
+import io.netty.util.concurrent.FastThreadLocalThread;
+import org.bouncycastle.crypto.StreamCipher;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 同一个 (算法, 密码, IV 长度) 的连接共用的密钥与 cipher 池。
+ *
+ * 密钥（EVP_BytesToKey）只计算一次。每个 event loop 一个空闲 cipher 队列，连接结束后 cipher 归还到当前线程，
+ * 新连接取出后只换 IV：AES-CFB 不再重新做密钥扩展；ChaCha20 与 RC4 省去引擎和密钥流缓冲区的分配
+ * （RC4 的密钥由 IV 决定，密钥编排无法复用）。
+ *
+ * 只有当前配置的池被缓存：发布新配置时（{@link #retain}）其他的池被移出并作废，旧配置的连接之后创建的 cipher 不再缓存。
+ * 每个线程只为一个池保留空闲的 cipher，换到新的池时丢弃旧池的，最多 MAX_IDLE 个。
+ * 只有 event loop 线程（FastThreadLocalThread）保留空闲的 cipher，thread 引擎与加解密线程池上归还的直接丢弃。
+ */
+final class CipherPool {
+
+    private final static int MAX_IDLE = 128;// 每个线程最多保留的空闲 cipher 数
+
+    private final static ConcurrentHashMap<String, CipherPool> mPools = new ConcurrentHashMap<>();
+    // 当前配置的池，没有发布过配置时（如 JMH）为 null，不限制
+    private static volatile String mLiveId;
+
+    private final static FastThreadLocal<Idle> mIdle = new FastThreadLocal<Idle>() {
+        @Override
+        protected Idle initialValue() {
+            return new Idle();
+        }
+    };
+
+    /**
+     * 一个线程上的空闲 cipher，都属于 pool。
+     */
+    private final static class Idle {
+        CipherPool pool;
+        final ArrayDeque<StreamCipher> ciphers = new ArrayDeque<>();
+    }
+
+    final byte[] key;// 共享，不能修改
+    private volatile boolean mRetired;// 不在 mPools 中，归还的 cipher 直接丢弃
+
+    private CipherPool(byte[] key, boolean retired) {
+        this.key = key;
+        mRetired = retired;
+    }
+
+    private static String id(String name, String password, int ivLength) {
+        return name.toLowerCase() + '\0' + ivLength + '\0' + password;
+    }
+
+    static CipherPool get(String name, String password, int keyLength, int ivLength) throws CryptoException {
+        String id = id(name, password, ivLength);
+        String live = mLiveId;
+        if (live != null && !live.equals(id)) {
+            // 旧配置的连接（如 keep-alive 换目标）仍然按旧密码创建 cipher，但不再缓存
+            return new CipherPool(Utils.getKey(password, keyLength, ivLength), true);
+        }
+        CipherPool pool = mPools.get(id);
+        if (pool == null) {
+            pool = new CipherPool(Utils.getKey(password, keyLength, ivLength), false);
+            CipherPool old = mPools.putIfAbsent(id, pool);
+            if (old != null) {
+                pool = old;
+            } else if (mLiveId != null && !mLiveId.equals(id)) {
+                // 与 retain 并发，配置已经换掉
+                mPools.remove(id, pool);
+                pool.mRetired = true;
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * 发布新配置后调用，作废其他 (算法, 密码, IV 长度) 的池，不再保留旧密码与旧密钥的 cipher。
+     */
+    static void retain(String name, String password, int ivLength) {
+        String id = id(name, password, ivLength);
+        mLiveId = id;
+        for (Iterator<Map.Entry<String, CipherPool>> it = mPools.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<String, CipherPool> entry = it.next();
+            if (!entry.getKey().equals(id)) {
+                entry.getValue().mRetired = true;
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * @return 当前线程没有空闲的 cipher 时返回 null
+     */
+    StreamCipher poll() {
+        if (mRetired || !(Thread.currentThread() instanceof FastThreadLocalThread))
+            return null;
+        Idle idle = mIdle.get();
+        if (idle.pool != this) {
+            if (idle.pool != null && idle.pool.mRetired) {
+                // 配置换掉后的第一个连接，丢弃旧池的 cipher
+                idle.pool = null;
+                idle.ciphers.clear();
+            }
+            return null;
+        }
+        return idle.ciphers.poll();
+    }
+
+    void offer(StreamCipher cipher) {
+        if (mRetired || !(Thread.currentThread() instanceof FastThreadLocalThread))
+            return;
+        Idle idle = mIdle.get();
+        if (idle.pool != this) {
+            idle.pool = this;
+            idle.ciphers.clear();
+        }
+        if (idle.ciphers.size() < MAX_IDLE) {
+            idle.ciphers.push(cipher);
+        }
+    }
+}
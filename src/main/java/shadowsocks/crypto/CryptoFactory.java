@@ -2,17 +2,34 @@ package shadowsocks.crypto;
 
 public class CryptoFactory{
 
-    public static SSCrypto create(String name, String password) throws CryptoException
+    public static SSCrypto create(String name, String password, int ivLen) throws CryptoException
     {
         String cipherName = name.toLowerCase();
         if (cipherName.equals("aes-256-cfb")) {
-            return new AESCrypto(name, password);
+            return new AESCrypto(name, password, ivLen);
         }else if (cipherName.equals("chacha20")) {
-            return new Chacha20Crypto(name, password);
+            return new Chacha20Crypto(name, password, ivLen);
         } else if (cipherName.equals("rc4-md5")) {
-            return new RC4MD5Crypto("rc4-md5",password);
+            return new RC4MD5Crypto("rc4-md5", password, ivLen);
         } else{
             throw new CryptoException("Unsupport method: " + name);
         }
     }
+
+    /**
+     * 发布新配置后调用，只保留该配置的密钥与空闲 cipher，旧密码不再留在内存中。
+     */
+    public static void retain(String name, String password, int ivLen)
+    {
+        CipherPool.retain(name, password, ivLen);
+    }
+
+    /**
+     * 只检查算法名，用于校验配置。不创建实例，选中算法的类（以及 BouncyCastle 的类）到第一个连接时才加载。
+     */
+    public static boolean isSupported(String name)
+    {
+        String cipherName = name.toLowerCase();
+        return cipherName.equals("aes-256-cfb") || cipherName.equals("chacha20") || cipherName.equals("rc4-md5");
+    }
 }
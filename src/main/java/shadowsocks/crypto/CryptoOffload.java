@@ -0,0 +1,91 @@
+package shadowsocks.crypto;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 大流量连接的加/解密线程池，避免占满 event loop，拖慢同一 event loop 上的其他连接。
+ *
+ * 每个连接方向同一时间最多只有一个任务（串行队列由调用方维护），所以队列长度即等待处理的大流量连接数。
+ * 队列满时 {@link #execute(Runnable, int)} 返回 false，由调用方在 event loop 上处理。
+ * 线程池在第一次使用时按当时的 crypto_offload_threads 创建，之后不随配置重载变化。
+ */
+public class CryptoOffload {
+
+    private final static int QUEUE_CAPACITY = 1024;
+
+    private static volatile ThreadPoolExecutor mExecutor;
+
+    private static final LongAdder mInlineBytes = new LongAdder();
+    private static final LongAdder mOffloadBytes = new LongAdder();
+    private static final LongAdder mRejected = new LongAdder();
+    private static final AtomicLong mQueuedBytes = new AtomicLong();
+
+    private static ThreadPoolExecutor executor(int threads) {
+        ThreadPoolExecutor executor = mExecutor;
+        if (executor != null)
+            return executor;
+        synchronized (CryptoOffload.class) {
+            if (mExecutor == null) {
+                int n = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+                AtomicInteger count = new AtomicInteger();
+                mExecutor = new ThreadPoolExecutor(n, n, 60, TimeUnit.SECONDS,
+                        new ArrayBlockingQueue<>(QUEUE_CAPACITY), r -> {
+                    Thread thread = new Thread(r, "ss-crypto-" + count.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                mExecutor.allowCoreThreadTimeOut(true);
+            }
+            return mExecutor;
+        }
+    }
+
+    /**
+     * @param threads 线程数，0 表示 CPU 核数。只在第一次调用时生效
+     * @return 队列已满时返回 false
+     */
+    public static boolean execute(Runnable task, int threads) {
+        try {
+            executor(threads).execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            mRejected.increment();
+            return false;
+        }
+    }
+
+    public static void inline(int bytes) {
+        mInlineBytes.add(bytes);
+    }
+
+    /**
+     * 数据进入串行队列。
+     */
+    public static void queued(int bytes) {
+        mOffloadBytes.add(bytes);
+        mQueuedBytes.addAndGet(bytes);
+    }
+
+    /**
+     * 结果已经交回连接所属的 event loop。
+     */
+    public static void done(int bytes) {
+        mQueuedBytes.addAndGet(-bytes);
+    }
+
+    public static void export(StringBuilder sb) {
+        sb.append("# TYPE ss_crypto_bytes_total counter\n");
+        sb.append("ss_crypto_bytes_total{mode=\"inline\"} ").append(mInlineBytes.sum()).append('\n');
+        sb.append("ss_crypto_bytes_total{mode=\"offload\"} ").append(mOffloadBytes.sum()).append('\n');
+        sb.append("# TYPE ss_crypto_offload_queued_bytes gauge\n");
+        sb.append("ss_crypto_offload_queued_bytes ").append(mQueuedBytes.get()).append('\n');
+        sb.append("# TYPE ss_crypto_offload_rejected_total counter\n");
+        sb.append("ss_crypto_offload_rejected_total ").append(mRejected.sum()).append('\n');
+    }
+}
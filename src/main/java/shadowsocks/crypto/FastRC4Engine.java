@@ -0,0 +1,79 @@
+package shadowsocks.crypto;
+
+import org.bouncycastle.crypto.CipherParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+/**
+ * RC4，与 BouncyCastle RC4Engine 输出一致。
+ *
+ * S 盒用 int 数组避免反复的 & 0xff，密钥流按块生成后与数据按 8 字节异或。
+ */
+public class FastRC4Engine extends KeyStreamEngine {
+
+    private final static int KEY_STREAM_SIZE = 512;
+
+    private final int[] mS = new int[256];
+    private int mX;
+    private int mY;
+    private byte[] mWorkingKey;
+
+    public FastRC4Engine() {
+        super(KEY_STREAM_SIZE);
+    }
+
+    @Override
+    public void init(boolean forEncryption, CipherParameters params) throws IllegalArgumentException {
+        if (!(params instanceof KeyParameter)) {
+            throw new IllegalArgumentException("invalid parameter passed to RC4 init - " + params.getClass().getName());
+        }
+        mWorkingKey = ((KeyParameter) params).getKey();
+        setKey(mWorkingKey);
+    }
+
+    private void setKey(byte[] key) {
+        int[] s = mS;
+        for (int i = 0; i < 256; i++) {
+            s[i] = i;
+        }
+        int j = 0;
+        int k = 0;
+        for (int i = 0; i < 256; i++) {
+            j = (j + s[i] + (key[k] & 0xff)) & 0xff;
+            int t = s[i];
+            s[i] = s[j];
+            s[j] = t;
+            k = (k + 1) % key.length;
+        }
+        mX = 0;
+        mY = 0;
+        resetKeyStream();
+    }
+
+    @Override
+    public String getAlgorithmName() {
+        return "RC4";
+    }
+
+    @Override
+    public void reset() {
+        setKey(mWorkingKey);
+    }
+
+    @Override
+    protected void generate(byte[] keyStream) {
+        int[] s = mS;
+        int x = mX;
+        int y = mY;
+        for (int i = 0; i < keyStream.length; i++) {
+            x = (x + 1) & 0xff;
+            int sx = s[x];
+            y = (y + sx) & 0xff;
+            int sy = s[y];
+            s[x] = sy;
+            s[y] = sx;
+            keyStream[i] = (byte) s[(sx + sy) & 0xff];
+        }
+        mX = x;
+        mY = y;
+    }
+}
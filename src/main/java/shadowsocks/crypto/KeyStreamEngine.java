@@ -0,0 +1,84 @@
+package shadowsocks.crypto;
+
+import io.netty.util.internal.PlatformDependent;
+import org.bouncycastle.crypto.DataLengthException;
+import org.bouncycastle.crypto.OutputLengthException;
+import org.bouncycastle.crypto.StreamCipher;
+
+/**
+ * 按块生成密钥流的流密码基类。
+ *
+ * 子类一次填满整个密钥流缓冲区，这里再把数据与密钥流按 8 字节（long）异或，
+ * 代替 BouncyCastle 引擎逐字节的 processBytes。支持 in 与 out 为同一数组（原地处理）。
+ */
+abstract class KeyStreamEngine implements StreamCipher {
+
+    private final static boolean LONG_ACCESS = PlatformDependent.hasUnsafe() && PlatformDependent.isUnaligned();
+
+    protected final byte[] mKeyStream;
+    private int mIndex;
+
+    KeyStreamEngine(int keyStreamSize) {
+        mKeyStream = new byte[keyStreamSize];
+        mIndex = keyStreamSize;
+    }
+
+    /**
+     * 生成下一段密钥流，写满 mKeyStream。
+     */
+    protected abstract void generate(byte[] keyStream);
+
+    /**
+     * 丢弃尚未使用的密钥流，init/reset 后调用。
+     */
+    protected void resetKeyStream() {
+        mIndex = mKeyStream.length;
+    }
+
+    @Override
+    public byte returnByte(byte in) {
+        if (mIndex == mKeyStream.length) {
+            generate(mKeyStream);
+            mIndex = 0;
+        }
+        return (byte) (in ^ mKeyStream[mIndex++]);
+    }
+
+    @Override
+    public int processBytes(byte[] in, int inOff, int len, byte[] out, int outOff) throws DataLengthException {
+        if (inOff + len > in.length) {
+            throw new DataLengthException("input buffer too short");
+        }
+        if (outOff + len > out.length) {
+            throw new OutputLengthException("output buffer too short");
+        }
+        byte[] ks = mKeyStream;
+        int remain = len;
+        while (remain > 0) {
+            if (mIndex == ks.length) {
+                generate(ks);
+                mIndex = 0;
+            }
+            int n = Math.min(remain, ks.length - mIndex);
+            xor(in, inOff, ks, mIndex, out, outOff, n);
+            mIndex += n;
+            inOff += n;
+            outOff += n;
+            remain -= n;
+        }
+        return len;
+    }
+
+    private static void xor(byte[] in, int inOff, byte[] ks, int ksOff, byte[] out, int outOff, int len) {
+        int i = 0;
+        if (LONG_ACCESS) {
+            for (; i + 8 <= len; i += 8) {
+                PlatformDependent.putLong(out, outOff + i,
+                        PlatformDependent.getLong(in, inOff + i) ^ PlatformDependent.getLong(ks, ksOff + i));
+            }
+        }
+        for (; i < len; i++) {
+            out[outOff + i] = (byte) (in[inOff + i] ^ ks[ksOff + i]);
+        }
+    }
+}
@@ -1,58 +1,39 @@
 package shadowsocks.crypto;
 
 import org.bouncycastle.crypto.StreamCipher;
-import org.bouncycastle.crypto.engines.RC4Engine;
 import org.bouncycastle.crypto.params.KeyParameter;
-import shadowsocks.GlobalConfig;
-
-import java.io.ByteArrayOutputStream;
 
 public class RC4MD5Crypto extends BaseCrypto {
 
-    private final static int IV_LENGTH = GlobalConfig.get().getIvLen();
-
     private final static int KEY_LENGTH = 16;
 
-    public RC4MD5Crypto(String name, String password) throws CryptoException {
-        super(name, password);
+    public RC4MD5Crypto(String name, String password, int ivLen) throws CryptoException {
+        super(name, password, ivLen);
     }
 
     @Override
-    public int getIVLength() {
-        return IV_LENGTH;
+    public int getKeyLength() {
+        return KEY_LENGTH;
     }
 
     @Override
-    public int getKeyLength() {
-        return KEY_LENGTH;
+    protected StreamCipher newCipher()
+    {
+        return new FastRC4Engine();
     }
 
+    /**
+     * RC4 的密钥是 md5(key + iv)，每个连接都要重新做密钥编排。
+     */
     @Override
-    protected StreamCipher createCipher(byte[] iv, boolean encrypt) throws CryptoException
+    protected void initCipher(StreamCipher cipher, byte[] iv, boolean encrypt, boolean keyed) throws CryptoException
     {
-        StreamCipher c = new RC4Engine();
-        byte[] data = new byte[KEY_LENGTH + IV_LENGTH];
+        byte[] data = new byte[KEY_LENGTH + mIVLength];
         System.arraycopy(mKey,0,data,0,KEY_LENGTH);
-        System.arraycopy(iv,0,data,KEY_LENGTH,IV_LENGTH);
+        System.arraycopy(iv,0,data,KEY_LENGTH,mIVLength);
 
         byte[] hash = Utils.md5(data);
 
-        c.init(encrypt, new KeyParameter(hash));
-        return c;
-    }
-
-
-    @Override
-    protected void process(byte[] in, ByteArrayOutputStream out, boolean encrypt){
-        int size;
-        byte[] buffer = new byte[in.length];
-        StreamCipher cipher;
-        if (encrypt){
-            cipher = mEncryptCipher;
-        }else{
-            cipher = mDecryptCipher;
-        }
-        size = cipher.processBytes(in, 0, in.length, buffer, 0);
-        out.write(buffer, 0, size);
+        cipher.init(encrypt, new KeyParameter(hash));
     }
 }
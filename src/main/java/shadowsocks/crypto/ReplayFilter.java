@@ -0,0 +1,145 @@
+package shadowsocks.crypto;
+
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 服务端 IV 重放检测。
+ *
+ * 流加密没有完整性校验，抓到的连接原样重放，服务端会再连一次目标，也就可以被主动探测。
+ * 这里记住最近出现过的 IV：两个 bloom filter 轮换（ping-pong），新 IV 写入当前的一个，
+ * 当前的写满 capacity 个之后清空旧的并切换过去，因此总是至少记住最近 capacity 个 IV。
+ * 所有 event loop 共享，查询和写入都不加锁。
+ *
+ * IV 太短（iv_len 小于 8）时正常客户端之间的碰撞也会被当作重放。
+ */
+public class ReplayFilter {
+
+    // replay_filter_capacity 的上限，两个 filter 共约 1GB
+    public final static long MAX_CAPACITY = BloomFilter.MAX_CAPACITY;
+
+    private static volatile ReplayFilter mFilter;
+    private static final LongAdder mDetected = new LongAdder();
+
+    private final long mCapacity;
+    private final BloomFilter[] mFilters = new BloomFilter[2];
+    private volatile int mCurrent;
+    private final AtomicBoolean mRotating = new AtomicBoolean();
+    // hash 的随机种子，防止构造碰撞
+    private final long mSeed;
+
+    public ReplayFilter(long capacity) {
+        mCapacity = capacity;
+        mFilters[0] = new BloomFilter(capacity);
+        mFilters[1] = new BloomFilter(capacity);
+        mSeed = new SecureRandom().nextLong();
+    }
+
+    /**
+     * 当前生效的过滤器，未启用时为 null。
+     */
+    public static ReplayFilter get() {
+        return mFilter;
+    }
+
+    /**
+     * 服务端启动时创建，capacity 为 0 表示关闭。
+     */
+    public static void init(long capacity) {
+        mFilter = capacity > 0 ? new ReplayFilter(capacity) : null;
+    }
+
+    /**
+     * 检查并记录一个 IV。
+     *
+     * @return 最近出现过（或误判）返回 true
+     */
+    public boolean checkAndAdd(byte[] iv) {
+        long hash = hash(iv, mSeed);
+        int current = mCurrent;
+        if (mFilters[current ^ 1].mightContain(hash) || !mFilters[current].add(hash)) {
+            mDetected.increment();
+            return true;
+        }
+        if (mFilters[current].count() >= mCapacity) {
+            rotate(current);
+        }
+        return false;
+    }
+
+    /**
+     * 只查询不写入，用于统计误判率。
+     */
+    boolean mightContain(byte[] iv) {
+        long hash = hash(iv, mSeed);
+        return mFilters[0].mightContain(hash) || mFilters[1].mightContain(hash);
+    }
+
+    /**
+     * 清空旧的 filter 并切换为当前。只有一个线程执行，其它线程继续使用原来的当前 filter。
+     */
+    private void rotate(int current) {
+        if (!mRotating.compareAndSet(false, true))
+            return;
+        try {
+            if (mCurrent == current) {
+                mFilters[current ^ 1].clear();
+                mCurrent = current ^ 1;
+            }
+        } finally {
+            mRotating.set(false);
+        }
+    }
+
+    public long sizeInBytes() {
+        return mFilters[0].sizeInBytes() + mFilters[1].sizeInBytes();
+    }
+
+    public long count() {
+        return mFilters[0].count() + mFilters[1].count();
+    }
+
+    /**
+     * 64 位 hash（murmur3 的 mix 与 fmix64）。
+     */
+    static long hash(byte[] data, long seed) {
+        long h = seed ^ (data.length * 0x9e3779b97f4a7c15L);
+        int i = 0;
+        for (; i + 8 <= data.length; i += 8) {
+            long k = (data[i] & 0xffL) | (data[i + 1] & 0xffL) << 8 | (data[i + 2] & 0xffL) << 16
+                    | (data[i + 3] & 0xffL) << 24 | (data[i + 4] & 0xffL) << 32 | (data[i + 5] & 0xffL) << 40
+                    | (data[i + 6] & 0xffL) << 48 | (data[i + 7] & 0xffL) << 56;
+            h ^= mix(k);
+            h = Long.rotateLeft(h, 27) * 5 + 0x52dce729;
+        }
+        long k = 0;
+        for (int shift = 0; i < data.length; i++, shift += 8) {
+            k |= (data[i] & 0xffL) << shift;
+        }
+        h ^= mix(k);
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    private static long mix(long k) {
+        k *= 0x87c37b91114253d5L;
+        k = Long.rotateLeft(k, 31);
+        k *= 0x4cf5ad432745937fL;
+        return k;
+    }
+
+    public static void export(StringBuilder sb) {
+        ReplayFilter filter = mFilter;
+        sb.append("# TYPE ss_replay_detected_total counter\n");
+        sb.append("ss_replay_detected_total ").append(mDetected.sum()).append('\n');
+        if (filter != null) {
+            sb.append("# TYPE ss_replay_filter_entries gauge\n");
+            sb.append("ss_replay_filter_entries ").append(filter.count()).append('\n');
+        }
+    }
+}
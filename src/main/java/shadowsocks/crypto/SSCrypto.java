@@ -1,13 +1,20 @@
 package shadowsocks.crypto;
 
+import io.netty.buffer.ByteBuf;
+
 /**
  * Interface of crypt
  */
 public interface SSCrypto {
     byte [] encrypt(byte[] data, int length) throws CryptoException;
     byte [] decrypt(byte[] data, int length) throws CryptoException;
+    // 处理 in 的全部可读数据，结果追加到 out，out 由调用方分配和释放
+    void encrypt(ByteBuf in, ByteBuf out) throws CryptoException;
+    void decrypt(ByteBuf in, ByteBuf out) throws CryptoException;
     int getIVLength();
     int getKeyLength();
     byte [] getIV(boolean encrypt);
     byte [] getKey();
+    // 一个方向结束后归还 cipher，之后这个方向的数据被丢弃
+    void release(boolean encrypt);
 }
@@ -9,6 +9,9 @@ public class Utils{
 
     public static final int NOISE_MAX = 256;
 
+    // 线程安全，避免每次调用都新建并初始化一个 SecureRandom
+    private static final SecureRandom RANDOM = new SecureRandom();
+
     /**
      * Thanks go to Ola Bini for releasing this source on his blog.
      * The source was obtained from <a href="http://olabini.com/blog/tag/evp_bytestokey/">here</a> .
@@ -101,7 +104,7 @@ public class Utils{
 
     public static byte[] randomBytes(int size) {
         byte[] bytes = new byte[size];
-        new SecureRandom().nextBytes(bytes);
+        RANDOM.nextBytes(bytes);
         return bytes;
     }
 
@@ -0,0 +1,115 @@
+package shadowsocks.jfr;
+
+import io.vertx.core.net.NetSocket;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.GlobalConfig;
+
+/**
+ * 连接生命周期、背压与加解密的 JDK Flight Recorder 事件，用来把 GC、CPU 采样与代理的行为对应起来。
+ *
+ * 只在 jfr 开启时创建，关闭时 handler 持有 null，打点只剩一次判空（与 ConnectionTrace 相同）。事件只在有录制时提交，
+ * 例如 -XX:StartFlightRecording=duration=60s,filename=ss.jfr，不采集调用栈。
+ *
+ * jdk.jfr 不在 javac --release 8 的 API 中，事件与实现（{@link #IMPL}）在单独的 jfr 源码集中，这里按类名加载。
+ * 运行时没有 jdk.jfr（8u262 之前的 JDK 8）或者没有打包 jfr 源码集时忽略 jfr 配置。
+ *
+ * 除加解密外只在连接所属的 context 上调用。
+ */
+public abstract class FlightEvents {
+
+    public static Logger log = LogManager.getLogger(FlightEvents.class.getName());
+
+    private final static String IMPL = "shadowsocks.jfr.JfrFlightEvents$Factory";
+    private final static Factory FACTORY = load();
+    private static volatile boolean mWarned;
+
+    /**
+     * jfr 源码集中的实现。
+     */
+    abstract static class Factory {
+
+        abstract FlightEvents start(GlobalConfig config, long id, String side, NetSocket socket);
+
+        abstract Object cryptoBegin(int bytes);
+
+        abstract void cryptoEnd(Object begin, String method, boolean encrypt);
+    }
+
+    private static Factory load() {
+        ClassLoader loader = FlightEvents.class.getClassLoader();
+        try {
+            Class.forName("jdk.jfr.Event", false, loader);
+            return (Factory) Class.forName(IMPL, true, loader).newInstance();
+        } catch (ReflectiveOperationException | LinkageError e) {
+            return null;
+        }
+    }
+
+    private static boolean enabled(GlobalConfig config) {
+        if (!config.isJfr())
+            return false;
+        if (FACTORY == null && !mWarned) {
+            mWarned = true;
+            log.warn("JFR is not available in this runtime or build, ignore jfr.");
+        }
+        return FACTORY != null;
+    }
+
+    /**
+     * 记录接受连接。
+     *
+     * @param side client 或 server
+     * @return jfr 关闭时返回 null
+     */
+    public static FlightEvents start(GlobalConfig config, long id, String side, NetSocket socket) {
+        if (!enabled(config))
+            return null;
+        return FACTORY.start(config, id, side, socket);
+    }
+
+    /**
+     * HTTP keep-alive 换了目标，之后的字节数与结果记到新的连接事件。旧目标上还没恢复的暂停不再记录。
+     */
+    public abstract void restart();
+
+    public abstract void connectStart();
+
+    public abstract void connected(Object target, String addr, int port);
+
+    public abstract void connectFailed(Object target, String addr, int port, Throwable cause);
+
+    /**
+     * flowControl 暂停读取，重复暂停同一端时忽略。
+     *
+     * @param bit flowControl 的暂停位，1 或 2
+     * @param side 被暂停的一端
+     */
+    public abstract void paused(int bit, String side, Object target);
+
+    /**
+     * 写队列 drain 后恢复读取，暂停时间不足 jfr_pause_threshold 时不提交。
+     */
+    public abstract void resumed(int bit);
+
+    /**
+     * 连接结束，字段与访问日志一致。
+     */
+    public abstract void close(Object target, long bytesUp, long bytesDown, String result);
+
+    /**
+     * 加解密开始前调用，可以在任意线程调用。jfr 关闭或数据不足 jfr_crypto_threshold 时只有一次 volatile 读。
+     *
+     * @return 不需要记录时返回 null，否则交给 {@link #cryptoEnd}
+     */
+    public static Object cryptoBegin(int bytes) {
+        GlobalConfig config = GlobalConfig.get();
+        if (bytes < config.getJfrCryptoThreshold() || !enabled(config))
+            return null;
+        return FACTORY.cryptoBegin(bytes);
+    }
+
+    public static void cryptoEnd(Object begin, String method, boolean encrypt) {
+        FACTORY.cryptoEnd(begin, method, encrypt);
+    }
+}
@@ -0,0 +1,626 @@
+package shadowsocks.kcp;
+
+import io.netty.buffer.ByteBuf;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+/**
+ * KCP 协议（skywind3000/kcp 1.7）的 ARQ 部分，流模式，报文格式与原版相同（小端）：
+ *
+ *   conv(4) cmd(1) frg(1) wnd(2) ts(4) sn(4) una(4) len(4) data
+ *
+ * 原版流模式不会发出长度为 0 的 PUSH，这里用它表示数据结束（相当于 FIN），和数据一样按序号可靠送达。
+ *
+ * 不做 IO 也不取时间：收到的报文交给 {@link #input(ByteBuf, int)}，定时调用 {@link #update(int)}，
+ * 需要发出的报文交给 {@link Output}。只在一个线程上使用。
+ */
+final class Kcp {
+
+    final static int OVERHEAD = 24;
+
+    private final static int CMD_PUSH = 81;
+    private final static int CMD_ACK = 82;
+    private final static int CMD_WASK = 83;// 询问窗口
+    private final static int CMD_WINS = 84;// 告知窗口
+
+    private final static int ASK_SEND = 1;
+    private final static int ASK_TELL = 2;
+
+    private final static int RTO_NDL = 30;// nodelay 时的最小 RTO
+    private final static int RTO_MIN = 100;
+    private final static int RTO_DEF = 200;
+    private final static int RTO_MAX = 60000;
+    private final static int WND_RCV_MIN = 128;// 接收窗口不小于最大分片数
+    private final static int THRESH_INIT = 2;
+    private final static int THRESH_MIN = 2;
+    private final static int PROBE_INIT = 7000;
+    private final static int PROBE_LIMIT = 120000;
+    private final static int FASTACK_LIMIT = 5;
+    private final static int DEAD_LINK = 20;
+
+    interface Output {
+        /**
+         * @param packet 一个 UDP 报文，取得所有权
+         */
+        void output(ByteBuf packet);
+
+        ByteBuf allocate(int capacity);
+    }
+
+    private final static class Segment {
+        int sn;
+        int resendts;
+        int rto;
+        int fastack;
+        int xmit;
+        final byte[] data;
+        int len;
+
+        Segment(int capacity) {
+            data = new byte[capacity];
+        }
+    }
+
+    private final int mConv;
+    private final Output mOutput;
+    private final int mMtu;
+    private final int mMss;
+    private boolean mDead;
+
+    private int mSndUna;
+    private int mSndNxt;
+    private int mRcvNxt;
+    private int mSsthresh = THRESH_INIT;
+    private int mRxRttval;
+    private int mRxSrtt;
+    private int mRxRto = RTO_DEF;
+    private int mRxMinrto = RTO_MIN;
+    private final int mSndWnd;
+    private final int mRcvWnd;
+    private int mRmtWnd = WND_RCV_MIN;
+    private int mCwnd = 1;
+    private int mIncr;
+    private int mProbe;
+    private int mCurrent;
+    private int mInterval = 100;
+    private int mTsFlush;
+    private boolean mUpdated;
+    private int mTsProbe;
+    private int mProbeWait;
+    private int mNodelay;
+    private int mFastresend;
+    private boolean mNocwnd;
+
+    private final ArrayDeque<Segment> mSndQueue = new ArrayDeque<>();
+    private final ArrayDeque<Segment> mRcvQueue = new ArrayDeque<>();
+    private final ArrayDeque<Segment> mSndBuf = new ArrayDeque<>();
+    private final LinkedList<Segment> mRcvBuf = new LinkedList<>();// 按 sn 排序
+    private int[] mAcks = new int[64];// sn, ts 成对
+    private int mAckCount;
+    private ByteBuf mBuffer;// flush 时正在填充的报文
+    private boolean mFinQueued;
+    private boolean mFinReceived;
+
+    // 统计，由调用方汇总
+    int mRetransmits;
+    int mFastRetransmits;
+
+    Kcp(int conv, int mtu, int sndWnd, int rcvWnd, Output output) {
+        mConv = conv;
+        mOutput = output;
+        mMtu = mtu;
+        mMss = mtu - OVERHEAD;
+        mSndWnd = sndWnd;
+        mRcvWnd = Math.max(rcvWnd, WND_RCV_MIN);
+        mIncr = mMss;
+    }
+
+    /**
+     * @param nodelay 0 关闭，1 开启（RTO 最小 30ms，超时后 RTO 只增加一半）
+     * @param interval 内部刷新间隔，单位毫秒
+     * @param resend 收到多少个跳过的 ACK 后快速重传，0 表示关闭
+     * @param nocwnd 是否关闭拥塞控制，只受发送和对端接收窗口限制
+     */
+    void nodelay(int nodelay, int interval, int resend, boolean nocwnd) {
+        mNodelay = nodelay;
+        mRxMinrto = nodelay != 0 ? RTO_NDL : RTO_MIN;
+        mInterval = Math.max(10, Math.min(interval, 5000));
+        mFastresend = resend;
+        mNocwnd = nocwnd;
+    }
+
+    int conv() {
+        return mConv;
+    }
+
+    /**
+     * 会话的第一个数据报文（sn 为 0 的 PUSH），只看第一个段。
+     */
+    static boolean isFirstPacket(ByteBuf in) {
+        int index = in.readerIndex();
+        return in.readableBytes() >= OVERHEAD
+                && in.getUnsignedByte(index + 4) == CMD_PUSH
+                && in.getIntLE(index + 12) == 0;
+    }
+
+    /**
+     * 有段的重传次数达到上限，对端已经不可达。
+     */
+    boolean isDead() {
+        return mDead;
+    }
+
+    /**
+     * 等待发送与等待确认的段数。
+     */
+    int waitSnd() {
+        return mSndBuf.size() + mSndQueue.size();
+    }
+
+    int sndWnd() {
+        return mSndWnd;
+    }
+
+    /**
+     * FIN 已经按序收到，之后不会再有数据。
+     */
+    boolean isFinReceived() {
+        return mFinReceived;
+    }
+
+    /**
+     * FIN 已经发出并被确认（所有数据都已送达）。
+     */
+    boolean isFinAcked() {
+        return mFinQueued && mSndBuf.isEmpty() && mSndQueue.isEmpty();
+    }
+
+    /**
+     * 平滑后的 RTT，单位毫秒，还没有样本时为 0。
+     */
+    int rtt() {
+        return mRxSrtt;
+    }
+
+    /**
+     * 可以 recv 的字节数。
+     */
+    int available() {
+        int total = 0;
+        for (Segment seg : mRcvQueue) {
+            total += seg.len;
+        }
+        return total;
+    }
+
+    /**
+     * 有按序到达、还没有 recv 的数据或 FIN。
+     */
+    boolean hasData() {
+        return !mRcvQueue.isEmpty();
+    }
+
+    /**
+     * 追加 in 的全部可读数据，流模式下先填满上一个段。
+     */
+    void send(ByteBuf in) {
+        if (mFinQueued)
+            return;
+        Segment last = mSndQueue.peekLast();
+        if (last != null && last.len > 0 && last.len < mMss) {
+            int n = Math.min(in.readableBytes(), mMss - last.len);
+            in.readBytes(last.data, last.len, n);
+            last.len += n;
+        }
+        while (in.isReadable()) {
+            int n = Math.min(in.readableBytes(), mMss);
+            Segment seg = new Segment(mMss);
+            in.readBytes(seg.data, 0, n);
+            seg.len = n;
+            mSndQueue.addLast(seg);
+        }
+    }
+
+    /**
+     * 在已有数据之后发送 FIN，之后的 send 被忽略。
+     */
+    void sendFin() {
+        if (mFinQueued)
+            return;
+        mFinQueued = true;
+        mSndQueue.addLast(new Segment(0));
+    }
+
+    /**
+     * 取出按序到达的数据写入 out。
+     *
+     * @return 写入的字节数
+     */
+    int recv(ByteBuf out) {
+        boolean recover = mRcvQueue.size() >= mRcvWnd;
+        int total = 0;
+        Segment seg;
+        while ((seg = mRcvQueue.pollFirst()) != null) {
+            if (seg.len == 0) {
+                mFinReceived = true;
+                continue;
+            }
+            out.writeBytes(seg.data, 0, seg.len);
+            total += seg.len;
+        }
+        moveRcvBuf();
+        if (recover && mRcvQueue.size() < mRcvWnd) {
+            // 之前窗口已满，主动告诉对端可以继续发送
+            mProbe |= ASK_TELL;
+        }
+        return total;
+    }
+
+    /**
+     * 处理一个 UDP 报文（可能包含多个段）。
+     *
+     * @param current 毫秒时间戳，用于计算 RTT
+     * @return 格式错误或 conv 不符时返回 false
+     */
+    boolean input(ByteBuf in, int current) {
+        mCurrent = current;
+        int prevUna = mSndUna;
+        int maxack = 0;
+        boolean flag = false;
+        if (in.readableBytes() < OVERHEAD)
+            return false;
+        while (in.readableBytes() >= OVERHEAD) {
+            int conv = in.readIntLE();
+            int cmd = in.readUnsignedByte();
+            in.readUnsignedByte();// frg，流模式总是 0
+            int wnd = in.readUnsignedShortLE();
+            int ts = in.readIntLE();
+            int sn = in.readIntLE();
+            int una = in.readIntLE();
+            int len = in.readIntLE();
+            if (conv != mConv || len < 0 || len > in.readableBytes())
+                return false;
+            if (cmd != CMD_PUSH && cmd != CMD_ACK && cmd != CMD_WASK && cmd != CMD_WINS)
+                return false;
+            mRmtWnd = wnd;
+            parseUna(una);
+            shrinkBuf();
+            if (cmd == CMD_ACK) {
+                if (mCurrent - ts >= 0) {
+                    updateAck(mCurrent - ts);
+                }
+                parseAck(sn);
+                shrinkBuf();
+                if (!flag || sn - maxack > 0) {
+                    flag = true;
+                    maxack = sn;
+                }
+            } else if (cmd == CMD_PUSH) {
+                if (sn - (mRcvNxt + mRcvWnd) < 0) {
+                    pushAck(sn, ts);
+                    if (sn - mRcvNxt >= 0) {
+                        Segment seg = new Segment(len);
+                        in.getBytes(in.readerIndex(), seg.data, 0, len);
+                        seg.len = len;
+                        seg.sn = sn;
+                        parseData(seg);
+                    }
+                }
+            } else if (cmd == CMD_WASK) {
+                mProbe |= ASK_TELL;
+            }
+            in.skipBytes(len);
+        }
+        if (flag) {
+            parseFastack(maxack);
+        }
+        if (mSndUna - prevUna > 0 && mCwnd < mRmtWnd) {
+            // 慢启动与拥塞避免
+            int mss = mMss;
+            if (mCwnd < mSsthresh) {
+                mCwnd++;
+                mIncr += mss;
+            } else {
+                if (mIncr < mss) {
+                    mIncr = mss;
+                }
+                mIncr += (mss * mss) / mIncr + (mss / 16);
+                if ((mCwnd + 1) * mss <= mIncr) {
+                    mCwnd = (mIncr + mss - 1) / mss;
+                }
+            }
+            if (mCwnd > mRmtWnd) {
+                mCwnd = mRmtWnd;
+                mIncr = mRmtWnd * mss;
+            }
+        }
+        return true;
+    }
+
+    private void updateAck(int rtt) {
+        if (mRxSrtt == 0) {
+            mRxSrtt = rtt;
+            mRxRttval = rtt / 2;
+        } else {
+            int delta = Math.abs(rtt - mRxSrtt);
+            mRxRttval = (3 * mRxRttval + delta) / 4;
+            mRxSrtt = (7 * mRxSrtt + rtt) / 8;
+            if (mRxSrtt < 1) {
+                mRxSrtt = 1;
+            }
+        }
+        int rto = mRxSrtt + Math.max(mInterval, 4 * mRxRttval);
+        mRxRto = Math.max(mRxMinrto, Math.min(rto, RTO_MAX));
+    }
+
+    private void shrinkBuf() {
+        Segment first = mSndBuf.peekFirst();
+        mSndUna = first != null ? first.sn : mSndNxt;
+    }
+
+    private void parseAck(int sn) {
+        if (sn - mSndUna < 0 || sn - mSndNxt >= 0)
+            return;
+        for (Iterator<Segment> it = mSndBuf.iterator(); it.hasNext(); ) {
+            Segment seg = it.next();
+            if (sn == seg.sn) {
+                it.remove();
+                break;
+            }
+            if (sn - seg.sn < 0)
+                break;
+        }
+    }
+
+    private void parseUna(int una) {
+        Segment seg;
+        while ((seg = mSndBuf.peekFirst()) != null && una - seg.sn > 0) {
+            mSndBuf.pollFirst();
+        }
+    }
+
+    private void parseFastack(int sn) {
+        if (sn - mSndUna < 0 || sn - mSndNxt >= 0)
+            return;
+        for (Segment seg : mSndBuf) {
+            if (sn - seg.sn < 0)
+                break;
+            if (sn != seg.sn) {
+                seg.fastack++;
+            }
+        }
+    }
+
+    private void pushAck(int sn, int ts) {
+        if (mAckCount * 2 == mAcks.length) {
+            int[] acks = new int[mAcks.length * 2];
+            System.arraycopy(mAcks, 0, acks, 0, mAcks.length);
+            mAcks = acks;
+        }
+        mAcks[mAckCount * 2] = sn;
+        mAcks[mAckCount * 2 + 1] = ts;
+        mAckCount++;
+    }
+
+    private void parseData(Segment newseg) {
+        int sn = newseg.sn;
+        if (sn - (mRcvNxt + mRcvWnd) >= 0 || sn - mRcvNxt < 0)
+            return;
+        // 从后往前找插入位置，乱序不多时很快
+        ListIterator<Segment> it = mRcvBuf.listIterator(mRcvBuf.size());
+        boolean repeat = false;
+        while (it.hasPrevious()) {
+            Segment seg = it.previous();
+            if (seg.sn == sn) {
+                repeat = true;
+                break;
+            }
+            if (sn - seg.sn > 0) {
+                it.next();
+                break;
+            }
+        }
+        if (!repeat) {
+            it.add(newseg);
+        }
+        moveRcvBuf();
+    }
+
+    private void moveRcvBuf() {
+        Segment seg;
+        while ((seg = mRcvBuf.peekFirst()) != null && seg.sn == mRcvNxt && mRcvQueue.size() < mRcvWnd) {
+            mRcvBuf.pollFirst();
+            mRcvQueue.addLast(seg);
+            mRcvNxt++;
+        }
+    }
+
+    private int wndUnused() {
+        return mRcvQueue.size() < mRcvWnd ? mRcvWnd - mRcvQueue.size() : 0;
+    }
+
+    /**
+     * 定时调用，到了刷新间隔时 flush。
+     *
+     * @param current 毫秒时间戳，可以回绕
+     */
+    void update(int current) {
+        mCurrent = current;
+        if (!mUpdated) {
+            mUpdated = true;
+            mTsFlush = current;
+        }
+        int slap = current - mTsFlush;
+        if (slap >= 10000 || slap < -10000) {
+            mTsFlush = current;
+            slap = 0;
+        }
+        if (slap >= 0) {
+            mTsFlush += mInterval;
+            if (current - mTsFlush >= 0) {
+                mTsFlush = current + mInterval;
+            }
+            flush();
+        }
+    }
+
+    /**
+     * 立即发出 ACK 与新数据，不等刷新间隔。
+     */
+    void flush(int current) {
+        mCurrent = current;
+        flush();
+    }
+
+    /**
+     * 主动询问对端窗口，也用作保活。
+     */
+    void probe() {
+        mProbe |= ASK_TELL;
+    }
+
+    private void encode(int cmd, int wnd, int ts, int sn, int una, Segment data) {
+        int len = data == null ? 0 : data.len;
+        if (mBuffer != null && mBuffer.writerIndex() + OVERHEAD + len > mMtu) {
+            mOutput.output(mBuffer);
+            mBuffer = null;
+        }
+        if (mBuffer == null) {
+            mBuffer = mOutput.allocate(mMtu);
+        }
+        mBuffer.writeIntLE(mConv);
+        mBuffer.writeByte(cmd);
+        mBuffer.writeByte(0);
+        mBuffer.writeShortLE(wnd);
+        mBuffer.writeIntLE(ts);
+        mBuffer.writeIntLE(sn);
+        mBuffer.writeIntLE(una);
+        mBuffer.writeIntLE(len);
+        if (len > 0) {
+            mBuffer.writeBytes(data.data, 0, len);
+        }
+    }
+
+    /**
+     * 发出 ACK、窗口探测、新数据与需要重传的数据。
+     */
+    private void flush() {
+        if (!mUpdated)
+            return;
+        int current = mCurrent;
+        int wnd = wndUnused();
+        boolean change = false;
+        boolean lost = false;
+
+        for (int i = 0; i < mAckCount; i++) {
+            encode(CMD_ACK, wnd, mAcks[i * 2 + 1], mAcks[i * 2], mRcvNxt, null);
+        }
+        mAckCount = 0;
+
+        // 对端窗口为 0 时定期询问
+        if (mRmtWnd == 0) {
+            if (mProbeWait == 0) {
+                mProbeWait = PROBE_INIT;
+                mTsProbe = current + mProbeWait;
+            } else if (current - mTsProbe >= 0) {
+                if (mProbeWait < PROBE_INIT) {
+                    mProbeWait = PROBE_INIT;
+                }
+                mProbeWait += mProbeWait / 2;
+                if (mProbeWait > PROBE_LIMIT) {
+                    mProbeWait = PROBE_LIMIT;
+                }
+                mTsProbe = current + mProbeWait;
+                mProbe |= ASK_SEND;
+            }
+        } else {
+            mTsProbe = 0;
+            mProbeWait = 0;
+        }
+        if ((mProbe & ASK_SEND) != 0) {
+            encode(CMD_WASK, wnd, 0, 0, mRcvNxt, null);
+        }
+        if ((mProbe & ASK_TELL) != 0) {
+            encode(CMD_WINS, wnd, 0, 0, mRcvNxt, null);
+        }
+        mProbe = 0;
+
+        int cwnd = Math.min(mSndWnd, mRmtWnd);
+        if (!mNocwnd) {
+            cwnd = Math.min(mCwnd, cwnd);
+        }
+        while (mSndNxt - (mSndUna + cwnd) < 0) {
+            Segment seg = mSndQueue.pollFirst();
+            if (seg == null)
+                break;
+            seg.sn = mSndNxt++;
+            seg.resendts = current;
+            seg.rto = mRxRto;
+            seg.fastack = 0;
+            seg.xmit = 0;
+            mSndBuf.addLast(seg);
+        }
+
+        int resent = mFastresend > 0 ? mFastresend : Integer.MAX_VALUE;
+        int rtomin = mNodelay == 0 ? mRxRto >> 3 : 0;
+        for (Segment seg : mSndBuf) {
+            boolean needsend = false;
+            if (seg.xmit == 0) {
+                needsend = true;
+                seg.xmit++;
+                seg.rto = mRxRto;
+                seg.resendts = current + seg.rto + rtomin;
+            } else if (current - seg.resendts >= 0) {
+                needsend = true;
+                seg.xmit++;
+                mRetransmits++;
+                if (mNodelay == 0) {
+                    seg.rto += Math.max(seg.rto, mRxRto);
+                } else {
+                    int step = mNodelay < 2 ? seg.rto : mRxRto;
+                    seg.rto += step / 2;
+                }
+                seg.resendts = current + seg.rto;
+                lost = true;
+            } else if (seg.fastack >= resent) {
+                if (seg.xmit <= FASTACK_LIMIT) {
+                    needsend = true;
+                    seg.xmit++;
+                    seg.fastack = 0;
+                    seg.resendts = current + seg.rto;
+                    mFastRetransmits++;
+                    change = true;
+                }
+            }
+            if (needsend) {
+                encode(CMD_PUSH, wnd, current, seg.sn, mRcvNxt, seg);
+                if (seg.xmit >= DEAD_LINK) {
+                    mDead = true;
+                }
+            }
+        }
+        if (mBuffer != null) {
+            mOutput.output(mBuffer);
+            mBuffer = null;
+        }
+
+        if (change) {
+            int inflight = mSndNxt - mSndUna;
+            mSsthresh = Math.max(inflight / 2, THRESH_MIN);
+            mCwnd = mSsthresh + resent;
+            mIncr = mCwnd * mMss;
+        }
+        if (lost) {
+            mSsthresh = Math.max(cwnd / 2, THRESH_MIN);
+            mCwnd = 1;
+            mIncr = mMss;
+        }
+        if (mCwnd < 1) {
+            mCwnd = 1;
+            mIncr = mMss;
+        }
+    }
+}
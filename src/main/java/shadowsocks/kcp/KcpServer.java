@@ -0,0 +1,159 @@
+package shadowsocks.kcp;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.datagram.DatagramPacket;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.datagram.DatagramSocketOptions;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.SocketAddress;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.GlobalConfig;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * 服务端的 KCP 监听，一个 UDP socket 上按 (地址, 端口, conv) 区分会话。
+ *
+ * 只有 sn 为 0 的 PUSH 报文会创建会话，其它未知报文直接丢弃（不回应，和 TCP 端口上错误的连接一样）。
+ * 会话释放后在 TIME_WAIT 内忽略同一个 key 的报文，避免迟到的重传又创建出会话。
+ * 一个（可伪造来源的）报文就能创建会话，会话总数与同一来源 IP 的会话数都有上限，超过时忽略新会话。
+ * 所有会话都在 UDP socket 的 event loop 上处理。
+ */
+public class KcpServer {
+
+    public static Logger log = LogManager.getLogger(KcpServer.class.getName());
+
+    private final static int TIME_WAIT = 60000;
+
+    private final Vertx mVertx;
+    private final Handler<NetSocket> mConnectHandler;
+    private final Map<SessionKey, KcpSocket> mSessions = new HashMap<>();
+    private final Map<SessionKey, Long> mTimeWait = new HashMap<>();// key -> 过期时间
+    private final Map<String, Integer> mPerSource = new HashMap<>();// 来源 IP -> 会话数
+    private final SessionKey mProbe = new SessionKey();// 查找用，只在 event loop 上使用
+    private Context mContext;
+    private DatagramSocket mUdp;
+    private long mSweepTimer = -1;
+
+    /**
+     * 会话的 key，查找时复用 mProbe，只有创建会话时才新建。
+     */
+    private final static class SessionKey {
+        String host;
+        int port;
+        int conv;
+
+        SessionKey set(String host, int port, int conv) {
+            this.host = host;
+            this.port = port;
+            this.conv = conv;
+            return this;
+        }
+
+        SessionKey copy() {
+            return new SessionKey().set(host, port, conv);
+        }
+
+        @Override
+        public int hashCode() {
+            return (host.hashCode() * 31 + port) * 31 + conv;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof SessionKey))
+                return false;
+            SessionKey other = (SessionKey) o;
+            return port == other.port && conv == other.conv && host.equals(other.host);
+        }
+    }
+
+    public KcpServer(Vertx vertx, Handler<NetSocket> connectHandler) {
+        mVertx = vertx;
+        mConnectHandler = connectHandler;
+    }
+
+    public void listen(int port, String host, Handler<AsyncResult<Void>> listenHandler) {
+        mContext = mVertx.getOrCreateContext();
+        mUdp = mVertx.createDatagramSocket(new DatagramSocketOptions().setIpV6(host.contains(":")));
+        mUdp.listen(port, host, res -> {
+            if (res.failed()) {
+                listenHandler.handle(Future.failedFuture(res.cause()));
+                return;
+            }
+            mUdp.handler(this::handle);
+            mSweepTimer = mVertx.setPeriodic(TIME_WAIT / 2, id -> sweep());
+            listenHandler.handle(Future.succeededFuture());
+        });
+    }
+
+    private void handle(DatagramPacket packet) {
+        ByteBuf data = packet.data().getByteBuf();
+        if (data.readableBytes() < Kcp.OVERHEAD)
+            return;
+        int conv = data.getIntLE(data.readerIndex());
+        SocketAddress sender = packet.sender();
+        String host = sender.host();
+        KcpSocket socket = mSessions.get(mProbe.set(host, sender.port(), conv));
+        if (socket == null) {
+            if (!Kcp.isFirstPacket(data) || mTimeWait.containsKey(mProbe))
+                return;
+            GlobalConfig config = GlobalConfig.get();
+            Integer count = mPerSource.get(host);
+            if (mSessions.size() >= config.getKcpMaxSessions()
+                    || (count != null && count >= config.getKcpMaxSessionsPerSource())) {
+                log.debug("Too many KCP sessions, ignore {}:{}", host, sender.port());
+                return;
+            }
+            SessionKey key = mProbe.copy();
+            socket = new KcpSocket(mVertx, mUdp, false, host, sender.port(), conv, config, s -> {
+                mSessions.remove(key);
+                mPerSource.computeIfPresent(key.host, (h, n) -> n > 1 ? n - 1 : null);
+                mTimeWait.put(key, System.currentTimeMillis() + TIME_WAIT);
+            });
+            mSessions.put(key, socket);
+            mPerSource.put(host, count == null ? 1 : count + 1);
+            mConnectHandler.handle(socket);
+        }
+        socket.input(packet.data());
+    }
+
+    private void sweep() {
+        long now = System.currentTimeMillis();
+        for (Iterator<Long> it = mTimeWait.values().iterator(); it.hasNext(); ) {
+            if (it.next() <= now) {
+                it.remove();
+            }
+        }
+    }
+
+    /**
+     * 停止监听并释放所有会话（不等待 FIN），在 UDP socket 的 event loop 上执行。
+     */
+    public void close() {
+        if (mContext == null)
+            return;
+        mContext.runOnContext(v -> {
+            if (mSweepTimer != -1) {
+                mVertx.cancelTimer(mSweepTimer);
+                mSweepTimer = -1;
+            }
+            for (KcpSocket socket : new ArrayList<>(mSessions.values())) {
+                socket.abort();
+            }
+            if (mUdp != null) {
+                mUdp.close();
+                mUdp = null;
+            }
+        });
+    }
+}
@@ -0,0 +1,473 @@
+package shadowsocks.kcp;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.EventLoop;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Future;
+import io.vertx.core.Handler;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.datagram.DatagramSocket;
+import io.vertx.core.datagram.DatagramSocketOptions;
+import io.vertx.core.impl.ContextInternal;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.SocketAddress;
+import io.vertx.core.net.impl.SocketAddressImpl;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.GlobalConfig;
+
+import javax.net.ssl.SSLPeerUnverifiedException;
+import javax.net.ssl.SSLSession;
+import javax.security.cert.X509Certificate;
+import java.io.IOException;
+import java.net.Inet6Address;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 一个 KCP 会话，对 ClientHandler/ServerHandler 表现为普通的 NetSocket。
+ *
+ * 报文头是明文，负载就是 TCP 时的 ss 数据流（已加密）。本地 close 时发送 FIN，等到 FIN 被确认、
+ * 收到对端的 FIN 或超过 LINGER 后才释放；对端不可达或 IDLE_TIMEOUT 内没有收到报文时按错误关闭。
+ *
+ * 所有方法都在创建时的 context 上调用。
+ */
+public class KcpSocket implements NetSocket {
+
+    public static Logger log = LogManager.getLogger(KcpSocket.class.getName());
+
+    private final static int KEEPALIVE = 10000;// 空闲时询问窗口，兼做保活
+    private final static int IDLE_TIMEOUT = 60000;
+    private final static int LINGER = 30000;
+
+    private final static AtomicInteger mSessions = new AtomicInteger();
+    private final static LongAdder mPacketsIn = new LongAdder();
+    private final static LongAdder mPacketsOut = new LongAdder();
+    private final static LongAdder mRetransmits = new LongAdder();
+    private final static LongAdder mFastRetransmits = new LongAdder();
+
+    private final ContextInternal mContext;
+    private final DatagramSocket mUdp;
+    private final boolean mOwnsUdp;// 客户端每个连接一个 UDP socket
+    private final String mPeerHost;
+    private final int mPeerPort;
+    private final Kcp mKcp;
+    private final Handler<KcpSocket> mReleaseHandler;
+    private final long mTimer;
+    private final int mMss;
+    private int mWriteQueueMax;// 段数
+
+    private Handler<Buffer> mHandler;
+    private Handler<Void> mEndHandler;
+    private Handler<Void> mCloseHandler;
+    private Handler<Void> mDrainHandler;
+    private Handler<Throwable> mExceptionHandler;
+
+    private boolean mPaused;
+    private boolean mFull;
+    private boolean mEnded;
+    private boolean mClosing;
+    private boolean mReleased;
+    private boolean mFlushScheduled;
+    private int mLastRecv;
+    private int mLastSend;
+    private int mCloseTime;
+
+    KcpSocket(Vertx vertx, DatagramSocket udp, boolean ownsUdp, String peerHost, int peerPort, int conv,
+              GlobalConfig config, Handler<KcpSocket> releaseHandler) {
+        mContext = (ContextInternal) vertx.getOrCreateContext();
+        mUdp = udp;
+        mOwnsUdp = ownsUdp;
+        mPeerHost = peerHost;
+        mPeerPort = peerPort;
+        mReleaseHandler = releaseHandler;
+        mKcp = new Kcp(conv, config.getKcpMtu(), config.getKcpWindow(), config.getKcpWindow(), new Kcp.Output() {
+            @Override
+            public void output(ByteBuf packet) {
+                if (mReleased)
+                    return;
+                mPacketsOut.increment();
+                mLastSend = now();
+                try {
+                    mUdp.send(Buffer.buffer(packet), mPeerPort, mPeerHost, null);
+                } catch (IllegalStateException e) {
+                    // Vert.x 正在关闭，不再发送
+                    release();
+                }
+            }
+
+            @Override
+            public ByteBuf allocate(int capacity) {
+                // Vert.x 的 Buffer 不可释放，使用 heap buffer 交给 GC
+                return Unpooled.buffer(capacity);
+            }
+        });
+        if (config.isKcpNodelay()) {
+            mKcp.nodelay(1, config.getKcpInterval(), config.getKcpResend(), true);
+        } else {
+            mKcp.nodelay(0, config.getKcpInterval(), config.getKcpResend(), false);
+        }
+        mMss = config.getKcpMtu() - Kcp.OVERHEAD;
+        mWriteQueueMax = config.getKcpWindow() * 2;
+        mLastRecv = mLastSend = now();
+        mKcp.update(mLastRecv);
+        mSessions.incrementAndGet();
+        mTimer = vertx.setPeriodic(config.getKcpInterval(), id -> tick());
+    }
+
+    /**
+     * 客户端：解析服务器地址，绑定一个本地 UDP 端口。
+     */
+    public static void connect(Vertx vertx, String host, int port, GlobalConfig config,
+                               Handler<AsyncResult<NetSocket>> handler) {
+        ((VertxInternal) vertx).resolveAddress(host, res -> {
+            if (res.failed()) {
+                handler.handle(Future.failedFuture(res.cause()));
+                return;
+            }
+            boolean ipv6 = res.result() instanceof Inet6Address;
+            String ip = res.result().getHostAddress();
+            DatagramSocket udp = vertx.createDatagramSocket(new DatagramSocketOptions().setIpV6(ipv6));
+            udp.listen(0, ipv6 ? "::" : "0.0.0.0", ar -> {
+                if (ar.failed()) {
+                    udp.close();
+                    handler.handle(Future.failedFuture(ar.cause()));
+                    return;
+                }
+                // conv 为 0 的报文不会被当作会话
+                int conv = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+                KcpSocket socket = new KcpSocket(vertx, udp, true, ip, port, conv, config, null);
+                udp.handler(packet -> {
+                    SocketAddress sender = packet.sender();
+                    if (sender.port() == port && ip.equals(sender.host())) {
+                        socket.input(packet.data());
+                    }
+                });
+                handler.handle(Future.succeededFuture(socket));
+            });
+        });
+    }
+
+    private static int now() {
+        return (int) (System.nanoTime() / 1000000);
+    }
+
+    public ContextInternal getContext() {
+        return mContext;
+    }
+
+    public EventLoop eventLoop() {
+        return mContext.nettyEventLoop();
+    }
+
+    /**
+     * @return 等待发送与等待确认的字节数（按整段估算）
+     */
+    public long pendingBytes() {
+        return (long) mKcp.waitSnd() * mMss;
+    }
+
+    /**
+     * 收到一个 UDP 报文。
+     */
+    void input(Buffer data) {
+        if (mReleased)
+            return;
+        mPacketsIn.increment();
+        int now = now();
+        if (!mKcp.input(data.getByteBuf(), now))
+            return;
+        mLastRecv = now;
+        deliver();
+        scheduleFlush();
+        if (mFull && mDrainHandler != null && mKcp.waitSnd() <= mWriteQueueMax / 2) {
+            mFull = false;
+            mDrainHandler.handle(null);
+        }
+    }
+
+    /**
+     * 把按序到达的数据交给 handler，收到 FIN 后调用 endHandler。关闭中的数据直接丢弃。
+     */
+    private void deliver() {
+        while (!mReleased && (!mPaused || mClosing) && mKcp.hasData()) {
+            ByteBuf out = Unpooled.buffer(mKcp.available());
+            mKcp.recv(out);
+            if (out.isReadable() && !mClosing && mHandler != null) {
+                mHandler.handle(Buffer.buffer(out));
+            }
+        }
+        if (mKcp.isFinReceived() && !mEnded && !mReleased) {
+            mEnded = true;
+            if (!mClosing && mEndHandler != null) {
+                mEndHandler.handle(null);
+            }
+        }
+    }
+
+    private void scheduleFlush() {
+        if (mFlushScheduled)
+            return;
+        mFlushScheduled = true;
+        mContext.nettyEventLoop().execute(() -> {
+            mFlushScheduled = false;
+            if (!mReleased) {
+                flush();
+            }
+        });
+    }
+
+    private void flush() {
+        mKcp.flush(now());
+        collect();
+    }
+
+    private void collect() {
+        if (mKcp.mRetransmits > 0 || mKcp.mFastRetransmits > 0) {
+            mRetransmits.add(mKcp.mRetransmits);
+            mFastRetransmits.add(mKcp.mFastRetransmits);
+            mKcp.mRetransmits = 0;
+            mKcp.mFastRetransmits = 0;
+        }
+    }
+
+    private void tick() {
+        if (mReleased)
+            return;
+        int now = now();
+        if (mKcp.isDead()) {
+            fail("KCP peer " + mPeerHost + ":" + mPeerPort + " is unreachable");
+            return;
+        }
+        if (now - mLastRecv >= IDLE_TIMEOUT) {
+            fail("KCP session to " + mPeerHost + ":" + mPeerPort + " timeout");
+            return;
+        }
+        if (mClosing && ((mKcp.isFinAcked() && mEnded) || now - mCloseTime >= LINGER)) {
+            release();
+            return;
+        }
+        if (now - mLastSend >= KEEPALIVE) {
+            mKcp.probe();
+        }
+        mKcp.update(now);
+        collect();
+    }
+
+    private void fail(String message) {
+        if (!mClosing && mExceptionHandler != null) {
+            mExceptionHandler.handle(new IOException(message));
+        }
+        release();
+    }
+
+    private void release() {
+        if (mReleased)
+            return;
+        mReleased = true;
+        mContext.owner().cancelTimer(mTimer);
+        mSessions.decrementAndGet();
+        if (mOwnsUdp) {
+            mUdp.close();
+        }
+        if (mReleaseHandler != null) {
+            mReleaseHandler.handle(this);
+        }
+        if (mCloseHandler != null) {
+            mCloseHandler.handle(null);
+        }
+    }
+
+    /**
+     * 立即释放，不发送 FIN。用于服务端关闭，以及（可能伪造来源的）对端不会确认 FIN 的情况。
+     */
+    public void abort() {
+        release();
+    }
+
+    /**
+     * 写出并转移 buf 的所有权。
+     */
+    public void write(ByteBuf buf) {
+        try {
+            if (!mClosing) {
+                mKcp.send(buf);
+            }
+        } finally {
+            buf.release();
+        }
+        scheduleFlush();
+    }
+
+    @Override
+    public NetSocket write(Buffer data) {
+        if (!mClosing) {
+            mKcp.send(data.getByteBuf());
+            scheduleFlush();
+        }
+        return this;
+    }
+
+    @Override
+    public NetSocket write(String str) {
+        return write(Buffer.buffer(str));
+    }
+
+    @Override
+    public NetSocket write(String str, String enc) {
+        return write(Buffer.buffer(str, enc));
+    }
+
+    @Override
+    public boolean writeQueueFull() {
+        if (mKcp.waitSnd() >= mWriteQueueMax) {
+            mFull = true;
+        }
+        return mFull;
+    }
+
+    @Override
+    public NetSocket setWriteQueueMaxSize(int maxSize) {
+        mWriteQueueMax = Math.max(maxSize / mMss, mKcp.sndWnd());
+        return this;
+    }
+
+    @Override
+    public NetSocket drainHandler(Handler<Void> handler) {
+        mDrainHandler = handler;
+        return this;
+    }
+
+    @Override
+    public NetSocket handler(Handler<Buffer> handler) {
+        mHandler = handler;
+        return this;
+    }
+
+    @Override
+    public NetSocket pause() {
+        mPaused = true;
+        return this;
+    }
+
+    @Override
+    public NetSocket resume() {
+        if (mPaused) {
+            mPaused = false;
+            deliver();
+            scheduleFlush();
+        }
+        return this;
+    }
+
+    @Override
+    public NetSocket endHandler(Handler<Void> handler) {
+        mEndHandler = handler;
+        return this;
+    }
+
+    @Override
+    public NetSocket closeHandler(Handler<Void> handler) {
+        mCloseHandler = handler;
+        return this;
+    }
+
+    @Override
+    public NetSocket exceptionHandler(Handler<Throwable> handler) {
+        mExceptionHandler = handler;
+        return this;
+    }
+
+    @Override
+    public void end() {
+        close();
+    }
+
+    /**
+     * 发送 FIN，已写入的数据仍会送达。
+     */
+    @Override
+    public void close() {
+        if (mClosing || mReleased)
+            return;
+        mClosing = true;
+        mCloseTime = now();
+        mKcp.sendFin();
+        // 丢弃还没交给 handler 的数据，继续确认对端的数据直到 FIN
+        deliver();
+        scheduleFlush();
+    }
+
+    @Override
+    public SocketAddress remoteAddress() {
+        return new SocketAddressImpl(mPeerPort, mPeerHost);
+    }
+
+    @Override
+    public SocketAddress localAddress() {
+        return mUdp.localAddress();
+    }
+
+    @Override
+    public String writeHandlerID() {
+        return null;
+    }
+
+    @Override
+    public NetSocket sendFile(String filename, long offset, long length) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NetSocket sendFile(String filename, long offset, long length, Handler<AsyncResult<Void>> resultHandler) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NetSocket upgradeToSsl(Handler<Void> handler) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public NetSocket upgradeToSsl(String serverName, Handler<Void> handler) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public boolean isSsl() {
+        return false;
+    }
+
+    @Override
+    public SSLSession sslSession() {
+        return null;
+    }
+
+    @Override
+    @SuppressWarnings({"deprecation", "removal"})
+    public X509Certificate[] peerCertificateChain() throws SSLPeerUnverifiedException {
+        return null;
+    }
+
+    @Override
+    public String indicatedServerName() {
+        return null;
+    }
+
+    public static void export(StringBuilder sb) {
+        sb.append("# TYPE ss_kcp_sessions gauge\n");
+        sb.append("ss_kcp_sessions ").append(mSessions.get()).append('\n');
+        sb.append("# TYPE ss_kcp_packets_in_total counter\n");
+        sb.append("ss_kcp_packets_in_total ").append(mPacketsIn.sum()).append('\n');
+        sb.append("# TYPE ss_kcp_packets_out_total counter\n");
+        sb.append("ss_kcp_packets_out_total ").append(mPacketsOut.sum()).append('\n');
+        sb.append("# TYPE ss_kcp_retransmits_total counter\n");
+        sb.append("ss_kcp_retransmits_total ").append(mRetransmits.sum()).append('\n');
+        sb.append("# TYPE ss_kcp_fast_retransmits_total counter\n");
+        sb.append("ss_kcp_fast_retransmits_total ").append(mFastRetransmits.sum()).append('\n');
+    }
+}
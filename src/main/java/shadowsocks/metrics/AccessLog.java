@@ -0,0 +1,59 @@
+package shadowsocks.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.apache.logging.log4j.util.Unbox.box;
+
+/**
+ * 访问日志，每个结束的连接一条记录。
+ *
+ * 日志通过 "shadowsocks.access" 这个 logger 输出，在 log4j2.xml 中配置为异步、无 GC 的 AsyncLogger，
+ * 不会阻塞 event loop。成功的连接按 access_log_sample 采样，失败的连接总是记录。
+ */
+public class AccessLog {
+
+    private static Logger log = LogManager.getLogger("shadowsocks.access");
+
+    public final static String OK = "ok";
+    public final static String INCOMPLETE = "incomplete";// 未完成握手就断开
+    public final static String PROTOCOL_ERROR = "protocol_error";
+    public final static String DNS_FAILED = "dns_failed";
+    public final static String CONNECT_FAILED = "connect_failed";
+    public final static String CRYPTO_ERROR = "crypto_error";
+    public final static String IO_ERROR = "io_error";
+    public final static String REPLAY = "replay";// IV 重放
+    public final static String REJECTED = "rejected";// 被分流规则拒绝
+    public final static String KILLED = "killed";// 通过管理接口断开
+    public final static String SHED = "shed";// 内存严重不足时被断开
+
+    /**
+     * 连接建立时决定是否采样。
+     *
+     * @param rate 采样率，0 - 1
+     */
+    public static boolean sample(double rate) {
+        if (rate >= 1)
+            return true;
+        if (rate <= 0)
+            return false;
+        return ThreadLocalRandom.current().nextDouble() < rate;
+    }
+
+    public static boolean isEnabled() {
+        return log.isInfoEnabled();
+    }
+
+    /**
+     * @param target 目标地址（host:port），握手未完成时为 null
+     * @param up 发往目标的明文字节数
+     * @param down 从目标收到的明文字节数
+     * @param duration 连接持续时间，单位毫秒
+     */
+    public static void log(Object target, long up, long down, long duration, String result) {
+        log.info("target={} up={} down={} duration={} result={}",
+                target, box(up), box(down), box(duration), result);
+    }
+}
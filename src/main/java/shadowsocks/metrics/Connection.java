@@ -0,0 +1,52 @@
+package shadowsocks.metrics;
+
+/**
+ * 登记在 {@link ConnectionRegistry} 中的一个连接，由管理接口在其他线程读取。
+ *
+ * 除 kill 外都只是读取连接自身的字段，不加锁，读到的字节数等可能稍有滞后。
+ */
+public interface Connection {
+
+    String STAGE_HANDSHAKE = "handshake";
+    String STAGE_CONNECTING = "connecting";
+    String STAGE_DATA = "data";
+    String STAGE_DRAIN = "drain";
+
+    /**
+     * @return 发起连接的一方，客户端为应用程序，服务端为客户端
+     */
+    String peer();
+
+    /**
+     * @return 目标地址，握手完成前为 null
+     */
+    Object target();
+
+    String stage();
+
+    long bytesUp();
+
+    long bytesDown();
+
+    /**
+     * @return 开始时间，System.currentTimeMillis()
+     */
+    long startTime();
+
+    /**
+     * @return 是否因为对方写队列满暂停了读取
+     */
+    boolean paused();
+
+    /**
+     * @return 连接持有的缓冲区字节数的估计值，见 {@link MemoryBudget}
+     */
+    long bufferedBytes();
+
+    /**
+     * 断开连接，可以在任意线程调用。
+     *
+     * @param result 访问日志中记录的结果，如 {@link AccessLog#KILLED}
+     */
+    void kill(String result);
+}
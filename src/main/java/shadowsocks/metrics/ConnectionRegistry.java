@@ -0,0 +1,145 @@
+package shadowsocks.metrics;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Predicate;
+import java.util.function.ToLongFunction;
+
+/**
+ * 当前所有连接，供管理接口查看与断开。
+ *
+ * 按登记的线程分片，分片数不少于 event loop 个数，连接在所属的 event loop 上登记与注销
+ * （thread 引擎在连接自己的转发线程上登记），不同 event loop 之间基本不竞争。id 的低位是分片号，注销与 kill 直接找到分片。
+ * 查询时遍历全部分片，只在管理接口调用，不影响转发。
+ */
+public class ConnectionRegistry {
+
+    private final static int SHARDS = shards();
+    private final static int MASK = SHARDS - 1;
+
+    private static final Shard[] mShards = new Shard[SHARDS];
+
+    static {
+        for (int i = 0; i < SHARDS; i++) {
+            mShards[i] = new Shard();
+        }
+    }
+
+    private static class Shard {
+        final AtomicLong mSequence = new AtomicLong();
+        final Map<Long, Connection> mConnections = new ConcurrentHashMap<>();
+    }
+
+    /**
+     * 快照中的一个连接。
+     */
+    public static class Entry {
+        public final long id;
+        public final Connection connection;
+        public final long bytes;// 两个方向的和，排序用
+
+        Entry(long id, Connection connection) {
+            this.id = id;
+            this.connection = connection;
+            this.bytes = connection.bytesUp() + connection.bytesDown();
+        }
+    }
+
+    private static int shards() {
+        // 不小于 event loop 个数（vertx 默认 2 * CPU 核数）的 2 的幂
+        int n = Integer.highestOneBit(Math.max(1, 2 * Runtime.getRuntime().availableProcessors() - 1)) << 1;
+        return Math.min(n, 256);
+    }
+
+    /**
+     * @return 连接的 id，注销时使用
+     */
+    public static long register(Connection connection) {
+        int index = (int) (Thread.currentThread().getId() & MASK);
+        Shard shard = mShards[index];
+        long id = shard.mSequence.incrementAndGet() * SHARDS + index;
+        shard.mConnections.put(id, connection);
+        return id;
+    }
+
+    public static void unregister(long id) {
+        mShards[(int) (id & MASK)].mConnections.remove(id);
+    }
+
+    public static Connection get(long id) {
+        if (id <= 0)
+            return null;
+        return mShards[(int) (id & MASK)].mConnections.get(id);
+    }
+
+    /**
+     * @return 找到并断开时返回 true
+     */
+    public static boolean kill(long id) {
+        Connection connection = get(id);
+        if (connection == null)
+            return false;
+        connection.kill(AccessLog.KILLED);
+        return true;
+    }
+
+    public static int size() {
+        int size = 0;
+        for (Shard shard : mShards) {
+            size += shard.mConnections.size();
+        }
+        return size;
+    }
+
+    /**
+     * @param filter 为 null 时不过滤
+     * @param byBytes true 按两个方向的字节数从大到小，false 按存在时间从长到短
+     * @param limit 最多返回的个数，只保留前 limit 个，不对全部连接排序
+     */
+    public static List<Entry> query(Predicate<Connection> filter, boolean byBytes, int limit) {
+        if (limit <= 0)
+            return new ArrayList<>();
+        Comparator<Entry> order = byBytes
+                ? Comparator.comparingLong((Entry e) -> e.bytes)
+                : Comparator.comparingLong((Entry e) -> -e.connection.startTime());
+        // 小顶堆，堆顶是当前保留的最小的一个
+        PriorityQueue<Entry> top = new PriorityQueue<>(Math.min(limit, 1024) + 1, order);
+        for (Shard shard : mShards) {
+            for (Map.Entry<Long, Connection> item : shard.mConnections.entrySet()) {
+                Connection connection = item.getValue();
+                if (filter != null && !filter.test(connection))
+                    continue;
+                top.add(new Entry(item.getKey(), connection));
+                if (top.size() > limit) {
+                    top.poll();
+                }
+            }
+        }
+        List<Entry> result = new ArrayList<>(top);
+        result.sort(order.reversed());
+        return result;
+    }
+
+    /**
+     * 遍历全部分片求和，不加锁。
+     */
+    public static long sum(ToLongFunction<Connection> value) {
+        long sum = 0;
+        for (Shard shard : mShards) {
+            for (Connection connection : shard.mConnections.values()) {
+                sum += value.applyAsLong(connection);
+            }
+        }
+        return sum;
+    }
+
+    public static void export(StringBuilder sb) {
+        sb.append("# TYPE ss_connections gauge\n");
+        sb.append("ss_connections ").append(size()).append('\n');
+    }
+}
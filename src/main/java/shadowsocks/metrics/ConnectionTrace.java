@@ -0,0 +1,85 @@
+package shadowsocks.metrics;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.GlobalConfig;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.apache.logging.log4j.util.Unbox.box;
+
+/**
+ * 单个连接的建立耗时打点，结果记录到 {@link LatencyMetrics}。
+ *
+ * 只在 trace 开启时创建，关闭时 handler 持有 null，打点只剩一次判空。
+ * 建立时间超过 trace_slow_threshold 的连接会输出一条包含目标地址的日志。
+ */
+public class ConnectionTrace {
+
+    public static Logger log = LogManager.getLogger(ConnectionTrace.class.getName());
+
+    private final long mSlowThreshold;
+    private final long mAccept;
+    private long mHeader;
+    private long mDnsStart;
+    private long mDns;
+    private long mConnectStart;
+    private long mConnected;
+    private long mFirstByte;
+
+    private ConnectionTrace(long slowThreshold) {
+        mSlowThreshold = slowThreshold;
+        mAccept = System.nanoTime();
+    }
+
+    /**
+     * @return trace 关闭时返回 null
+     */
+    public static ConnectionTrace start(GlobalConfig config) {
+        if (!config.isTrace())
+            return null;
+        return new ConnectionTrace(TimeUnit.MILLISECONDS.toNanos(config.getTraceSlowThreshold()));
+    }
+
+    public void header() {
+        mHeader = System.nanoTime();
+        LatencyMetrics.record(LatencyMetrics.Phase.HEADER, mHeader - mAccept);
+    }
+
+    public void dnsStart() {
+        mDnsStart = System.nanoTime();
+    }
+
+    public void dnsDone() {
+        mDns = System.nanoTime();
+        LatencyMetrics.record(LatencyMetrics.Phase.DNS, mDns - mDnsStart);
+    }
+
+    public void connectStart() {
+        mConnectStart = System.nanoTime();
+    }
+
+    public void connected() {
+        mConnected = System.nanoTime();
+        LatencyMetrics.record(LatencyMetrics.Phase.CONNECT, mConnected - mConnectStart);
+    }
+
+    public void firstByte(Object target) {
+        if (mFirstByte != 0)
+            return;
+        mFirstByte = System.nanoTime();
+        LatencyMetrics.record(LatencyMetrics.Phase.FIRST_BYTE, mFirstByte - mConnected);
+        long setup = mFirstByte - mAccept;
+        LatencyMetrics.record(LatencyMetrics.Phase.SETUP, setup);
+        if (setup > mSlowThreshold) {
+            log.warn("Slow connection target={} setup={}ms header={}ms dns={}ms connect={}ms first_byte={}ms",
+                    target, box(millis(setup)), box(millis(mHeader - mAccept)),
+                    box(mDns == 0 ? 0 : millis(mDns - mDnsStart)),
+                    box(millis(mConnected - mConnectStart)), box(millis(mFirstByte - mConnected)));
+        }
+    }
+
+    private static long millis(long nanos) {
+        return TimeUnit.NANOSECONDS.toMillis(nanos);
+    }
+}
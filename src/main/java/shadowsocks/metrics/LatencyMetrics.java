@@ -0,0 +1,85 @@
+package shadowsocks.metrics;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 连接建立各阶段的耗时分布。
+ *
+ * 写入端（event loop）使用 HdrHistogram 的 Recorder，无锁；读取端（/metrics）把区间数据累加到总的直方图中。
+ * 数值单位为微秒。
+ */
+public class LatencyMetrics {
+
+    public enum Phase {
+        HEADER("header"),// accept -> 解析出目标地址
+        DNS("dns"),// 域名解析
+        CONNECT("connect"),// 发起连接 -> 连接成功
+        FIRST_BYTE("first_byte"),// 连接成功 -> 收到对端第一个字节
+        SETUP("setup");// accept -> 收到对端第一个字节
+
+        private final String mName;
+
+        Phase(String name) {
+            mName = name;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    private static final Phase[] PHASES = Phase.values();
+    private static final Recorder[] mRecorders = new Recorder[PHASES.length];
+    private static final Histogram[] mTotals = new Histogram[PHASES.length];
+    private static final double[] QUANTILES = {0.5, 0.99, 0.999};
+
+    static {
+        for (int i = 0; i < PHASES.length; i++) {
+            mRecorders[i] = new Recorder(2);
+            mTotals[i] = new Histogram(2);
+        }
+    }
+
+    public static void record(Phase phase, long nanos) {
+        if (nanos < 0)
+            return;
+        mRecorders[phase.ordinal()].recordValue(TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    /**
+     * 合并各 Recorder 的区间数据，返回累计的直方图。
+     */
+    public static synchronized Histogram snapshot(Phase phase) {
+        Histogram total = mTotals[phase.ordinal()];
+        total.add(mRecorders[phase.ordinal()].getIntervalHistogram());
+        return total.copy();
+    }
+
+    /**
+     * Prometheus 文本格式，单位毫秒。
+     */
+    public static void export(StringBuilder sb) {
+        Histogram[] histograms = new Histogram[PHASES.length];
+        sb.append("# TYPE ss_phase_latency_ms summary\n");
+        for (Phase phase : PHASES) {
+            Histogram h = snapshot(phase);
+            histograms[phase.ordinal()] = h;
+            for (double q : QUANTILES) {
+                sb.append("ss_phase_latency_ms{phase=\"").append(phase.getName())
+                        .append("\",quantile=\"").append(q).append("\"} ")
+                        .append(h.getValueAtPercentile(q * 100) / 1000.0).append('\n');
+            }
+            sb.append("ss_phase_latency_ms_count{phase=\"").append(phase.getName()).append("\"} ")
+                    .append(h.getTotalCount()).append('\n');
+        }
+        // 最大值不属于 summary，单独一个指标族
+        sb.append("# TYPE ss_phase_latency_ms_max gauge\n");
+        for (Phase phase : PHASES) {
+            sb.append("ss_phase_latency_ms_max{phase=\"").append(phase.getName()).append("\"} ")
+                    .append(histograms[phase.ordinal()].getMaxValue() / 1000.0).append('\n');
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package shadowsocks.metrics;
+
+import io.vertx.core.Vertx;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.GlobalConfig;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 连接持有的缓冲区内存：握手/连接阶段攒下的数据、两端的写队列与还没加/解密的数据。
+ *
+ * 单个连接超过 connection_buffer_limit 时暂停读取，由连接自己在写出前检查；全局用量每 CHECK_INTERVAL 毫秒
+ * 遍历 {@link ConnectionRegistry} 汇总一次（各连接的估计值，不加锁）。超过 memory_budget（压力）时，
+ * 还持有缓冲区的连接都暂停读取，直到写完；超过两倍 memory_budget（严重）时按存在时间从长到短断开持有缓冲区的连接，
+ * 直到回落到预算以内。断开是异步的，已经决定断开、还没注销的连接持有的字节不再计入需要释放的部分，
+ * 避免连续几次检查重复断开。
+ */
+public class MemoryBudget {
+
+    public static Logger log = LogManager.getLogger(MemoryBudget.class.getName());
+
+    public final static int NORMAL = 0;
+    public final static int PRESSURE = 1;
+    public final static int CRITICAL = 2;
+
+    private final static int CHECK_INTERVAL = 100;
+    private final static int SHED_BATCH = 64;// 一次检查最多断开的连接数
+
+    private static final LongAdder mPauses = new LongAdder();
+    private static final LongAdder mShed = new LongAdder();
+    private static volatile int mLevel = NORMAL;
+    private static volatile long mLastHeld;
+    private static volatile long mLastBudget;
+    // 已经断开、还没注销的连接，只在汇总的线程上修改
+    private static final Map<Long, Connection> mShedding = new ConcurrentHashMap<>();
+    private static Vertx mOwner;// 进程内同时运行客户端与服务端时只汇总一次
+    private static long mTimer = -1;
+
+    /**
+     * 开始定期汇总，已经有其他 Vertx 实例在汇总时忽略。
+     */
+    public static synchronized void start(Vertx vertx) {
+        if (mOwner != null)
+            return;
+        mOwner = vertx;
+        mTimer = vertx.setPeriodic(CHECK_INTERVAL, id -> check(GlobalConfig.get()));
+    }
+
+    public static synchronized void stop(Vertx vertx) {
+        if (mOwner != vertx)
+            return;
+        vertx.cancelTimer(mTimer);
+        mOwner = null;
+        mTimer = -1;
+        mLevel = NORMAL;
+        mShedding.clear();
+    }
+
+    public static int level() {
+        return mLevel;
+    }
+
+    /**
+     * @return memory_budget，为 0 时取最大堆的四分之一（Netty 的 direct 内存上限默认与最大堆相同）
+     */
+    public static long budget(GlobalConfig config) {
+        return config.getMemoryBudget() > 0 ? config.getMemoryBudget() : Runtime.getRuntime().maxMemory() / 4;
+    }
+
+    /**
+     * @param held 连接当前持有的字节数
+     * @param limit connection_buffer_limit
+     * @return 超过单个连接的预算，或者全局有压力且连接还持有数据时返回 true，调用方应暂停读取
+     */
+    public static boolean exceeded(long held, int limit) {
+        return (limit > 0 && held > limit) || (held > 0 && mLevel != NORMAL);
+    }
+
+    /**
+     * 记录一次因为预算暂停读取。
+     */
+    public static void paused() {
+        mPauses.increment();
+    }
+
+    private static void check(GlobalConfig config) {
+        long budget = budget(config);
+        long held = ConnectionRegistry.sum(Connection::bufferedBytes);
+        mLastHeld = held;
+        mLastBudget = budget;
+        int level = held >= budget * 2 ? CRITICAL : held >= budget ? PRESSURE : NORMAL;
+        if (level != mLevel) {
+            if (level == NORMAL) {
+                log.info("Memory pressure relieved, buffered " + held + " bytes.");
+            } else {
+                log.warn("Memory " + (level == CRITICAL ? "critical" : "pressure") + ", buffered " + held + " bytes, budget " + budget + ".");
+            }
+            mLevel = level;
+        }
+        long freeing = freeing();
+        if (level == CRITICAL && held - freeing > budget) {
+            shed(held - freeing - budget);
+        }
+    }
+
+    /**
+     * 去掉已经注销的连接。
+     *
+     * @return 已经断开、还没注销的连接持有的字节数
+     */
+    private static long freeing() {
+        long freeing = 0;
+        for (Iterator<Map.Entry<Long, Connection>> it = mShedding.entrySet().iterator(); it.hasNext(); ) {
+            Map.Entry<Long, Connection> entry = it.next();
+            if (ConnectionRegistry.get(entry.getKey()) != entry.getValue()) {
+                it.remove();
+            } else {
+                freeing += entry.getValue().bufferedBytes();
+            }
+        }
+        return freeing;
+    }
+
+    /**
+     * 断开存在时间最长、持有缓冲区的连接，直到估计释放 excess 字节。连接在自己的线程上结束，注销之前记在 mShedding 中。
+     */
+    private static void shed(long excess) {
+        List<ConnectionRegistry.Entry> entries = ConnectionRegistry.query(
+                c -> c.bufferedBytes() > 0 && !mShedding.containsValue(c), false, SHED_BATCH);
+        long freed = 0;
+        for (ConnectionRegistry.Entry entry : entries) {
+            if (freed >= excess)
+                break;
+            Connection connection = entry.connection;
+            freed += connection.bufferedBytes();
+            log.warn("Shed connection " + entry.id + " " + connection.peer() + " -> " + connection.target()
+                    + ", buffered " + connection.bufferedBytes() + " bytes.");
+            mShedding.put(entry.id, connection);
+            connection.kill(AccessLog.SHED);
+            mShed.increment();
+        }
+    }
+
+    public static void export(StringBuilder sb) {
+        sb.append("# TYPE ss_memory_buffered_bytes gauge\n");
+        sb.append("ss_memory_buffered_bytes ").append(mLastHeld).append('\n');
+        sb.append("# TYPE ss_memory_budget_bytes gauge\n");
+        sb.append("ss_memory_budget_bytes ").append(mLastBudget).append('\n');
+        sb.append("# TYPE ss_memory_pressure gauge\n");
+        sb.append("ss_memory_pressure ").append(mLevel).append('\n');
+        sb.append("# TYPE ss_memory_budget_pauses_total counter\n");
+        sb.append("ss_memory_budget_pauses_total ").append(mPauses.sum()).append('\n');
+        sb.append("# TYPE ss_memory_shed_connections_total counter\n");
+        sb.append("ss_memory_shed_connections_total ").append(mShed.sum()).append('\n');
+    }
+}
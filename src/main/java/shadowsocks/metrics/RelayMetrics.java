@@ -0,0 +1,39 @@
+package shadowsocks.metrics;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 加密转发方向的写出统计：收到的数据块数与实际写出（flush）的次数，二者之比即合并效果。
+ */
+public class RelayMetrics {
+
+    private static final LongAdder mReads = new LongAdder();
+    private static final LongAdder mWrites = new LongAdder();
+    private static final LongAdder mWriteBytes = new LongAdder();
+
+    public static void read() {
+        mReads.increment();
+    }
+
+    public static void write(int bytes) {
+        mWrites.increment();
+        mWriteBytes.add(bytes);
+    }
+
+    public static long reads() {
+        return mReads.sum();
+    }
+
+    public static long writes() {
+        return mWrites.sum();
+    }
+
+    public static void export(StringBuilder sb) {
+        sb.append("# TYPE ss_relay_reads_total counter\n");
+        sb.append("ss_relay_reads_total ").append(mReads.sum()).append('\n');
+        sb.append("# TYPE ss_relay_writes_total counter\n");
+        sb.append("ss_relay_writes_total ").append(mWrites.sum()).append('\n');
+        sb.append("# TYPE ss_relay_write_bytes_total counter\n");
+        sb.append("ss_relay_write_bytes_total ").append(mWriteBytes.sum()).append('\n');
+    }
+}
@@ -0,0 +1,224 @@
+package shadowsocks.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.util.NetUtil;
+import org.apache.logging.log4j.util.StringBuilderFormattable;
+
+import java.net.IDN;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 目标地址：类型 + 原始字节 + 端口，socks5 与 shadowsocks 头部使用同一种编码。
+ * 域名统一为 ASCII 形式，国际化域名转换为 punycode（IDN），日志、分流匹配与 DNS 解析看到的都是同一个字符串。
+ *
+ * 解析时只复制原始字节，字符串形式在第一次用到时才生成（连接）；
+ * 日志通过 {@link StringBuilderFormattable} 直接写入 log4j2 的 StringBuilder，不生成字符串。
+ * 对象可复用，由 {@link AddressParser} 填充。
+ */
+public class Address implements StringBuilderFormattable {
+
+    public final static int TYPE_IPV4 = 1;
+    public final static int TYPE_HOST = 3;
+    public final static int TYPE_IPV6 = 4;
+
+    // shadowsocks 地址头类型字节的高位标志，0x10 为旧版 OTA 所用，不复用
+    public final static int FLAG_COMPRESS = 0x20;
+
+    public final static int MAX_LENGTH = 255;
+
+    private int mType;
+    private final byte[] mBytes = new byte[MAX_LENGTH];
+    private int mLength;
+    private int mPort;
+    private String mHost;
+
+    /**
+     * 由 IP 的文本形式或域名构造，IPv4-mapped 的 IPv6 地址按 IPv4 处理，非 ASCII 的域名转换为 punycode。
+     *
+     * @return 域名不合法或超过 {@link #MAX_LENGTH} 时返回 null
+     */
+    public static Address create(String host, int port) {
+        Address address = new Address();
+        byte[] ip = NetUtil.createByteArrayFromIpAddressString(host);
+        if (ip != null && isIpv4Mapped(ip)) {
+            ip = new byte[]{ip[12], ip[13], ip[14], ip[15]};
+        }
+        if (ip != null) {
+            System.arraycopy(ip, 0, address.mBytes, 0, ip.length);
+            address.set(ip.length == 4 ? TYPE_IPV4 : TYPE_IPV6, ip.length);
+        } else {
+            String ascii = toAscii(host);
+            if (ascii == null)
+                return null;
+            byte[] bytes = ascii.getBytes(StandardCharsets.US_ASCII);
+            if (bytes.length > MAX_LENGTH)
+                return null;
+            System.arraycopy(bytes, 0, address.mBytes, 0, bytes.length);
+            address.set(TYPE_HOST, bytes.length);
+        }
+        address.setPort(port);
+        return address;
+    }
+
+    /**
+     * @return 域名的 ASCII 形式，不合法时返回 null
+     */
+    private static String toAscii(String host) {
+        for (int i = 0; i < host.length(); i++) {
+            if (host.charAt(i) >= 0x80) {
+                try {
+                    return IDN.toASCII(host, IDN.ALLOW_UNASSIGNED);
+                } catch (IllegalArgumentException e) {
+                    return null;
+                }
+            }
+        }
+        return host;
+    }
+
+    private static boolean isIpv4Mapped(byte[] ip) {
+        if (ip.length != 16)
+            return false;
+        for (int i = 0; i < 10; i++) {
+            if (ip[i] != 0)
+                return false;
+        }
+        return ip[10] == (byte) 0xff && ip[11] == (byte) 0xff;
+    }
+
+    void set(int type, int length) {
+        mType = type;
+        mLength = length;
+        mHost = null;
+    }
+
+    byte[] bytes() {
+        return mBytes;
+    }
+
+    /**
+     * 原始地址：IPv4 4 字节，IPv6 16 字节，或域名。只读，有效长度见 {@link #getLength()}。
+     */
+    public byte[] getRawBytes() {
+        return mBytes;
+    }
+
+    public int getLength() {
+        return mLength;
+    }
+
+    void setPort(int port) {
+        mPort = port;
+    }
+
+    public int getType() {
+        return mType;
+    }
+
+    public boolean isHost() {
+        return mType == TYPE_HOST;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    /**
+     * 域名，或 IP 的文本形式（IPv6 不压缩零，与 InetAddress.getHostAddress 一致）。
+     */
+    public String getHost() {
+        if (mHost == null) {
+            mHost = format();
+        }
+        return mHost;
+    }
+
+    private String format() {
+        if (mType == TYPE_HOST) {
+            for (int i = 0; i < mLength; i++) {
+                if (mBytes[i] < 0) {
+                    // 客户端直接发来的 UTF-8 域名
+                    String host = new String(mBytes, 0, mLength, StandardCharsets.UTF_8);
+                    String ascii = toAscii(host);
+                    return ascii != null ? ascii : host;
+                }
+            }
+            return new String(mBytes, 0, mLength, StandardCharsets.US_ASCII);
+        }
+        StringBuilder sb = new StringBuilder(mType == TYPE_IPV4 ? 15 : 39);
+        appendIp(sb);
+        return sb.toString();
+    }
+
+    private void appendIp(StringBuilder sb) {
+        if (mType == TYPE_IPV4) {
+            for (int i = 0; i < 4; i++) {
+                if (i > 0)
+                    sb.append('.');
+                sb.append(mBytes[i] & 0xff);
+            }
+        } else {
+            for (int i = 0; i < 16; i += 2) {
+                if (i > 0)
+                    sb.append(':');
+                appendHex(sb, (mBytes[i] & 0xff) << 8 | (mBytes[i + 1] & 0xff));
+            }
+        }
+    }
+
+    private static void appendHex(StringBuilder sb, int n) {
+        boolean leading = true;
+        for (int shift = 12; shift >= 0; shift -= 4) {
+            int digit = (n >>> shift) & 0xf;
+            if (leading && digit == 0 && shift > 0)
+                continue;
+            leading = false;
+            sb.append(Character.forDigit(digit, 16));
+        }
+    }
+
+    /**
+     * shadowsocks 地址头的长度：type(1) + [len(1)] + addr + port(2)。
+     */
+    public int encodedLength() {
+        return 1 + (mType == TYPE_HOST ? 1 : 0) + mLength + 2;
+    }
+
+    /**
+     * 按 shadowsocks 地址头格式写出。
+     */
+    public void writeTo(ByteBuf out) {
+        writeTo(out, 0);
+    }
+
+    /**
+     * @param flags 与类型字节合并的标志，如 {@link #FLAG_COMPRESS}
+     */
+    public void writeTo(ByteBuf out, int flags) {
+        out.writeByte(mType | flags);
+        if (mType == TYPE_HOST) {
+            out.writeByte(mLength);
+        }
+        out.writeBytes(mBytes, 0, mLength);
+        out.writeShort(mPort);
+    }
+
+    @Override
+    public void formatTo(StringBuilder sb) {
+        if (mHost != null) {
+            sb.append(mHost);
+        } else if (mType == TYPE_HOST) {
+            sb.append(getHost());
+        } else {
+            appendIp(sb);
+        }
+        sb.append(':').append(mPort);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        formatTo(sb);
+        return sb.toString();
+    }
+}
@@ -0,0 +1,143 @@
+package shadowsocks.protocol;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 增量解析地址头：type(1) + ipv4(4) / len(1) + host / ipv6(16) + port(2)。
+ *
+ * 数据可以分多次送入，每次只读取需要的字节，从上次停下的位置继续，不会重复读取。
+ */
+public class AddressParser {
+
+    public final static int NEED_MORE = 0;
+    public final static int DONE = 1;
+    public final static int ERROR = -1;
+
+    private final static int STAGE_TYPE = 0;
+    private final static int STAGE_LENGTH = 1;
+    private final static int STAGE_ADDR = 2;
+    private final static int STAGE_PORT = 3;
+    private final static int STAGE_DONE = 4;
+
+    private final Address mAddress;
+    private final int mFlagMask;
+    private int mStage;
+    private int mType;
+    private int mFlags;
+    private int mLength;
+    private int mPos;
+    private int mPort;
+    private String mError;
+
+    public AddressParser() {
+        this(new Address());
+    }
+
+    public AddressParser(Address address) {
+        this(address, 0);
+    }
+
+    /**
+     * @param flagMask 类型字节中允许出现的标志位，见 {@link #getFlags()}
+     */
+    public AddressParser(Address address, int flagMask) {
+        mAddress = address;
+        mFlagMask = flagMask;
+    }
+
+    public void reset() {
+        mStage = STAGE_TYPE;
+        mPos = 0;
+        mPort = 0;
+        mFlags = 0;
+        mError = null;
+    }
+
+    public Address getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * 类型字节中的标志位，只在 parse 返回 DONE 之后有效。
+     */
+    public int getFlags() {
+        return mFlags;
+    }
+
+    /**
+     * 出错原因，只在 parse 返回 ERROR 之后有效。
+     */
+    public String getError() {
+        return mError;
+    }
+
+    /**
+     * 从 in 中读取地址头，完成后 in 的 readerIndex 停在地址头之后。
+     *
+     * @return NEED_MORE, DONE 或 ERROR
+     */
+    public int parse(ByteBuf in) {
+        while (true) {
+            switch (mStage) {
+                case STAGE_TYPE:
+                    if (!in.isReadable())
+                        return NEED_MORE;
+                    mType = in.readUnsignedByte();
+                    mFlags = mType & mFlagMask;
+                    mType &= ~mFlagMask;
+                    if (mType == Address.TYPE_IPV4) {
+                        mLength = 4;
+                        mStage = STAGE_ADDR;
+                    } else if (mType == Address.TYPE_IPV6) {
+                        mLength = 16;
+                        mStage = STAGE_ADDR;
+                    } else if (mType == Address.TYPE_HOST) {
+                        mStage = STAGE_LENGTH;
+                    } else {
+                        return error("Unsupport addr type " + mType);
+                    }
+                    break;
+                case STAGE_LENGTH:
+                    if (!in.isReadable())
+                        return NEED_MORE;
+                    mLength = in.readUnsignedByte();
+                    if (mLength == 0) {
+                        return error("Empty host name");
+                    }
+                    mStage = STAGE_ADDR;
+                    break;
+                case STAGE_ADDR: {
+                    int n = Math.min(in.readableBytes(), mLength - mPos);
+                    in.readBytes(mAddress.bytes(), mPos, n);
+                    mPos += n;
+                    if (mPos < mLength)
+                        return NEED_MORE;
+                    mPos = 0;
+                    mStage = STAGE_PORT;
+                    break;
+                }
+                case STAGE_PORT:
+                    while (mPos < 2) {
+                        if (!in.isReadable())
+                            return NEED_MORE;
+                        mPort = mPort << 8 | in.readUnsignedByte();
+                        mPos++;
+                    }
+                    mAddress.set(mType, mLength);
+                    mAddress.setPort(mPort);
+                    mStage = STAGE_DONE;
+                    return DONE;
+                case STAGE_DONE:
+                    return DONE;
+                default:
+                    return ERROR;
+            }
+        }
+    }
+
+    private int error(String message) {
+        mError = message;
+        mStage = -1;
+        return ERROR;
+    }
+}
@@ -0,0 +1,98 @@
+package shadowsocks.protocol;
+
+import io.netty.buffer.ByteBuf;
+import shadowsocks.crypto.Utils;
+
+/**
+ * 增量解析服务端收到的 shadowsocks 头部：[noiseLen(4) + noise] + 地址头。
+ *
+ * 噪声数据不做缓存，到达多少跳过多少。地址头的类型字节可以带 {@link Address#FLAG_COMPRESS}。
+ */
+public class HeaderParser {
+
+    public final static int NEED_MORE = AddressParser.NEED_MORE;
+    public final static int DONE = AddressParser.DONE;
+    public final static int ERROR = AddressParser.ERROR;
+
+    private final static int STAGE_NOISE_LENGTH = 0;
+    private final static int STAGE_NOISE = 1;
+    private final static int STAGE_ADDRESS = 2;
+
+    private final boolean mNoise;
+    private final AddressParser mAddressParser;
+    private int mStage;
+    private int mPos;
+    private int mNoiseLength;
+    private String mError;
+
+    public HeaderParser(boolean noise) {
+        this(noise, new AddressParser(new Address(), Address.FLAG_COMPRESS));
+    }
+
+    public HeaderParser(boolean noise, AddressParser addressParser) {
+        mNoise = noise;
+        mAddressParser = addressParser;
+        reset();
+    }
+
+    public void reset() {
+        mStage = mNoise ? STAGE_NOISE_LENGTH : STAGE_ADDRESS;
+        mPos = 0;
+        mNoiseLength = 0;
+        mError = null;
+        mAddressParser.reset();
+    }
+
+    public Address getAddress() {
+        return mAddressParser.getAddress();
+    }
+
+    /**
+     * 客户端是否请求压缩，只在 parse 返回 DONE 之后有效。
+     */
+    public boolean isCompressed() {
+        return (mAddressParser.getFlags() & Address.FLAG_COMPRESS) != 0;
+    }
+
+    public String getError() {
+        return mError != null ? mError : mAddressParser.getError();
+    }
+
+    /**
+     * @return NEED_MORE, DONE 或 ERROR
+     */
+    public int parse(ByteBuf in) {
+        while (true) {
+            switch (mStage) {
+                case STAGE_NOISE_LENGTH:
+                    // 由高位到低位，与 Utils.intToByteArray 一致
+                    while (mPos < 4) {
+                        if (!in.isReadable())
+                            return NEED_MORE;
+                        mNoiseLength = mNoiseLength << 8 | in.readUnsignedByte();
+                        mPos++;
+                    }
+                    if (mNoiseLength <= 0 || mNoiseLength > Utils.NOISE_MAX) {// 客户端伪造数据！
+                        mError = "noiseLenInt error : " + mNoiseLength;
+                        mStage = -1;
+                        return ERROR;
+                    }
+                    mStage = STAGE_NOISE;
+                    break;
+                case STAGE_NOISE: {
+                    int n = Math.min(in.readableBytes(), mNoiseLength);
+                    in.skipBytes(n);
+                    mNoiseLength -= n;
+                    if (mNoiseLength > 0)
+                        return NEED_MORE;
+                    mStage = STAGE_ADDRESS;
+                    break;
+                }
+                case STAGE_ADDRESS:
+                    return mAddressParser.parse(in);
+                default:
+                    return ERROR;
+            }
+        }
+    }
+}
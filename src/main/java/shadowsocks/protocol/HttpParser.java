@@ -0,0 +1,345 @@
+package shadowsocks.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 增量解析 HTTP 代理请求：CONNECT host:port，或 absolute-form 的普通请求（GET http://host/path HTTP/1.1）。
+ *
+ * 普通请求的请求行改写为 origin-form，并去掉 Proxy-Connection 与 Proxy-Authorization，改写后的请求头见 {@link #getHead()}。
+ * 请求头之后用 {@link #body(ByteBuf)} 跳过请求体（Content-Length 或 chunked），
+ * 请求体结束后再调用 {@link #parse(ByteBuf)} 解析同一连接上的下一个请求（keep-alive）。
+ * CONNECT 之后的数据都属于隧道，不再解析。
+ *
+ * 请求行按第一个与最后一个空格切分为 method、target 与版本，target 中不能再有空格。
+ * 以空格或制表符开头的续行（obs-fold）并入上一个字段，折行替换为一个空格后转发（RFC 7230 3.2.4）；
+ * 紧跟在请求行之后的续行没有可以并入的字段，按格式错误拒绝。
+ */
+public class HttpParser {
+
+    public final static int NEED_MORE = AddressParser.NEED_MORE;
+    public final static int DONE = AddressParser.DONE;
+    public final static int ERROR = AddressParser.ERROR;
+
+    public final static int MAX_HEAD_LENGTH = 16 * 1024;
+
+    private final static int STAGE_HEAD = 0;
+    private final static int STAGE_LENGTH = 1;
+    private final static int STAGE_CHUNK_SIZE = 2;
+    private final static int STAGE_CHUNK_EXT = 3;
+    private final static int STAGE_CHUNK_DATA = 4;
+    private final static int STAGE_CHUNK_END = 5;
+    private final static int STAGE_TRAILER = 6;
+    private final static int STAGE_TUNNEL = 7;
+
+    private int mStage = STAGE_HEAD;
+    private final ByteBuf mRaw = Unpooled.buffer(256);
+    private int mLineLength;// 当前行已读的字节数，不含 CR
+    private boolean mStarted;// 已经读到请求行，之前的空行忽略（RFC 7230 3.5）
+    private long mRemaining;// 请求体或当前 chunk 剩余的字节数
+    private boolean mChunkSizeRead;
+
+    private boolean mConnect;
+    private Address mAddress;
+    private ByteBuf mHead;
+    private String mError;
+
+    public boolean isConnect() {
+        return mConnect;
+    }
+
+    /**
+     * 最近一个请求的目标，每个请求一个新对象。
+     */
+    public Address getAddress() {
+        return mAddress;
+    }
+
+    /**
+     * 改写后的请求头（普通请求），调用方负责写出。
+     */
+    public ByteBuf getHead() {
+        return mHead;
+    }
+
+    public String getError() {
+        return mError;
+    }
+
+    /**
+     * 当前请求的请求体（或 CONNECT 隧道）还没有结束。
+     */
+    public boolean inBody() {
+        return mStage != STAGE_HEAD;
+    }
+
+    /**
+     * 解析请求头，只消耗请求头的字节。
+     *
+     * @return NEED_MORE, DONE 或 ERROR
+     */
+    public int parse(ByteBuf in) {
+        if (mStage != STAGE_HEAD)
+            return error("Request body is not finished.");
+        int start = in.readerIndex();
+        int end = in.writerIndex();
+        for (int i = start; i < end; i++) {
+            byte b = in.getByte(i);
+            if (b == '\n') {
+                if (mLineLength == 0) {
+                    if (!mStarted) {
+                        mRaw.clear();
+                        in.readerIndex(i + 1);
+                        start = i + 1;
+                        continue;
+                    }
+                    mRaw.writeBytes(in, start, i + 1 - start);
+                    in.readerIndex(i + 1);
+                    return parseHead();
+                }
+                mLineLength = 0;
+            } else if (b != '\r') {
+                mLineLength++;
+                mStarted = true;
+            }
+        }
+        if (mRaw.readableBytes() + end - start > MAX_HEAD_LENGTH)
+            return error("Request head too large.");
+        mRaw.writeBytes(in, start, end - start);
+        in.readerIndex(end);
+        return NEED_MORE;
+    }
+
+    private int parseHead() {
+        String text = mRaw.toString(StandardCharsets.ISO_8859_1);
+        mRaw.clear();
+        mLineLength = 0;
+        mStarted = false;
+        String[] lines = text.split("\r?\n");
+        String requestLine = lines[0];
+        int sp = requestLine.indexOf(' ');
+        int lastSp = requestLine.lastIndexOf(' ');
+        if (sp <= 0 || lastSp <= sp + 1 || requestLine.indexOf(' ', sp + 1) != lastSp)
+            return error("Invalid request line: " + requestLine);
+        String method = requestLine.substring(0, sp);
+        String target = requestLine.substring(sp + 1, lastSp);
+        String version = requestLine.substring(lastSp + 1);
+        if (!version.startsWith("HTTP/"))
+            return error("Invalid request line: " + requestLine);
+
+        mConnect = method.equalsIgnoreCase("CONNECT");
+        if (mConnect) {
+            mAddress = parseAuthority(target, 443);
+            if (mAddress == null)
+                return error("Invalid CONNECT target: " + target);
+            mHead = null;
+            mStage = STAGE_TUNNEL;
+            return DONE;
+        }
+
+        if (!target.regionMatches(true, 0, "http://", 0, 7))
+            return error("Not a proxy request: " + target);
+        int pathStart = 7;
+        while (pathStart < target.length() && "/?#".indexOf(target.charAt(pathStart)) < 0) {
+            pathStart++;
+        }
+        mAddress = parseAuthority(target.substring(7, pathStart), 80);
+        if (mAddress == null)
+            return error("Invalid request target: " + target);
+        String path = pathStart < target.length() ? target.substring(pathStart) : "/";
+        if (path.charAt(0) != '/') {
+            path = "/" + path;
+        }
+
+        StringBuilder head = new StringBuilder(text.length());
+        head.append(method).append(' ').append(path).append(' ').append(version).append("\r\n");
+        List<String> fields = new ArrayList<>(lines.length - 1);
+        for (int i = 1; i < lines.length; i++) {
+            String line = lines[i];
+            if (!line.isEmpty() && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+                if (fields.isEmpty())
+                    return error("Invalid header: " + line);
+                int last = fields.size() - 1;
+                fields.set(last, fields.get(last).trim() + ' ' + line.trim());
+            } else {
+                fields.add(line);
+            }
+        }
+        long length = 0;
+        boolean chunked = false;
+        for (String line : fields) {
+            int colon = line.indexOf(':');
+            if (colon <= 0)
+                return error("Invalid header: " + line);
+            String name = line.substring(0, colon).trim();
+            String value = line.substring(colon + 1).trim();
+            if (name.equalsIgnoreCase("Proxy-Connection") || name.equalsIgnoreCase("Proxy-Authorization"))
+                continue;
+            if (name.equalsIgnoreCase("Content-Length")) {
+                try {
+                    length = Long.parseLong(value);
+                } catch (NumberFormatException e) {
+                    return error("Invalid Content-Length: " + value);
+                }
+                if (length < 0)
+                    return error("Invalid Content-Length: " + value);
+            } else if (name.equalsIgnoreCase("Transfer-Encoding")) {
+                chunked = value.toLowerCase().endsWith("chunked");
+            }
+            head.append(line).append("\r\n");
+        }
+        head.append("\r\n");
+        mHead = Unpooled.wrappedBuffer(head.toString().getBytes(StandardCharsets.ISO_8859_1));
+
+        // chunked 优先于 Content-Length（RFC 7230 3.3.3）
+        if (chunked) {
+            mStage = STAGE_CHUNK_SIZE;
+            mRemaining = 0;
+            mChunkSizeRead = false;
+        } else if (length > 0) {
+            mStage = STAGE_LENGTH;
+            mRemaining = length;
+        } else {
+            mStage = STAGE_HEAD;
+        }
+        return DONE;
+    }
+
+    /**
+     * host:port 或 [ipv6]:port，没有端口时使用 defaultPort。
+     */
+    private static Address parseAuthority(String authority, int defaultPort) {
+        int at = authority.lastIndexOf('@');
+        if (at >= 0) {
+            authority = authority.substring(at + 1);
+        }
+        String host = authority;
+        int port = defaultPort;
+        int colon = authority.lastIndexOf(':');
+        if (authority.startsWith("[")) {
+            int end = authority.indexOf(']');
+            if (end < 0)
+                return null;
+            host = authority.substring(1, end);
+            colon = authority.indexOf(':', end);
+        } else if (colon >= 0) {
+            host = authority.substring(0, colon);
+        }
+        if (colon >= 0) {
+            try {
+                port = Integer.parseInt(authority.substring(colon + 1));
+            } catch (NumberFormatException e) {
+                return null;
+            }
+            if (port <= 0 || port > 65535)
+                return null;
+        }
+        if (host.isEmpty())
+            return null;
+        // 请求头按 ISO_8859_1 解码，非 ASCII 的 Host 还原为 UTF-8 后再交给 Address 转换为 punycode
+        return Address.create(new String(host.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8), port);
+    }
+
+    /**
+     * 跳过 in 中属于当前请求体的字节，调用方把跳过的部分原样转发。
+     * 请求体结束后 {@link #inBody()} 返回 false。
+     *
+     * @return 跳过的字节数，chunked 格式错误时返回 ERROR
+     */
+    public int body(ByteBuf in) {
+        int start = in.readerIndex();
+        while (in.isReadable() && mStage != STAGE_HEAD) {
+            switch (mStage) {
+                case STAGE_TUNNEL:
+                    in.skipBytes(in.readableBytes());
+                    break;
+                case STAGE_LENGTH: {
+                    int n = (int) Math.min(in.readableBytes(), mRemaining);
+                    in.skipBytes(n);
+                    mRemaining -= n;
+                    if (mRemaining == 0) {
+                        mStage = STAGE_HEAD;
+                    }
+                    break;
+                }
+                case STAGE_CHUNK_SIZE: {
+                    byte b = in.readByte();
+                    int digit = Character.digit(b, 16);
+                    if (digit >= 0) {
+                        if (mRemaining > Integer.MAX_VALUE)
+                            return error("Chunk too large.");
+                        mRemaining = mRemaining * 16 + digit;
+                        mChunkSizeRead = true;
+                    } else if (b == ';' || b == ' ' || b == '\t') {
+                        mStage = STAGE_CHUNK_EXT;
+                    } else if (b == '\n') {
+                        if (!mChunkSizeRead)
+                            return error("Missing chunk size.");
+                        endChunkSize();
+                    } else if (b != '\r') {
+                        return error("Invalid chunk size.");
+                    }
+                    break;
+                }
+                case STAGE_CHUNK_EXT:
+                    if (in.readByte() == '\n') {
+                        if (!mChunkSizeRead)
+                            return error("Missing chunk size.");
+                        endChunkSize();
+                    }
+                    break;
+                case STAGE_CHUNK_DATA: {
+                    int n = (int) Math.min(in.readableBytes(), mRemaining);
+                    in.skipBytes(n);
+                    mRemaining -= n;
+                    if (mRemaining == 0) {
+                        mStage = STAGE_CHUNK_END;
+                    }
+                    break;
+                }
+                case STAGE_CHUNK_END:
+                    // chunk 数据之后的 CRLF
+                    if (in.readByte() == '\n') {
+                        mStage = STAGE_CHUNK_SIZE;
+                        mChunkSizeRead = false;
+                    }
+                    break;
+                case STAGE_TRAILER: {
+                    byte b = in.readByte();
+                    if (b == '\n') {
+                        if (mLineLength == 0) {
+                            mStage = STAGE_HEAD;
+                        }
+                        mLineLength = 0;
+                    } else if (b != '\r') {
+                        mLineLength++;
+                    }
+                    break;
+                }
+                default:
+                    return error("Invalid state.");
+            }
+        }
+        return in.readerIndex() - start;
+    }
+
+    private void endChunkSize() {
+        if (mRemaining == 0) {
+            // last-chunk，之后是 trailer，以空行结束
+            mStage = STAGE_TRAILER;
+            mLineLength = 0;
+        } else {
+            mStage = STAGE_CHUNK_DATA;
+        }
+    }
+
+    private int error(String message) {
+        mError = message;
+        mStage = -1;
+        return ERROR;
+    }
+}
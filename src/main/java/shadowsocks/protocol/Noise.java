@@ -0,0 +1,78 @@
+package shadowsocks.protocol;
+
+import io.netty.buffer.ByteBuf;
+import shadowsocks.GlobalConfig;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * 客户端在地址头之前填充的噪声：[noiseLen(4) + noise]，服务端由 {@link HeaderParser} 跳过。
+ *
+ * 噪声和后面的数据一起加密，密文本身就与随机数无法区分，填充内容不需要密码学安全的随机数，
+ * 长度与内容都取自当前线程的 ThreadLocalRandom，不分配数组。
+ *
+ * 长度分布（noise_distribution）：
+ *   uniform      [noise_min, noise_max] 均匀分布
+ *   exponential  截断在 [noise_min, noise_max] 的指数分布，均值约为 noise_min + (noise_max - noise_min) / 4，流量开销更小
+ */
+public class Noise {
+
+    public final static String UNIFORM = "uniform";
+    public final static String EXPONENTIAL = "exponential";
+
+    private static final LongAdder mHeaders = new LongAdder();
+    private static final LongAdder mBytes = new LongAdder();
+
+    /**
+     * @return 噪声的最大长度，包括 4 字节的长度字段
+     */
+    public static int maxLength(GlobalConfig config) {
+        return config.isNoise() ? 4 + config.getNoiseMax() : 0;
+    }
+
+    /**
+     * 没有开启噪声时什么都不写。
+     */
+    public static void write(ByteBuf out, GlobalConfig config) {
+        if (!config.isNoise())
+            return;
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int length = length(random, config.getNoiseMin(), config.getNoiseMax(), config.getNoiseDistribution());
+        out.writeInt(length);
+        int i = length;
+        for (; i >= 8; i -= 8) {
+            out.writeLong(random.nextLong());
+        }
+        for (; i > 0; i--) {
+            out.writeByte(random.nextInt());
+        }
+        mHeaders.increment();
+        mBytes.add(4 + length);
+    }
+
+    static int length(ThreadLocalRandom random, int min, int max, String distribution) {
+        if (min >= max)
+            return min;
+        int range = max - min + 1;
+        if (EXPONENTIAL.equals(distribution)) {
+            // 截断指数分布的反函数，不需要重试或截断到 max
+            double mean = range / 4.0;
+            double u = random.nextDouble();
+            int n = (int) (-mean * Math.log(1 - u * (1 - Math.exp(-range / mean))));
+            return min + Math.min(n, range - 1);
+        }
+        return min + random.nextInt(range);
+    }
+
+    public static boolean isSupported(String distribution) {
+        return UNIFORM.equals(distribution) || EXPONENTIAL.equals(distribution);
+    }
+
+    public static void export(StringBuilder sb) {
+        sb.append("# TYPE ss_noise_headers_total counter\n");
+        sb.append("ss_noise_headers_total ").append(mHeaders.sum()).append('\n');
+        sb.append("# TYPE ss_noise_bytes_total counter\n");
+        sb.append("ss_noise_bytes_total ").append(mBytes.sum()).append('\n');
+    }
+}
@@ -0,0 +1,121 @@
+package shadowsocks.protocol;
+
+import io.netty.buffer.ByteBuf;
+
+/**
+ * 增量解析 socks5 的握手与请求（只支持 CONNECT）。
+ *
+ * VER(1) NMETHODS(1) METHODS(NMETHODS)，之后是 VER(1) CMD(1) RSV(1) 加地址头。
+ * 握手解析完返回 GREETING，调用方回复后继续调用 parse 解析请求。
+ */
+public class Socks5Parser {
+
+    public final static int NEED_MORE = AddressParser.NEED_MORE;
+    public final static int DONE = AddressParser.DONE;
+    public final static int ERROR = AddressParser.ERROR;
+    public final static int GREETING = 2;
+
+    private final static int VERSION = 5;
+    private final static int CMD_CONNECT = 1;
+
+    private final static int STAGE_VERSION = 0;
+    private final static int STAGE_NMETHODS = 1;
+    private final static int STAGE_METHODS = 2;
+    private final static int STAGE_REQUEST_VERSION = 3;
+    private final static int STAGE_CMD = 4;
+    private final static int STAGE_RSV = 5;
+    private final static int STAGE_ADDRESS = 6;
+
+    private final AddressParser mAddressParser;
+    private int mStage;
+    private int mMethods;
+    private String mError;
+
+    public Socks5Parser() {
+        this(new AddressParser());
+    }
+
+    public Socks5Parser(AddressParser addressParser) {
+        mAddressParser = addressParser;
+    }
+
+    public void reset() {
+        mStage = STAGE_VERSION;
+        mError = null;
+        mAddressParser.reset();
+    }
+
+    public Address getAddress() {
+        return mAddressParser.getAddress();
+    }
+
+    public String getError() {
+        return mError != null ? mError : mAddressParser.getError();
+    }
+
+    /**
+     * @return NEED_MORE, GREETING, DONE 或 ERROR
+     */
+    public int parse(ByteBuf in) {
+        while (true) {
+            switch (mStage) {
+                case STAGE_VERSION:
+                    if (!in.isReadable())
+                        return NEED_MORE;
+                    if (in.readUnsignedByte() != VERSION)
+                        return error("Protocol error.");
+                    mStage = STAGE_NMETHODS;
+                    break;
+                case STAGE_NMETHODS:
+                    if (!in.isReadable())
+                        return NEED_MORE;
+                    mMethods = in.readUnsignedByte();
+                    if (mMethods == 0)
+                        return error("No auth method.");
+                    mStage = STAGE_METHODS;
+                    break;
+                case STAGE_METHODS: {
+                    // 只支持无认证，方法列表直接跳过
+                    int n = Math.min(in.readableBytes(), mMethods);
+                    in.skipBytes(n);
+                    mMethods -= n;
+                    if (mMethods > 0)
+                        return NEED_MORE;
+                    mStage = STAGE_REQUEST_VERSION;
+                    return GREETING;
+                }
+                case STAGE_REQUEST_VERSION:
+                    if (!in.isReadable())
+                        return NEED_MORE;
+                    if (in.readUnsignedByte() != VERSION)
+                        return error("Protocol error.");
+                    mStage = STAGE_CMD;
+                    break;
+                case STAGE_CMD:
+                    if (!in.isReadable())
+                        return NEED_MORE;
+                    // 1 connect, 2 bind, 3 udp associate. just support mode 1 now
+                    if (in.readUnsignedByte() != CMD_CONNECT)
+                        return error("Mode != 1");
+                    mStage = STAGE_RSV;
+                    break;
+                case STAGE_RSV:
+                    if (!in.isReadable())
+                        return NEED_MORE;
+                    in.skipBytes(1);
+                    mStage = STAGE_ADDRESS;
+                    break;
+                case STAGE_ADDRESS:
+                    return mAddressParser.parse(in);
+                default:
+                    return ERROR;
+            }
+        }
+    }
+
+    private int error(String message) {
+        mError = message;
+        mStage = -1;
+        return ERROR;
+    }
+}
@@ -0,0 +1,181 @@
+package shadowsocks.route;
+
+import io.netty.util.NetUtil;
+
+/**
+ * IP 段最长前缀匹配：路径压缩的二叉 radix 树（PATRICIA），IPv4 与 IPv6 各一棵。
+ *
+ * 每个节点保存完整的前缀，只有分叉处才有节点，树高与规则数的对数相当而不是地址位数。
+ * 只读之前由单个线程构建，构建完成后可以多线程查询。
+ */
+class CidrMatcher {
+
+    private static final class Node {
+        final byte[] mKey;
+        final int mBits;
+        Route mRoute;
+        Node mZero;
+        Node mOne;
+
+        Node(byte[] key, int bits, Route route) {
+            mKey = key;
+            mBits = bits;
+            mRoute = route;
+        }
+    }
+
+    // 0 为 IPv4，1 为 IPv6
+    private final Node[] mRoots = new Node[2];
+    private int mSize;
+
+    int size() {
+        return mSize;
+    }
+
+    private static int bit(byte[] key, int index) {
+        return (key[index >>> 3] >>> (7 - (index & 7))) & 1;
+    }
+
+    /**
+     * a 与 b 前 max 位中相同的位数。
+     */
+    private static int commonBits(byte[] a, byte[] b, int max) {
+        int i = 0;
+        while (i < max) {
+            int diff = (a[i >>> 3] ^ b[i >>> 3]) & 0xff;
+            if (diff == 0) {
+                i = (i & ~7) + 8;
+                continue;
+            }
+            return Math.min(max, (i & ~7) + Integer.numberOfLeadingZeros(diff) - 24);
+        }
+        return max;
+    }
+
+    /**
+     * addr 的第 from 到 to 位是否与 key 相同。
+     */
+    private static boolean matches(byte[] addr, byte[] key, int from, int to) {
+        int i = from;
+        while (i < to) {
+            int diff = (addr[i >>> 3] ^ key[i >>> 3]) & (0xff >>> (i & 7));
+            int end = (i & ~7) + 8;
+            if (end > to) {
+                diff &= 0xff << (end - to);
+                return diff == 0;
+            }
+            if (diff != 0)
+                return false;
+            i = end;
+        }
+        return true;
+    }
+
+    /**
+     * @param cidr 如 10.0.0.0/8、2001:db8::/32，没有 /前缀长度 时为单个地址
+     * @return 已存在相同前缀时返回 false，先加入的规则优先
+     */
+    boolean add(String cidr, Route route) {
+        String ip = cidr.trim();
+        int bits = -1;
+        int slash = ip.indexOf('/');
+        if (slash >= 0) {
+            bits = Integer.parseInt(ip.substring(slash + 1).trim());
+            ip = ip.substring(0, slash).trim();
+        }
+        byte[] key = NetUtil.createByteArrayFromIpAddressString(ip);
+        if (key == null) {
+            throw new IllegalArgumentException("Invalid ip " + cidr);
+        }
+        if (bits < 0) {
+            bits = key.length * 8;
+        }
+        if (bits > key.length * 8) {
+            throw new IllegalArgumentException("Invalid prefix length " + cidr);
+        }
+        // 清掉前缀之外的位
+        for (int i = bits; i < key.length * 8; i++) {
+            key[i >>> 3] &= ~(0x80 >>> (i & 7));
+        }
+        if (!insert(key.length == 4 ? 0 : 1, key, bits, route))
+            return false;
+        mSize++;
+        return true;
+    }
+
+    private boolean insert(int tree, byte[] key, int bits, Route route) {
+        Node parent = null;
+        Node node = mRoots[tree];
+        if (node == null) {
+            mRoots[tree] = new Node(key, bits, route);
+            return true;
+        }
+        while (true) {
+            int common = commonBits(key, node.mKey, Math.min(bits, node.mBits));
+            if (common == node.mBits) {
+                if (common == bits) {
+                    if (node.mRoute != null)
+                        return false;
+                    node.mRoute = route;
+                    return true;
+                }
+                // 继续向下
+                parent = node;
+                Node child = bit(key, node.mBits) == 0 ? node.mZero : node.mOne;
+                if (child == null) {
+                    setChild(node, key, new Node(key, bits, route));
+                    return true;
+                }
+                node = child;
+                continue;
+            }
+            // 在 node 之上分叉
+            Node split;
+            if (common == bits) {
+                split = new Node(key, bits, route);
+                setChild(split, node.mKey, node);
+            } else {
+                split = new Node(key, common, null);
+                setChild(split, node.mKey, node);
+                setChild(split, key, new Node(key, bits, route));
+            }
+            if (parent == null) {
+                mRoots[tree] = split;
+            } else {
+                setChild(parent, key, split);
+            }
+            return true;
+        }
+    }
+
+    private static void setChild(Node parent, byte[] key, Node child) {
+        if (bit(key, parent.mBits) == 0) {
+            parent.mZero = child;
+        } else {
+            parent.mOne = child;
+        }
+    }
+
+    /**
+     * @param addr 4 或 16 字节的地址
+     * @return 最长前缀匹配的规则，没有匹配时返回 null
+     */
+    Route match(byte[] addr, int length) {
+        Node node = mRoots[length == 4 ? 0 : 1];
+        int total = length * 8;
+        Route best = null;
+        int from = 0;
+        while (node != null && node.mBits <= total) {
+            if (!matches(addr, node.mKey, from, node.mBits))
+                break;
+            if (node.mRoute != null) {
+                best = node.mRoute;
+            }
+            if (node.mBits == total)
+                break;
+            from = node.mBits;
+            node = bit(addr, node.mBits) == 0 ? node.mZero : node.mOne;
+        }
+        return best;
+    }
+}
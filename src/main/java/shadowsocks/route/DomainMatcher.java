@@ -0,0 +1,163 @@
+package shadowsocks.route;
+
+import java.net.IDN;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * 域名后缀匹配：按 label 反向的 hash 表。
+ *
+ * 查询时从域名末尾向前逐字节累积 hash，每到一个 label 边界查一次表，
+ * 较长（更具体）的后缀覆盖较短的。查询不分配对象，只做 label 数次 hash 表探测。
+ * 只读之前由单个线程构建，构建完成后可以多线程查询。
+ */
+class DomainMatcher {
+
+    private int[] mHashes;
+    private byte[][] mDomains;
+    private boolean[] mExact;
+    private Route[] mRoutes;
+    private int mSize;
+
+    DomainMatcher() {
+        allocate(1024);
+    }
+
+    private void allocate(int capacity) {
+        mHashes = new int[capacity];
+        mDomains = new byte[capacity][];
+        mExact = new boolean[capacity];
+        mRoutes = new Route[capacity];
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    private static byte lower(byte b) {
+        return b >= 'A' && b <= 'Z' ? (byte) (b + 32) : b;
+    }
+
+    private static int slot(int hash, int mask) {
+        int h = hash * 0x9e3779b9;
+        return (h ^ h >>> 16) & mask;
+    }
+
+    /**
+     * @param exact true 只匹配域名本身（DOMAIN），false 同时匹配所有子域名（DOMAIN-SUFFIX）
+     * @return 已存在相同规则时返回 false，先加入的规则优先
+     */
+    boolean add(String domain, boolean exact, Route route) {
+        String d = domain.trim().toLowerCase();
+        while (d.startsWith(".")) {
+            d = d.substring(1);
+        }
+        while (d.endsWith(".")) {
+            d = d.substring(0, d.length() - 1);
+        }
+        if (d.isEmpty()) {
+            throw new IllegalArgumentException("Empty domain rule");
+        }
+        // 国际化域名按 punycode 匹配，与 Address 相同
+        d = IDN.toASCII(d, IDN.ALLOW_UNASSIGNED).toLowerCase();
+        byte[] bytes = d.getBytes(StandardCharsets.US_ASCII);
+        int hash = 0;
+        for (int i = bytes.length - 1; i >= 0; i--) {
+            hash = hash * 31 + bytes[i];
+        }
+        if (find(hash, bytes, 0, bytes.length, true, exact) != null) {
+            return false;
+        }
+        // 先出现的 DOMAIN-SUFFIX 已经覆盖了同名的 DOMAIN
+        if (exact && find(hash, bytes, 0, bytes.length, true, false) != null) {
+            return false;
+        }
+        if ((mSize + 1) * 2 > mHashes.length) {
+            resize();
+        }
+        insert(hash, bytes, exact, route);
+        mSize++;
+        return true;
+    }
+
+    private void insert(int hash, byte[] bytes, boolean exact, Route route) {
+        int mask = mHashes.length - 1;
+        int i = slot(hash, mask);
+        while (mDomains[i] != null) {
+            i = (i + 1) & mask;
+        }
+        mHashes[i] = hash;
+        mDomains[i] = bytes;
+        mExact[i] = exact;
+        mRoutes[i] = route;
+    }
+
+    private void resize() {
+        int[] hashes = mHashes;
+        byte[][] domains = mDomains;
+        boolean[] exact = mExact;
+        Route[] routes = mRoutes;
+        allocate(hashes.length * 2);
+        for (int i = 0; i < hashes.length; i++) {
+            if (domains[i] != null) {
+                insert(hashes[i], domains[i], exact[i], routes[i]);
+            }
+        }
+    }
+
+    /**
+     * 整个域名同时命中同名的 DOMAIN 与 DOMAIN-SUFFIX 时取 DOMAIN：两者都存在说明 DOMAIN 先出现（见 add），
+     * 结果不依赖两者在探测序列中的先后。
+     *
+     * @param full 后缀是否就是整个域名
+     * @param exactOnly 只找 exact 与之相同的规则（用于去重）
+     */
+    private Route find(int hash, byte[] host, int from, int to, boolean full, Boolean exactOnly) {
+        int mask = mHashes.length - 1;
+        int length = to - from;
+        Route suffix = null;
+        for (int i = slot(hash, mask); mDomains[i] != null; i = (i + 1) & mask) {
+            byte[] domain = mDomains[i];
+            if (mHashes[i] != hash || domain.length != length)
+                continue;
+            if (exactOnly != null ? mExact[i] != exactOnly : mExact[i] && !full)
+                continue;
+            boolean equal = true;
+            for (int j = 0; j < length; j++) {
+                if (domain[j] != lower(host[from + j])) {
+                    equal = false;
+                    break;
+                }
+            }
+            if (!equal)
+                continue;
+            if (exactOnly != null || mExact[i] || !full)
+                return mRoutes[i];
+            suffix = mRoutes[i];
+        }
+        return suffix;
+    }
+
+    /**
+     * @return 最长匹配的后缀规则，没有匹配时返回 null
+     */
+    Route match(byte[] host, int length) {
+        if (mSize == 0)
+            return null;
+        // 忽略末尾的 "."
+        while (length > 0 && host[length - 1] == '.') {
+            length--;
+        }
+        Route best = null;
+        int hash = 0;
+        for (int i = length - 1; i >= 0; i--) {
+            hash = hash * 31 + lower(host[i]);
+            if (i == 0 || host[i - 1] == '.') {
+                Route route = find(hash, host, i, length, i == 0, null);
+                if (route != null) {
+                    best = route;
+                }
+            }
+        }
+        return best;
+    }
+}
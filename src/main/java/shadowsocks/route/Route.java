@@ -0,0 +1,17 @@
+package shadowsocks.route;
+
+/**
+ * 分流结果。
+ */
+public enum Route {
+    DIRECT,// 本地直连
+    PROXY,// 经服务器转发
+    REJECT;// 拒绝
+
+    /**
+     * 不区分大小写，兼容 Clash 的 DIRECT / PROXY / REJECT。
+     */
+    public static Route parse(String name) {
+        return Route.valueOf(name.trim().toUpperCase());
+    }
+}
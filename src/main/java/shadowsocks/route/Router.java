@@ -0,0 +1,141 @@
+package shadowsocks.route;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.GlobalConfig;
+import shadowsocks.protocol.Address;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.List;
+
+/**
+ * 客户端分流：根据目标地址决定直连、走代理还是拒绝。
+ *
+ * 规则文件每行一条，格式与 Clash 相同，# 开头为注释：
+ *   DOMAIN-SUFFIX,google.com,PROXY     域名及其子域名
+ *   DOMAIN,www.example.com,DIRECT     只匹配该域名
+ *   IP-CIDR,10.0.0.0/8,DIRECT
+ *   IP-CIDR6,2001:db8::/32,REJECT
+ *   MATCH,PROXY                        未匹配时的默认值（也可写作 FINAL）
+ * 域名取最长后缀，IP 取最长前缀；完全相同的规则先出现的优先。
+ * 域名请求不在本地解析，只按域名规则匹配，避免泄露 DNS 查询。
+ */
+public class Router {
+
+    private static Logger log = LogManager.getLogger(Router.class.getName());
+
+    private static volatile Router mRouter;
+
+    private final DomainMatcher mDomains = new DomainMatcher();
+    private final CidrMatcher mCidrs = new CidrMatcher();
+    private Route mDefault;
+
+    public Router(Route defaultRoute) {
+        mDefault = defaultRoute;
+    }
+
+    /**
+     * 当前生效的规则，没有配置规则文件时为 null（全部走代理）。
+     */
+    public static Router get() {
+        return mRouter;
+    }
+
+    /**
+     * 按配置加载规则文件（不发布），出错时抛出异常。
+     *
+     * @return 没有配置规则文件时返回 null
+     */
+    public static Router create(GlobalConfig config) throws IOException {
+        List<String> files = config.getRouteRules();
+        if (files.isEmpty())
+            return null;
+        Router router = new Router(Route.parse(config.getRouteDefault()));
+        long start = System.nanoTime();
+        for (String file : files) {
+            router.load(file);
+        }
+        log.info("Loaded " + router.mDomains.size() + " domain rules and " + router.mCidrs.size() + " ip rules in "
+                + (System.nanoTime() - start) / 1000000 + "ms, default " + router.mDefault);
+        return router;
+    }
+
+    /**
+     * 发布规则，null 表示全部走代理。
+     */
+    public static void set(Router router) {
+        mRouter = router;
+    }
+
+    public void load(String file) throws IOException {
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(file), StandardCharsets.UTF_8)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                try {
+                    addRule(line);
+                } catch (IllegalArgumentException e) {
+                    throw new IOException(file + ":" + lineNumber + " " + e.getMessage(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * 加入一条规则，空行与注释忽略。
+     */
+    public void addRule(String line) {
+        line = line.trim();
+        if (line.isEmpty() || line.startsWith("#"))
+            return;
+        String[] fields = line.split(",");
+        String type = fields[0].trim().toUpperCase();
+        if ((type.equals("MATCH") || type.equals("FINAL")) && fields.length >= 2) {
+            mDefault = Route.parse(fields[1]);
+            return;
+        }
+        if (fields.length < 3) {
+            throw new IllegalArgumentException("Invalid rule: " + line);
+        }
+        Route route = Route.parse(fields[2]);
+        switch (type) {
+            case "DOMAIN-SUFFIX":
+                mDomains.add(fields[1], false, route);
+                break;
+            case "DOMAIN":
+                mDomains.add(fields[1], true, route);
+                break;
+            case "IP-CIDR":
+            case "IP-CIDR6":
+                mCidrs.add(fields[1], route);
+                break;
+            default:
+                throw new IllegalArgumentException("Unsupport rule type: " + type);
+        }
+    }
+
+    public Route route(Address address) {
+        Route route;
+        if (address.isHost()) {
+            byte[] host = address.getRawBytes();
+            int length = address.getLength();
+            for (int i = 0; i < length; i++) {
+                if (host[i] < 0) {
+                    // 客户端发来的 UTF-8 域名，按 punycode 形式匹配，与规则一致
+                    host = address.getHost().getBytes(StandardCharsets.US_ASCII);
+                    length = host.length;
+                    break;
+                }
+            }
+            route = mDomains.match(host, length);
+        } else {
+            route = mCidrs.match(address.getRawBytes(), address.getLength());
+        }
+        return route != null ? route : mDefault;
+    }
+}
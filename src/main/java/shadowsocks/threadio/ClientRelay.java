@@ -0,0 +1,182 @@
+package shadowsocks.threadio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.compress.Compression;
+import shadowsocks.compress.FrameDecoder;
+import shadowsocks.compress.FrameEncoder;
+import shadowsocks.crypto.CryptoException;
+import shadowsocks.metrics.AccessLog;
+import shadowsocks.protocol.Address;
+import shadowsocks.protocol.Noise;
+import shadowsocks.protocol.Socks5Parser;
+import shadowsocks.route.Route;
+import shadowsocks.route.Router;
+import shadowsocks.upstream.Upstream;
+import shadowsocks.upstream.UpstreamPool;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 客户端的一个 socks5 连接，协议、分流与多服务器重试与 {@link shadowsocks.vertxio.ClientHandler} 相同。
+ * 不支持 HTTP 代理与透明代理。
+ */
+class ClientRelay extends Relay {
+
+    private static Logger log = LogManager.getLogger(ClientRelay.class.getName());
+
+    private final static byte[] GREETING_REPLY = {0x05, 0x00};
+    private final static byte[] CONNECTED_REPLY = {0x05, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01};
+    // X'02' connection not allowed by ruleset
+    private final static byte[] REJECTED_REPLY = {0x05, 0x02, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+
+    private final Router mRouter;
+    private final UpstreamPool mPool;
+    private volatile Upstream mServer;
+
+    ClientRelay(SocketChannel local) {
+        super(local);
+        mRouter = Router.get();
+        mPool = UpstreamPool.get();
+    }
+
+    @Override
+    protected void relay() throws IOException, CryptoException {
+        boolean direct;
+        ByteBuf in = allocate();
+        try {
+            Socks5Parser parser = new Socks5Parser();
+            while (true) {
+                int result = parser.parse(in);
+                if (result == Socks5Parser.ERROR) {
+                    log.warn(parser.getError());
+                    mResult = AccessLog.PROTOCOL_ERROR;
+                    return;
+                }
+                if (result == Socks5Parser.GREETING) {
+                    write(mLocal, Unpooled.wrappedBuffer(GREETING_REPLY));
+                    continue;
+                }
+                if (result == Socks5Parser.DONE)
+                    break;
+                in.discardReadBytes();
+                if (read(mLocal, in) < 0)
+                    return;
+            }
+            Address address = parser.getAddress();
+            log.debug("Connecting to {}", address);
+            mTarget = address;
+            if (mTrace != null) {
+                mTrace.header();
+            }
+            Route route = mRouter == null ? Route.PROXY : mRouter.route(address);
+            if (route == Route.REJECT) {
+                log.debug("Reject {}", address);
+                write(mLocal, Unpooled.wrappedBuffer(REJECTED_REPLY));
+                mResult = AccessLog.REJECTED;
+                return;
+            }
+            direct = route == Route.DIRECT;
+            if (mTrace != null) {
+                mTrace.connectStart();
+            }
+            if (direct) {
+                try {
+                    mRemote = connect(new InetSocketAddress(address.getHost(), address.getPort()));
+                } catch (IOException e) {
+                    log.error("Failed to connect " + address + ". Caused by " + e.getMessage());
+                    mResult = AccessLog.CONNECT_FAILED;
+                    return;
+                }
+            } else {
+                mRemote = connectToServer();
+                if (mRemote == null) {
+                    mResult = AccessLog.CONNECT_FAILED;
+                    return;
+                }
+            }
+            mResult = AccessLog.OK;
+            if (mTrace != null) {
+                mTrace.connected();
+            }
+            // reply to program.
+            write(mLocal, Unpooled.wrappedBuffer(CONNECTED_REPLY));
+            mBytesUp += in.readableBytes();
+            if (direct) {
+                write(mRemote, in);
+            } else {
+                // remote header, merged with the data arrived with the request.
+                boolean compress = Compression.isRequested(mConfig);
+                ByteBuf header = Unpooled.buffer(address.encodedLength() + Noise.maxLength(mConfig) + FrameEncoder.maxEncodedLength(in.readableBytes()));
+                Noise.write(header, mConfig);
+                address.writeTo(header, compress ? Address.FLAG_COMPRESS : 0);
+                if (compress) {
+                    mEncoder = Compression.ownedEncoder(true);
+                    mDecoder = new FrameDecoder();
+                    mEncoder.encode(in, header);
+                } else {
+                    header.writeBytes(in);
+                }
+                ByteBuf out = allocate();
+                try {
+                    mCrypto.encrypt(header, out);
+                    write(mRemote, out);
+                } finally {
+                    out.release();
+                }
+            }
+        } finally {
+            in.release();
+        }
+        startPump(mRemote, mLocal, direct ? PLAIN : DECRYPT, false);
+        pump(mLocal, mRemote, direct ? PLAIN : ENCRYPT, true);
+    }
+
+    /**
+     * 选一个服务器连接，失败时换一个重试。
+     *
+     * @return 都失败时返回 null
+     */
+    private SocketChannel connectToServer() {
+        List<Upstream> tried = null;
+        while (true) {
+            Upstream server = mPool.select(tried);
+            if (server == null)
+                return null;
+            server.acquire();
+            long start = System.nanoTime();
+            try {
+                SocketChannel channel = connect(new InetSocketAddress(server.getHost(), server.getPort()));
+                server.connected(System.nanoTime() - start);
+                mServer = server;
+                return channel;
+            } catch (IOException e) {
+                log.error("Failed to connect " + server + ". Caused by " + e.getMessage());
+                server.failed();
+                server.release();
+            }
+            if (tried == null) {
+                tried = new ArrayList<>(mConfig.getConnectRetries() + 1);
+            }
+            tried.add(server);
+            if (isClosed() || tried.size() > mConfig.getConnectRetries() || mPool.getUpstreams().size() <= tried.size())
+                return null;
+            log.warn("Retry " + mTarget + " with another server, " + tried.size() + " failed.");
+        }
+    }
+
+    @Override
+    protected void onClose() {
+        Upstream server = mServer;
+        if (server != null) {
+            mServer = null;
+            server.release();
+        }
+    }
+}
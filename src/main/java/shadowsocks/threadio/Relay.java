@@ -0,0 +1,341 @@
+package shadowsocks.threadio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.GlobalConfig;
+import shadowsocks.compress.FrameDecoder;
+import shadowsocks.compress.FrameEncoder;
+import shadowsocks.crypto.CryptoException;
+import shadowsocks.crypto.CryptoFactory;
+import shadowsocks.crypto.SSCrypto;
+import shadowsocks.metrics.AccessLog;
+import shadowsocks.metrics.Connection;
+import shadowsocks.metrics.ConnectionRegistry;
+import shadowsocks.metrics.ConnectionTrace;
+import shadowsocks.metrics.RelayMetrics;
+import shadowsocks.protocol.Address;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 阻塞 IO 的一个连接：握手在接受连接的线程里顺序执行，之后每个方向一个线程，read → 加/解密 → write。
+ * 任何一个方向结束或出错时关闭两个连接，另一个方向的阻塞读写随之失败退出。
+ */
+abstract class Relay implements Runnable, Connection {
+
+    private static Logger log = LogManager.getLogger(Relay.class.getName());
+
+    protected final static int BUFFER_SIZE = 16 * 1024;
+
+    protected final static int PLAIN = 0;
+    protected final static int ENCRYPT = 1;
+    protected final static int DECRYPT = 2;
+
+    private final static PooledByteBufAllocator ALLOCATOR = PooledByteBufAllocator.DEFAULT;
+
+    protected final SocketChannel mLocal;
+    protected volatile SocketChannel mRemote;
+    protected final GlobalConfig mConfig;
+    protected SSCrypto mCrypto;
+    // 请求了压缩时不为 null，在转发开始前设置，分别只由加密、解密方向的线程使用
+    protected FrameEncoder mEncoder;
+    protected FrameDecoder mDecoder;
+    private final AtomicBoolean mClosed = new AtomicBoolean();
+
+    // Access log，up 与 down 分别只由一个线程更新
+    private final boolean mSampled;
+    private final long mStartTime;
+    protected volatile Address mTarget;
+    protected volatile long mBytesUp;
+    protected volatile long mBytesDown;
+    protected volatile String mResult = AccessLog.INCOMPLETE;
+    protected final ConnectionTrace mTrace;
+
+    // Connection registry，在转发线程上登记（按线程分片），可能在任意线程上注销
+    private volatile long mId;
+    protected volatile String mStage = STAGE_HANDSHAKE;
+
+    Relay(SocketChannel local) {
+        mLocal = local;
+        // Keep the config snapshot for the whole connection, reload only affects new connections.
+        mConfig = GlobalConfig.get();
+        mStartTime = System.currentTimeMillis();
+        mSampled = AccessLog.sample(mConfig.getAccessLogSample());
+        mTrace = ConnectionTrace.start(mConfig);
+        try{
+            mCrypto = CryptoFactory.create(mConfig.getMethod(), mConfig.getPassword(), mConfig.getIvLen());
+        }catch(Exception e){
+            //Will never happen, we check this before.
+        }
+    }
+
+    /**
+     * 握手并连接目标，然后转发，返回后关闭连接。
+     */
+    protected abstract void relay() throws IOException, CryptoException;
+
+    @Override
+    public final void run() {
+        // 不在接受连接的线程上登记，否则所有连接都落在同一个分片
+        mId = ConnectionRegistry.register(this);
+        try {
+            relay();
+        } catch (IOException | CryptoException e) {
+            error(e);
+        } finally {
+            close();
+        }
+    }
+
+    /**
+     * 在新线程里转发一个方向。
+     */
+    protected void startPump(SocketChannel from, SocketChannel to, int mode, boolean up) {
+        mStage = STAGE_DATA;
+        Threads.start(() -> {
+            try {
+                pump(from, to, mode, up);
+            } catch (IOException | CryptoException e) {
+                error(e);
+            } finally {
+                close();
+            }
+        });
+    }
+
+    /**
+     * 转发到 from 读到 EOF 为止。up 表示发往目标的方向，统计的都是明文字节数。
+     */
+    protected void pump(SocketChannel from, SocketChannel to, int mode, boolean up) throws IOException, CryptoException {
+        ByteBuf in = allocate();
+        ByteBuf out = mode == PLAIN ? in : allocate();
+        ByteBuf frame = mode == ENCRYPT && mEncoder != null || mode == DECRYPT && mDecoder != null ? allocate() : null;
+        try {
+            while (true) {
+                in.clear();
+                if (read(from, in) < 0)
+                    return;
+                if (!up && mTrace != null) {
+                    mTrace.firstByte(mTarget);
+                }
+                ByteBuf data = in;
+                int plain = in.readableBytes();
+                if (mode == ENCRYPT) {
+                    RelayMetrics.read();
+                    ByteBuf src = in;
+                    if (frame != null) {
+                        frame.clear();
+                        mEncoder.encode(in, frame);
+                        src = frame;
+                    }
+                    out.clear();
+                    mCrypto.encrypt(src, out);
+                    RelayMetrics.write(out.readableBytes());
+                    data = out;
+                } else if (mode == DECRYPT) {
+                    out.clear();
+                    mCrypto.decrypt(in, out);
+                    data = out;
+                    if (frame != null) {
+                        frame.clear();
+                        if (!decode(out, frame))
+                            return;
+                        data = frame;
+                    }
+                    plain = data.readableBytes();
+                }
+                if (up) {
+                    mBytesUp += plain;
+                } else {
+                    mBytesDown += plain;
+                }
+                write(to, data);
+            }
+        } finally {
+            in.release();
+            if (out != in) {
+                out.release();
+            }
+            if (frame != null) {
+                frame.release();
+            }
+            if (mode == DECRYPT && mDecoder != null) {
+                mDecoder.close();
+            }
+        }
+    }
+
+    /**
+     * 解帧，数据不合法时记录错误并返回 false。
+     */
+    protected boolean decode(ByteBuf in, ByteBuf out) {
+        if (mDecoder.decode(in, out))
+            return true;
+        log.error("Bad frame: " + mDecoder.getError() + " local " + remoteAddress(mLocal));
+        mResult = AccessLog.PROTOCOL_ERROR;
+        return false;
+    }
+
+    /**
+     * 池化的 heap buffer：加/解密与解帧直接在数组上处理，不会在每个转发线程（可能是虚拟线程）上
+     * 各分配一份线程本地的临时空间。socket 读写经过 JDK 按（载体）线程缓存的临时 direct buffer。
+     */
+    protected static ByteBuf allocate() {
+        return ALLOCATOR.heapBuffer(BUFFER_SIZE);
+    }
+
+    /**
+     * 读到 buf 的可写空间，返回读到的字节数，EOF 时返回 -1。
+     */
+    protected static int read(SocketChannel channel, ByteBuf buf) throws IOException {
+        ByteBuffer nio = buf.nioBuffer(buf.writerIndex(), buf.writableBytes());
+        int n = channel.read(nio);
+        if (n > 0) {
+            buf.writerIndex(buf.writerIndex() + n);
+        }
+        return n;
+    }
+
+    /**
+     * 写出 buf 的全部可读数据。
+     */
+    protected static void write(SocketChannel channel, ByteBuf buf) throws IOException {
+        while (buf.isReadable()) {
+            int n = channel.write(buf.nioBuffer());
+            buf.skipBytes(n);
+        }
+    }
+
+    /**
+     * 阻塞连接，超时为配置的 timeout。
+     */
+    protected SocketChannel connect(InetSocketAddress address) throws IOException {
+        mStage = STAGE_CONNECTING;
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().setKeepAlive(true);
+            channel.socket().connect(address, mConfig.getTimeout());
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return channel;
+    }
+
+    private void error(Exception e) {
+        if (mClosed.get())
+            return;
+        if (e instanceof CryptoException) {
+            log.error("Catch exception", e);
+            mResult = AccessLog.CRYPTO_ERROR;
+        } else {
+            log.error("Relay exception " + e.getMessage() + " local " + remoteAddress(mLocal));
+            mResult = AccessLog.IO_ERROR;
+        }
+    }
+
+    protected static String remoteAddress(SocketChannel channel) {
+        try {
+            return String.valueOf(channel.getRemoteAddress());
+        } catch (IOException e) {
+            return "unknown";
+        }
+    }
+
+    protected boolean isClosed() {
+        return mClosed.get();
+    }
+
+    /**
+     * 关闭后释放的资源，只调用一次。
+     */
+    protected void onClose() {
+    }
+
+    protected void close() {
+        if (!mClosed.compareAndSet(false, true))
+            return;
+        ConnectionRegistry.unregister(mId);
+        if (mSampled || !AccessLog.OK.equals(mResult)) {
+            AccessLog.log(mTarget, mBytesUp, mBytesDown,
+                    System.currentTimeMillis() - mStartTime, mResult);
+        }
+        onClose();
+        closeQuietly(mLocal);
+        closeQuietly(mRemote);
+    }
+
+    @Override
+    public String peer() {
+        return remoteAddress(mLocal);
+    }
+
+    @Override
+    public Object target() {
+        return mTarget;
+    }
+
+    @Override
+    public String stage() {
+        return mStage;
+    }
+
+    @Override
+    public long bytesUp() {
+        return mBytesUp;
+    }
+
+    @Override
+    public long bytesDown() {
+        return mBytesDown;
+    }
+
+    @Override
+    public long startTime() {
+        return mStartTime;
+    }
+
+    /**
+     * 阻塞 IO 由写阻塞自然限速，不会暂停读取。
+     */
+    @Override
+    public boolean paused() {
+        return false;
+    }
+
+    /**
+     * 关闭两个连接，阻塞在读写上的线程随之退出。
+     */
+    @Override
+    public void kill(String result) {
+        if (isClosed())
+            return;
+        mResult = result;
+        close();
+    }
+
+    /**
+     * 阻塞 IO 只有固定大小的读缓冲，不计入预算。
+     */
+    @Override
+    public long bufferedBytes() {
+        return 0;
+    }
+
+    static void closeQuietly(SocketChannel channel) {
+        if (channel == null)
+            return;
+        try {
+            channel.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package shadowsocks.threadio;
+
+import io.netty.buffer.ByteBuf;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.GlobalConfig;
+import shadowsocks.compress.Compression;
+import shadowsocks.compress.FrameDecoder;
+import shadowsocks.crypto.CryptoException;
+import shadowsocks.crypto.ReplayFilter;
+import shadowsocks.metrics.AccessLog;
+import shadowsocks.protocol.Address;
+import shadowsocks.protocol.HeaderParser;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * 服务端的一个连接，协议与 {@link shadowsocks.vertxio.ServerHandler} 相同。
+ * 域名使用系统的 resolver 解析。
+ */
+class ServerRelay extends Relay {
+
+    private static Logger log = LogManager.getLogger(ServerRelay.class.getName());
+
+    // 重放连接最长保持时间，单位毫秒
+    private final static int DRAIN_TIMEOUT = 60 * 1000;
+
+    private ScheduledFuture<?> mDrainTimer;
+
+    ServerRelay(SocketChannel local) {
+        super(local);
+    }
+
+    @Override
+    protected void relay() throws IOException, CryptoException {
+        ByteBuf in = allocate();
+        ByteBuf out = allocate();
+        ByteBuf data = out;
+        boolean connected = false;
+        try {
+            HeaderParser parser = new HeaderParser(mConfig.isNoise());
+            ReplayFilter filter = ReplayFilter.get();
+            while (true) {
+                in.clear();
+                if (read(mLocal, in) < 0)
+                    return;
+                mCrypto.decrypt(in, out);
+                if (filter != null && mCrypto.getIV(false) != null) {
+                    // IV 收完整后检查一次
+                    boolean replay = filter.checkAndAdd(mCrypto.getIV(false));
+                    filter = null;
+                    if (replay) {
+                        drain(in);
+                        return;
+                    }
+                }
+                int result = parser.parse(out);
+                if (result == HeaderParser.ERROR) {
+                    log.error(parser.getError());
+                    mResult = AccessLog.PROTOCOL_ERROR;
+                    return;
+                }
+                if (result == HeaderParser.DONE)
+                    break;
+                out.discardReadBytes();
+            }
+            Address address = parser.getAddress();
+            log.debug("Connecting to {}", address);
+            mTarget = address;
+            if (parser.isCompressed()) {
+                mEncoder = Compression.ownedEncoder(Compression.LZ4.equals(mConfig.getCompression()));
+                mDecoder = new FrameDecoder();
+                data = allocate();
+                if (!decode(out, data))
+                    return;
+            }
+            if (mTrace != null) {
+                mTrace.header();
+            }
+            InetAddress resolved;
+            if (address.isHost()) {
+                if (mTrace != null) {
+                    mTrace.dnsStart();
+                }
+                try {
+                    resolved = InetAddress.getByName(address.getHost());
+                } catch (UnknownHostException e) {
+                    log.error("Failed to resolve " + address.getHost() + ". Caused by " + e.getMessage());
+                    mResult = AccessLog.DNS_FAILED;
+                    return;
+                }
+                if (mTrace != null) {
+                    mTrace.dnsDone();
+                }
+            } else {
+                resolved = InetAddress.getByName(address.getHost());
+            }
+            if (mTrace != null) {
+                mTrace.connectStart();
+            }
+            try {
+                mRemote = connect(new InetSocketAddress(resolved, address.getPort()));
+            } catch (IOException e) {
+                log.error("Failed to connect " + address + ". Caused by " + e.getMessage());
+                mResult = AccessLog.CONNECT_FAILED;
+                return;
+            }
+            mResult = AccessLog.OK;
+            if (mTrace != null) {
+                mTrace.connected();
+            }
+            // data after the header
+            mBytesUp += data.readableBytes();
+            write(mRemote, data);
+            connected = true;
+        } finally {
+            in.release();
+            out.release();
+            if (data != out) {
+                data.release();
+            }
+            if (!connected && mDecoder != null) {
+                // 没有开始转发，pump 不会释放
+                mDecoder.close();
+            }
+        }
+        startPump(mRemote, mLocal, ENCRYPT, false);
+        pump(mLocal, mRemote, DECRYPT, true);
+    }
+
+    /**
+     * 重放的连接：close 立即断开；drain 读取并丢弃，直到对方断开或超时，不暴露任何特征。
+     */
+    private void drain(ByteBuf in) throws IOException {
+        log.debug("Replayed IV from {}", remoteAddress(mLocal));
+        mResult = AccessLog.REPLAY;
+        if (GlobalConfig.REPLAY_ACTION_CLOSE.equals(mConfig.getReplayAction()))
+            return;
+        mStage = STAGE_DRAIN;
+        mDrainTimer = Threads.schedule(this::close, DRAIN_TIMEOUT);
+        do {
+            in.clear();
+        } while (read(mLocal, in) >= 0);
+    }
+
+    @Override
+    protected void onClose() {
+        if (mDrainTimer != null) {
+            mDrainTimer.cancel(false);
+        }
+    }
+}
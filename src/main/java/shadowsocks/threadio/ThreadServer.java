@@ -0,0 +1,83 @@
+package shadowsocks.threadio;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+/**
+ * engine 为 thread 时的监听：阻塞 accept，每个连接交给一个转发线程（JDK 21 起为虚拟线程）。
+ *
+ * 加密在转发线程里执行，不会像 event loop 那样拖慢同一线程上的其他连接。
+ * 客户端只支持 socks5。
+ */
+public class ThreadServer {
+
+    public static Logger log = LogManager.getLogger(ThreadServer.class.getName());
+
+    private final static int MIN_BACKOFF = 5;// accept 出错后等待的毫秒数，连续出错时加倍
+    private final static int MAX_BACKOFF = 1000;
+
+    private final boolean mIsServer;
+    private ServerSocketChannel mChannel;
+
+    public ThreadServer(boolean isServer) {
+        mIsServer = isServer;
+    }
+
+    public void listen(int port, String host) throws IOException {
+        mChannel = ServerSocketChannel.open();
+        mChannel.bind(new InetSocketAddress(host, port), 1024);
+        Thread acceptor = new Thread(this::accept, "ss-acceptor-" + port);
+        acceptor.start();
+        log.info("Thread engine listening at " + port + (Threads.isVirtual() ? " (virtual threads)" : " (platform threads)"));
+    }
+
+    private void accept() {
+        ServerSocketChannel server = mChannel;
+        int backoff = 0;
+        while (server.isOpen()) {
+            SocketChannel channel;
+            try {
+                channel = server.accept();
+            } catch (ClosedChannelException e) {
+                return;
+            } catch (IOException e) {
+                // 例如文件描述符用完（EMFILE），立即重试只会空转并刷屏，等一会儿再试
+                backoff = backoff == 0 ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+                log.error("Accept failed, retry in " + backoff + "ms. " + e.getMessage());
+                try {
+                    Thread.sleep(backoff);
+                } catch (InterruptedException ie) {
+                    return;
+                }
+                continue;
+            }
+            backoff = 0;
+            try {
+                channel.socket().setTcpNoDelay(true);
+                channel.socket().setKeepAlive(true);
+            } catch (IOException e) {
+                log.error("Set socket options failed. " + e.getMessage());
+                Relay.closeQuietly(channel);
+                continue;
+            }
+            Threads.start(mIsServer ? new ServerRelay(channel) : new ClientRelay(channel));
+        }
+    }
+
+    /**
+     * 停止监听，已经建立的连接不受影响。
+     */
+    public void close() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            log.error("Close failed. " + e.getMessage());
+        }
+    }
+}
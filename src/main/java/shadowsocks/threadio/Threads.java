@@ -0,0 +1,68 @@
+package shadowsocks.threadio;
+
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 转发线程，每个连接的每个方向一个。
+ *
+ * 运行在 JDK 21 及以上时使用虚拟线程（通过反射调用 Thread.ofVirtual()，源码仍然兼容 Java 8），
+ * 否则退回栈较小的普通 daemon 线程。
+ */
+final class Threads {
+
+    private static Logger log = LogManager.getLogger(Threads.class.getName());
+
+    // 普通线程的栈大小，转发逻辑调用很浅
+    private final static long PLATFORM_STACK_SIZE = 256 * 1024;
+
+    private final static AtomicLong mCount = new AtomicLong();
+    private static volatile boolean mVirtual;
+    private final static ThreadFactory FACTORY = createFactory();
+
+    private final static ScheduledExecutorService TIMER = Executors.newSingleThreadScheduledExecutor(r -> {
+        Thread thread = new Thread(r, "ss-relay-timer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private Threads() {
+    }
+
+    private static ThreadFactory createFactory() {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, "ss-relay-", 0L);
+            ThreadFactory factory = (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+            mVirtual = true;
+            return factory;
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.debug("Virtual threads are not available, use platform threads.");
+        }
+        return r -> {
+            Thread thread = new Thread(null, r, "ss-relay-" + mCount.getAndIncrement(), PLATFORM_STACK_SIZE);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+
+    static boolean isVirtual() {
+        return mVirtual;
+    }
+
+    static void start(Runnable task) {
+        FACTORY.newThread(task).start();
+    }
+
+    static ScheduledFuture<?> schedule(Runnable task, long delayMillis) {
+        return TIMER.schedule(task, delayMillis, TimeUnit.MILLISECONDS);
+    }
+}
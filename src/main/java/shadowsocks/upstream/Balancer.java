@@ -0,0 +1,87 @@
+package shadowsocks.upstream;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 从候选服务器中选一个。候选列表已经去掉了下线的与本次连接已经失败过的服务器，不会为空。
+ */
+public interface Balancer {
+
+    String ROUND_ROBIN = "round_robin";
+    String LEAST_CONN = "least_conn";
+    String EWMA = "ewma";
+
+    Upstream select(List<Upstream> candidates);
+
+    static Balancer create(String name) {
+        switch (name.trim().toLowerCase()) {
+            case ROUND_ROBIN:
+                return new RoundRobin();
+            case LEAST_CONN:
+                return new LeastConn();
+            case EWMA:
+                return new Ewma();
+            default:
+                throw new IllegalArgumentException("Unsupport balance: " + name);
+        }
+    }
+
+    /**
+     * 依次轮流。
+     */
+    class RoundRobin implements Balancer {
+        private final AtomicInteger mNext = new AtomicInteger();
+
+        @Override
+        public Upstream select(List<Upstream> candidates) {
+            return candidates.get((mNext.getAndIncrement() & Integer.MAX_VALUE) % candidates.size());
+        }
+    }
+
+    /**
+     * 当前连接数最少的，相同时轮流。
+     */
+    class LeastConn implements Balancer {
+        private final AtomicInteger mNext = new AtomicInteger();
+
+        @Override
+        public Upstream select(List<Upstream> candidates) {
+            int size = candidates.size();
+            int start = (mNext.getAndIncrement() & Integer.MAX_VALUE) % size;
+            Upstream best = null;
+            for (int i = 0; i < size; i++) {
+                Upstream upstream = candidates.get((start + i) % size);
+                if (best == null || upstream.getActive() < best.getActive()) {
+                    best = upstream;
+                }
+            }
+            return best;
+        }
+    }
+
+    /**
+     * 建连耗时 EWMA × (连接数 + 1) 最小的：延迟低的多分，但连接数上去后让给其他服务器。
+     * 还没有样本的服务器优先，先测出延迟。
+     */
+    class Ewma implements Balancer {
+        private final AtomicInteger mNext = new AtomicInteger();
+
+        @Override
+        public Upstream select(List<Upstream> candidates) {
+            int size = candidates.size();
+            int start = (mNext.getAndIncrement() & Integer.MAX_VALUE) % size;
+            Upstream best = null;
+            double bestScore = 0;
+            for (int i = 0; i < size; i++) {
+                Upstream upstream = candidates.get((start + i) % size);
+                double score = upstream.getRtt() * (upstream.getActive() + 1);
+                if (best == null || score < bestScore) {
+                    best = upstream;
+                    bestScore = score;
+                }
+            }
+            return best;
+        }
+    }
+}
@@ -0,0 +1,137 @@
+package shadowsocks.upstream;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 一个上游服务器及其状态：正在使用的连接数、建连耗时的 EWMA、健康状态。
+ *
+ * 多个 event loop 同时读写。EWMA 与连续失败次数的更新不加锁，并发时可能丢掉一次采样，
+ * 对选择结果没有影响。
+ */
+public class Upstream {
+
+    // EWMA 新样本的权重
+    private final static double ALPHA = 0.3;
+    // 连续失败后下线时间，每次失败翻倍
+    private final static long MIN_DOWN_TIME = 1000;
+    private final static long MAX_DOWN_TIME = 60000;
+
+    private final String mHost;
+    private final int mPort;
+    private final String mName;
+
+    private final AtomicInteger mActive = new AtomicInteger();
+    private final AtomicLong mFailures = new AtomicLong();
+    private volatile double mRtt;// 毫秒，0 表示还没有样本
+    private volatile int mConsecutiveFailures;
+    private volatile long mDownUntil;
+
+    Upstream(String host, int port) {
+        mHost = host;
+        mPort = port;
+        mName = (host.indexOf(':') >= 0 ? "[" + host + "]" : host) + ":" + port;
+    }
+
+    /**
+     * "host:port"、"[ipv6]:port" 或只有 host（使用 defaultPort）。
+     */
+    static Upstream parse(String text, int defaultPort) {
+        String s = text.trim();
+        String host = s;
+        int port = defaultPort;
+        if (s.startsWith("[")) {
+            int end = s.indexOf(']');
+            if (end < 0)
+                throw new IllegalArgumentException("Invalid server: " + text);
+            host = s.substring(1, end);
+            if (s.length() > end + 1) {
+                if (s.charAt(end + 1) != ':')
+                    throw new IllegalArgumentException("Invalid server: " + text);
+                port = parsePort(s.substring(end + 2), text);
+            }
+        } else if (s.indexOf(':') >= 0 && s.indexOf(':') == s.lastIndexOf(':')) {
+            host = s.substring(0, s.indexOf(':'));
+            port = parsePort(s.substring(s.indexOf(':') + 1), text);
+        }
+        if (host.isEmpty())
+            throw new IllegalArgumentException("Invalid server: " + text);
+        return new Upstream(host, port);
+    }
+
+    private static int parsePort(String port, String text) {
+        try {
+            int p = Integer.parseInt(port);
+            if (p > 0 && p < 65536)
+                return p;
+        } catch (NumberFormatException e) {
+            // fall through
+        }
+        throw new IllegalArgumentException("Invalid server port: " + text);
+    }
+
+    public String getHost() {
+        return mHost;
+    }
+
+    public int getPort() {
+        return mPort;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public int getActive() {
+        return mActive.get();
+    }
+
+    public double getRtt() {
+        return mRtt;
+    }
+
+    public long getFailures() {
+        return mFailures.get();
+    }
+
+    public boolean isAvailable(long now) {
+        return now >= mDownUntil;
+    }
+
+    /**
+     * 开始一次连接（包括正在建连的），least_conn 与 ewma 据此分散负载。
+     */
+    public void acquire() {
+        mActive.incrementAndGet();
+    }
+
+    public void release() {
+        mActive.decrementAndGet();
+    }
+
+    /**
+     * 建连成功，记录耗时并恢复为可用。
+     */
+    public void connected(long rttNanos) {
+        double rtt = rttNanos / 1e6;
+        double old = mRtt;
+        mRtt = old == 0 ? rtt : old + ALPHA * (rtt - old);
+        mConsecutiveFailures = 0;
+        mDownUntil = 0;
+    }
+
+    /**
+     * 建连失败，下线一段时间。期间只有探测（或所有服务器都不可用时）才会再连它。
+     */
+    public void failed() {
+        mFailures.incrementAndGet();
+        int n = Math.min(mConsecutiveFailures + 1, 16);
+        mConsecutiveFailures = n;
+        mDownUntil = System.currentTimeMillis() + Math.min(MIN_DOWN_TIME << (n - 1), MAX_DOWN_TIME);
+    }
+
+    @Override
+    public String toString() {
+        return mName;
+    }
+}
@@ -0,0 +1,162 @@
+package shadowsocks.upstream;
+
+import io.vertx.core.Vertx;
+import io.vertx.core.net.NetClient;
+import io.vertx.core.net.NetClientOptions;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+import shadowsocks.GlobalConfig;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * 客户端的上游服务器列表（servers，未配置时为 server:server_port）。
+ *
+ * 建连失败的服务器被动下线一段时间（见 {@link Upstream#failed()}），
+ * 开启 health_check_interval 后定期 TCP 建连探测，成功即恢复，并更新延迟。
+ * 重载配置时同名服务器沿用原来的状态。
+ */
+public class UpstreamPool {
+
+    private static Logger log = LogManager.getLogger(UpstreamPool.class.getName());
+
+    private static volatile UpstreamPool mPool;
+
+    private final List<Upstream> mUpstreams;
+    private final Balancer mBalancer;
+
+    public UpstreamPool(List<Upstream> upstreams, Balancer balancer) {
+        mUpstreams = Collections.unmodifiableList(new ArrayList<>(upstreams));
+        mBalancer = balancer;
+    }
+
+    public static UpstreamPool get() {
+        return mPool;
+    }
+
+    /**
+     * 按配置构造并发布。
+     */
+    public static void init(GlobalConfig config) {
+        mPool = create(config);
+    }
+
+    public static void set(UpstreamPool pool) {
+        mPool = pool;
+    }
+
+    /**
+     * 按配置构造（不发布），配置错误时抛出 IllegalArgumentException。
+     */
+    public static UpstreamPool create(GlobalConfig config) {
+        Map<String, Upstream> old = new HashMap<>();
+        UpstreamPool current = mPool;
+        if (current != null) {
+            for (Upstream upstream : current.mUpstreams) {
+                old.put(upstream.getName(), upstream);
+            }
+        }
+        List<String> servers = config.getServers();
+        if (servers.isEmpty()) {
+            servers = Collections.singletonList(config.getServer());
+        }
+        List<Upstream> upstreams = new ArrayList<>();
+        for (String server : servers) {
+            Upstream upstream = Upstream.parse(server, config.getPort());
+            upstreams.add(old.getOrDefault(upstream.getName(), upstream));
+        }
+        return new UpstreamPool(upstreams, Balancer.create(config.getBalance()));
+    }
+
+    public List<Upstream> getUpstreams() {
+        return mUpstreams;
+    }
+
+    /**
+     * @param tried 本次连接已经失败过的服务器，可以为 null
+     * @return 没有可以再尝试的服务器时返回 null
+     */
+    public Upstream select(List<Upstream> tried) {
+        if (mUpstreams.size() == 1 && tried == null)
+            return mUpstreams.get(0);
+        long now = System.currentTimeMillis();
+        List<Upstream> candidates = new ArrayList<>(mUpstreams.size());
+        for (Upstream upstream : mUpstreams) {
+            if (upstream.isAvailable(now) && (tried == null || !tried.contains(upstream))) {
+                candidates.add(upstream);
+            }
+        }
+        if (candidates.isEmpty()) {
+            // 全部下线时仍然尝试，好过直接拒绝
+            for (Upstream upstream : mUpstreams) {
+                if (tried == null || !tried.contains(upstream)) {
+                    candidates.add(upstream);
+                }
+            }
+        }
+        return candidates.isEmpty() ? null : mBalancer.select(candidates);
+    }
+
+    /**
+     * 定期探测当前列表中的所有服务器，只建立 TCP 连接，不发送数据。
+     *
+     * @return timer id
+     */
+    public static long startHealthCheck(Vertx vertx, int interval, int timeout) {
+        NetClient client = vertx.createNetClient(new NetClientOptions().setConnectTimeout(timeout));
+        return vertx.setPeriodic(interval, id -> {
+            UpstreamPool pool = mPool;
+            if (pool == null)
+                return;
+            for (Upstream upstream : pool.mUpstreams) {
+                long start = System.nanoTime();
+                client.connect(upstream.getPort(), upstream.getHost(), res -> {
+                    if (res.succeeded()) {
+                        boolean wasDown = !upstream.isAvailable(System.currentTimeMillis());
+                        upstream.connected(System.nanoTime() - start);
+                        res.result().close();
+                        if (wasDown) {
+                            log.info("Server " + upstream + " is up.");
+                        }
+                    } else {
+                        if (upstream.isAvailable(System.currentTimeMillis())) {
+                            log.warn("Server " + upstream + " is down. " + res.cause().getMessage());
+                        }
+                        upstream.failed();
+                    }
+                });
+            }
+        });
+    }
+
+    public static void export(StringBuilder sb) {
+        UpstreamPool pool = mPool;
+        if (pool == null)
+            return;
+        long now = System.currentTimeMillis();
+        sb.append("# TYPE ss_upstream_up gauge\n");
+        for (Upstream upstream : pool.mUpstreams) {
+            sb.append("ss_upstream_up{server=\"").append(upstream.getName()).append("\"} ")
+                    .append(upstream.isAvailable(now) ? 1 : 0).append('\n');
+        }
+        sb.append("# TYPE ss_upstream_active_connections gauge\n");
+        for (Upstream upstream : pool.mUpstreams) {
+            sb.append("ss_upstream_active_connections{server=\"").append(upstream.getName()).append("\"} ")
+                    .append(upstream.getActive()).append('\n');
+        }
+        sb.append("# TYPE ss_upstream_connect_ms gauge\n");
+        for (Upstream upstream : pool.mUpstreams) {
+            sb.append("ss_upstream_connect_ms{server=\"").append(upstream.getName()).append("\"} ")
+                    .append(upstream.getRtt()).append('\n');
+        }
+        sb.append("# TYPE ss_upstream_connect_failures_total counter\n");
+        for (Upstream upstream : pool.mUpstreams) {
+            sb.append("ss_upstream_connect_failures_total{server=\"").append(upstream.getName()).append("\"} ")
+                    .append(upstream.getFailures()).append('\n');
+        }
+    }
+}
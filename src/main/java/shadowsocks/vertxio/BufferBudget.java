@@ -0,0 +1,103 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.Vertx;
+import shadowsocks.GlobalConfig;
+import shadowsocks.metrics.MemoryBudget;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.LongSupplier;
+
+/**
+ * 一个连接的内存预算：超过 {@link MemoryBudget} 的预算时暂停读取，每 RECHECK 毫秒重新统计，回落后恢复。
+ *
+ * 写队列满时的暂停由 flowControl 处理，写完后的 drain 会恢复；这里处理写队列没满、但整个连接或全局超出预算的情况。
+ * 两者通过 {@link ReadPause} 区分原因，这里恢复时不会解除写队列满的暂停。
+ *
+ * 统计要汇总各个写队列，不在每个报文上做：记录上次统计的结果加上之后流入的字节数作为上界，
+ * 全局没有压力时，上界超过单个连接预算的一半（留出 IV、噪声与分帧的余量）才重新统计。
+ * 只在连接所属的 context 上调用。
+ */
+class BufferBudget {
+
+    private final static int RECHECK = 50;
+
+    private final Vertx mVertx;
+    private final int mLimit;
+    private final LongSupplier mMeasure;
+    private final List<ReadPause> mPaused = new ArrayList<>(2);
+    private long mBound;// 持有字节数的上界
+    private long mTimer = -1;
+    private boolean mClosed;
+
+    /**
+     * @param measure 统计连接当前持有的字节数
+     */
+    BufferBudget(Vertx vertx, GlobalConfig config, LongSupplier measure) {
+        mVertx = vertx;
+        mLimit = config.getConnectionBufferLimit();
+        mMeasure = measure;
+    }
+
+    /**
+     * 记录流入连接、之后不经过 check 的字节，如交给 CryptoPipe 的数据。
+     */
+    void count(int bytes) {
+        mBound += bytes;
+    }
+
+    /**
+     * 流入 bytes 字节后检查，超出预算时暂停 source。
+     */
+    void check(ReadPause source, int bytes) {
+        mBound += bytes;
+        if (mClosed)
+            return;
+        if (MemoryBudget.level() == MemoryBudget.NORMAL && (mLimit <= 0 || mBound <= mLimit / 2))
+            return;
+        long held = mMeasure.getAsLong();
+        mBound = held;
+        if (!MemoryBudget.exceeded(held, mLimit))
+            return;
+        if (!mPaused.contains(source)) {
+            source.pause(ReadPause.BUDGET);
+            mPaused.add(source);
+            MemoryBudget.paused();
+        }
+        if (mTimer == -1) {
+            mTimer = mVertx.setTimer(RECHECK, id -> recheck());
+        }
+    }
+
+    private void recheck() {
+        mTimer = -1;
+        if (mClosed)
+            return;
+        long held = mMeasure.getAsLong();
+        mBound = held;
+        if (MemoryBudget.exceeded(held, mLimit)) {
+            mTimer = mVertx.setTimer(RECHECK, id -> recheck());
+            return;
+        }
+        for (ReadPause pause : mPaused) {
+            pause.resume(ReadPause.BUDGET);
+        }
+        mPaused.clear();
+    }
+
+    boolean isPaused() {
+        return !mPaused.isEmpty();
+    }
+
+    /**
+     * 连接结束时调用，不再恢复读取。
+     */
+    void close() {
+        mClosed = true;
+        if (mTimer != -1) {
+            mVertx.cancelTimer(mTimer);
+            mTimer = -1;
+        }
+        mPaused.clear();
+    }
+}
@@ -1,5 +1,9 @@
 package shadowsocks.vertxio;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.AsyncResult;
+import io.vertx.core.Context;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
@@ -9,40 +13,88 @@ import io.vertx.core.net.NetSocket;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import shadowsocks.GlobalConfig;
+import shadowsocks.compress.Compression;
+import shadowsocks.compress.FrameDecoder;
+import shadowsocks.compress.FrameEncoder;
 import shadowsocks.crypto.CryptoException;
 import shadowsocks.crypto.CryptoFactory;
 import shadowsocks.crypto.SSCrypto;
-import shadowsocks.crypto.Utils;
-
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-import java.security.SecureRandom;
-
-public class ClientHandler implements Handler<Buffer> {
+import shadowsocks.jfr.FlightEvents;
+import shadowsocks.kcp.KcpSocket;
+import shadowsocks.metrics.AccessLog;
+import shadowsocks.metrics.Connection;
+import shadowsocks.metrics.ConnectionRegistry;
+import shadowsocks.metrics.ConnectionTrace;
+import shadowsocks.protocol.Address;
+import shadowsocks.protocol.Noise;
+import shadowsocks.protocol.HttpParser;
+import shadowsocks.protocol.Socks5Parser;
+import shadowsocks.route.Route;
+import shadowsocks.route.Router;
+import shadowsocks.upstream.Upstream;
+import shadowsocks.upstream.UpstreamPool;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * 客户端的一个连接：socks5 或 HTTP 代理（同一个端口，按第一个字节区分），或透明代理。
+ */
+public class ClientHandler implements Handler<Buffer>, Connection {
 
     public static Logger log = LogManager.getLogger(ClientHandler.class.getName());
 
-    private final static int ADDR_TYPE_IPV4 = 1;
-    private final static int ADDR_TYPE_HOST = 3;
-    private final static int ADDR_TYPE_IPV6 = 4;
+    private final static byte SOCKS5_VERSION = 0x05;
+    private final static byte[] HTTP_ESTABLISHED = "HTTP/1.1 200 Connection established\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1);
+    private final static byte[] HTTP_BAD_REQUEST = httpError("400 Bad Request");
+    private final static byte[] HTTP_FORBIDDEN = httpError("403 Forbidden");
+    private final static byte[] HTTP_BAD_GATEWAY = httpError("502 Bad Gateway");
 
     private Vertx mVertx;
+    private Context mContext;
     private NetSocket mLocalSocket;
     private NetSocket mServerSocket;
+    private ReadPause mLocalPause;
     private int mCurrentStage;
     private Buffer mBufferQueue;
+    private Socks5Parser mParser = new Socks5Parser();
+    private HttpParser mHttp;// HTTP 代理时不为 null
+    private boolean mTransparent;// 透明代理，没有握手与回复
+    private Router mRouter;
     private SSCrypto mCrypto;
+    private GlobalConfig mConfig;
+    private OutboundBatcher mUpstream;
+    private CryptoPipe mDownstreamPipe;// 开启 crypto offload 时，来自服务器的数据的解密
+    private FrameDecoder mDecoder;// 请求压缩时，来自服务器的数据的解帧
+    private UpstreamPool mPool;
+    private Upstream mServer;// 当前使用（或正在连接）的服务器
+    private List<Upstream> mTried;// 已经连接失败的服务器，重试时才创建
+
+    // Access log
+    private boolean mSampled;
+    private long mStartTime;
+    private Address mTarget;
+    private long mBytesUp;
+    private long mBytesDown;
+    private String mResult = AccessLog.INCOMPLETE;
+    private ConnectionTrace mTrace;
+    private FlightEvents mEvents;
+
+    // Connection registry
+    private long mId;
+    private int mPaused;// 按位：1 应用程序，2 远端
+    private BufferBudget mBudget;
 
     private class Stage {
         final public static int HELLO = 0;
         final public static int HEADER = 1;
-        final public static int ADDRESS = 2;
-        final public static int DATA = 3;
+        final public static int DATA = 2;
         final public static int DESTORY = 100;
     }
 
     private void nextStage() {
-        if (mCurrentStage != Stage.DATA){
+        if (mCurrentStage < Stage.DATA){
             mCurrentStage++;
         }
     }
@@ -58,26 +110,46 @@ public class ClientHandler implements Handler<Buffer> {
         socket.exceptionHandler(e -> {
             log.error("Client setFinishHandler Exception " + e.getMessage()
                     +" local " + socket.localAddress() + " , remote " + socket.remoteAddress());
+            mResult = AccessLog.IO_ERROR;
             destory();
         });
     }
 
     public ClientHandler(Vertx vertx, NetSocket socket) {
         mVertx = vertx;
+        mContext = vertx.getOrCreateContext();
         mLocalSocket = socket;
+        mLocalPause = new ReadPause(socket);
         mCurrentStage = Stage.HELLO;
         mBufferQueue = Buffer.buffer();
+        // Keep the config snapshot for the whole connection, reload only affects new connections.
+        mConfig = GlobalConfig.get();
+        mBudget = new BufferBudget(vertx, mConfig, this::bufferedBytes);
+        mStartTime = System.currentTimeMillis();
+        mSampled = AccessLog.sample(mConfig.getAccessLogSample());
+        mTrace = ConnectionTrace.start(mConfig);
+        mRouter = Router.get();
+        mPool = UpstreamPool.get();
+        mId = ConnectionRegistry.register(this);
+        mEvents = FlightEvents.start(mConfig, mId, "client", socket);
         setFinishHandler(mLocalSocket);
         try{
-            mCrypto = CryptoFactory.create(GlobalConfig.get().getMethod(), GlobalConfig.get().getPassword());
+            mCrypto = CryptoFactory.create(mConfig.getMethod(), mConfig.getPassword(), mConfig.getIvLen());
         }catch(Exception e){
             //Will never happen, we check this before.
         }
     }
 
-    private Buffer compactBuffer(int start) {
-        mBufferQueue = Buffer.buffer().appendBuffer(mBufferQueue.slice(start, mBufferQueue.length()));
-        return mBufferQueue;
+    /**
+     * 透明代理：目标地址已知，跳过握手直接连接。
+     */
+    public ClientHandler(Vertx vertx, NetSocket socket, Address target) {
+        this(vertx, socket);
+        mTransparent = true;
+        mCurrentStage = Stage.DATA;
+        if (target == null || connect(target)) {
+            destory();
+        }
     }
 
     private Buffer cleanBuffer() {
@@ -86,236 +158,611 @@ public class ClientHandler implements Handler<Buffer> {
     }
 
 
-    private boolean handleStageHello() {
-        int bufferLength = mBufferQueue.length();
-        // VERSION + METHOD LEN + METHOD
-        if (bufferLength < 3)
+    /**
+     * 解析 socks5 握手与请求，头部之后的数据留在 in 中。
+     */
+    private boolean handleStageHeader(ByteBuf in) {
+        while (true) {
+            int result = mParser.parse(in);
+            if (result == Socks5Parser.NEED_MORE)
+                return false;
+            if (result == Socks5Parser.ERROR) {
+                log.warn(mParser.getError());
+                mResult = AccessLog.PROTOCOL_ERROR;
+                return true;
+            }
+            if (result == Socks5Parser.GREETING) {
+                byte [] msg = {0x05, 0x00};
+                mLocalSocket.write(Buffer.buffer(msg));
+                nextStage();
+                continue;
+            }
+            if (connect(mParser.getAddress()))
+                return true;
+            nextStage();
             return false;
-        //SOCK5
-        if (mBufferQueue.getByte(0) != 5) {
-            log.warn("Protocol error.");
-            return true;
         }
-        int methodLen = mBufferQueue.getByte(1);
-        if (bufferLength < methodLen + 2)
-            return false;
-        byte [] msg = {0x05, 0x00};
-        mLocalSocket.write(Buffer.buffer(msg));
-        //Discard the method list
-        cleanBuffer();
-        nextStage();
-        return false;
     }
 
-    private boolean handleStageHeader() {
-        int bufferLength = mBufferQueue.length();
-        // VERSION + MODE + RSV + ADDR TYPE
-        if (bufferLength < 4)
+    /**
+     * 解析 HTTP 代理的第一个请求头，之后的数据交给 {@link #handleHttpData(ByteBuf)}。
+     */
+    private boolean handleStageHttp(ByteBuf in) {
+        int result = mHttp.parse(in);
+        if (result == HttpParser.NEED_MORE)
             return false;
-        // 1 connect
-        // 2 bind
-        // 3 udp associate
-        // just support mode 1 now
-        if (mBufferQueue.getByte(1) != 1) {
-            log.warn("Mode != 1");
-            return true;
+        if (result == HttpParser.ERROR)
+            return httpBadRequest();
+        mCurrentStage = Stage.DATA;
+        if (!mHttp.isConnect()) {
+            forward(mHttp.getHead());
         }
-        nextStage();
-        //keep the addr type
-        compactBuffer(3);
-        if (mBufferQueue.length() > 0) {
-            return handleStageAddress();
+        if (connect(mHttp.getAddress()))
+            return true;
+        return handleHttpData(in);
+    }
+
+    /**
+     * 转发普通 HTTP 请求的请求体（或 CONNECT 隧道），遇到同一连接上的下一个请求时改写请求头；
+     * 目标变化时换一个远端连接。不支持跨目标的 pipelining。
+     */
+    private boolean handleHttpData(ByteBuf in) {
+        while (in.isReadable()) {
+            if (mHttp.inBody()) {
+                int start = in.readerIndex();
+                if (mHttp.body(in) == HttpParser.ERROR)
+                    return httpBadRequest();
+                forward(in.slice(start, in.readerIndex() - start));
+                continue;
+            }
+            int result = mHttp.parse(in);
+            if (result == HttpParser.NEED_MORE)
+                return false;
+            if (result == HttpParser.ERROR)
+                return httpBadRequest();
+            Address address = mHttp.getAddress();
+            if (!mHttp.isConnect() && address.getPort() == mTarget.getPort() && address.getHost().equals(mTarget.getHost())) {
+                forward(mHttp.getHead());
+                continue;
+            }
+            if (mServerSocket == null) {
+                log.warn("Pipelined request to another target {}", address);
+                mResult = AccessLog.PROTOCOL_ERROR;
+                return true;
+            }
+            if (switchTarget(address))
+                return true;
+            if (!mHttp.isConnect()) {
+                forward(mHttp.getHead());
+            }
         }
         return false;
     }
 
-    private boolean handleStageAddress() {
-        int bufferLength = mBufferQueue.length();
-        String addr = null;
-        // Construct the remote header.
-        Buffer remoteHeader = Buffer.buffer();
+    private boolean httpBadRequest() {
+        log.warn(mHttp.getError());
+        mLocalSocket.write(Buffer.buffer(HTTP_BAD_REQUEST));
+        mResult = AccessLog.PROTOCOL_ERROR;
+        return true;
+    }
 
-        if (GlobalConfig.get().isNoise()) {
-            appendNoiseData(remoteHeader);
-        }
+    private static byte[] httpError(String status) {
+        return ("HTTP/1.1 " + status + "\r\nContent-Length: 0\r\nConnection: close\r\n\r\n").getBytes(StandardCharsets.ISO_8859_1);
+    }
 
-        int addrType = mBufferQueue.getByte(0);
+    /**
+     * 发往远端，远端还没连上时先放在队列里。
+     */
+    private void forward(ByteBuf data) {
+        if (mServerSocket != null && mBufferQueue.length() == 0) {
+            sendToRemote(Buffer.buffer(data));
+        } else {
+            mBufferQueue.appendBuffer(Buffer.buffer(data));
+        }
+    }
 
-        remoteHeader.appendByte((byte)(addrType));
+    /**
+     * keep-alive 连接上的请求换了目标：记录上一个目标的访问日志，关闭当前的远端连接后连接新的目标。
+     */
+    private boolean switchTarget(Address address) {
+        logAccess();
+        closeRemote();
+        mStartTime = System.currentTimeMillis();
+        mSampled = AccessLog.sample(mConfig.getAccessLogSample());
+        mBytesUp = 0;
+        mBytesDown = 0;
+        mResult = AccessLog.INCOMPLETE;
+        mTrace = null;
+        if (mEvents != null) {
+            mEvents.restart();
+        }
+        try{
+            // 每个远端连接使用新的 IV
+            mCrypto = CryptoFactory.create(mConfig.getMethod(), mConfig.getPassword(), mConfig.getIvLen());
+        }catch(Exception e){
+            //Will never happen, we check this before.
+        }
+        return connect(address);
+    }
 
-        if (addrType == ADDR_TYPE_IPV4) {
-            // addr type (1) + ipv4(4) + port(2)
-            if (bufferLength < 7)
-                return false;
-            try{
-                addr = InetAddress.getByAddress(mBufferQueue.getBytes(1, 5)).getHostAddress();
-                log.info("ipv4 : " + addr);
-            }catch(UnknownHostException e){
-                log.error("UnknownHostException.", e);
-                return true;
-            }
-            remoteHeader.appendBytes(mBufferQueue.getBytes(1,5));
-            compactBuffer(5);
-        } else if (addrType == ADDR_TYPE_IPV6){
-            // addr type (1) + ipv6(16) + port(2)
-            if (bufferLength < 19)
-                return false;
-            try{
-                addr = InetAddress.getByAddress(mBufferQueue.getBytes(1, 17)).getHostAddress();
-                log.info("ipv6 : " + addr);
-            }catch(UnknownHostException e){
-                log.error("UnknownHostException.", e);
-                return true;
+    private void closeRemote() {
+        if (mServer != null) {
+            mServer.release();
+            mServer = null;
+        }
+        SSCrypto crypto = mCrypto;
+        if (mDownstreamPipe != null) {
+            // 线程池中还在解密的块结束后才能归还 cipher，交回的结果被丢弃
+            mDownstreamPipe.close(v -> crypto.release(false));
+            mDownstreamPipe = null;
+        } else {
+            crypto.release(false);
+        }
+        if (mDecoder != null) {
+            mDecoder.close();
+            mDecoder = null;
+        }
+        NetSocket server = mServerSocket;
+        mServerSocket = null;
+        if (server != null) {
+            server.handler(null);
+            server.closeHandler(null);
+            server.endHandler(null);
+            server.exceptionHandler(null);
+            server.drainHandler(null);
+        }
+        if (mUpstream != null) {
+            // 先写出上一个请求还在加密的部分
+            mUpstream.end(v -> {
+                server.close();
+                crypto.release(true);
+            });
+            mUpstream = null;
+        } else {
+            if (server != null) {
+                server.close();
             }
-            remoteHeader.appendBytes(mBufferQueue.getBytes(1,17));
-            compactBuffer(17);
-        } else if (addrType == ADDR_TYPE_HOST) {
-            short hostLength = mBufferQueue.getUnsignedByte(1);
-            // addr type(1) + len(1) + host + port(2)
-            if (bufferLength < hostLength + 4)
-                return false;
-            addr = mBufferQueue.getString(2, hostLength + 2);
-            log.info("hostname : " + addr);
-            remoteHeader.appendByte((byte)hostLength).appendString(addr);
-            compactBuffer(hostLength + 2);
-        }else {
-            log.warn("Unsupport addr type " + addrType);
+            crypto.release(true);
+        }
+        mTried = null;
+        // 可能因为远端写队列满被暂停，内存预算的暂停仍由 mBudget 恢复
+        mLocalPause.resume(ReadPause.WRITE_QUEUE);
+        mPaused = 0;
+    }
+
+    /**
+     * 按分流规则连接目标，socks5 与 HTTP 代理共用。
+     *
+     * @return true 表示拒绝，调用方结束连接
+     */
+    private boolean connect(Address address) {
+        log.debug("Connecting to {}", address);
+        mTarget = address;
+        if (mTrace != null) {
+            mTrace.header();
+        }
+        Route route = mRouter == null ? Route.PROXY : mRouter.route(address);
+        if (route == Route.REJECT) {
+            log.debug("Reject {}", address);
+            replyRejected();
+            mResult = AccessLog.REJECTED;
             return true;
         }
-        int port = mBufferQueue.getUnsignedShort(0);
-        remoteHeader.appendShort((short)port);
-        compactBuffer(2);
-        log.info("Connecting to " + addr + ":" + port);
-        connectToRemote(GlobalConfig.get().getServer(), GlobalConfig.get().getPort(), remoteHeader);
-        nextStage();
+        if (route == Route.DIRECT) {
+            connectToRemote(address.getHost(), address.getPort(), null, null);
+            return false;
+        }
+        // Construct the remote header.
+        ByteBuf remoteHeader = Unpooled.buffer(address.encodedLength() + Noise.maxLength(mConfig));
+        Noise.write(remoteHeader, mConfig);
+        address.writeTo(remoteHeader, Compression.isRequested(mConfig) ? Address.FLAG_COMPRESS : 0);
+        connectToServer(remoteHeader);
         return false;
     }
 
+    private void replyConnected() {
+        if (mTransparent) {
+            return;
+        }
+        if (mHttp == null) {
+            byte [] msg = {0x05, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01};
+            mLocalSocket.write(Buffer.buffer(msg));
+        } else if (mHttp.isConnect()) {
+            mLocalSocket.write(Buffer.buffer(HTTP_ESTABLISHED));
+        }
+    }
+
+    private void replyRejected() {
+        if (mTransparent) {
+            return;
+        }
+        if (mHttp == null) {
+            // X'02' connection not allowed by ruleset
+            byte [] msg = {0x05, 0x02, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x00};
+            mLocalSocket.write(Buffer.buffer(msg));
+        } else {
+            mLocalSocket.write(Buffer.buffer(HTTP_FORBIDDEN));
+        }
+    }
+
     /**
-     * 添加噪声数据
+     * socks5 直接断开，HTTP 代理回复 502。
      */
-    private void appendNoiseData(Buffer remoteHeader) {
-        // 噪声长度
-        int noiseLenInt = new SecureRandom().nextInt(Utils.NOISE_MAX) + 1;
-        // 转为 byte 数组
-        byte[] noiseLenArr = Utils.intToByteArray(noiseLenInt);
+    private void replyFailed() {
+        if (mHttp != null) {
+            mLocalSocket.write(Buffer.buffer(HTTP_BAD_GATEWAY));
+        }
+    }
 
-        remoteHeader.appendBytes(noiseLenArr);
-        // 填充噪声数据
-        remoteHeader.appendBytes(Utils.randomBytes(noiseLenInt));
+    /**
+     * 选一个服务器连接，失败时换一个重试，都失败才断开应用程序的连接。
+     */
+    private void connectToServer(ByteBuf remoteHeader) {
+        Upstream server = mPool.select(mTried);
+        if (server == null) {
+            replyFailed();
+            mResult = AccessLog.CONNECT_FAILED;
+            destory();
+            return;
+        }
+        mServer = server;
+        server.acquire();
+        connectToRemote(server.getHost(), server.getPort(), remoteHeader, server);
     }
 
-    private void connectToRemote(String addr, int port, Buffer remoteHeader) {
+    /**
+     * 当前服务器连接失败，还有重试次数时换一个服务器。
+     *
+     * @return 是否已经开始重试
+     */
+    private boolean retry(Upstream server, ByteBuf remoteHeader) {
+        server.failed();
+        if (mServer == server) {// destory 时已经释放
+            server.release();
+            mServer = null;
+        }
+        if (mTried == null) {
+            mTried = new ArrayList<>(mConfig.getConnectRetries() + 1);
+        }
+        mTried.add(server);
+        if (mCurrentStage == Stage.DESTORY || mTried.size() > mConfig.getConnectRetries())
+            return false;
+        if (mPool.getUpstreams().size() <= mTried.size())
+            return false;
+        log.warn("Retry " + mTarget + " with another server, " + mTried.size() + " failed.");
+        connectToServer(remoteHeader);
+        return true;
+    }
 
-        NetClientOptions options = new NetClientOptions().setConnectTimeout(GlobalConfig.get().getTimeout()).setTcpKeepAlive(true);
-        NetClient client = mVertx.createNetClient(options);
-        client.connect(port, addr, res -> {  // connect handler
+    /**
+     * @param remoteHeader 为 null 时直连目标，不加密
+     * @param server 连接的上游服务器，直连时为 null
+     */
+    private void connectToRemote(String addr, int port, ByteBuf remoteHeader, Upstream server) {
+        boolean direct = remoteHeader == null;
+        long start = System.nanoTime();
+
+        if (mTrace != null) {
+            mTrace.connectStart();
+        }
+        if (mEvents != null) {
+            mEvents.connectStart();
+        }
+        Handler<AsyncResult<NetSocket>> connectHandler = res -> {
             if (!res.succeeded()) {
                 log.error("Failed to connect " + addr + ":" + port + ". Caused by " + res.cause().getMessage());
+                if (mEvents != null) {
+                    mEvents.connectFailed(mTarget, addr, port, res.cause());
+                }
+                if (server != null && retry(server, remoteHeader))
+                    return;
+                replyFailed();
+                mResult = AccessLog.CONNECT_FAILED;
                 destory();
                 return;
             }
-            mServerSocket = res.result();
+            if (mEvents != null) {
+                mEvents.connected(mTarget, addr, port);
+            }
+            if (mCurrentStage == Stage.DESTORY) {
+                res.result().close();
+                return;
+            }
+            if (server != null) {
+                server.connected(System.nanoTime() - start);
+            }
+            NetSocket serverSocket = res.result();
+            ReadPause serverPause = new ReadPause(serverSocket);
+            mServerSocket = serverSocket;
+            mResult = AccessLog.OK;
+            if (mTrace != null) {
+                mTrace.connected();
+            }
             setFinishHandler(mServerSocket);
+            boolean compress = !direct && Compression.isRequested(mConfig);
+            FrameEncoder encoder = compress ? Compression.encoder(true) : null;
+            FrameDecoder decoder = compress ? new FrameDecoder() : null;
+            mDecoder = decoder;
+            mUpstream = new OutboundBatcher(mLocalPause, mServerSocket, direct ? null : mCrypto, encoder, mConfig, e -> {
+                log.error("Catch exception", e);
+                mResult = AccessLog.CRYPTO_ERROR;
+                destory();
+            });
+            CryptoPipe pipe = direct ? null : CryptoPipe.create(serverPause, mCrypto, false, mConfig, out -> {
+                writeDownstream(out, serverPause, decoder);
+            }, e -> {
+                log.error("Catch exception", e);
+                mResult = AccessLog.CRYPTO_ERROR;
+                destory();
+            });
+            mDownstreamPipe = pipe;
             mServerSocket.handler(buffer -> { // remote socket data handler
+                if (mTrace != null) {
+                    mTrace.firstByte(mTarget);
+                }
+                if (direct) {
+                    mBytesDown += buffer.length();
+                    flowControl(mLocalSocket, serverPause, buffer.length());
+                    mLocalSocket.write(buffer);
+                    return;
+                }
+                if (pipe != null) {
+                    mBudget.count(buffer.length());
+                    pipe.process(buffer.getByteBuf());
+                    return;
+                }
+                ByteBuf out = PooledBuffers.allocate(buffer.length());
                 try {
-                    byte [] data = buffer.getBytes();
-                    byte [] decryptData = mCrypto.decrypt(data, data.length);
-                    flowControl(mLocalSocket, mServerSocket);
-                    mLocalSocket.write(Buffer.buffer(decryptData));
+                    mCrypto.decrypt(buffer.getByteBuf(), out);
                 }catch(CryptoException e){
+                    out.release();
                     log.error("Catch exception", e);
+                    mResult = AccessLog.CRYPTO_ERROR;
                     destory();
+                    return;
                 }
+                writeDownstream(out, serverPause, decoder);
             });
             // reply to program.
-            byte [] msg = {0x05, 0x00, 0x00, 0x01, 0x00, 0x00, 0x00, 0x00, 0x00, 0x01};
-            mLocalSocket.write(Buffer.buffer(msg));
-            // send remote header.
-            try{
+            replyConnected();
+            // send remote header, merged with the data arrived before the server was ready.
+            if (!direct) {
+                mUpstream.writeHeader(remoteHeader);
+            }
+            if (mBufferQueue.length() > 0) {
+                handleStageData();
+            }
+        };
+        if (!direct && mConfig.isKcp()) {
+            // UDP 没有握手，绑定本地端口后就算连上
+            KcpSocket.connect(mVertx, addr, port, mConfig, connectHandler);
+            return;
+        }
+        NetClientOptions options = new NetClientOptions().setConnectTimeout(mConfig.getTimeout()).setTcpKeepAlive(true);
+        NetClient client = mVertx.createNetClient(options);
+        client.connect(port, addr, connectHandler);
+    }
 
-                byte [] header = remoteHeader.getBytes();
-                byte [] encryptHeader = mCrypto.encrypt(header, header.length);
-                mServerSocket.write(Buffer.buffer(encryptHeader));
-            }catch(CryptoException e){
-                log.error("Catch exception", e);
+    /**
+     * 解密后的数据写给应用程序，请求了压缩时先解帧。取得 out 的所有权。
+     */
+    private void writeDownstream(ByteBuf out, ReadPause serverPause, FrameDecoder decoder) {
+        if (decoder != null) {
+            ByteBuf plain = PooledBuffers.allocate(out.readableBytes());
+            boolean ok = decoder.decode(out, plain);
+            out.release();
+            if (!ok) {
+                plain.release();
+                log.warn("Bad frame from server: " + decoder.getError());
+                mResult = AccessLog.PROTOCOL_ERROR;
                 destory();
+                return;
             }
-        });
+            out = plain;
+        }
+        mBytesDown += out.readableBytes();
+        flowControl(mLocalSocket, serverPause, out.readableBytes());
+        PooledBuffers.write(mLocalSocket, out);
     }
 
     private void sendToRemote(Buffer buffer) {
-
-        Buffer chunkBuffer = Buffer.buffer();
-        try{
-
-            chunkBuffer.appendBuffer(buffer);
-            byte [] data = chunkBuffer.getBytes();
-            byte [] encryptData = mCrypto.encrypt(data, data.length);
-            if (mServerSocket.writeQueueFull()) {
-                log.warn("-->remote write queue full");
-            }
-            flowControl(mServerSocket, mLocalSocket);
-            mServerSocket.write(Buffer.buffer(encryptData));
-        }catch(CryptoException e){
-            log.error("Catch exception", e);
-            destory();
+        mBytesUp += buffer.length();
+        if (log.isDebugEnabled() && mServerSocket.writeQueueFull()) {
+            log.debug("-->remote write queue full");
         }
+        flowControl(mServerSocket, mLocalPause, buffer.length());
+        mUpstream.write(buffer.getByteBuf());
     }
 
-    private void flowControl(NetSocket a, NetSocket b) {
+    /**
+     * 写 bytes 字节给 a 之前调用，a 的写队列满或超出内存预算时暂停读取 b。
+     */
+    private void flowControl(NetSocket a, ReadPause b, int bytes) {
         if (a.writeQueueFull()) {
-            b.pause();
+            int bit = b == mLocalPause ? 1 : 2;
+            b.pause(ReadPause.WRITE_QUEUE);
+            mPaused |= bit;
+            if (mEvents != null) {
+                mEvents.paused(bit, bit == 1 ? "local" : "remote", mTarget);
+            }
             a.drainHandler(done -> {
-                b.resume();
+                b.resume(ReadPause.WRITE_QUEUE);
+                mPaused &= ~bit;
+                if (mEvents != null) {
+                    mEvents.resumed(bit);
+                }
             });
+        } else {
+            mBudget.check(b, bytes);
         }
     }
 
-    private boolean handleStageData() {
 
-        // Chunk max length = 8192.
-        int chunkMaxLen = 8192;
-
-        while (mBufferQueue.length() > 0) {
-            int bufferLength = mBufferQueue.length();
-            int end = bufferLength > chunkMaxLen ? chunkMaxLen : bufferLength;
-            sendToRemote(mBufferQueue.slice(0, end));
-            compactBuffer(end);
+    private boolean handleStageData() {
+        if (mServerSocket == null) {
+            //remote is not ready, just hold the buffer.
+            return false;
         }
-
+        sendToRemote(mBufferQueue);
+        cleanBuffer();
         return false;
     }
 
+    private void logAccess() {
+        if (mSampled || !AccessLog.OK.equals(mResult)) {
+            AccessLog.log(mTarget, mBytesUp, mBytesDown,
+                    System.currentTimeMillis() - mStartTime, mResult);
+        }
+        if (mEvents != null) {
+            mEvents.close(mTarget, mBytesUp, mBytesDown, mResult);
+        }
+    }
+
     private synchronized void destory() {
         if (mCurrentStage != Stage.DESTORY) {
             mCurrentStage = Stage.DESTORY;
+            ConnectionRegistry.unregister(mId);
+            logAccess();
+        }
+        mBudget.close();
+        if (mServer != null) {
+            mServer.release();
+            mServer = null;
+        }
+        FrameDecoder decoder = mDecoder;
+        mDecoder = null;
+        SSCrypto crypto = mCrypto;
+        if (mDownstreamPipe != null) {
+            // 还在解密的数据交回后才能释放 decoder 与 cipher
+            NetSocket local = mLocalSocket;
+            mDownstreamPipe.end(v -> {
+                local.close();
+                if (decoder != null) {
+                    decoder.close();
+                }
+                crypto.release(false);
+            });
+        } else {
+            if (mLocalSocket != null) {
+                mLocalSocket.close();
+            }
+            if (decoder != null) {
+                decoder.close();
+            }
+            crypto.release(false);
+        }
+        if (mUpstream != null) {
+            // close 会把已写出的数据 flush 出去，先写出攒下的与还在加密的部分
+            NetSocket server = mServerSocket;
+            mUpstream.end(v -> {
+                server.close();
+                crypto.release(true);
+            });
+        } else {
+            if (mServerSocket != null) {
+                mServerSocket.close();
+            }
+            crypto.release(true);
         }
-        if (mLocalSocket != null)
-            mLocalSocket.close();
-        if (mServerSocket != null)
-            mServerSocket.close();
+    }
+
+    @Override
+    public String peer() {
+        return String.valueOf(mLocalSocket.remoteAddress());
+    }
+
+    @Override
+    public Object target() {
+        return mTarget;
+    }
+
+    @Override
+    public String stage() {
+        switch (mCurrentStage) {
+            case Stage.HELLO:
+            case Stage.HEADER:
+                return STAGE_HANDSHAKE;
+            case Stage.DATA:
+                return mServerSocket == null ? STAGE_CONNECTING : STAGE_DATA;
+            default:
+                return "closed";
+        }
+    }
+
+    @Override
+    public long bytesUp() {
+        return mBytesUp;
+    }
+
+    @Override
+    public long bytesDown() {
+        return mBytesDown;
+    }
+
+    @Override
+    public long startTime() {
+        return mStartTime;
+    }
+
+    @Override
+    public boolean paused() {
+        return mPaused != 0 || mBudget.isPaused();
+    }
+
+    @Override
+    public long bufferedBytes() {
+        // 管理接口与内存检查在其他线程调用，字段先读到局部变量
+        OutboundBatcher batcher = mUpstream;
+        CryptoPipe pipe = mDownstreamPipe;
+        return mBufferQueue.length() + PooledBuffers.pending(mLocalSocket) + PooledBuffers.pending(mServerSocket)
+                + (batcher != null ? batcher.pendingBytes() : 0) + (pipe != null ? pipe.pendingBytes() : 0);
+    }
+
+    @Override
+    public void kill(String result) {
+        mContext.runOnContext(v -> {
+            if (mCurrentStage == Stage.DESTORY)
+                return;
+            mResult = result;
+            destory();
+        });
     }
 
     @Override
     public void handle(Buffer buffer) {
         boolean finish = false;
-        mBufferQueue.appendBuffer(buffer);
         switch (mCurrentStage) {
             case Stage.HELLO:
-                finish = handleStageHello();
-                break;
             case Stage.HEADER:
-                finish = handleStageHeader();
-                break;
-            case Stage.ADDRESS:
-                finish = handleStageAddress();
+                ByteBuf in = buffer.getByteBuf();
+                if (mCurrentStage == Stage.HELLO && mHttp == null && in.isReadable()
+                        && in.getByte(in.readerIndex()) != SOCKS5_VERSION) {
+                    // 与 socks5 共用端口，第一个字节不是 socks5 版本号时按 HTTP 代理处理
+                    mHttp = new HttpParser();
+                }
+                finish = mHttp != null ? handleStageHttp(in) : handleStageHeader(in);
+                if (!finish && in.isReadable()) {
+                    // data after the request, hold it until the server is ready.
+                    mBufferQueue.appendBuffer(Buffer.buffer(in));
+                }
                 break;
             case Stage.DATA:
-                finish = handleStageData();
+                if (mHttp != null && !mHttp.isConnect()) {
+                    finish = handleHttpData(buffer.getByteBuf());
+                } else if (mServerSocket != null && mBufferQueue.length() == 0) {
+                    // Data stage doesn't need the queue, hand over to the batcher directly.
+                    sendToRemote(buffer);
+                } else {
+                    mBufferQueue.appendBuffer(buffer);
+                    finish = handleStageData();
+                }
                 break;
             default:
         }
+        if (mBufferQueue.length() > 0) {
+            // 远端还没连上时，攒下的数据也计入预算
+            mBudget.check(mLocalPause, buffer.length());
+        }
         if (finish) {
             destory();
         }
@@ -0,0 +1,252 @@
+package shadowsocks.vertxio;
+
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.Context;
+import io.vertx.core.Handler;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.impl.ConnectionBase;
+import shadowsocks.GlobalConfig;
+import shadowsocks.crypto.CryptoException;
+import shadowsocks.crypto.CryptoOffload;
+import shadowsocks.crypto.SSCrypto;
+import shadowsocks.kcp.KcpSocket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * 一个连接一个方向的加/解密。
+ *
+ * 吞吐量不超过 crypto_offload_threshold（字节/秒）时直接在 event loop 上处理；超过后数据进入本连接的串行队列，
+ * 由 {@link CryptoOffload} 的线程池按顺序处理（流加密有状态），结果回到连接所属的 context 上按顺序交给 output。
+ * 队列中的结果全部交回、吞吐量回落后，又回到 event loop 上处理。积压超过 MAX_PENDING 时暂停读取 source。
+ *
+ * 交给线程池的每一块，无论处理完、出错还是关闭后被丢弃，都会回到 context 上结束，全部结束后才调用 end 的 handler，
+ * 此时线程池中不再持有 crypto，调用方可以在 handler 中归还 cipher。
+ *
+ * process、end、close 与 output 都在连接所属的 context 上调用。
+ */
+class CryptoPipe implements Runnable {
+
+    private final static int MAX_PENDING = 1024 * 1024;
+    private final static long WINDOW = TimeUnit.SECONDS.toNanos(1);
+
+    private final Context mContext;
+    private final ReadPause mSource;
+    private final SSCrypto mCrypto;
+    private final boolean mEncrypt;
+    private final long mThreshold;
+    private final int mThreads;
+    private final Handler<ByteBuf> mOutput;
+    private final Handler<CryptoException> mErrorHandler;
+
+    // 只在 context 上访问
+    private long mWindowStart = System.nanoTime();
+    private long mWindowBytes;
+    private long mLastWindowBytes;
+    private int mInFlight;// 已入队、结果还没交给 output 的块数
+    private long mPendingBytes;
+    private boolean mPaused;
+    private boolean mEnded;
+    private List<Handler<Void>> mEndHandlers;
+
+    private volatile boolean mClosed;
+    private final Queue<ByteBuf> mQueue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean mRunning = new AtomicBoolean();
+
+    private CryptoPipe(ReadPause source, SSCrypto crypto, boolean encrypt, GlobalConfig config,
+                       Handler<ByteBuf> output, Handler<CryptoException> errorHandler) {
+        NetSocket socket = source.socket();
+        mContext = socket instanceof KcpSocket ? ((KcpSocket) socket).getContext() : ((ConnectionBase) socket).getContext();
+        mSource = source;
+        mCrypto = crypto;
+        mEncrypt = encrypt;
+        mThreshold = config.getCryptoOffloadThreshold();
+        mThreads = config.getCryptoOffloadThreads();
+        mOutput = output;
+        mErrorHandler = errorHandler;
+    }
+
+    /**
+     * @param source 读取数据的连接，积压时暂停
+     * @param output 处理结果，取得 buffer 的所有权
+     * @return 没有开启 crypto offload 时返回 null，调用方直接加/解密
+     */
+    static CryptoPipe create(ReadPause source, SSCrypto crypto, boolean encrypt, GlobalConfig config,
+                             Handler<ByteBuf> output, Handler<CryptoException> errorHandler) {
+        if (config.getCryptoOffloadThreshold() <= 0)
+            return null;
+        return new CryptoPipe(source, crypto, encrypt, config, output, errorHandler);
+    }
+
+    /**
+     * 处理 in 的全部可读数据，in 仍由调用方释放。
+     */
+    void process(ByteBuf in) {
+        int length = in.readableBytes();
+        if (mClosed || mEnded || length == 0)
+            return;
+        boolean bulk = count(length);
+        if (mInFlight == 0 && !bulk) {
+            CryptoOffload.inline(length);
+            ByteBuf out = allocate(length);
+            try {
+                crypt(in, out);
+            } catch (CryptoException e) {
+                out.release();
+                close();
+                mErrorHandler.handle(e);
+                return;
+            }
+            mOutput.handle(out);
+            return;
+        }
+        mInFlight++;
+        mPendingBytes += length;
+        CryptoOffload.queued(length);
+        mQueue.add(in.readRetainedSlice(length));
+        if (mPendingBytes >= MAX_PENDING && !mPaused) {
+            mPaused = true;
+            mSource.pause(ReadPause.CRYPTO);
+        }
+        if (mRunning.compareAndSet(false, true) && !CryptoOffload.execute(this, mThreads)) {
+            // 线程池已满，在 event loop 上处理，结果仍然排在之前的结果之后
+            run();
+        }
+    }
+
+    /**
+     * 统计最近一秒左右的字节数。
+     *
+     * @return 是否超过阈值
+     */
+    private boolean count(int length) {
+        long now = System.nanoTime();
+        long elapsed = now - mWindowStart;
+        if (elapsed >= WINDOW) {
+            mLastWindowBytes = elapsed < 2 * WINDOW ? mWindowBytes : 0;
+            mWindowStart = now;
+            mWindowBytes = 0;
+        }
+        mWindowBytes += length;
+        return mWindowBytes > mThreshold || mLastWindowBytes > mThreshold;
+    }
+
+    private ByteBuf allocate(int length) {
+        return PooledBuffers.allocate(mEncrypt ? length + mCrypto.getIVLength() : length);
+    }
+
+    private void crypt(ByteBuf in, ByteBuf out) throws CryptoException {
+        if (mEncrypt) {
+            mCrypto.encrypt(in, out);
+        } else {
+            mCrypto.decrypt(in, out);
+        }
+    }
+
+    /**
+     * 线程池中依次处理队列，同一时间只有一个线程。
+     */
+    @Override
+    public void run() {
+        do {
+            ByteBuf in;
+            while ((in = mQueue.poll()) != null) {
+                int length = in.readableBytes();
+                if (mClosed) {
+                    in.release();
+                    mContext.runOnContext(v -> finish(length));
+                    continue;
+                }
+                ByteBuf out = allocate(length);
+                try {
+                    crypt(in, out);
+                } catch (CryptoException e) {
+                    out.release();
+                    mClosed = true;
+                    mContext.runOnContext(v -> {
+                        finish(length);
+                        mErrorHandler.handle(e);
+                    });
+                    continue;
+                } finally {
+                    in.release();
+                }
+                mContext.runOnContext(v -> deliver(out, length));
+            }
+            mRunning.set(false);
+            // 放弃运行权之后又有新数据入队，而入队的一方没有抢到运行权
+        } while (!mQueue.isEmpty() && mRunning.compareAndSet(false, true));
+    }
+
+    private void deliver(ByteBuf out, int length) {
+        if (mClosed) {
+            out.release();
+        } else {
+            mOutput.handle(out);
+        }
+        finish(length);
+    }
+
+    /**
+     * 一块数据在线程池中处理完或被丢弃，最后一块结束时调用 end 的 handler。
+     */
+    private void finish(int length) {
+        CryptoOffload.done(length);
+        mInFlight--;
+        mPendingBytes -= length;
+        if (mPaused && !mClosed && mPendingBytes <= MAX_PENDING / 2) {
+            mPaused = false;
+            mSource.resume(ReadPause.CRYPTO);
+        }
+        if (mInFlight == 0 && mEndHandlers != null) {
+            List<Handler<Void>> handlers = mEndHandlers;
+            mEndHandlers = null;
+            for (Handler<Void> handler : handlers) {
+                handler.handle(null);
+            }
+        }
+    }
+
+    /**
+     * @return 已入队、结果还没交给 output 的字节数
+     */
+    long pendingBytes() {
+        return mPendingBytes;
+    }
+
+    /**
+     * 队列中的结果全部交给 output（关闭后为全部丢弃）后调用 handler，之后的 process 被忽略。
+     * 没有积压时立即调用；多次调用时 handler 按顺序都会被调用。
+     */
+    void end(Handler<Void> handler) {
+        mEnded = true;
+        if (mInFlight == 0) {
+            handler.handle(null);
+            return;
+        }
+        if (mEndHandlers == null) {
+            mEndHandlers = new ArrayList<>(2);
+        }
+        mEndHandlers.add(handler);
+    }
+
+    /**
+     * 丢弃还没有处理和交回的数据。
+     */
+    void close() {
+        mClosed = true;
+    }
+
+    /**
+     * 丢弃还没有处理和交回的数据，线程池中的块都结束后调用 handler。
+     */
+    void close(Handler<Void> handler) {
+        close();
+        end(handler);
+    }
+}
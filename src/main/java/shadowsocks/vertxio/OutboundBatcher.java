@@ -0,0 +1,213 @@
+package shadowsocks.vertxio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.vertx.core.Handler;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.impl.ConnectionBase;
+import shadowsocks.GlobalConfig;
+import shadowsocks.compress.FrameEncoder;
+import shadowsocks.crypto.CryptoException;
+import shadowsocks.crypto.SSCrypto;
+import shadowsocks.kcp.KcpSocket;
+import shadowsocks.metrics.RelayMetrics;
+
+/**
+ * 加密后写出前的合并阶段。
+ *
+ * Netty 一次 select 可能对同一连接回调多次 channelRead，每次都单独加密、writeAndFlush 到对端，
+ * 小包场景（ssh、游戏）下就是大量小的 write 系统调用。这里先把明文攒在一块池化 buffer 里，
+ * 在本轮 IO 处理完之后（event loop 的任务队列）一次加密、一次写出。
+ * 攒够 limit 字节立即写出；limit 为 0 时不合并，每块数据直接加密写出。
+ *
+ * crypto 为 null 时原样写出（直连）。开启 crypto_offload_threshold 时加密经过 {@link CryptoPipe}。
+ * encoder 不为 null 时明文先分帧（压缩）再加密，每次合并的数据一起分帧，小包也能压缩；地址头不分帧。
+ *
+ * 只在连接所属的 event loop 线程上使用。
+ */
+class OutboundBatcher implements Runnable {
+
+    private final NetSocket mSocket;
+    private final SSCrypto mCrypto;
+    private final int mLimit;
+    private final Handler<CryptoException> mErrorHandler;
+    private final CryptoPipe mPipe;
+    private final FrameEncoder mEncoder;
+
+    private ByteBuf mPending;
+    private int mRawPrefix;// mPending 开头不分帧的字节数
+    private boolean mScheduled;
+    private boolean mClosed;
+
+    /**
+     * @param source 数据来源的连接，加密积压时暂停读取
+     * @param socket 写出的连接
+     */
+    OutboundBatcher(ReadPause source, NetSocket socket, SSCrypto crypto, GlobalConfig config, Handler<CryptoException> errorHandler) {
+        this(source, socket, crypto, null, config, errorHandler);
+    }
+
+    /**
+     * @param encoder 为 null 时不分帧
+     */
+    OutboundBatcher(ReadPause source, NetSocket socket, SSCrypto crypto, FrameEncoder encoder, GlobalConfig config, Handler<CryptoException> errorHandler) {
+        mSocket = socket;
+        mEncoder = encoder;
+        mCrypto = crypto;
+        mLimit = config.getBatchLimit();
+        mErrorHandler = errorHandler;
+        mPipe = crypto == null ? null : CryptoPipe.create(source, crypto, true, config, out -> {
+            RelayMetrics.write(out.readableBytes());
+            PooledBuffers.write(mSocket, out);
+        }, e -> {
+            close();
+            mErrorHandler.handle(e);
+        });
+    }
+
+    /**
+     * 追加明文，in 的可读数据会被全部读走。
+     */
+    void write(ByteBuf in) {
+        write(in, false);
+    }
+
+    /**
+     * 追加不分帧的地址头，只能在第一次 write 之前调用。
+     */
+    void writeHeader(ByteBuf in) {
+        write(in, true);
+    }
+
+    private void write(ByteBuf in, boolean raw) {
+        if (mClosed || !in.isReadable())
+            return;
+        RelayMetrics.read();
+        if (mLimit <= 0) {
+            encryptAndWrite(in, raw ? in.readableBytes() : 0);
+            return;
+        }
+        if (mPending == null) {
+            // heap buffer，加密时可以直接使用数组
+            mPending = PooledByteBufAllocator.DEFAULT.heapBuffer(Math.max(in.readableBytes(), 1024));
+        }
+        if (raw) {
+            mRawPrefix += in.readableBytes();
+        }
+        mPending.writeBytes(in);
+        if (mPending.readableBytes() >= mLimit) {
+            flush();
+        } else if (!mScheduled) {
+            mScheduled = true;
+            if (mSocket instanceof KcpSocket) {
+                ((KcpSocket) mSocket).eventLoop().execute(this);
+            } else {
+                ((ConnectionBase) mSocket).channel().eventLoop().execute(this);
+            }
+        }
+    }
+
+    /**
+     * 立即加密并写出已攒下的数据。
+     */
+    void flush() {
+        if (mPending == null)
+            return;
+        ByteBuf pending = mPending;
+        int raw = mRawPrefix;
+        mPending = null;
+        mRawPrefix = 0;
+        try {
+            encryptAndWrite(pending, raw);
+        } finally {
+            pending.release();
+        }
+    }
+
+    /**
+     * @param raw in 开头不分帧的字节数
+     */
+    private void encryptAndWrite(ByteBuf in, int raw) {
+        if (mEncoder == null) {
+            encryptAndWrite(in);
+            return;
+        }
+        ByteBuf framed = PooledByteBufAllocator.DEFAULT.heapBuffer(raw + FrameEncoder.maxEncodedLength(in.readableBytes() - raw));
+        try {
+            framed.writeBytes(in, raw);
+            mEncoder.encode(in, framed);
+            encryptAndWrite(framed);
+        } finally {
+            framed.release();
+        }
+    }
+
+    private void encryptAndWrite(ByteBuf in) {
+        int length = in.readableBytes();
+        if (mCrypto == null) {
+            ByteBuf out = PooledBuffers.allocate(length);
+            out.writeBytes(in);
+            RelayMetrics.write(length);
+            PooledBuffers.write(mSocket, out);
+            return;
+        }
+        if (mPipe != null) {
+            mPipe.process(in);
+            return;
+        }
+        ByteBuf out = PooledBuffers.allocate(length + mCrypto.getIVLength());
+        try {
+            mCrypto.encrypt(in, out);
+        } catch (CryptoException e) {
+            out.release();
+            close();
+            mErrorHandler.handle(e);
+            return;
+        }
+        RelayMetrics.write(out.readableBytes());
+        PooledBuffers.write(mSocket, out);
+    }
+
+    /**
+     * @return 攒下的与还在加密的字节数
+     */
+    long pendingBytes() {
+        ByteBuf pending = mPending;
+        return (pending == null ? 0 : pending.readableBytes()) + (mPipe == null ? 0 : mPipe.pendingBytes());
+    }
+
+    /**
+     * 丢弃未写出的数据，之后的 write 被忽略。
+     */
+    void close() {
+        mClosed = true;
+        if (mPending != null) {
+            mPending.release();
+            mPending = null;
+        }
+        if (mPipe != null) {
+            mPipe.close();
+        }
+    }
+
+    /**
+     * 写出攒下的与还在加密的数据后调用 handler，之后的 write 被忽略。
+     */
+    void end(Handler<Void> handler) {
+        flush();
+        mClosed = true;
+        if (mPipe != null) {
+            mPipe.end(handler);
+        } else {
+            handler.handle(null);
+        }
+    }
+
+    @Override
+    public void run() {
+        mScheduled = false;
+        if (!mClosed) {
+            flush();
+        }
+    }
+}
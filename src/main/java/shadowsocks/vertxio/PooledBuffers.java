@@ -0,0 +1,52 @@
+package shadowsocks.vertxio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.channel.ChannelOutboundBuffer;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.impl.ConnectionBase;
+import shadowsocks.kcp.KcpSocket;
+
+/**
+ * 转发数据使用的池化 direct buffer。
+ *
+ * 从 Netty 的 PooledByteBufAllocator 分配，每个 event loop 线程有自己的缓存。
+ * Vert.x 的 Buffer 会把 ByteBuf 包装成不可释放的，所以这里直接交给 channel 写出，
+ * 由 Netty 在写完成或失败后释放；没有写出的 buffer 由调用方释放。KCP 连接复制进发送队列后立即释放。
+ */
+class PooledBuffers {
+
+    private final static PooledByteBufAllocator ALLOCATOR = PooledByteBufAllocator.DEFAULT;
+
+    static ByteBuf allocate(int capacity) {
+        return ALLOCATOR.directBuffer(capacity);
+    }
+
+    /**
+     * 写出并转移 buf 的所有权。
+     */
+    static void write(NetSocket socket, ByteBuf buf) {
+        if (!buf.isReadable()) {
+            buf.release();
+            return;
+        }
+        if (socket instanceof KcpSocket) {
+            ((KcpSocket) socket).write(buf);
+            return;
+        }
+        ((ConnectionBase) socket).writeToChannel(buf);
+    }
+
+    /**
+     * @return 写队列中还没写出的字节数，socket 为 null 时为 0
+     */
+    static long pending(NetSocket socket) {
+        if (socket == null)
+            return 0;
+        if (socket instanceof KcpSocket)
+            return ((KcpSocket) socket).pendingBytes();
+        // 关闭后为 null
+        ChannelOutboundBuffer out = ((ConnectionBase) socket).channel().unsafe().outboundBuffer();
+        return out == null ? 0 : out.totalPendingWriteBytes();
+    }
+}
@@ -0,0 +1,43 @@
+package shadowsocks.vertxio;
+
+import io.vertx.core.net.NetSocket;
+
+/**
+ * 一个 socket 的读取暂停。暂停可能同时有几个原因：对端写队列满（flowControl）、超出内存预算（{@link BufferBudget}）、
+ * 加/解密积压（{@link CryptoPipe}），各自只解除自己的原因，全部解除后才恢复读取。
+ *
+ * 只在连接所属的 context 上调用。
+ */
+class ReadPause {
+
+    final static int WRITE_QUEUE = 1;
+    final static int BUDGET = 2;
+    final static int CRYPTO = 4;
+
+    private final NetSocket mSocket;
+    private int mReasons;
+
+    ReadPause(NetSocket socket) {
+        mSocket = socket;
+    }
+
+    NetSocket socket() {
+        return mSocket;
+    }
+
+    void pause(int reason) {
+        if (mReasons == 0) {
+            mSocket.pause();
+        }
+        mReasons |= reason;
+    }
+
+    void resume(int reason) {
+        if ((mReasons & reason) == 0)
+            return;
+        mReasons &= ~reason;
+        if (mReasons == 0) {
+            mSocket.resume();
+        }
+    }
+}
@@ -1,41 +1,80 @@
 package shadowsocks.vertxio;
 
+import io.netty.buffer.ByteBuf;
+import io.vertx.core.Context;
 import io.vertx.core.Handler;
 import io.vertx.core.Vertx;
 import io.vertx.core.buffer.Buffer;
+import io.vertx.core.impl.VertxInternal;
 import io.vertx.core.net.NetClient;
 import io.vertx.core.net.NetClientOptions;
 import io.vertx.core.net.NetSocket;
 import org.apache.logging.log4j.LogManager;
 import org.apache.logging.log4j.Logger;
 import shadowsocks.GlobalConfig;
+import shadowsocks.compress.Compression;
+import shadowsocks.compress.FrameDecoder;
+import shadowsocks.compress.FrameEncoder;
 import shadowsocks.crypto.CryptoException;
 import shadowsocks.crypto.CryptoFactory;
+import shadowsocks.crypto.ReplayFilter;
 import shadowsocks.crypto.SSCrypto;
-import shadowsocks.crypto.Utils;
+import shadowsocks.jfr.FlightEvents;
+import shadowsocks.kcp.KcpSocket;
+import shadowsocks.metrics.AccessLog;
+import shadowsocks.metrics.Connection;
+import shadowsocks.metrics.ConnectionRegistry;
+import shadowsocks.metrics.ConnectionTrace;
+import shadowsocks.protocol.Address;
+import shadowsocks.protocol.HeaderParser;
 
-import java.net.InetAddress;
-import java.net.UnknownHostException;
-
-public class ServerHandler implements Handler<Buffer> {
+public class ServerHandler implements Handler<Buffer>, Connection {
 
     public static Logger log = LogManager.getLogger(ServerHandler.class.getName());
 
-    private final static int ADDR_TYPE_IPV4 = 1;
-    private final static int ADDR_TYPE_HOST = 3;
-    private final static int ADDR_TYPE_IPV6 = 4;
-
+    // 重放连接最长保持时间，单位毫秒
+    private final static int DRAIN_TIMEOUT = 60 * 1000;
+    // KCP 会话收到完整地址头的最长时间，单位毫秒。一个报文就能创建会话，不能等 KCP 的空闲超时
+    private final static int KCP_HEADER_TIMEOUT = 10 * 1000;
 
     private Vertx mVertx;
+    private Context mContext;
     private NetSocket mClientSocket;
     private NetSocket mTargetSocket;
+    private ReadPause mClientPause;
+    private ReadPause mTargetPause;
     private int mCurrentStage;
     private Buffer mBufferQueue;
+    private HeaderParser mParser;
+    private ReplayFilter mReplayFilter;
+    private long mDrainTimer = -1;
+    private long mHeaderTimer = -1;
     private SSCrypto mCrypto;
+    private GlobalConfig mConfig;
+    private OutboundBatcher mDownstream;
+    private CryptoPipe mUpstreamPipe;// 开启 crypto offload 时，连接目标后的解密
+    private FrameDecoder mDecoder;// 客户端请求压缩时，来自客户端的数据的解帧
+    private FrameEncoder mEncoder;// 客户端请求压缩时，发往客户端的数据的分帧
+
+    // Access log
+    private boolean mSampled;
+    private long mStartTime;
+    private Address mTarget;
+    private long mBytesUp;
+    private long mBytesDown;
+    private String mResult = AccessLog.INCOMPLETE;
+    private ConnectionTrace mTrace;
+    private FlightEvents mEvents;
+
+    // Connection registry
+    private long mId;
+    private int mPaused;// 按位：1 客户端，2 目标
+    private BufferBudget mBudget;
 
     private class Stage {
         final public static int ADDRESS = 1;
         final public static int DATA = 2;
+        final public static int DRAIN = 99;
         final public static int DESTORY = 100;
     }
 
@@ -56,157 +95,159 @@ public class ServerHandler implements Handler<Buffer> {
         socket.exceptionHandler(e -> {
             log.error("Server setFinishHandler Exception " + e.getMessage()
                     +" local " + socket.localAddress() + " , remote " + socket.remoteAddress());
+            mResult = AccessLog.IO_ERROR;
             destory();
         });
     }
 
     public ServerHandler(Vertx vertx, NetSocket socket) {
         mVertx = vertx;
+        mContext = vertx.getOrCreateContext();
         mClientSocket = socket;
+        mClientPause = new ReadPause(socket);
         mCurrentStage = Stage.ADDRESS;
         mBufferQueue = Buffer.buffer();
+        // Keep the config snapshot for the whole connection, reload only affects new connections.
+        mConfig = GlobalConfig.get();
+        mBudget = new BufferBudget(vertx, mConfig, this::bufferedBytes);
+        mStartTime = System.currentTimeMillis();
+        mSampled = AccessLog.sample(mConfig.getAccessLogSample());
+        mTrace = ConnectionTrace.start(mConfig);
+        mParser = new HeaderParser(mConfig.isNoise());
+        mReplayFilter = ReplayFilter.get();
+        mId = ConnectionRegistry.register(this);
+        mEvents = FlightEvents.start(mConfig, mId, "server", socket);
         setFinishHandler(mClientSocket);
+        if (socket instanceof KcpSocket) {
+            mHeaderTimer = vertx.setTimer(KCP_HEADER_TIMEOUT, id -> {
+                mHeaderTimer = -1;
+                if (mCurrentStage == Stage.ADDRESS) {
+                    log.debug("KCP session from {} sent no header", socket.remoteAddress());
+                    // 来源可能是伪造的，不等待 FIN 的确认
+                    ((KcpSocket) socket).abort();
+                    destory();
+                }
+            });
+        }
         try{
-            mCrypto = CryptoFactory.create(GlobalConfig.get().getMethod(), GlobalConfig.get().getPassword());
+            mCrypto = CryptoFactory.create(mConfig.getMethod(), mConfig.getPassword(), mConfig.getIvLen());
         }catch(Exception e){
             //Will never happen, we check this before.
         }
     }
 
-    private Buffer compactBuffer(int start) {
-        mBufferQueue = Buffer.buffer().appendBuffer(mBufferQueue.slice(start, mBufferQueue.length()));
-        return mBufferQueue;
-    }
-
     private Buffer cleanBuffer() {
         mBufferQueue = Buffer.buffer();
         return mBufferQueue;
     }
 
-    private boolean handleStageAddress() {
-        if (GlobalConfig.get().isNoise()) {
-            int flag = deleteNoiseData();
-            if (flag == -1) {
-                return false;
-            } else if (flag == -2) {
-                return true;
-            }
-        }
-
-        int bufferLength = mBufferQueue.length();
-        String addr = null;
-        int current = 0;
-
-        int addrType = mBufferQueue.getByte(0);
-
-        if (addrType == ADDR_TYPE_IPV4) {
-            // addrType(1) + ipv4(4) + port(2)
-            if (bufferLength < 7)
-                return false;
-            try{
-                addr = InetAddress.getByAddress(mBufferQueue.getBytes(1, 5)).getHostAddress();
-                log.info("ipv4 : " + addr);
-            }catch(UnknownHostException e){
-                log.error("UnknownHostException.", e);
-                return true;
-            }
-            current = 5;
-        } else if (addrType == ADDR_TYPE_IPV6){
-            // addrType(1) + ipv6(16) + port(2)
-            if (bufferLength < 19)
-                return false;
-            try{
-                addr = InetAddress.getByAddress(mBufferQueue.getBytes(1, 17)).getHostAddress();
-                log.info("ipv6 : " + addr);
-            }catch(UnknownHostException e){
-                log.error("UnknownHostException.", e);
-                return true;
-            }
-            current = 17;
-        } else if (addrType == ADDR_TYPE_HOST) {
-            short hostLength = mBufferQueue.getUnsignedByte(1);
-            // addrType(1) + len(1) + host + port(2)
-            if (bufferLength < hostLength + 4)
-                return false;
-            addr = mBufferQueue.getString(2, hostLength + 2);
-            log.info("hostname : " + addr);
-            current = hostLength + 2;
-        }else {
-            log.error("Unsupport addr type " + addrType);
+    /**
+     * 解析（去掉噪声后的）地址头，头部之后的数据留在 in 中。
+     */
+    private boolean handleStageAddress(ByteBuf in) {
+        int result = mParser.parse(in);
+        if (result == HeaderParser.NEED_MORE)
+            return false;
+        if (result == HeaderParser.ERROR) {
+            log.error(mParser.getError());
+            mResult = AccessLog.PROTOCOL_ERROR;
             return true;
         }
-        int port = mBufferQueue.getUnsignedShort(current);
-        current = current + 2;
-
-        compactBuffer(current);
-        log.info("Connecting to " + addr + ":" + port);
-        connectToRemote(addr, port);
+        Address address = mParser.getAddress();
+        log.debug("Connecting to {}", address);
+        cancelHeaderTimer();
+        mTarget = address;
+        if (mParser.isCompressed()) {
+            mDecoder = new FrameDecoder();
+            mEncoder = Compression.encoder(Compression.LZ4.equals(mConfig.getCompression()));
+        }
+        if (mTrace != null) {
+            mTrace.header();
+        }
+        if (address.isHost()) {
+            resolveAndConnect(address.getHost(), address.getPort());
+        } else {
+            connectToRemote(address.getHost(), address.getPort());
+        }
         nextStage();
         return false;
     }
 
-
     /**
-     * 删除噪声数据
-     *
-     * @return 返回 -1 表示长度不够；
-     *          返回 -2 表示客户端伪造数据（非法的 noise 长度）；
-     *          返回 1 表示运行正常，噪声数据已删除
+     * 单独解析域名，便于区分 DNS 与连接耗时。与 connect 内部使用的是同一个 resolver。
      */
-    private int deleteNoiseData() {
-        int bufferLength = mBufferQueue.length();
-        // noiseLen(4)
-        if (bufferLength < 4) {
-            return -1;
+    private void resolveAndConnect(String host, int port) {
+        if (mTrace != null) {
+            mTrace.dnsStart();
         }
-
-        byte[] noiseLenArr = new byte[4];
-        mBufferQueue.getBytes(0, 4, noiseLenArr);
-
-        compactBuffer(4);
-
-        int noiseLenInt = Utils.byteArrayToInt(noiseLenArr);
-
-        if (noiseLenInt <= 0 || noiseLenInt > Utils.NOISE_MAX) {// 客户端伪造数据！
-            log.error("noiseLenInt error : " + noiseLenInt);
-            return -2;
-        }
-
-        if (bufferLength < 4 + noiseLenInt) {// 不够噪声数据的长度！
-            return -1;
-        }
-
-        // noise data
-//        byte[] noiseData = new byte[noiseLenInt];
-//        mBufferQueue.getBytes(0, noiseLenInt, noiseData);
-
-        compactBuffer(noiseLenInt);
-
-        return 1;
+        ((VertxInternal) mVertx).resolveAddress(host, res -> {
+            if (mCurrentStage == Stage.DESTORY) {
+                return;
+            }
+            if (!res.succeeded()) {
+                log.error("Failed to resolve " + host + ". Caused by " + res.cause().getMessage());
+                mResult = AccessLog.DNS_FAILED;
+                destory();
+                return;
+            }
+            if (mTrace != null) {
+                mTrace.dnsDone();
+            }
+            connectToRemote(res.result().getHostAddress(), port);
+        });
     }
 
     private void connectToRemote(String addr, int port) {
 
-        NetClientOptions options = new NetClientOptions().setConnectTimeout(GlobalConfig.get().getTimeout()).setTcpKeepAlive(true);
+        NetClientOptions options = new NetClientOptions().setConnectTimeout(mConfig.getTimeout()).setTcpKeepAlive(true);
         NetClient client = mVertx.createNetClient(options);
+        if (mTrace != null) {
+            mTrace.connectStart();
+        }
+        if (mEvents != null) {
+            mEvents.connectStart();
+        }
         client.connect(port, addr, res -> {  // connect handler
             if (!res.succeeded()) {
                 log.error("Failed to connect " + addr + ":" + port + ". Caused by " + res.cause().getMessage());
+                if (mEvents != null) {
+                    mEvents.connectFailed(mTarget, addr, port, res.cause());
+                }
+                mResult = AccessLog.CONNECT_FAILED;
                 destory();
                 return;
             }
+            if (mEvents != null) {
+                mEvents.connected(mTarget, addr, port);
+            }
+            if (mCurrentStage == Stage.DESTORY) {
+                res.result().close();
+                return;
+            }
             mTargetSocket = res.result();
+            mTargetPause = new ReadPause(mTargetSocket);
+            mResult = AccessLog.OK;
+            if (mTrace != null) {
+                mTrace.connected();
+            }
             setFinishHandler(mTargetSocket);
+            mDownstream = new OutboundBatcher(mTargetPause, mClientSocket, mCrypto, mEncoder, mConfig, e -> {
+                log.error("Catch exception", e);
+                mResult = AccessLog.CRYPTO_ERROR;
+                destory();
+            });
+            mUpstreamPipe = CryptoPipe.create(mClientPause, mCrypto, false, mConfig, this::sendToRemote, e -> {
+                log.error("Catch exception", e);
+                mResult = AccessLog.CRYPTO_ERROR;
+                destory();
+            });
             mTargetSocket.handler(buffer -> { // remote socket data handler
-                try {
-                    byte [] data = buffer.getBytes();
-                    byte [] encryptData = mCrypto.encrypt(data, data.length);
-                    flowControl(mClientSocket, mTargetSocket);
-                    mClientSocket.write(Buffer.buffer(encryptData));
-                }catch(CryptoException e){
-                    log.error("Catch exception", e);
-                    destory();
+                if (mTrace != null) {
+                    mTrace.firstByte(mTarget);
                 }
+                mBytesDown += buffer.length();
+                flowControl(mClientSocket, mTargetPause, buffer.length());
+                mDownstream.write(buffer.getByteBuf());
             });
             if (mBufferQueue.length() > 0) {
                 handleStageData();
@@ -214,18 +255,50 @@ public class ServerHandler implements Handler<Buffer> {
         });
     }
 
-    private void flowControl(NetSocket a, NetSocket b) {
+    /**
+     * 写 bytes 字节给 a 之前调用，a 的写队列满或超出内存预算时暂停读取 b。
+     */
+    private void flowControl(NetSocket a, ReadPause b, int bytes) {
         if (a.writeQueueFull()) {
-            b.pause();
+            int bit = b == mClientPause ? 1 : 2;
+            b.pause(ReadPause.WRITE_QUEUE);
+            mPaused |= bit;
+            if (mEvents != null) {
+                mEvents.paused(bit, bit == 1 ? "client" : "target", mTarget);
+            }
             a.drainHandler(done -> {
-                b.resume();
+                b.resume(ReadPause.WRITE_QUEUE);
+                mPaused &= ~bit;
+                if (mEvents != null) {
+                    mEvents.resumed(bit);
+                }
             });
+        } else {
+            mBudget.check(b, bytes);
         }
     }
 
-    private void sendToRemote(Buffer buffer) {
-        flowControl(mTargetSocket, mClientSocket);
-        mTargetSocket.write(buffer);
+
+    /**
+     * 取得 buffer 的所有权，客户端请求了压缩时先解帧。
+     */
+    private void sendToRemote(ByteBuf buffer) {
+        if (mDecoder != null) {
+            ByteBuf plain = PooledBuffers.allocate(buffer.readableBytes());
+            boolean ok = mDecoder.decode(buffer, plain);
+            buffer.release();
+            if (!ok) {
+                plain.release();
+                log.error("Bad frame: " + mDecoder.getError());
+                mResult = AccessLog.PROTOCOL_ERROR;
+                destory();
+                return;
+            }
+            buffer = plain;
+        }
+        mBytesUp += buffer.readableBytes();
+        flowControl(mTargetSocket, mClientPause, buffer.readableBytes());
+        PooledBuffers.write(mTargetSocket, buffer);
     }
 
     private boolean handleStageData() {
@@ -233,43 +306,214 @@ public class ServerHandler implements Handler<Buffer> {
             //remote is not ready, just hold the buffer.
             return false;
         }
-        sendToRemote(mBufferQueue);
+        sendToRemote(mBufferQueue.getByteBuf());
         cleanBuffer();
 
         return false;
     }
 
+    private void cancelHeaderTimer() {
+        if (mHeaderTimer != -1) {
+            mVertx.cancelTimer(mHeaderTimer);
+            mHeaderTimer = -1;
+        }
+    }
+
     private synchronized void destory() {
         if (mCurrentStage != Stage.DESTORY) {
             mCurrentStage = Stage.DESTORY;
+            ConnectionRegistry.unregister(mId);
+            if (mSampled || !AccessLog.OK.equals(mResult)) {
+                AccessLog.log(mTarget, mBytesUp, mBytesDown,
+                        System.currentTimeMillis() - mStartTime, mResult);
+            }
+            if (mEvents != null) {
+                mEvents.close(mTarget, mBytesUp, mBytesDown, mResult);
+            }
+        }
+        mBudget.close();
+        cancelHeaderTimer();
+        if (mDrainTimer != -1) {
+            mVertx.cancelTimer(mDrainTimer);
+            mDrainTimer = -1;
+        }
+        SSCrypto crypto = mCrypto;
+        if (mDownstream != null) {
+            // close 会把已写出的数据 flush 出去，先写出攒下的与还在加密的部分
+            NetSocket client = mClientSocket;
+            mDownstream.end(v -> {
+                client.close();
+                crypto.release(true);
+            });
+        } else {
+            if (mClientSocket != null) {
+                mClientSocket.close();
+            }
+            crypto.release(true);
+        }
+        FrameDecoder decoder = mDecoder;
+        if (mUpstreamPipe != null) {
+            // 还在解密的数据交回后才能释放 decoder 与 cipher
+            NetSocket target = mTargetSocket;
+            mUpstreamPipe.end(v -> {
+                target.close();
+                if (decoder != null) {
+                    decoder.close();
+                }
+                crypto.release(false);
+            });
+        } else {
+            if (mTargetSocket != null) {
+                mTargetSocket.close();
+            }
+            if (decoder != null) {
+                decoder.close();
+            }
+            crypto.release(false);
+        }
+    }
+
+    /**
+     * IV 收完整后检查一次是否为重放。
+     *
+     * @return 是重放时返回 true，之后的数据不再处理
+     */
+    private boolean checkReplay() {
+        byte[] iv = mCrypto.getIV(false);
+        if (iv == null)
+            return false;
+        ReplayFilter filter = mReplayFilter;
+        mReplayFilter = null;
+        if (!filter.checkAndAdd(iv))
+            return false;
+        log.debug("Replayed IV from {}", mClientSocket.remoteAddress());
+        mResult = AccessLog.REPLAY;
+        if (GlobalConfig.REPLAY_ACTION_CLOSE.equals(mConfig.getReplayAction())) {
+            destory();
+        } else {
+            // 读取并丢弃，直到对方断开或超时，不暴露任何特征
+            mCurrentStage = Stage.DRAIN;
+            mDrainTimer = mVertx.setTimer(DRAIN_TIMEOUT, id -> {
+                mDrainTimer = -1;
+                destory();
+            });
         }
-        if (mClientSocket != null)
-            mClientSocket.close();
-        if (mTargetSocket != null)
-            mTargetSocket.close();
+        return true;
+    }
+
+    @Override
+    public String peer() {
+        return String.valueOf(mClientSocket.remoteAddress());
+    }
+
+    @Override
+    public Object target() {
+        return mTarget;
+    }
+
+    @Override
+    public String stage() {
+        switch (mCurrentStage) {
+            case Stage.ADDRESS:
+                return STAGE_HANDSHAKE;
+            case Stage.DATA:
+                return mTargetSocket == null ? STAGE_CONNECTING : STAGE_DATA;
+            case Stage.DRAIN:
+                return STAGE_DRAIN;
+            default:
+                return "closed";
+        }
+    }
+
+    @Override
+    public long bytesUp() {
+        return mBytesUp;
+    }
+
+    @Override
+    public long bytesDown() {
+        return mBytesDown;
+    }
+
+    @Override
+    public long startTime() {
+        return mStartTime;
+    }
+
+    @Override
+    public boolean paused() {
+        return mPaused != 0 || mBudget.isPaused();
+    }
+
+    @Override
+    public long bufferedBytes() {
+        // 管理接口与内存检查在其他线程调用，字段先读到局部变量
+        OutboundBatcher batcher = mDownstream;
+        CryptoPipe pipe = mUpstreamPipe;
+        return mBufferQueue.length() + PooledBuffers.pending(mClientSocket) + PooledBuffers.pending(mTargetSocket)
+                + (batcher != null ? batcher.pendingBytes() : 0) + (pipe != null ? pipe.pendingBytes() : 0);
+    }
+
+    @Override
+    public void kill(String result) {
+        mContext.runOnContext(v -> {
+            if (mCurrentStage == Stage.DESTORY)
+                return;
+            mResult = result;
+            destory();
+        });
     }
 
     @Override
     public void handle(Buffer buffer) {
         boolean finish = false;
+        if (mCurrentStage == Stage.DRAIN || mCurrentStage == Stage.DESTORY) {
+            return;
+        }
+        if (mUpstreamPipe != null && mBufferQueue.length() == 0) {
+            // 目标已连接，IV 已经检查过
+            mBudget.count(buffer.length());
+            mUpstreamPipe.process(buffer.getByteBuf());
+            return;
+        }
+        ByteBuf out = PooledBuffers.allocate(buffer.length());
         try{
-            byte [] data = buffer.getBytes();
-            byte [] decryptData = mCrypto.decrypt(data, data.length);
-            mBufferQueue.appendBytes(decryptData);
+            mCrypto.decrypt(buffer.getByteBuf(), out);
         }catch(CryptoException e){
+            out.release();
             log.error("Catch exception", e);
+            mResult = AccessLog.CRYPTO_ERROR;
             destory();
             return;
         }
+        if (mReplayFilter != null && checkReplay()) {
+            out.release();
+            return;
+        }
+        if (mCurrentStage == Stage.DATA && mTargetSocket != null && mBufferQueue.length() == 0) {
+            // Data stage doesn't need the queue, send directly.
+            sendToRemote(out);
+            return;
+        }
         switch (mCurrentStage) {
             case Stage.ADDRESS:
-                finish = handleStageAddress();
+                finish = handleStageAddress(out);
+                if (!finish && out.isReadable()) {
+                    // data after the header, hold it until the target is ready.
+                    mBufferQueue.appendBuffer(Buffer.buffer(out));
+                }
                 break;
             case Stage.DATA:
+                mBufferQueue.appendBuffer(Buffer.buffer(out));
                 finish = handleStageData();
                 break;
             default:
         }
+        out.release();
+        if (mBufferQueue.length() > 0) {
+            // 目标还没连上时，攒下的数据也计入预算
+            mBudget.check(mClientPause, buffer.length());
+        }
         if (finish) {
             destory();
         }
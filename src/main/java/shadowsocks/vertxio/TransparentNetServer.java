@@ -0,0 +1,36 @@
+package shadowsocks.vertxio;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.epoll.Epoll;
+import io.netty.channel.epoll.EpollChannelOption;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.net.NetServerOptions;
+import io.vertx.core.net.impl.NetServerImpl;
+import org.apache.logging.log4j.LogManager;
+import org.apache.logging.log4j.Logger;
+
+/**
+ * 透明代理（iptables TPROXY）的监听。
+ *
+ * 监听 socket 需要 IP_TRANSPARENT 才能接收目的地址不是本机的连接，接收到的连接的本地地址就是原始目的地址。
+ * Vert.x 没有公开这个选项，这里在创建监听时加上，只有 epoll native transport 支持（Linux，需要 CAP_NET_ADMIN）。
+ */
+public class TransparentNetServer extends NetServerImpl {
+
+    public static Logger log = LogManager.getLogger(TransparentNetServer.class.getName());
+
+    public TransparentNetServer(Vertx vertx, NetServerOptions options) {
+        super((VertxInternal) vertx, options);
+    }
+
+    @Override
+    protected void applyConnectionOptions(ServerBootstrap bootstrap) {
+        super.applyConnectionOptions(bootstrap);
+        if (vertx.isNativeTransportEnabled() && Epoll.isAvailable()) {
+            bootstrap.option(EpollChannelOption.IP_TRANSPARENT, true);
+        } else {
+            log.warn("Epoll native transport is not available, TPROXY connections will not be accepted.");
+        }
+    }
+}
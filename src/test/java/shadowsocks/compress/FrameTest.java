@@ -0,0 +1,114 @@
+package shadowsocks.compress;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * FrameEncoder 分帧后任意切分送入 FrameDecoder 得到原始数据；损坏的帧返回 false 而不抛异常。
+ */
+public class FrameTest {
+
+    @Test
+    public void roundTripSplitAnywhere() {
+        Random random = new Random(0);
+        for (int i = 0; i < 500; i++) {
+            byte[] data = Lz4Test.corpus(random, random.nextInt(5 * FrameEncoder.BLOCK_SIZE));
+            ByteBuf framed = encode(random, data, random.nextInt(4) != 0);
+            byte[] wire = new byte[framed.readableBytes()];
+            framed.readBytes(wire);
+            framed.release();
+
+            FrameDecoder decoder = new FrameDecoder();
+            ByteBuf out = random.nextBoolean() ? Unpooled.buffer() : Unpooled.directBuffer();
+            int off = 0;
+            while (off < wire.length) {
+                int n = Math.min(wire.length - off, random.nextInt(random.nextBoolean() ? 16 : 20000));
+                ByteBuf in = random.nextBoolean() ? Unpooled.wrappedBuffer(wire, off, n)
+                        : Unpooled.directBuffer(n).writeBytes(wire, off, n);
+                assertTrue(decoder.getError(), decoder.decode(in, out));
+                assertFalse(in.isReadable());
+                in.release();
+                off += n;
+            }
+            decoder.close();
+            byte[] decoded = new byte[out.readableBytes()];
+            out.readBytes(decoded);
+            out.release();
+            assertArrayEquals("case " + i, data, decoded);
+        }
+    }
+
+    @Test
+    public void corruptedFrames() {
+        Random random = new Random(1);
+        for (int i = 0; i < 2000; i++) {
+            byte[] data = Lz4Test.corpus(random, 1 + random.nextInt(3 * FrameEncoder.BLOCK_SIZE));
+            ByteBuf framed = encode(random, data, true);
+            byte[] wire = new byte[framed.readableBytes()];
+            framed.readBytes(wire);
+            framed.release();
+            for (int k = 1 + random.nextInt(4); k > 0; k--) {
+                wire[random.nextInt(wire.length)] = (byte) random.nextInt();
+            }
+
+            FrameDecoder decoder = new FrameDecoder();
+            ByteBuf out = Unpooled.buffer();
+            int off = 0;
+            while (off < wire.length) {
+                int n = Math.min(wire.length - off, random.nextInt(4000));
+                if (!decoder.decode(Unpooled.wrappedBuffer(wire, off, n), out))
+                    break;
+                off += n;
+            }
+            // 没收齐的块在 close 时释放，之后不能再解码
+            decoder.close();
+            assertFalse(decoder.decode(Unpooled.wrappedBuffer(new byte[1]), out));
+            assertTrue(out.readableBytes() <= data.length + FrameEncoder.BLOCK_SIZE);
+            out.release();
+        }
+    }
+
+    @Test
+    public void garbage() {
+        Random random = new Random(2);
+        for (int i = 0; i < 20000; i++) {
+            byte[] wire = new byte[random.nextInt(512)];
+            random.nextBytes(wire);
+            if (wire.length > 0 && random.nextBoolean()) {
+                wire[0] = (byte) random.nextInt(2);
+            }
+            FrameDecoder decoder = new FrameDecoder();
+            ByteBuf out = Unpooled.buffer();
+            decoder.decode(Unpooled.wrappedBuffer(wire), out);
+            decoder.close();
+            out.release();
+        }
+    }
+
+    /**
+     * 随机长度分几次写入（heap 与 direct 都有），同一个 encoder。
+     */
+    private static ByteBuf encode(Random random, byte[] data, boolean compress) {
+        FrameEncoder encoder = Compression.encoder(compress);
+        ByteBuf framed = Unpooled.buffer(FrameEncoder.maxEncodedLength(data.length));
+        int off = 0;
+        while (off < data.length) {
+            int n = Math.min(data.length - off, 1 + random.nextInt(2 * FrameEncoder.BLOCK_SIZE));
+            ByteBuf in = random.nextBoolean() ? Unpooled.wrappedBuffer(data, off, n)
+                    : Unpooled.directBuffer(n).writeBytes(data, off, n);
+            int before = framed.writerIndex();
+            encoder.encode(in, framed);
+            assertTrue(framed.writerIndex() - before <= FrameEncoder.maxEncodedLength(n));
+            in.release();
+            off += n;
+        }
+        return framed;
+    }
+}
@@ -0,0 +1,140 @@
+package shadowsocks.compress;
+
+import org.junit.Test;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * LZ4 块的往返一致，以及截断、损坏或随机数据解压时不越界。
+ */
+public class Lz4Test {
+
+    private final static int GUARD = 64;
+    private final static byte FILL = 0x5a;
+
+    /**
+     * 可压缩的文本、连续重复的字节（重叠匹配）与随机数据混合。
+     */
+    static byte[] corpus(Random random, int length) {
+        byte[] data = new byte[length];
+        int off = 0;
+        while (off < length) {
+            int n = Math.min(length - off, 1 + random.nextInt(2000));
+            switch (random.nextInt(off > 0 ? 4 : 3)) {
+                case 0: {
+                    StringBuilder sb = new StringBuilder();
+                    while (sb.length() < n) {
+                        sb.append("{\"id\":").append(random.nextInt(1000)).append(",\"status\":\"active\"},");
+                    }
+                    System.arraycopy(sb.toString().getBytes(StandardCharsets.ISO_8859_1), 0, data, off, n);
+                    break;
+                }
+                case 1:
+                    Arrays.fill(data, off, off + n, (byte) random.nextInt());
+                    break;
+                case 3: {
+                    // 重复前面出现过的一段
+                    int from = random.nextInt(off);
+                    for (int i = 0; i < n; i++) {
+                        data[off + i] = data[from + i % (off - from)];
+                    }
+                    break;
+                }
+                default:
+                    for (int i = off; i < off + n; i++) {
+                        data[i] = (byte) random.nextInt();
+                    }
+            }
+            off += n;
+        }
+        return data;
+    }
+
+    @Test
+    public void roundTrip() {
+        Random random = new Random(0);
+        char[] table = new char[1 << Lz4.HASH_LOG];
+        for (int i = 0; i < 2000; i++) {
+            int length = i < 20 ? i : random.nextInt(FrameEncoder.BLOCK_SIZE + 1);
+            byte[] raw = corpus(random, length);
+            int srcOff = random.nextInt(8);
+            byte[] src = new byte[srcOff + length + random.nextInt(8)];
+            System.arraycopy(raw, 0, src, srcOff, length);
+            byte[] compressed = new byte[Lz4.maxCompressedLength(length) + 3];
+            int n = Lz4.compress(src, srcOff, length, compressed, 3, table);
+            assertTrue(n <= Lz4.maxCompressedLength(length));
+
+            byte[] dst = guarded(length);
+            assertEquals("case " + i, length, Lz4.decompress(compressed, 3, n, dst, GUARD, length));
+            assertArrayEquals(raw, Arrays.copyOfRange(dst, GUARD, GUARD + length));
+            checkGuard(dst, length);
+            if (length > 0) {
+                // 空间不够时失败而不是写出界
+                dst = guarded(length - 1);
+                assertEquals(-1, Lz4.decompress(compressed, 3, n, dst, GUARD, length - 1));
+                checkGuard(dst, length - 1);
+            }
+        }
+    }
+
+    @Test
+    public void truncatedAndCorrupted() {
+        Random random = new Random(1);
+        char[] table = new char[1 << Lz4.HASH_LOG];
+        for (int i = 0; i < 200; i++) {
+            int length = 1 + random.nextInt(FrameEncoder.BLOCK_SIZE);
+            byte[] raw = corpus(random, length);
+            byte[] compressed = new byte[Lz4.maxCompressedLength(length)];
+            int n = Lz4.compress(raw, 0, length, compressed, 0, table);
+            byte[] broken = new byte[n];
+            for (int j = 0; j < 100; j++) {
+                System.arraycopy(compressed, 0, broken, 0, n);
+                for (int k = random.nextInt(4); k > 0; k--) {
+                    broken[random.nextInt(n)] = (byte) random.nextInt();
+                }
+                int dstLen = random.nextBoolean() ? length : random.nextInt(length + 1);
+                byte[] dst = guarded(dstLen);
+                int r = Lz4.decompress(broken, 0, random.nextInt(n) + 1, dst, GUARD, dstLen);
+                assertTrue(r >= -1 && r <= dstLen);
+                checkGuard(dst, dstLen);
+            }
+        }
+    }
+
+    @Test
+    public void garbage() {
+        Random random = new Random(2);
+        for (int i = 0; i < 20000; i++) {
+            byte[] src = new byte[random.nextInt(256)];
+            random.nextBytes(src);
+            if (random.nextBoolean() && src.length > 0) {
+                // 长度字节全是 255
+                Arrays.fill(src, random.nextInt(src.length), src.length, (byte) 255);
+            }
+            int dstLen = random.nextInt(FrameEncoder.BLOCK_SIZE);
+            byte[] dst = guarded(dstLen);
+            int r = Lz4.decompress(src, 0, src.length, dst, GUARD, dstLen);
+            assertTrue(r >= -1 && r <= dstLen);
+            checkGuard(dst, dstLen);
+        }
+    }
+
+    private static byte[] guarded(int length) {
+        byte[] dst = new byte[GUARD + length + GUARD];
+        Arrays.fill(dst, FILL);
+        return dst;
+    }
+
+    private static void checkGuard(byte[] dst, int length) {
+        for (int i = 0; i < GUARD; i++) {
+            assertEquals(FILL, dst[i]);
+            assertEquals(FILL, dst[GUARD + length + i]);
+        }
+    }
+}
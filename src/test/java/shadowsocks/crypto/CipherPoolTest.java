@@ -0,0 +1,177 @@
+package shadowsocks.crypto;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.DefaultEventLoop;
+import io.netty.channel.EventLoop;
+import org.bouncycastle.crypto.StreamCipher;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+/**
+ * 从 {@link CipherPool} 取出、只换 IV 的 cipher 与新建并完整初始化的 cipher 输出一致：
+ * AES-CFB 不带密钥重新初始化，ChaCha20 计数器归零，上一个连接留下的半个块都不影响结果。
+ * 发布新配置后旧配置的 cipher 不再复用。
+ *
+ * 只有 event loop 线程保留空闲的 cipher，测试都在一个 DefaultEventLoop 上执行。
+ */
+public class CipherPoolTest {
+
+    private final static String[] METHODS = {"aes-256-cfb", "chacha20", "rc4-md5"};
+
+    private static EventLoop mLoop;
+
+    @BeforeClass
+    public static void startLoop() {
+        mLoop = new DefaultEventLoop();
+    }
+
+    @AfterClass
+    public static void stopLoop() {
+        mLoop.shutdownGracefully();
+    }
+
+    private static <T> T onLoop(Callable<T> task) throws Exception {
+        return mLoop.submit(task).get();
+    }
+
+    /**
+     * 加密 data，IV 之后的密文用新建的参考实现解密并比较。
+     */
+    private static void checkEncrypt(SSCrypto crypto, String method, String password, int ivLen, byte[] data) throws Exception {
+        ByteBuf wire = Unpooled.buffer();
+        crypto.encrypt(Unpooled.wrappedBuffer(data), wire);
+        byte[] iv = new byte[ivLen];
+        wire.readBytes(iv);
+        byte[] plain = new byte[wire.readableBytes()];
+        StreamCipher expected = CipherTest.reference(method, Utils.getKey(password, crypto.getKeyLength(), ivLen), iv);
+        expected.processBytes(wire.array(), wire.arrayOffset() + wire.readerIndex(), plain.length, plain, 0);
+        assertArrayEquals(method + " iv_len " + ivLen, data, plain);
+    }
+
+    /**
+     * 每个连接两个方向，数据长度不是块长度的整数倍，归还时 cipher 停在块中间。
+     * 解密方向的数据由上一个连接加密，cipher 在加密与解密之间交替复用。
+     */
+    @Test
+    public void reusedCipherMatchesFresh() throws Exception {
+        for (String method : METHODS) {
+            for (int ivLen : new int[]{8, 16, 17}) {
+                String password = "pool-test";
+                CryptoFactory.retain(method, password, ivLen);
+                onLoop(() -> {
+                    Random random = new Random(ivLen);
+                    byte[] previous = null;
+                    byte[] previousData = null;
+                    for (int i = 0; i < 300; i++) {
+                        byte[] data = new byte[1 + random.nextInt(5000)];
+                        random.nextBytes(data);
+                        SSCrypto crypto = CryptoFactory.create(method, password, ivLen);
+                        checkEncrypt(crypto, method, password, ivLen, data);
+                        if (previous != null) {
+                            ByteBuf out = Unpooled.buffer();
+                            crypto.decrypt(Unpooled.wrappedBuffer(previous), out);
+                            byte[] plain = new byte[out.readableBytes()];
+                            out.readBytes(plain);
+                            assertArrayEquals(method + " iv_len " + ivLen, previousData, plain);
+                        }
+                        crypto.release(true);
+                        crypto.release(false);
+
+                        // 下一个连接解密的数据，用新建的 SSCrypto 加密（也来自池）
+                        previousData = Arrays.copyOf(data, random.nextInt(data.length + 1));
+                        SSCrypto peer = CryptoFactory.create(method, password, ivLen);
+                        ByteBuf wire = Unpooled.buffer();
+                        peer.encrypt(Unpooled.wrappedBuffer(previousData), wire);
+                        peer.release(true);
+                        previous = new byte[wire.readableBytes()];
+                        wire.readBytes(previous);
+                    }
+                    return null;
+                });
+            }
+        }
+    }
+
+    /**
+     * 归还后下一个连接拿到的是同一个 cipher。
+     */
+    @Test
+    public void cipherIsReused() throws Exception {
+        for (String method : METHODS) {
+            CryptoFactory.retain(method, "reuse-test", 16);
+            onLoop(() -> {
+                BaseCrypto first = (BaseCrypto) CryptoFactory.create(method, "reuse-test", 16);
+                checkEncrypt(first, method, "reuse-test", 16, new byte[100]);
+                StreamCipher cipher = first.mEncryptCipher;
+                first.release(true);
+                BaseCrypto second = (BaseCrypto) CryptoFactory.create(method, "reuse-test", 16);
+                checkEncrypt(second, method, "reuse-test", 16, new byte[33]);
+                assertSame(method, cipher, second.mEncryptCipher);
+                second.release(true);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * retain 之后旧密码的 cipher 不再缓存，新配置的第一个连接丢弃本线程上旧池的 cipher。
+     */
+    @Test
+    public void retainRetiresOldPools() throws Exception {
+        for (String method : METHODS) {
+            CryptoFactory.retain(method, "old-password", 16);
+            onLoop(() -> {
+                BaseCrypto old = (BaseCrypto) CryptoFactory.create(method, "old-password", 16);
+                checkEncrypt(old, method, "old-password", 16, new byte[100]);
+                StreamCipher oldCipher = old.mEncryptCipher;
+                old.release(true);
+
+                CryptoFactory.retain(method, "new-password", 16);
+
+                // 旧配置的连接仍然可以创建，但是不复用也不缓存
+                BaseCrypto stale = (BaseCrypto) CryptoFactory.create(method, "old-password", 16);
+                checkEncrypt(stale, method, "old-password", 16, new byte[100]);
+                assertNotSame(oldCipher, stale.mEncryptCipher);
+                StreamCipher staleCipher = stale.mEncryptCipher;
+                stale.release(true);
+
+                BaseCrypto fresh = (BaseCrypto) CryptoFactory.create(method, "new-password", 16);
+                checkEncrypt(fresh, method, "new-password", 16, new byte[100]);
+                assertNotSame(oldCipher, fresh.mEncryptCipher);
+                assertNotSame(staleCipher, fresh.mEncryptCipher);
+                StreamCipher freshCipher = fresh.mEncryptCipher;
+                fresh.release(true);
+
+                BaseCrypto next = (BaseCrypto) CryptoFactory.create(method, "new-password", 16);
+                checkEncrypt(next, method, "new-password", 16, new byte[100]);
+                assertSame(freshCipher, next.mEncryptCipher);
+                next.release(true);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * 密钥只计算一次并被同一配置的连接共享。
+     */
+    @Test
+    public void keyIsShared() throws Exception {
+        CryptoFactory.retain("chacha20", "key-test", 16);
+        SSCrypto a = CryptoFactory.create("chacha20", "key-test", 16);
+        SSCrypto b = CryptoFactory.create("chacha20", "key-test", 16);
+        assertSame(a.getKey(), b.getKey());
+        assertEquals(32, a.getKey().length);
+        assertArrayEquals(Utils.getKey("key-test", 32, 16), a.getKey());
+    }
+}
@@ -0,0 +1,162 @@
+package shadowsocks.crypto;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.bouncycastle.crypto.StreamCipher;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.engines.ChaChaEngine;
+import org.bouncycastle.crypto.engines.RC4Engine;
+import org.bouncycastle.crypto.modes.CFBBlockCipher;
+import org.bouncycastle.crypto.params.KeyParameter;
+import org.bouncycastle.crypto.params.ParametersWithIV;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+
+/**
+ * FastChaChaEngine / FastRC4Engine 与 BouncyCastle 逐字节一致，各算法在不同 iv_len 下的密文与 BouncyCastle 参考实现一致。
+ */
+public class CipherTest {
+
+    private final static String PASSWORD = "cipher-test";
+
+    @Test
+    public void fastChaChaMatchesBouncyCastle() {
+        Random random = new Random(0);
+        for (int i = 0; i < 200; i++) {
+            compare("chacha20", random);
+        }
+    }
+
+    @Test
+    public void fastRc4MatchesBouncyCastle() {
+        Random random = new Random(1);
+        for (int i = 0; i < 200; i++) {
+            compare("rc4-md5", random);
+        }
+    }
+
+    /**
+     * iv_len 不是算法原生长度时，nonce 取 md5(iv)（ChaCha20 取前 8 字节），RC4 的密钥是 md5(key + iv)。
+     */
+    @Test
+    public void wireFormatWithCustomIvLen() throws Exception {
+        Random random = new Random(2);
+        for (String method : new String[]{"aes-256-cfb", "chacha20", "rc4-md5"}) {
+            for (int ivLen : new int[]{8, 16, 17, 32}) {
+                for (int i = 0; i < 20; i++) {
+                    wireFormat(method, ivLen, random);
+                }
+            }
+        }
+    }
+
+    private static StreamCipher engine(String method, boolean fast, Random random) {
+        StreamCipher c;
+        if ("chacha20".equals(method)) {
+            byte[] key = new byte[32];
+            byte[] iv = new byte[8];
+            random.nextBytes(key);
+            random.nextBytes(iv);
+            c = fast ? new FastChaChaEngine() : new ChaChaEngine();
+            c.init(true, new ParametersWithIV(new KeyParameter(key), iv));
+        } else {
+            byte[] key = new byte[16];
+            random.nextBytes(key);
+            c = fast ? new FastRC4Engine() : new RC4Engine();
+            c.init(true, new KeyParameter(key));
+        }
+        return c;
+    }
+
+    /**
+     * 同样的密钥，随机长度分片原地处理（长度为 1 时走 returnByte），输出必须与 BouncyCastle 一次处理的结果一致。
+     */
+    private static void compare(String method, Random random) {
+        long seed = random.nextLong();
+        StreamCipher expected = engine(method, false, new Random(seed));
+        StreamCipher actual = engine(method, true, new Random(seed));
+        byte[] in = new byte[random.nextInt(8192)];
+        random.nextBytes(in);
+        byte[] a = new byte[in.length];
+        byte[] b = in.clone();
+        expected.processBytes(in, 0, in.length, a, 0);
+        int off = 0;
+        while (off < b.length) {
+            int n = Math.min(b.length - off, random.nextInt(700));
+            if (n == 1) {
+                b[off] = actual.returnByte(b[off]);
+            } else {
+                actual.processBytes(b, off, n, b, off);
+            }
+            off += n;
+        }
+        assertArrayEquals(method + " seed " + seed, a, b);
+    }
+
+    /**
+     * 按原始 shadowsocks 的方式用 BouncyCastle 构造解密端。
+     */
+    static StreamCipher reference(String method, byte[] key, byte[] iv) {
+        if ("aes-256-cfb".equals(method)) {
+            StreamCipher c = new CFBBlockCipher(new AESEngine(), 128);
+            c.init(false, new ParametersWithIV(new KeyParameter(key), iv.length == 16 ? iv : Utils.md5(iv)));
+            return c;
+        } else if ("chacha20".equals(method)) {
+            StreamCipher c = new ChaChaEngine();
+            c.init(false, new ParametersWithIV(new KeyParameter(key), iv.length == 8 ? iv : Arrays.copyOf(Utils.md5(iv), 8)));
+            return c;
+        }
+        byte[] data = new byte[key.length + iv.length];
+        System.arraycopy(key, 0, data, 0, key.length);
+        System.arraycopy(iv, 0, data, key.length, iv.length);
+        StreamCipher c = new RC4Engine();
+        c.init(false, new KeyParameter(Utils.md5(data)));
+        return c;
+    }
+
+    /**
+     * 随机分片加密（heap 与 direct buffer 都有），IV 写在最前面，其后的密文用参考实现解密；再交给同配置的 SSCrypto 分片解密。
+     */
+    private static void wireFormat(String method, int ivLen, Random random) throws Exception {
+        byte[] data = new byte[1 + random.nextInt(20000)];
+        random.nextBytes(data);
+        SSCrypto encrypt = CryptoFactory.create(method, PASSWORD, ivLen);
+        ByteBuf wire = Unpooled.buffer();
+        int off = 0;
+        while (off < data.length) {
+            int n = Math.min(data.length - off, random.nextInt(3000));
+            ByteBuf in = random.nextBoolean() ? Unpooled.wrappedBuffer(data, off, n)
+                    : Unpooled.directBuffer(n).writeBytes(data, off, n);
+            encrypt.encrypt(in, wire);
+            in.release();
+            off += n;
+        }
+        encrypt.release(true);
+        byte[] cipherText = new byte[wire.readableBytes()];
+        wire.getBytes(0, cipherText);
+
+        byte[] iv = Arrays.copyOf(cipherText, ivLen);
+        byte[] plain = new byte[cipherText.length - ivLen];
+        StreamCipher expected = reference(method, Utils.getKey(PASSWORD, encrypt.getKeyLength(), ivLen), iv);
+        expected.processBytes(cipherText, ivLen, plain.length, plain, 0);
+        assertArrayEquals(method + " iv_len " + ivLen, data, plain);
+
+        SSCrypto decrypt = CryptoFactory.create(method, PASSWORD, ivLen);
+        ByteBuf out = Unpooled.directBuffer();
+        off = 0;
+        while (off < cipherText.length) {
+            int n = Math.min(cipherText.length - off, random.nextInt(ivLen * 2));
+            decrypt.decrypt(Unpooled.wrappedBuffer(cipherText, off, n), out);
+            off += n;
+        }
+        decrypt.release(false);
+        byte[] decrypted = new byte[out.readableBytes()];
+        out.readBytes(decrypted);
+        out.release();
+        assertArrayEquals(method + " iv_len " + ivLen, data, decrypted);
+    }
+}
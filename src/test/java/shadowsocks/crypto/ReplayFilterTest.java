@@ -0,0 +1,92 @@
+package shadowsocks.crypto;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 最近 capacity 个 IV 不能漏判，新 IV 的误判率在两个 filter 都接近写满时也足够低。
+ */
+public class ReplayFilterTest {
+
+    private final static int CAPACITY = 200000;
+    private final static int IV_LEN = 16;
+
+    @Test
+    public void recentIvsAreNeverMissed() {
+        ReplayFilter filter = new ReplayFilter(CAPACITY);
+        Random random = new Random(0);
+        byte[] iv = new byte[IV_LEN];
+        int total = 2 * CAPACITY - 1;
+        int falsePositive = 0;
+        for (int i = 0; i < total; i++) {
+            random.nextBytes(iv);
+            if (filter.checkAndAdd(iv)) {
+                falsePositive++;
+            }
+        }
+        assertEquals(0, falsePositive);
+
+        random = new Random(0);
+        for (int i = 0; i < total; i++) {
+            random.nextBytes(iv);
+            if (i >= total - CAPACITY) {
+                assertTrue("recent iv " + i, filter.mightContain(iv));
+                assertTrue("replayed iv " + i, filter.checkAndAdd(iv));
+            }
+        }
+    }
+
+    /**
+     * 两个 filter 都接近写满时，约 1e-9 的误判率下几百万次查询不应出现误判（24 bit / k = 16 时约有上百次）。
+     */
+    @Test
+    public void falsePositiveRate() {
+        ReplayFilter filter = new ReplayFilter(CAPACITY);
+        Random random = new Random(1);
+        byte[] iv = new byte[IV_LEN];
+        for (int i = 0; i < 2 * CAPACITY - 1; i++) {
+            random.nextBytes(iv);
+            filter.checkAndAdd(iv);
+        }
+        int falsePositive = 0;
+        for (int i = 0; i < 4000000; i++) {
+            random.nextBytes(iv);
+            if (filter.mightContain(iv)) {
+                falsePositive++;
+            }
+        }
+        assertEquals(0, falsePositive);
+    }
+
+    @Test
+    public void oldIvsAreForgotten() {
+        ReplayFilter filter = new ReplayFilter(1000);
+        byte[] first = new byte[IV_LEN];
+        new Random(2).nextBytes(first);
+        assertFalse(filter.checkAndAdd(first));
+        Random random = new Random(3);
+        byte[] iv = new byte[IV_LEN];
+        // 写满两轮之后第一个 IV 所在的 filter 已经被清空
+        for (int i = 0; i < 2 * 1000; i++) {
+            random.nextBytes(iv);
+            filter.checkAndAdd(iv);
+        }
+        assertFalse(filter.mightContain(first));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void capacityIsBounded() {
+        new BloomFilter(ReplayFilter.MAX_CAPACITY + 1);
+    }
+
+    @Test
+    public void maxCapacityFitsIndex() {
+        assertTrue(ReplayFilter.MAX_CAPACITY * BloomFilter.BITS_PER_ENTRY + 63 <= 1L << 32);
+        assertTrue(ReplayFilter.MAX_CAPACITY <= Integer.MAX_VALUE);
+    }
+}
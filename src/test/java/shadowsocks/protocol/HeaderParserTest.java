@@ -0,0 +1,323 @@
+package shadowsocks.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 地址头解析的随机测试：合法头部（shadowsocks、socks5、HTTP 代理）任意切分后结果必须一致，随机数据不能抛异常。
+ */
+public class HeaderParserTest {
+
+    private final static int CASES = 20000;
+
+    @Test
+    public void shadowsocksHeaderSplitAnywhere() throws Exception {
+        Random random = new Random(0);
+        for (int i = 0; i < CASES; i++) {
+            Header header = Header.random(random);
+            int trailing = random.nextInt(8);
+            boolean noise = random.nextBoolean();
+            ByteBuf data = Unpooled.buffer();
+            if (noise) {
+                int noiseLen = 1 + random.nextInt(256);
+                data.writeInt(noiseLen);
+                data.writeZero(noiseLen);
+            }
+            data.writeBytes(header.bytes);
+            data.writeZero(trailing);
+            HeaderParser parser = new HeaderParser(noise);
+            int result = feed(random, data, parser::parse, HeaderParser.NEED_MORE);
+            assertEquals("case " + i, HeaderParser.DONE, result);
+            assertEquals("case " + i, trailing, data.readableBytes());
+            header.check(parser.getAddress());
+        }
+    }
+
+    @Test
+    public void socks5SplitAnywhere() throws Exception {
+        Random random = new Random(1);
+        for (int i = 0; i < CASES; i++) {
+            Header header = Header.random(random);
+            int trailing = random.nextInt(8);
+            ByteBuf data = Unpooled.buffer();
+            int methods = 1 + random.nextInt(255);
+            data.writeByte(5).writeByte(methods).writeZero(methods);
+            data.writeByte(5).writeByte(1).writeByte(0).writeBytes(header.bytes).writeZero(trailing);
+            Socks5Parser socks = new Socks5Parser();
+            int[] greetings = new int[1];
+            int result = feed(random, data, in -> {
+                int r = socks.parse(in);
+                if (r == Socks5Parser.GREETING) {
+                    greetings[0]++;
+                    r = socks.parse(in);
+                }
+                return r;
+            }, Socks5Parser.NEED_MORE);
+            assertEquals("case " + i, 1, greetings[0]);
+            assertEquals("case " + i, Socks5Parser.DONE, result);
+            assertEquals("case " + i, trailing, data.readableBytes());
+            header.check(socks.getAddress());
+        }
+    }
+
+    /**
+     * 同一连接上两个 HTTP 代理请求（第一个带 Content-Length 或 chunked 请求体），或 CONNECT。
+     */
+    @Test
+    public void httpSplitAnywhere() throws Exception {
+        Random random = new Random(2);
+        for (int i = 0; i < CASES; i++) {
+            Header header = Header.random(random);
+            String host = header.type == Address.TYPE_IPV6 ? "[" + header.host + "]" : header.host;
+            http(random, host, header);
+        }
+    }
+
+    /**
+     * 非 ASCII 的域名按 UTF-8 发送，目标地址是 punycode。
+     */
+    @Test
+    public void httpIdnHost() throws Exception {
+        Random random = new Random(3);
+        Header header = new Header(Address.TYPE_HOST, "xn--bcher-kva.example".getBytes(StandardCharsets.US_ASCII), 8080);
+        for (int i = 0; i < 1000; i++) {
+            http(random, "bücher.example", header);
+        }
+    }
+
+    /**
+     * 请求行按第一个与最后一个空格切分，target 中有空格或缺少部分时拒绝。
+     */
+    @Test
+    public void httpRequestLine() {
+        HttpParser parser = httpHead("GET http://example.com:8080/a?b=c HTTP/1.0\r\nHost: example.com\r\n\r\n");
+        assertEquals("example.com", parser.getAddress().getHost());
+        assertEquals(8080, parser.getAddress().getPort());
+        assertEquals("GET /a?b=c HTTP/1.0\r\nHost: example.com\r\n\r\n", parser.getHead().toString(StandardCharsets.ISO_8859_1));
+        assertEquals("example.com", httpHead("CONNECT example.com:443 HTTP/1.1\r\n\r\n").getAddress().getHost());
+
+        String[] invalid = {
+                "GET http://example.com/ HTTP/1.1 extra",
+                "GET http://example.com/a b HTTP/1.1",
+                "GET  http://example.com/ HTTP/1.1",
+                "GET http://example.com/  HTTP/1.1",
+                " GET http://example.com/ HTTP/1.1",
+                "GET http://example.com/",
+                "GET HTTP/1.1",
+                "GET http://example.com/ FTP/1.1",
+        };
+        for (String line : invalid) {
+            HttpParser http = new HttpParser();
+            assertEquals(line, HttpParser.ERROR, http.parse(ascii(line + "\r\nHost: example.com\r\n\r\n")));
+            assertTrue(http.getError(), http.getError().startsWith("Invalid request line"));
+        }
+    }
+
+    /**
+     * obs-fold 续行并入上一个字段后转发，折行的 Content-Length 同样生效；请求行之后直接出现续行时拒绝。
+     */
+    @Test
+    public void httpObsFold() {
+        HttpParser parser = httpHead("POST http://example.com/ HTTP/1.1\r\n"
+                + "Host: example.com\r\n"
+                + "X-Folded: a \r\n"
+                + "  b\r\n"
+                + "\tc\r\n"
+                + "Content-Length:\r\n 5\r\n"
+                + "\r\n");
+        assertEquals("POST / HTTP/1.1\r\nHost: example.com\r\nX-Folded: a b c\r\nContent-Length: 5\r\n\r\n",
+                parser.getHead().toString(StandardCharsets.ISO_8859_1));
+        assertTrue(parser.inBody());
+        assertEquals(5, parser.body(ascii("hello GET")));
+        assertFalse(parser.inBody());
+
+        HttpParser leading = new HttpParser();
+        assertEquals(HttpParser.ERROR, leading.parse(ascii("GET http://example.com/ HTTP/1.1\r\n Host: example.com\r\n\r\n")));
+        assertTrue(leading.getError(), leading.getError().startsWith("Invalid header"));
+    }
+
+    private static ByteBuf ascii(String text) {
+        return Unpooled.wrappedBuffer(text.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    private static HttpParser httpHead(String text) {
+        HttpParser parser = new HttpParser();
+        ByteBuf in = ascii(text);
+        assertEquals(parser.getError(), HttpParser.DONE, parser.parse(in));
+        assertFalse(in.isReadable());
+        return parser;
+    }
+
+    @Test
+    public void garbageNeverThrows() {
+        Random random = new Random(4);
+        for (int i = 0; i < CASES; i++) {
+            byte[] garbage = new byte[random.nextInt(64)];
+            random.nextBytes(garbage);
+            feed(random, Unpooled.wrappedBuffer(garbage), new HeaderParser(random.nextBoolean())::parse, HeaderParser.NEED_MORE);
+            feed(random, Unpooled.wrappedBuffer(garbage), new Socks5Parser()::parse, Socks5Parser.NEED_MORE);
+            HttpParser http = new HttpParser();
+            ByteBuf in = Unpooled.wrappedBuffer(garbage);
+            while (in.isReadable() && (http.inBody() ? http.body(in) : http.parse(in)) != HttpParser.ERROR) {
+            }
+        }
+    }
+
+    private static void http(Random random, String host, Header header) {
+        boolean connect = random.nextInt(4) == 0;
+        StringBuilder text = new StringBuilder();
+        byte[] body = new byte[random.nextInt(3) == 0 ? 0 : random.nextInt(3000)];
+        random.nextBytes(body);
+        boolean chunked = random.nextBoolean();
+        String path = "/p" + random.nextInt(1000) + "?q=" + random.nextInt();
+        if (connect) {
+            text.append("CONNECT ").append(host).append(':').append(header.port).append(" HTTP/1.1\r\nHost: x\r\n\r\n");
+        } else {
+            text.append(random.nextBoolean() ? "\r\n" : "");
+            text.append("POST http://").append(host).append(':').append(header.port).append(path).append(" HTTP/1.1\r\n");
+            text.append("Host: ").append(host).append("\r\nProxy-Connection: keep-alive\r\n");
+            text.append(chunked ? "Transfer-Encoding: chunked\r\n" : "Content-Length: " + body.length + "\r\n");
+            text.append("\r\n");
+        }
+        byte[] head = text.toString().getBytes(StandardCharsets.UTF_8);
+        ByteBuf data = Unpooled.buffer();
+        data.writeBytes(head);
+        int bodyLength = body.length;
+        if (!connect && chunked) {
+            int off = 0;
+            while (off < body.length) {
+                int n = Math.min(body.length - off, 1 + random.nextInt(700));
+                data.writeBytes((Integer.toHexString(n) + (random.nextBoolean() ? ";a=b" : "") + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+                data.writeBytes(body, off, n).writeBytes("\r\n".getBytes(StandardCharsets.ISO_8859_1));
+                off += n;
+            }
+            data.writeBytes(("0\r\n" + (random.nextBoolean() ? "X-Trailer: 1\r\n" : "") + "\r\n").getBytes(StandardCharsets.ISO_8859_1));
+            bodyLength = data.readableBytes() - head.length;
+        } else {
+            data.writeBytes(body);
+        }
+        data.writeBytes("GET http://example.com/next HTTP/1.1\r\nHost: example.com\r\n\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        int total = data.readableBytes();
+
+        HttpParser parser = new HttpParser();
+        int requests = 0;
+        int bodyBytes = 0;
+        Address first = null;
+        String rewritten = null;
+        while (data.isReadable()) {
+            int n = Math.min(data.readableBytes(), 1 + random.nextInt(64));
+            ByteBuf slice = data.readSlice(n);
+            while (slice.isReadable()) {
+                if (parser.inBody()) {
+                    int r = parser.body(slice);
+                    assertNotEquals("http body " + parser.getError(), HttpParser.ERROR, r);
+                    bodyBytes += r;
+                    continue;
+                }
+                int r = parser.parse(slice);
+                assertNotEquals("http " + parser.getError(), HttpParser.ERROR, r);
+                if (r == HttpParser.DONE) {
+                    requests++;
+                    if (requests == 1) {
+                        first = parser.getAddress();
+                        rewritten = parser.isConnect() ? null : parser.getHead().toString(StandardCharsets.ISO_8859_1);
+                    }
+                }
+            }
+        }
+        header.check(first);
+        if (connect) {
+            assertEquals(1, requests);
+            assertTrue(parser.isConnect());
+            assertEquals(total - head.length, bodyBytes);
+        } else {
+            assertEquals(2, requests);
+            assertEquals(bodyLength, bodyBytes);
+            assertTrue(rewritten, rewritten.startsWith("POST " + path + " HTTP/1.1\r\n"));
+            assertFalse(rewritten, rewritten.contains("Proxy-Connection"));
+            assertEquals("example.com", parser.getAddress().getHost());
+            assertEquals(80, parser.getAddress().getPort());
+        }
+    }
+
+    /**
+     * 一个随机的 shadowsocks 地址头与期望的解析结果。
+     */
+    private static class Header {
+        final int type;
+        final String host;
+        final int port;
+        final byte[] bytes;
+
+        Header(int type, byte[] addr, int port) throws Exception {
+            this.type = type;
+            this.port = port;
+            host = type == Address.TYPE_HOST ? new String(addr, StandardCharsets.US_ASCII)
+                    : InetAddress.getByAddress(addr).getHostAddress();
+            ByteBuf buf = Unpooled.buffer();
+            buf.writeByte(type);
+            if (type == Address.TYPE_HOST) {
+                buf.writeByte(addr.length);
+            }
+            buf.writeBytes(addr);
+            buf.writeShort(port);
+            bytes = new byte[buf.readableBytes()];
+            buf.readBytes(bytes);
+        }
+
+        static Header random(Random random) throws Exception {
+            int type = new int[]{Address.TYPE_IPV4, Address.TYPE_HOST, Address.TYPE_IPV6}[random.nextInt(3)];
+            byte[] addr;
+            if (type == Address.TYPE_IPV4) {
+                addr = new byte[4];
+                random.nextBytes(addr);
+            } else if (type == Address.TYPE_IPV6) {
+                addr = new byte[16];
+                random.nextBytes(addr);
+            } else {
+                addr = new byte[1 + random.nextInt(Address.MAX_LENGTH)];
+                for (int j = 0; j < addr.length; j++) {
+                    addr[j] = (byte) ('a' + random.nextInt(26));
+                }
+            }
+            return new Header(type, addr, random.nextInt(65536));
+        }
+
+        void check(Address address) {
+            assertEquals(type, address.getType());
+            assertEquals(port, address.getPort());
+            assertEquals(host, address.getHost());
+            assertEquals(host + ":" + port, address.toString());
+        }
+    }
+
+    private interface Parse {
+        int parse(ByteBuf in);
+    }
+
+    /**
+     * 按随机长度切片送入，直到不再需要数据。
+     */
+    private static int feed(Random random, ByteBuf data, Parse parser, int needMore) {
+        ByteBuf all = data.duplicate();
+        int result = needMore;
+        while (result == needMore && all.isReadable()) {
+            int n = Math.min(all.readableBytes(), random.nextInt(16));
+            ByteBuf slice = all.readSlice(n);
+            result = parser.parse(slice);
+            all.readerIndex(all.readerIndex() - slice.readableBytes());
+        }
+        data.readerIndex(all.readerIndex());
+        return result;
+    }
+}
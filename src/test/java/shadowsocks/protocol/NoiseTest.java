@@ -0,0 +1,141 @@
+package shadowsocks.protocol;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.json.JsonObject;
+import org.junit.Test;
+import shadowsocks.GlobalConfig;
+import shadowsocks.crypto.Utils;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * 噪声长度在 [noise_min, noise_max] 之内，服务端 HeaderParser 能跳过任意切分的噪声解析出地址。
+ */
+public class NoiseTest {
+
+    private final static int SAMPLES = 200000;
+
+    private static GlobalConfig config(boolean noise, int min, int max, String distribution) {
+        return new GlobalConfig(null, new JsonObject()
+                .put("noise", noise)
+                .put("noise_min", min)
+                .put("noise_max", max)
+                .put("noise_distribution", distribution));
+    }
+
+    @Test
+    public void uniformLength() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[] seen = new int[Utils.NOISE_MAX + 1];
+        for (int i = 0; i < SAMPLES; i++) {
+            int length = Noise.length(random, 1, Utils.NOISE_MAX, Noise.UNIFORM);
+            assertTrue("length " + length, length >= 1 && length <= Utils.NOISE_MAX);
+            seen[length]++;
+        }
+        // 两端都能取到
+        for (int length = 1; length <= Utils.NOISE_MAX; length++) {
+            assertTrue("length " + length, seen[length] > 0);
+        }
+    }
+
+    /**
+     * 截断的指数分布不超出范围，均值在 noise_min + (noise_max - noise_min) / 4 附近（截断后略小）。
+     */
+    @Test
+    public void exponentialLength() {
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int[][] ranges = {{1, Utils.NOISE_MAX}, {100, 120}, {1, 2}, {255, Utils.NOISE_MAX}};
+        for (int[] range : ranges) {
+            int min = range[0];
+            int max = range[1];
+            long total = 0;
+            for (int i = 0; i < SAMPLES; i++) {
+                int length = Noise.length(random, min, max, Noise.EXPONENTIAL);
+                assertTrue(min + "-" + max + " length " + length, length >= min && length <= max);
+                total += length;
+            }
+            double mean = (double) total / SAMPLES - min;
+            assertTrue(min + "-" + max + " mean " + mean, mean <= (max - min + 1) / 4.0);
+        }
+        long total = 0;
+        for (int i = 0; i < SAMPLES; i++) {
+            total += Noise.length(random, 1, Utils.NOISE_MAX, Noise.EXPONENTIAL);
+        }
+        double mean = (double) total / SAMPLES;
+        assertTrue("mean " + mean, mean > 1 + Utils.NOISE_MAX * 0.2 && mean < 1 + Utils.NOISE_MAX * 0.25);
+    }
+
+    @Test
+    public void fixedLength() {
+        for (String distribution : new String[]{Noise.UNIFORM, Noise.EXPONENTIAL}) {
+            for (int i = 0; i < 1000; i++) {
+                assertEquals(7, Noise.length(ThreadLocalRandom.current(), 7, 7, distribution));
+            }
+        }
+    }
+
+    @Test
+    public void writeWithinConfig() {
+        for (String distribution : new String[]{Noise.UNIFORM, Noise.EXPONENTIAL}) {
+            GlobalConfig config = config(true, 10, 40, distribution);
+            assertEquals(44, Noise.maxLength(config));
+            for (int i = 0; i < 10000; i++) {
+                ByteBuf buf = Unpooled.buffer();
+                Noise.write(buf, config);
+                int length = buf.readInt();
+                assertTrue("length " + length, length >= 10 && length <= 40);
+                assertEquals(length, buf.readableBytes());
+            }
+        }
+        GlobalConfig off = config(false, 10, 40, Noise.UNIFORM);
+        ByteBuf buf = Unpooled.buffer();
+        Noise.write(buf, off);
+        assertFalse(buf.isReadable());
+        assertEquals(0, Noise.maxLength(off));
+    }
+
+    /**
+     * 噪声 + 地址头 + 之后的数据按随机长度切片送入 HeaderParser。
+     */
+    @Test
+    public void serverSkipsNoise() {
+        Random random = new Random(0);
+        for (String distribution : new String[]{Noise.UNIFORM, Noise.EXPONENTIAL}) {
+            GlobalConfig config = config(true, 1, Utils.NOISE_MAX, distribution);
+            HeaderParser parser = new HeaderParser(true);
+            for (int i = 0; i < 10000; i++) {
+                ByteBuf data = Unpooled.buffer();
+                Noise.write(data, config);
+                Address.create("www.example.com", 443).writeTo(data);
+                int trailing = random.nextInt(8);
+                data.writeZero(trailing);
+                parser.reset();
+                int result = HeaderParser.NEED_MORE;
+                while (result == HeaderParser.NEED_MORE && data.isReadable()) {
+                    ByteBuf slice = data.readSlice(Math.min(data.readableBytes(), random.nextInt(64)));
+                    result = parser.parse(slice);
+                    data.readerIndex(data.readerIndex() - slice.readableBytes());
+                }
+                assertEquals(parser.getError(), HeaderParser.DONE, result);
+                assertEquals(trailing, data.readableBytes());
+                assertEquals("www.example.com", parser.getAddress().getHost());
+                assertEquals(443, parser.getAddress().getPort());
+            }
+        }
+    }
+
+    @Test
+    public void serverRejectsBadLength() {
+        for (int length : new int[]{0, -1, Utils.NOISE_MAX + 1}) {
+            ByteBuf data = Unpooled.buffer().writeInt(length).writeZero(16);
+            HeaderParser parser = new HeaderParser(true);
+            assertEquals(HeaderParser.ERROR, parser.parse(data));
+        }
+    }
+}
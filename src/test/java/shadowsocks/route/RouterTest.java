@@ -0,0 +1,281 @@
+package shadowsocks.route;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import org.junit.Test;
+import shadowsocks.protocol.Address;
+import shadowsocks.protocol.AddressParser;
+
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * 域名取最长后缀、IP 取最长前缀，完全相同的规则先出现的优先；随机规则与逐条扫描的结果比对。
+ */
+public class RouterTest {
+
+    private static final Route[] ROUTES = {Route.DIRECT, Route.PROXY, Route.REJECT};
+
+    /**
+     * 按客户端发来的原样构造域名地址，非 ASCII 的域名是 UTF-8。
+     */
+    private static Address host(String host) {
+        byte[] bytes = host.getBytes(StandardCharsets.UTF_8);
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeByte(Address.TYPE_HOST).writeByte(bytes.length).writeBytes(bytes).writeShort(443);
+        AddressParser parser = new AddressParser();
+        assertEquals(AddressParser.DONE, parser.parse(buf));
+        return parser.getAddress();
+    }
+
+    private static Address ip(String ip) {
+        return Address.create(ip, 443);
+    }
+
+    private static Router router(String... rules) {
+        Router router = new Router(Route.PROXY);
+        for (String rule : rules) {
+            router.addRule(rule);
+        }
+        return router;
+    }
+
+    @Test
+    public void longestSuffix() {
+        Router router = router(
+                "DOMAIN-SUFFIX,example.com,DIRECT",
+                "DOMAIN-SUFFIX,b.a.example.com,REJECT",
+                "DOMAIN-SUFFIX,a.example.com,PROXY",
+                "DOMAIN-SUFFIX,com,REJECT",
+                "MATCH,DIRECT");
+        assertEquals(Route.REJECT, router.route(host("x.b.a.example.com")));
+        assertEquals(Route.REJECT, router.route(host("b.a.example.com")));
+        assertEquals(Route.PROXY, router.route(host("c.a.example.com")));
+        assertEquals(Route.DIRECT, router.route(host("www.example.com")));
+        assertEquals(Route.DIRECT, router.route(host("example.com")));
+        assertEquals(Route.REJECT, router.route(host("notexample.com")));
+        // 后缀按 label 匹配
+        assertEquals(Route.DIRECT, router.route(host("xcom")));
+        assertEquals(Route.DIRECT, router.route(host("example.org")));
+    }
+
+    @Test
+    public void domainAndSuffixOnSameName() {
+        Router router = router(
+                "DOMAIN,www.example.com,DIRECT",
+                "DOMAIN-SUFFIX,www.example.com,REJECT",
+                "DOMAIN,www.example.com,PROXY");
+        assertEquals(Route.DIRECT, router.route(host("www.example.com")));
+        assertEquals(Route.REJECT, router.route(host("a.www.example.com")));
+        assertEquals(Route.PROXY, router.route(host("example.com")));
+
+        router = router(
+                "DOMAIN-SUFFIX,www.example.com,REJECT",
+                "DOMAIN,www.example.com,DIRECT");
+        assertEquals(Route.REJECT, router.route(host("www.example.com")));
+        assertEquals(Route.REJECT, router.route(host("a.www.example.com")));
+
+        // DOMAIN 不匹配子域名，交给更短的后缀
+        router = router(
+                "DOMAIN,api.example.com,DIRECT",
+                "DOMAIN-SUFFIX,example.com,REJECT");
+        assertEquals(Route.DIRECT, router.route(host("api.example.com")));
+        assertEquals(Route.REJECT, router.route(host("v1.api.example.com")));
+    }
+
+    @Test
+    public void trailingDotsAndCase() {
+        Router router = router(
+                "DOMAIN-SUFFIX,Example.COM.,DIRECT",
+                "DOMAIN-SUFFIX,.example.org,REJECT",
+                "DOMAIN,WWW.Example.Net,DIRECT");
+        assertEquals(Route.DIRECT, router.route(host("WWW.EXAMPLE.COM.")));
+        assertEquals(Route.DIRECT, router.route(host("example.com..")));
+        assertEquals(Route.REJECT, router.route(host("a.Example.Org")));
+        assertEquals(Route.REJECT, router.route(host("example.org.")));
+        assertEquals(Route.DIRECT, router.route(host("www.example.net.")));
+        assertEquals(Route.PROXY, router.route(host("a.www.example.net")));
+        assertEquals(Route.PROXY, router.route(host(".")));
+    }
+
+    @Test
+    public void punycode() {
+        Router router = router(
+                "DOMAIN-SUFFIX,bücher.example,DIRECT",
+                "DOMAIN,xn--mnchen-3ya.example,REJECT",
+                "DOMAIN-SUFFIX,ÉCOLE.example,REJECT");
+        assertEquals(Route.DIRECT, router.route(host("www.bücher.example")));
+        assertEquals(Route.DIRECT, router.route(host("www.xn--bcher-kva.example")));
+        assertEquals(Route.DIRECT, router.route(host("XN--BCHER-KVA.EXAMPLE")));
+        assertEquals(Route.REJECT, router.route(host("münchen.example")));
+        assertEquals(Route.REJECT, router.route(host("a.école.example")));
+        assertEquals(Route.PROXY, router.route(host("bucher.example")));
+    }
+
+    @Test
+    public void cidrPrefixes() {
+        Router router = router(
+                "IP-CIDR,10.0.0.0/8,DIRECT",
+                "IP-CIDR,10.1.0.0/16,REJECT",
+                "IP-CIDR,10.1.2.3/32,PROXY",
+                "IP-CIDR,10.1.2.4,DIRECT",
+                "IP-CIDR6,2001:db8::/32,REJECT",
+                "IP-CIDR6,2001:db8::1/128,DIRECT",
+                "MATCH,REJECT");
+        assertEquals(Route.DIRECT, router.route(ip("10.200.0.1")));
+        assertEquals(Route.REJECT, router.route(ip("10.1.2.2")));
+        assertEquals(Route.PROXY, router.route(ip("10.1.2.3")));
+        assertEquals(Route.DIRECT, router.route(ip("10.1.2.4")));
+        assertEquals(Route.REJECT, router.route(ip("11.0.0.1")));
+        assertEquals(Route.DIRECT, router.route(ip("2001:db8::1")));
+        assertEquals(Route.REJECT, router.route(ip("2001:db8::2")));
+        assertEquals(Route.REJECT, router.route(ip("2001:db9::1")));
+        // IPv4-mapped 按 IPv4 匹配
+        assertEquals(Route.PROXY, router.route(ip("::ffff:10.1.2.3")));
+
+        // /0 只覆盖同一协议族，前缀之外的位被忽略
+        router = router("IP-CIDR,1.2.3.4/0,DIRECT", "IP-CIDR6,::/0,REJECT", "IP-CIDR,255.255.255.255/32,PROXY");
+        assertEquals(Route.DIRECT, router.route(ip("0.0.0.0")));
+        assertEquals(Route.DIRECT, router.route(ip("255.255.255.254")));
+        assertEquals(Route.PROXY, router.route(ip("255.255.255.255")));
+        assertEquals(Route.REJECT, router.route(ip("::")));
+        assertEquals(Route.REJECT, router.route(ip("ffff:ffff:ffff:ffff:ffff:ffff:ffff:ffff")));
+        // 先出现的优先
+        router = router("IP-CIDR,10.0.0.0/8,DIRECT", "IP-CIDR,10.9.9.9/8,REJECT");
+        assertEquals(Route.DIRECT, router.route(ip("10.0.0.1")));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void prefixTooLong() {
+        router("IP-CIDR,10.0.0.0/33,DIRECT");
+    }
+
+    private static String label(Random random) {
+        // 字母表很小，规则之间大量共享后缀，也会出现同名的 DOMAIN 与 DOMAIN-SUFFIX
+        char[] chars = new char[1 + random.nextInt(2)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = (char) ('a' + random.nextInt(3));
+        }
+        return new String(chars);
+    }
+
+    private static String domain(Random random) {
+        StringBuilder sb = new StringBuilder(label(random));
+        for (int i = random.nextInt(3); i >= 0; i--) {
+            sb.append('.').append(label(random));
+        }
+        return sb.toString();
+    }
+
+    @Test
+    public void domainsMatchLinearScan() {
+        Random random = new Random(0);
+        for (int round = 0; round < 20; round++) {
+            Router router = new Router(Route.PROXY);
+            List<String> domains = new ArrayList<>();
+            List<Boolean> exact = new ArrayList<>();
+            List<Route> routes = new ArrayList<>();
+            for (int i = random.nextInt(2000); i >= 0; i--) {
+                String domain = domain(random);
+                boolean e = random.nextInt(3) == 0;
+                Route route = ROUTES[random.nextInt(ROUTES.length)];
+                router.addRule((e ? "DOMAIN," : "DOMAIN-SUFFIX,") + domain + "," + route);
+                domains.add(domain);
+                exact.add(e);
+                routes.add(route);
+            }
+            for (int i = 0; i < 2000; i++) {
+                String query = domain(random);
+                Route expected = Route.PROXY;
+                int best = -1;
+                for (int j = 0; j < domains.size(); j++) {
+                    String rule = domains.get(j);
+                    boolean match = query.equals(rule) || !exact.get(j) && query.endsWith("." + rule);
+                    if (match && rule.length() > best) {
+                        expected = routes.get(j);
+                        best = rule.length();
+                    }
+                }
+                assertEquals(query, expected, router.route(host(query)));
+            }
+        }
+    }
+
+    @Test
+    public void cidrsMatchLinearScan() throws Exception {
+        Random random = new Random(1);
+        for (int round = 0; round < 20; round++) {
+            Router router = new Router(Route.PROXY);
+            List<byte[]> prefixes = new ArrayList<>();
+            List<Integer> lengths = new ArrayList<>();
+            List<Route> routes = new ArrayList<>();
+            for (int i = random.nextInt(2000); i >= 0; i--) {
+                byte[] ip = new byte[random.nextBoolean() ? 4 : 16];
+                // 地址集中在少数几个高位上，前缀之间互相包含
+                ip[0] = (byte) random.nextInt(4);
+                for (int b = 1; b < ip.length; b++) {
+                    ip[b] = (byte) (random.nextInt(4) == 0 ? random.nextInt() : 0);
+                }
+                int bits = random.nextInt(ip.length * 8 + 1);
+                Route route = ROUTES[random.nextInt(ROUTES.length)];
+                String text = InetAddress.getByAddress(ip).getHostAddress();
+                router.addRule((ip.length == 4 ? "IP-CIDR," : "IP-CIDR6,") + text + "/" + bits + "," + route);
+                prefixes.add(ip);
+                lengths.add(bits);
+                routes.add(route);
+            }
+            for (int i = 0; i < 2000; i++) {
+                byte[] ip = new byte[random.nextBoolean() ? 4 : 16];
+                if (random.nextBoolean()) {
+                    // 落在某条规则内
+                    int rule = random.nextInt(prefixes.size());
+                    byte[] prefix = prefixes.get(rule);
+                    ip = new byte[prefix.length];
+                    random.nextBytes(ip);
+                    for (int b = 0; b < lengths.get(rule); b++) {
+                        int mask = 0x80 >>> (b & 7);
+                        ip[b >>> 3] = (byte) (ip[b >>> 3] & ~mask | prefix[b >>> 3] & mask);
+                    }
+                } else {
+                    random.nextBytes(ip);
+                    ip[0] = (byte) random.nextInt(4);
+                }
+                Route expected = Route.PROXY;
+                int best = -1;
+                for (int j = 0; j < prefixes.size(); j++) {
+                    byte[] prefix = prefixes.get(j);
+                    int bits = lengths.get(j);
+                    if (prefix.length != ip.length || bits <= best)
+                        continue;
+                    boolean match = true;
+                    for (int b = 0; b < bits && match; b++) {
+                        match = ((ip[b >>> 3] ^ prefix[b >>> 3]) & (0x80 >>> (b & 7))) == 0;
+                    }
+                    if (match) {
+                        expected = routes.get(j);
+                        best = bits;
+                    }
+                }
+                Address address = ip.length == 4 ? Address.create(InetAddress.getByAddress(ip).getHostAddress(), 443)
+                        : rawIpv6(ip);
+                assertEquals(InetAddress.getByAddress(ip).getHostAddress(), expected, router.route(address));
+            }
+        }
+    }
+
+    /**
+     * 不经过 Address.create，IPv4-mapped 的地址也按 IPv6 匹配。
+     */
+    private static Address rawIpv6(byte[] ip) {
+        ByteBuf buf = Unpooled.buffer();
+        buf.writeByte(Address.TYPE_IPV6).writeBytes(ip).writeShort(443);
+        AddressParser parser = new AddressParser();
+        assertEquals(AddressParser.DONE, parser.parse(buf));
+        return parser.getAddress();
+    }
+}
@@ -0,0 +1,216 @@
+package shadowsocks.vertxio;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.PoolArenaMetric;
+import io.netty.buffer.PooledByteBufAllocator;
+import io.netty.buffer.Unpooled;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.channel.embedded.EmbeddedChannel;
+import io.netty.util.concurrent.FastThreadLocal;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.VertxInternal;
+import io.vertx.core.json.JsonObject;
+import io.vertx.core.net.NetSocket;
+import io.vertx.core.net.impl.NetSocketImpl;
+import org.junit.After;
+import org.junit.AfterClass;
+import org.junit.Before;
+import org.junit.BeforeClass;
+import org.junit.Test;
+import shadowsocks.GlobalConfig;
+import shadowsocks.compress.Compression;
+import shadowsocks.compress.FrameDecoder;
+import shadowsocks.crypto.CryptoFactory;
+import shadowsocks.crypto.SSCrypto;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * OutboundBatcher 与 PooledBuffers 分配的池化 buffer 在写出、丢弃与连接关闭后都被释放。
+ *
+ * socket 是 EmbeddedChannel 上的 NetSocketImpl，写出的 buffer 留在 channel 里由测试读取并释放，
+ * 任务在测试线程上执行。比较前清空本线程的缓存，池中活跃的分配数回到开始时的值才算没有泄漏。
+ */
+public class OutboundBatcherTest {
+
+    private final static String PASSWORD = "batcher-test";
+    private final static String METHOD = "chacha20";
+
+    private static Vertx mVertx;
+
+    private EmbeddedChannel mChannel;
+    private NetSocket mSocket;
+    private long mBaseline;
+
+    @BeforeClass
+    public static void startVertx() {
+        mVertx = Vertx.vertx();
+    }
+
+    @AfterClass
+    public static void stopVertx() {
+        mVertx.close();
+    }
+
+    @Before
+    public void setUp() {
+        ChannelInboundHandlerAdapter handler = new ChannelInboundHandlerAdapter();
+        mChannel = new EmbeddedChannel(handler);
+        ChannelHandlerContext ctx = mChannel.pipeline().context(handler);
+        VertxInternal vertx = (VertxInternal) mVertx;
+        mSocket = new NetSocketImpl(vertx, ctx, vertx.getOrCreateContext(), null, null);
+        mBaseline = live();
+    }
+
+    @After
+    public void tearDown() {
+        mChannel.finishAndReleaseAll();
+    }
+
+    /**
+     * 池中活跃的分配数。先清空本线程的缓存，缓存中的 buffer 还给 arena 后才计入释放。
+     */
+    private static long live() {
+        FastThreadLocal.removeAll();
+        long live = 0;
+        for (PoolArenaMetric arena : PooledByteBufAllocator.DEFAULT.metric().heapArenas()) {
+            live += arena.numActiveAllocations();
+        }
+        for (PoolArenaMetric arena : PooledByteBufAllocator.DEFAULT.metric().directArenas()) {
+            live += arena.numActiveAllocations();
+        }
+        return live;
+    }
+
+    private static GlobalConfig config(int batchLimit) {
+        return new GlobalConfig(null, new JsonObject()
+                .put("method", METHOD).put("password", PASSWORD).put("batch_limit", batchLimit));
+    }
+
+    /**
+     * 读出 channel 里写出的全部数据并释放。
+     */
+    private byte[] drain() {
+        ByteBuf all = Unpooled.buffer();
+        ByteBuf buf;
+        while ((buf = mChannel.readOutbound()) != null) {
+            all.writeBytes(buf);
+            assertTrue(buf.release());
+        }
+        byte[] bytes = new byte[all.readableBytes()];
+        all.readBytes(bytes);
+        return bytes;
+    }
+
+    private static byte[] decrypt(byte[] wire, boolean framed, int header) throws Exception {
+        SSCrypto crypto = CryptoFactory.create(METHOD, PASSWORD, 16);
+        ByteBuf plain = Unpooled.buffer();
+        crypto.decrypt(Unpooled.wrappedBuffer(wire), plain);
+        if (!framed) {
+            return toArray(plain);
+        }
+        ByteBuf out = Unpooled.buffer();
+        out.writeBytes(plain, header);
+        FrameDecoder decoder = new FrameDecoder();
+        assertTrue(decoder.decode(plain, out));
+        decoder.close();
+        return toArray(out);
+    }
+
+    private static byte[] toArray(ByteBuf buf) {
+        byte[] bytes = new byte[buf.readableBytes()];
+        buf.readBytes(bytes);
+        return bytes;
+    }
+
+    private void roundTrip(int batchLimit, boolean framed) throws Exception {
+        Random random = new Random(batchLimit);
+        SSCrypto crypto = CryptoFactory.create(METHOD, PASSWORD, 16);
+        OutboundBatcher batcher = new OutboundBatcher(new ReadPause(mSocket), mSocket, crypto,
+                framed ? Compression.encoder(true) : null, config(batchLimit), e -> {
+            throw new AssertionError(e);
+        });
+        ByteBuf expected = Unpooled.buffer();
+        byte[] header = new byte[7];
+        random.nextBytes(header);
+        batcher.writeHeader(Unpooled.wrappedBuffer(header));
+        expected.writeBytes(header);
+        for (int i = 0; i < 200; i++) {
+            byte[] data = new byte[random.nextInt(3000)];
+            for (int j = 0; j < data.length; j++) {
+                data[j] = (byte) (random.nextInt(4) == 0 ? random.nextInt() : 'a');
+            }
+            ByteBuf in = random.nextBoolean() ? Unpooled.wrappedBuffer(data)
+                    : PooledByteBufAllocator.DEFAULT.directBuffer(data.length).writeBytes(data);
+            batcher.write(in);
+            assertTrue(in.release());
+            expected.writeBytes(data);
+            if (random.nextInt(5) == 0) {
+                // 本轮 IO 结束，执行合并写出的任务
+                mChannel.runPendingTasks();
+            }
+        }
+        boolean[] ended = new boolean[1];
+        batcher.end(v -> ended[0] = true);
+        assertTrue(ended[0]);
+        mChannel.runPendingTasks();
+        assertEquals(0, batcher.pendingBytes());
+        assertArrayEquals(toArray(expected), decrypt(drain(), framed, header.length));
+        crypto.release(true);
+        assertEquals(mBaseline, live());
+    }
+
+    @Test
+    public void batchedWritesAreReleased() throws Exception {
+        roundTrip(16384, false);
+    }
+
+    @Test
+    public void unbatchedWritesAreReleased() throws Exception {
+        roundTrip(0, false);
+    }
+
+    @Test
+    public void framedWritesAreReleased() throws Exception {
+        roundTrip(16384, true);
+    }
+
+    @Test
+    public void closeDiscardsPending() throws Exception {
+        SSCrypto crypto = CryptoFactory.create(METHOD, PASSWORD, 16);
+        OutboundBatcher batcher = new OutboundBatcher(new ReadPause(mSocket), mSocket, crypto, config(16384), e -> {
+            throw new AssertionError(e);
+        });
+        batcher.write(Unpooled.wrappedBuffer(new byte[1000]));
+        assertEquals(1000, batcher.pendingBytes());
+        batcher.close();
+        // 已经排队的合并任务不再写出，之后的写入被忽略
+        mChannel.runPendingTasks();
+        batcher.write(Unpooled.wrappedBuffer(new byte[1000]));
+        mChannel.runPendingTasks();
+        assertEquals(0, batcher.pendingBytes());
+        assertEquals(0, drain().length);
+        crypto.release(true);
+        assertEquals(mBaseline, live());
+    }
+
+    @Test
+    public void writeToClosedChannelReleases() {
+        ByteBuf empty = PooledBuffers.allocate(64);
+        PooledBuffers.write(mSocket, empty);
+        assertEquals(0, empty.refCnt());
+
+        mChannel.close();
+        ByteBuf buf = PooledBuffers.allocate(64).writeZero(64);
+        PooledBuffers.write(mSocket, buf);
+        mChannel.runPendingTasks();
+        assertEquals(0, buf.refCnt());
+        assertEquals(0, PooledBuffers.pending(mSocket));
+        assertEquals(mBaseline, live());
+    }
+}